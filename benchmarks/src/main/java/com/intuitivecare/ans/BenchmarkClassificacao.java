@@ -0,0 +1,98 @@
+package com.intuitivecare.ans;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Classificacao de despesas (regras compiladas, com e sem memo por par conta/descricao) e validacao de CNPJ, por linha
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkClassificacao {
+
+    private static final int LINHAS = 10_000;
+
+    private List<ProcessadorCSV.DadosDespesa> despesas;
+    private String[] cnpjs;
+    private ByteBuffer campos;
+    private int[] limites;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        GeradorDadosAns gerador = new GeradorDadosAns(42, 1500);
+        despesas = gerador.gerarDespesas(LINHAS);
+        cnpjs = gerador.gerarCnpjs(LINHAS, 0.9);
+
+        // Conta e descricao de cada linha lado a lado num buffer direto, como no arquivo mapeado
+        StringBuilder texto = new StringBuilder();
+        limites = new int[LINHAS * 4];
+        for (int i = 0; i < LINHAS; i++) {
+            ProcessadorCSV.DadosDespesa despesa = despesas.get(i);
+            limites[i * 4] = texto.length();
+            texto.append(despesa.codigoConta);
+            limites[i * 4 + 1] = texto.length();
+            texto.append(';');
+            limites[i * 4 + 2] = texto.length();
+            texto.append(despesa.descricao);
+            limites[i * 4 + 3] = texto.length();
+            texto.append('\n');
+        }
+        byte[] bytes = texto.toString().getBytes(StandardCharsets.ISO_8859_1);
+        campos = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int ehDespesa() {
+        int total = 0;
+        for (ProcessadorCSV.DadosDespesa despesa : despesas) {
+            if (ProcessadorCSV.ehDespesa(despesa.codigoConta, despesa.descricao)) total++;
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int ehDespesaBytes() {
+        int total = 0;
+        for (int i = 0; i < LINHAS; i++) {
+            if (ClassificadorDespesas.PADRAO.ehDespesa(campos, limites[i * 4], limites[i * 4 + 1],
+                    limites[i * 4 + 2], limites[i * 4 + 3])) total++;
+        }
+        return total;
+    }
+
+    // Uma memo por invocacao, como uma por arquivo lido; as linhas repetidas viram consultas
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int ehDespesaMemo() {
+        ClassificadorDespesas.Memo memo = ClassificadorDespesas.PADRAO.novaMemo();
+        int total = 0;
+        for (int i = 0; i < LINHAS; i++) {
+            if (memo.ehDespesa(campos, limites[i * 4], limites[i * 4 + 1], limites[i * 4 + 2], limites[i * 4 + 3])) total++;
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int isCNPJValido() {
+        int validos = 0;
+        for (String cnpj : cnpjs) {
+            if (ValidadorDados.isCNPJValido(cnpj)) validos++;
+        }
+        return validos;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public boolean[] validarCNPJsEmLote() {
+        return ValidadorDados.validarCNPJs(cnpjs);
+    }
+}
@@ -0,0 +1,75 @@
+package com.intuitivecare.ans;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Consultas do ServicoConsultas direto na BaseConsultas (sem HTTP), sobre um ZIP final sintetico
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchmarkConsultas {
+
+    private static final int LINHAS_POR_TRIMESTRE = 100_000;
+    private static final String[] DATAS = {"2024-01-01", "2024-04-01", "2024-07-01"};
+    private static final DescobertaTrimestres.Trimestre TRIMESTRE = new DescobertaTrimestres.Trimestre(2024, 2);
+
+    private BaseConsultas base;
+    private String regAns;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        GeradorDadosAns gerador = new GeradorDadosAns(42, 5000);
+        Map<String, ServicoEnriquecimento.DadosCadastrais> cadastro = gerador.gerarCadastro(0.9);
+        regAns = cadastro.keySet().iterator().next();
+
+        File zip = Files.createTempFile("ans-bench", ".zip").toFile();
+        try (EscritorZipParalelo escritor = new EscritorZipParalelo(zip, 1, 1)) {
+            ServicoAgregacao.Agrupamento agrupamento = new ServicoAgregacao.Agrupamento();
+            try (CodificadorCSV saida = ServicoEnriquecimento.abrirSaida(escritor.abrir("consolidado_enriquecido.csv"))) {
+                for (String data : DATAS) {
+                    List<ProcessadorCSV.DadosDespesa> despesas = gerador.gerarDespesas(LINHAS_POR_TRIMESTRE);
+                    for (ProcessadorCSV.DadosDespesa despesa : despesas) {
+                        ServicoEnriquecimento.DadosCadastrais dados = cadastro.get(despesa.regAns);
+                        ServicoEnriquecimento.imprimirLinhaEnriquecida(saida, data, despesa.regAns, despesa.codigoConta,
+                                despesa.descricao, despesa.valorCentavos, dados);
+                        agrupamento.adicionar(dados != null ? dados.razaoSocial() : ServicoEnriquecimento.RAZAO_NAO_ENCONTRADA,
+                                dados != null ? dados.uf() : "", despesa.valorCentavos);
+                    }
+                }
+            }
+            new ServicoAgregacao().gerarRelatorioEstatistico(agrupamento, escritor, "despesas_agregadas.csv");
+            escritor.concluir();
+        }
+        base = BaseConsultas.carregar(zip, "consolidado_enriquecido.csv", "despesas_agregadas.csv");
+        zip.delete();
+    }
+
+    @Benchmark
+    public List<BaseConsultas.Total> operadora() {
+        return base.totaisDaOperadora(regAns);
+    }
+
+    @Benchmark
+    public List<BaseConsultas.Total> top10Geral() {
+        return base.filtrar(null, null, null, 10);
+    }
+
+    @Benchmark
+    public List<BaseConsultas.Total> top10Filtrado() {
+        return base.filtrar(TRIMESTRE, "SP", "Cooperativa Médica", 10);
+    }
+
+    @Benchmark
+    public List<BaseConsultas.Agregado> agregadoPorUf() {
+        return base.agregados("RJ", 10);
+    }
+}
@@ -0,0 +1,159 @@
+package com.intuitivecare.ans;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Join com o cadastro, agregacao por (RAZAO_SOCIAL, UF) e escrita CSV, por linha
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchmarkJoinAgregacao {
+
+    private static final int LINHAS = 100_000;
+
+    private List<ProcessadorCSV.DadosDespesa> despesas;
+    private Map<String, ServicoEnriquecimento.DadosCadastrais> cadastro;
+    private IndiceCadastro indice;
+    private IndiceCadastro indiceVersionado;
+    private ServicoAgregacao.Agrupamento agrupamentoPronto;
+    private File relatorio;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        GeradorDadosAns gerador = new GeradorDadosAns(42, 1500);
+        despesas = gerador.gerarDespesas(LINHAS);
+        cadastro = gerador.gerarCadastro(0.9);
+        indice = IndiceCadastro.deMapa(cadastro);
+        // Quatro versoes trimestrais do mesmo cadastro; as despesas (2024-01-01) caem na segunda
+        IndiceCadastro.Construtor construtor = new IndiceCadastro.Construtor();
+        LocalDate inicio = null;
+        for (String fim : new String[]{"2023-12-31", "2024-03-31", "2024-06-30", "2024-09-30"}) {
+            for (ServicoEnriquecimento.DadosCadastrais dados : cadastro.values()) {
+                construtor.adicionar(dados, inicio, LocalDate.parse(fim));
+            }
+            inicio = LocalDate.parse(fim).plusDays(1);
+        }
+        indiceVersionado = construtor.construir();
+        agrupamentoPronto = agrupar();
+        relatorio = Files.createTempFile("ans-bench", ".csv").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void limpar() {
+        relatorio.delete();
+    }
+
+    // Laco de consultas do realizarJoin, sem a escrita, no IndiceCadastro (tabela densa por REG_ANS)
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int joinConsulta() {
+        IndiceCadastro.Consulta consulta = indice.consulta();
+        int encontrados = 0;
+        for (ProcessadorCSV.DadosDespesa despesa : despesas) {
+            if (consulta.buscar(despesa.data, despesa.regAns) != null) encontrados++;
+        }
+        return encontrados;
+    }
+
+    // O mesmo com varias versoes do cadastro, escolhidas pela DATA de cada linha
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int joinConsultaVersionado() {
+        IndiceCadastro.Consulta consulta = indiceVersionado.consulta();
+        int encontrados = 0;
+        for (ProcessadorCSV.DadosDespesa despesa : despesas) {
+            if (consulta.buscar(despesa.data, despesa.regAns) != null) encontrados++;
+        }
+        return encontrados;
+    }
+
+    // Referencia: HashMap por REG_ANS em String, usado antes do IndiceCadastro
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int joinConsultaHashMap() {
+        int encontrados = 0;
+        for (ProcessadorCSV.DadosDespesa despesa : despesas) {
+            if (cadastro.get(despesa.regAns) != null) encontrados++;
+        }
+        return encontrados;
+    }
+
+    // Consulta e linha enriquecida formatada, como no realizarJoin e no pipeline em streaming
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int joinComEscrita() throws IOException {
+        IndiceCadastro.Consulta consulta = indice.consulta();
+        int semMatch = 0;
+        try (CodificadorCSV saida = ServicoEnriquecimento.abrirSaida(OutputStream.nullOutputStream())) {
+            for (ProcessadorCSV.DadosDespesa despesa : despesas) {
+                boolean encontrado = ServicoEnriquecimento.imprimirLinhaEnriquecida(saida, despesa.data, despesa.regAns,
+                        despesa.codigoConta, despesa.descricao, despesa.valorCentavos, consulta.buscar(despesa.data, despesa.regAns));
+                if (!encontrado) semMatch++;
+            }
+        }
+        return semMatch;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public ServicoAgregacao.Agrupamento agrupar() {
+        ServicoAgregacao.Agrupamento agrupamento = new ServicoAgregacao.Agrupamento();
+        for (ProcessadorCSV.DadosDespesa despesa : despesas) {
+            ServicoEnriquecimento.DadosCadastrais dados = cadastro.get(despesa.regAns);
+            String razao = dados != null ? dados.razaoSocial() : ServicoEnriquecimento.RAZAO_NAO_ENCONTRADA;
+            agrupamento.adicionar(razao, dados != null ? dados.uf() : "", despesa.valorCentavos);
+        }
+        return agrupamento;
+    }
+
+    // Estatisticas, ordenacao e escrita do relatorio a partir dos grupos ja formados (por operacao completa)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void relatorioEstatistico() throws IOException {
+        new ServicoAgregacao().gerarRelatorioEstatistico(agrupamentoPronto, relatorio.getPath());
+    }
+
+    // Escrita do consolidado no formato do EscritorCSV.salvarArquivoConsolidado, em bytes UTF-8
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public void escreverConsolidado() throws IOException {
+        try (CodificadorCSV saida = new CodificadorCSV(OutputStream.nullOutputStream(), StandardCharsets.UTF_8, ';')) {
+            saida.registro("DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO", "VL_SALDO_FINAL");
+            for (ProcessadorCSV.DadosDespesa despesa : despesas) {
+                saida.texto(despesa.data).texto(despesa.regAns).texto(despesa.codigoConta).texto(despesa.descricao)
+                        .centavos(despesa.valorCentavos, ',').fimRegistro();
+            }
+        }
+    }
+
+    // Referencia: a mesma escrita pelo CSVPrinter (commons-csv), usado antes do CodificadorCSV
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public void escreverConsolidadoCommons() throws IOException {
+        CSVFormat formato = CSVFormat.Builder.create()
+                .setDelimiter(';')
+                .setQuote('"')
+                .setHeader("DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO", "VL_SALDO_FINAL")
+                .build();
+        try (Writer writer = new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+             CSVPrinter printer = new CSVPrinter(writer, formato)) {
+            for (ProcessadorCSV.DadosDespesa despesa : despesas) {
+                printer.printRecord(despesa.data, despesa.regAns, despesa.codigoConta, despesa.descricao,
+                        EscritorCSV.formatarValor(despesa.valorCentavos));
+            }
+        }
+    }
+}
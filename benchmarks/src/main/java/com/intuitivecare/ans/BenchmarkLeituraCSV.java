@@ -0,0 +1,45 @@
+package com.intuitivecare.ans;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Vazao de ProcessadorCSV.processarArquivo (linhas lidas por segundo), TokenizadorCSV x Commons CSV
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchmarkLeituraCSV {
+
+    private static final int LINHAS = 200_000;
+
+    @Param({"true", "false"})
+    public boolean tokenizador;
+
+    private File arquivo;
+    private ProcessadorCSV processador;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        arquivo = Files.createTempFile("ans-bench", ".csv").toFile();
+        new GeradorDadosAns(42, 1500).gerarCsvTrimestral(arquivo, LINHAS, "2024-01-01");
+        processador = new ProcessadorCSV(tokenizador);
+    }
+
+    @TearDown(Level.Trial)
+    public void limpar() {
+        arquivo.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int processarArquivo(Blackhole bh) throws IOException {
+        return processador.processarArquivo(arquivo, bh::consume);
+    }
+}
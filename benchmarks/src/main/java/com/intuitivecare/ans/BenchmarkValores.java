@@ -0,0 +1,67 @@
+package com.intuitivecare.ans;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Parse de valores monetarios (texto e bytes) e formatacao da saida (EscritorCSV.formatarValor), por valor
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkValores {
+
+    private static final int VALORES = 10_000;
+
+    private String[] textos;
+    private ByteBuffer bytes;
+    private int[] inicios;
+    private int[] fins;
+    private long[] centavos;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        GeradorDadosAns gerador = new GeradorDadosAns(42, 1500);
+        textos = gerador.gerarValoresTexto(VALORES);
+        centavos = gerador.gerarValoresCentavos(VALORES);
+
+        // Os mesmos textos lado a lado num buffer direto, como no arquivo mapeado
+        byte[] concatenado = String.join(";", textos).getBytes(StandardCharsets.ISO_8859_1);
+        bytes = ByteBuffer.allocateDirect(concatenado.length).put(concatenado).flip();
+        inicios = new int[VALORES];
+        fins = new int[VALORES];
+        int posicao = 0;
+        for (int i = 0; i < VALORES; i++) {
+            inicios[i] = posicao;
+            fins[i] = posicao + textos[i].length();
+            posicao = fins[i] + 1;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALORES)
+    public long parseTexto() {
+        long soma = 0;
+        for (String texto : textos) soma += ValorMonetario.parseCentavos(texto);
+        return soma;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALORES)
+    public long parseBytes() {
+        long soma = 0;
+        for (int i = 0; i < VALORES; i++) soma += ValorMonetario.parseCentavos(bytes, inicios[i], fins[i]);
+        return soma;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALORES)
+    public void formatarValor(Blackhole bh) {
+        for (long valor : centavos) bh.consume(EscritorCSV.formatarValor(valor));
+    }
+}
@@ -0,0 +1,20 @@
+package com.intuitivecare.ans;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Ponto de entrada do benchmarks.jar: aceita as opcoes normais do JMH (ex.: "Valores -f 1 -wi 3")
+// e sempre liga o profiler de GC, para que cada resultado venha com a taxa de alocacao (gc.alloc.rate.norm)
+public class ExecutarBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        Options opcoes = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opcoes).run();
+    }
+}
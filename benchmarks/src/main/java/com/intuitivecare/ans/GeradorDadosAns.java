@@ -0,0 +1,145 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Dados sinteticos no formato dos arquivos da ANS (demonstracoes contabeis e cadastro de operadoras).
+// A semente e fixa para que rodadas diferentes medam exatamente os mesmos dados.
+public class GeradorDadosAns {
+
+    private static final String[] DESCRICOES = {
+            "EVENTOS CONHECIDOS OU AVISADOS DE ASSISTÊNCIA A SAÚDE MEDICO HOSPITALAR",
+            "SINISTROS CONHECIDOS OU AVISADOS",
+            "Despesas administrativas; diversas",
+            "CONTRAPRESTAÇÕES EFETIVAS DE PLANO DE ASSISTÊNCIA À SAÚDE",
+            "PROVISÃO TÉCNICA DE OPERAÇÕES DE ASSISTÊNCIA A SAÚDE",
+            "Receitas com operações de assistência médico-hospitalar",
+            "Despesas com eventos / sinistros - Rede própria",
+            "APLICAÇÕES FINANCEIRAS"
+    };
+    private static final String[] CONTAS = {"411111", "41211", "4121", "46", "31111", "2", "121", "3117", "2111", "4"};
+    private static final String[] MODALIDADES = {"Cooperativa Médica", "Medicina de Grupo", "Seguradora Especializada em Saúde", "Autogestão"};
+    private static final String[] UFS = {"SP", "RJ", "MG", "RS", "PR", "BA", "SC", "PE", "GO", "DF"};
+
+    private final Random random;
+    private final int[] operadoras;
+
+    public GeradorDadosAns(long semente, int quantidadeOperadoras) {
+        this.random = new Random(semente);
+        this.operadoras = new int[quantidadeOperadoras];
+        for (int i = 0; i < quantidadeOperadoras; i++) {
+            operadoras[i] = 300000 + random.nextInt(700000);
+        }
+    }
+
+    // CSV trimestral como o publicado pela ANS: ISO-8859-1, ';', todos os campos entre aspas
+    public File gerarCsvTrimestral(File destino, int linhas, String data) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(destino), StandardCharsets.ISO_8859_1), 1 << 16)) {
+            writer.write("\"DATA\";\"REG_ANS\";\"CD_CONTA_CONTABIL\";\"DESCRICAO\";\"VL_SALDO_INICIAL\";\"VL_SALDO_FINAL\"\n");
+            for (int i = 0; i < linhas; i++) {
+                writer.write('"' + data + "\";\"" + registro() + "\";\"" + conta() + "\";\"" + descricao() + "\";\""
+                        + valorTexto() + "\";\"" + valorTexto() + "\"\n");
+            }
+        }
+        return destino;
+    }
+
+    public List<ProcessadorCSV.DadosDespesa> gerarDespesas(int linhas) {
+        List<ProcessadorCSV.DadosDespesa> despesas = new ArrayList<>(linhas);
+        for (int i = 0; i < linhas; i++) {
+            despesas.add(new ProcessadorCSV.DadosDespesa("2024-01-01", registro(), conta(), descricao(), valorCentavos()));
+        }
+        return despesas;
+    }
+
+    // Cadastro cobrindo a fracao informada das operadoras (as demais ficam sem match no join)
+    public Map<String, ServicoEnriquecimento.DadosCadastrais> gerarCadastro(double cobertura) {
+        Map<String, ServicoEnriquecimento.DadosCadastrais> cadastro = new HashMap<>();
+        for (int operadora : operadoras) {
+            if (random.nextDouble() >= cobertura) continue;
+            String regAns = String.valueOf(operadora);
+            cadastro.put(regAns, new ServicoEnriquecimento.DadosCadastrais(regAns, cnpj(true),
+                    "OPERADORA " + regAns + " SAÚDE", MODALIDADES[random.nextInt(MODALIDADES.length)], UFS[random.nextInt(UFS.length)]));
+        }
+        return cadastro;
+    }
+
+    // CNPJs formatados ("00.000.000/0000-00"); a fracao "validos" tem digitos verificadores corretos
+    public String[] gerarCnpjs(int quantidade, double validos) {
+        String[] cnpjs = new String[quantidade];
+        for (int i = 0; i < quantidade; i++) {
+            String digitos = cnpj(random.nextDouble() < validos);
+            cnpjs[i] = digitos.substring(0, 2) + "." + digitos.substring(2, 5) + "." + digitos.substring(5, 8) + "/"
+                    + digitos.substring(8, 12) + "-" + digitos.substring(12);
+        }
+        return cnpjs;
+    }
+
+    public String[] gerarValoresTexto(int quantidade) {
+        String[] valores = new String[quantidade];
+        for (int i = 0; i < quantidade; i++) valores[i] = valorTexto();
+        return valores;
+    }
+
+    public long[] gerarValoresCentavos(int quantidade) {
+        long[] valores = new long[quantidade];
+        for (int i = 0; i < quantidade; i++) valores[i] = valorCentavos();
+        return valores;
+    }
+
+    private String registro() {
+        return String.valueOf(operadoras[random.nextInt(operadoras.length)]);
+    }
+
+    private String conta() {
+        return CONTAS[random.nextInt(CONTAS.length)];
+    }
+
+    private String descricao() {
+        return DESCRICOES[random.nextInt(DESCRICOES.length)];
+    }
+
+    private long valorCentavos() {
+        long valor = (long) (Math.abs(random.nextGaussian()) * 5_000_000);
+        return random.nextInt(20) == 0 ? -valor : valor;
+    }
+
+    // Formato brasileiro, com e sem separador de milhar ("1234,56", "-1.234.567,89")
+    private String valorTexto() {
+        String texto = ValorMonetario.formatar(valorCentavos(), ',');
+        if (random.nextBoolean()) return texto;
+
+        boolean negativo = texto.startsWith("-");
+        String inteiro = texto.substring(negativo ? 1 : 0, texto.indexOf(','));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < inteiro.length(); i++) {
+            if (i > 0 && (inteiro.length() - i) % 3 == 0) sb.append('.');
+            sb.append(inteiro.charAt(i));
+        }
+        return (negativo ? "-" : "") + sb + texto.substring(texto.indexOf(','));
+    }
+
+    private String cnpj(boolean valido) {
+        int[] digitos = new int[14];
+        for (int i = 0; i < 12; i++) digitos[i] = random.nextInt(10);
+        digitos[12] = digitoVerificador(digitos, 12);
+        digitos[13] = digitoVerificador(digitos, 13);
+        if (!valido) digitos[13] = (digitos[13] + 1) % 10;
+
+        StringBuilder sb = new StringBuilder(14);
+        for (int digito : digitos) sb.append(digito);
+        return sb.toString();
+    }
+
+    private static int digitoVerificador(int[] digitos, int posicao) {
+        int soma = 0;
+        int peso = 2;
+        for (int i = posicao - 1; i >= 0; i--) {
+            soma += digitos[i] * peso;
+            peso = peso == 9 ? 2 : peso + 1;
+        }
+        int resto = soma % 11;
+        return resto < 2 ? 0 : 11 - resto;
+    }
+}
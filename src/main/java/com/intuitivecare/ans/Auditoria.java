@@ -1,62 +1,209 @@
 package com.intuitivecare.ans;
 
-import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
 
+// Auditoria do consolidado. O arquivo e mapeado e dividido em segmentos alinhados a linhas; cada segmento
+// e contado em paralelo com estado primitivo e os contadores parciais sao mesclados no final.
 public class Auditoria {
 
-    public void realizarAuditoria(String caminhoArquivo) {
+    // Segmentos menores que isso nao compensam a divisao
+    private static final long TAMANHO_MINIMO_SEGMENTO = 1 << 20;
+
+    // Contadores da auditoria, alimentados linha a linha (arquivo ou pipeline em streaming)
+    public static class Contadores {
+        private int linhasTotais = 0;
+        private int linhasComGlosa = 0;
+        private long somaCentavos = 0;
+        private final ConjuntoRegistrosAns operadorasUnicas = new ConjuntoRegistrosAns();
+
+        public void registrar(String regAns, long valorCentavos) {
+            operadorasUnicas.adicionar(regAns);
+            registrarValor(valorCentavos);
+        }
+
+        private void registrarValor(long valorCentavos) {
+            linhasTotais++;
+            somaCentavos += valorCentavos;
+            if (valorCentavos < 0) linhasComGlosa++;
+        }
+
+        public void mesclar(Contadores outro) {
+            linhasTotais += outro.linhasTotais;
+            linhasComGlosa += outro.linhasComGlosa;
+            somaCentavos += outro.somaCentavos;
+            operadorasUnicas.mesclar(outro.operadorasUnicas);
+        }
+
+        public void gravar(DataOutputStream out) throws IOException {
+            out.writeInt(linhasTotais);
+            out.writeInt(linhasComGlosa);
+            out.writeLong(somaCentavos);
+            operadorasUnicas.gravar(out);
+        }
+
+        public static Contadores ler(DataInputStream in) throws IOException {
+            Contadores contadores = new Contadores();
+            contadores.linhasTotais = in.readInt();
+            contadores.linhasComGlosa = in.readInt();
+            contadores.somaCentavos = in.readLong();
+            contadores.operadorasUnicas.mesclar(ConjuntoRegistrosAns.ler(in));
+            return contadores;
+        }
+
+        public void imprimirRelatorio() {
+            System.out.println("Auditoria Concluída com Sucesso!");
+            System.out.println("RELATÓRIO:");
+            System.out.println("   - Total de Registros Processados: " + linhasTotais);
+            System.out.println("   - Operadoras Distintas Encontradas: " + operadorasUnicas.tamanho());
+            System.out.println("   - Registros de Glosas/Estornos (Negativos): " + linhasComGlosa);
+            System.out.println("   - Soma Total dos Valores (R$): " + ValorMonetario.formatar(somaCentavos, '.'));
+        }
+    }
+
+    // Auditoria da coluna de CNPJs do cadastro, ja ordenada: CNPJs repetidos ficam vizinhos, e validarCNPJs
+    // reaproveita o resultado do vizinho. Retorna a validade de cada posicao.
+    public static boolean[] auditarCnpjs(String[] cnpjsOrdenados) {
+        boolean[] validos = ValidadorDados.validarCNPJs(cnpjsOrdenados);
+        int invalidos = 0;
+        int repetidos = 0;
+        for (int i = 0; i < cnpjsOrdenados.length; i++) {
+            if (!validos[i]) invalidos++;
+            String cnpj = cnpjsOrdenados[i];
+            if (cnpj != null && !cnpj.isEmpty()
+                    && (i > 0 && cnpj.equals(cnpjsOrdenados[i - 1]) || i + 1 < cnpjsOrdenados.length && cnpj.equals(cnpjsOrdenados[i + 1]))) {
+                repetidos++;
+            }
+        }
+        System.out.println("AUDITORIA DE CNPJs DO CADASTRO:");
+        System.out.println("   - Operadoras com CNPJ inválido: " + invalidos);
+        System.out.println("   - Operadoras com CNPJ duplicado (compartilhado com outra operadora): " + repetidos);
+        return validos;
+    }
+
+    // valorInvalido nulo indica linha com colunas faltando
+    private record Ocorrencia(int linha, String valorInvalido) {}
+
+    // Resultado de um segmento; as linhas com problema sao numeradas a partir do inicio do segmento
+    private record ResultadoSegmento(Contadores contadores, int linhas, List<Ocorrencia> ocorrencias) {}
+
+    public void realizarAuditoria(String caminhoArquivo) throws IOException {
         System.out.println("\n --- INICIANDO AUDITORIA DE DADOS ---");
         File arquivo = new File(caminhoArquivo);
 
         if (!arquivo.exists()) {
-            System.err.println("Arquivo para auditoria não encontrado.");
-            return;
+            throw new FileNotFoundException("Arquivo para auditoria nao encontrado: " + caminhoArquivo);
         }
 
-        int linhasTotais = 0;
-        int linhasComGlosa = 0;
-        double somaTotal = 0.0;
-        Set<String> operadorasUnicas = new HashSet<>();
+        try (Metricas.Medicao medicao = Metricas.iniciar("auditoria", caminhoArquivo).bytesLidos(arquivo.length())) {
+            int linhas = FormatoColunar.ehColunar(caminhoArquivo)
+                    ? realizarAuditoriaColunar(arquivo)
+                    : realizarAuditoriaCSV(arquivo);
+            medicao.linhasEntrada(linhas);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(arquivo))) {
-            String linha = br.readLine();
+    private int realizarAuditoriaCSV(File arquivo) throws IOException {
+        long fimCabecalho = DivisorBlocos.fimDoCabecalho(arquivo);
+        TokenizadorCSV cabecalho = TokenizadorCSV.deBuffer(
+                DivisorBlocos.mapearBloco(arquivo, new DivisorBlocos.Bloco(0, fimCabecalho)), StandardCharsets.UTF_8, ';', false);
+        if (!cabecalho.proximaLinha()) {
+            new Contadores().imprimirRelatorio();
+            return 0;
+        }
+        int[] colunas = ServicoEnriquecimento.exigirColunas(cabecalho, "REG_ANS", "VL_SALDO_FINAL");
 
-            while ((linha = br.readLine()) != null) {
-                linhasTotais++;
-                String[] colunas = linha.split(";");
+        int threads = Runtime.getRuntime().availableProcessors();
+        long tamanhoSegmento = Math.max(TAMANHO_MINIMO_SEGMENTO, (arquivo.length() - fimCabecalho) / (threads * 4L));
+        List<DivisorBlocos.Bloco> segmentos = DivisorBlocos.dividir(arquivo, fimCabecalho, tamanhoSegmento);
 
-                if (colunas.length < 5) {
-                    System.out.println("Inconsistência na linha " + linhasTotais + ": Colunas faltando.");
-                    continue;
+        List<ResultadoSegmento> resultados = segmentos.parallelStream()
+                .map(segmento -> auditarSegmento(arquivo, segmento, colunas[0], colunas[1]))
+                .toList();
+
+        // Mescla na ordem do arquivo para numerar as ocorrencias como numa leitura sequencial
+        Contadores contadores = new Contadores();
+        int linhasAnteriores = 0;
+        for (ResultadoSegmento resultado : resultados) {
+            for (Ocorrencia ocorrencia : resultado.ocorrencias) {
+                int numeroLinha = linhasAnteriores + ocorrencia.linha;
+                if (ocorrencia.valorInvalido == null) {
+                    System.out.println("Inconsistência na linha " + numeroLinha + ": Colunas faltando.");
+                } else {
+                    System.out.println("Valor inválido na linha " + numeroLinha + ": " + ocorrencia.valorInvalido);
                 }
+            }
+            contadores.mesclar(resultado.contadores);
+            linhasAnteriores += resultado.linhas;
+        }
+        contadores.imprimirRelatorio();
+        return linhasAnteriores;
+    }
 
-                String regAns = colunas[1];
-                String valorStr = colunas[4];
+    private ResultadoSegmento auditarSegmento(File arquivo, DivisorBlocos.Bloco segmento, int colunaRegAns, int colunaValor) {
+        try {
+            ByteBuffer dados = DivisorBlocos.mapearBloco(arquivo, segmento);
+            TokenizadorCSV tokenizador = TokenizadorCSV.deBuffer(dados, StandardCharsets.UTF_8, ';', false);
+            int ultimaColuna = Math.max(colunaRegAns, colunaValor);
 
-                operadorasUnicas.add(regAns);
+            Contadores contadores = new Contadores();
+            List<Ocorrencia> ocorrencias = new ArrayList<>();
+            int linha = 0;
 
-                try {
-                    double valor = Double.parseDouble(valorStr.replace(",", "."));
-                    somaTotal += valor;
-                    if (valor < 0) linhasComGlosa++;
-                } catch (NumberFormatException e) {
-                    System.out.println("Valor inválido na linha " + linhasTotais + ": " + valorStr);
+            while (tokenizador.proximaLinha()) {
+                linha++;
+                if (tokenizador.numeroCampos() <= ultimaColuna) {
+                    contadores.linhasTotais++;
+                    ocorrencias.add(new Ocorrencia(linha, null));
+                    continue;
+                }
+
+                // bytes() e nao "dados": a ultima linha sem quebra final e lida de uma copia
+                contadores.operadorasUnicas.adicionar(tokenizador.bytes(),
+                        tokenizador.inicioCampo(colunaRegAns), tokenizador.fimCampo(colunaRegAns));
+
+                long valor = ValorMonetario.parseCentavos(tokenizador.bytes(),
+                        tokenizador.inicioCampo(colunaValor), tokenizador.fimCampo(colunaValor));
+                if (valor != ValorMonetario.INVALIDO) {
+                    contadores.registrarValor(valor);
+                } else {
+                    contadores.linhasTotais++;
+                    ocorrencias.add(new Ocorrencia(linha, tokenizador.campo(colunaValor)));
                 }
             }
+            return new ResultadoSegmento(contadores, linha, ocorrencias);
 
-            System.out.println("Auditoria Concluída com Sucesso!");
-            System.out.println("RELATÓRIO:");
-            System.out.println("   - Total de Registros Processados: " + linhasTotais);
-            System.out.println("   - Operadoras Distintas Encontradas: " + operadorasUnicas.size());
-            System.out.println("   - Registros de Glosas/Estornos (Negativos): " + linhasComGlosa);
-            System.out.println("   - Soma Total dos Valores (R$): " + String.format("%.2f", somaTotal));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Le apenas as colunas REG_ANS e VL_SALDO_FINAL do arquivo colunar; as operadoras distintas
+    // saem do dicionario da coluna e os valores sao somados em paralelo
+    private int realizarAuditoriaColunar(File arquivo) throws IOException {
+        FormatoColunar.Leitor leitor = FormatoColunar.Leitor.abrir(arquivo);
+        FormatoColunar.ColunaTexto regAns = leitor.texto("REG_ANS");
+        FormatoColunar.ColunaValor valores = leitor.valor(FormatoColunar.COLUNA_VALOR);
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        Contadores contadores = IntStream.range(0, leitor.linhas()).parallel().collect(
+                Contadores::new,
+                (parcial, linha) -> parcial.registrarValor(valores.centavos(linha)),
+                Contadores::mesclar);
+        for (String registro : regAns.dicionario()) {
+            contadores.operadorasUnicas.adicionar(registro);
         }
+        contadores.imprimirRelatorio();
+        return leitor.linhas();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,277 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Resultado de uma execucao do ETL carregado em memoria para consultas: totais de despesa por operadora, no
+// periodo todo e por trimestre, e o relatorio agregado por (RAZAO_SOCIAL, UF). Tudo e montado uma vez a partir
+// do ZIP final e nunca mais alterado, entao pode ser lido por varias threads sem sincronizacao; uma carga nova
+// gera outra instancia, trocada inteira pelo ServicoConsultas.
+//
+// Cada visao (periodo todo ou um trimestre) guarda os totais ja ordenados do maior para o menor e, para UF e
+// modalidade, a lista crescente das posicoes nesse vetor. Um top-N filtrado e a intersecao das listas, lida do
+// inicio ate juntar N posicoes, sem ordenar nada na consulta.
+public final class BaseConsultas {
+
+    public record Operadora(String regAns, String cnpj, String razaoSocial, String modalidade, String uf, String cnpjValido) {}
+
+    // Total de uma operadora; trimestre == null no periodo todo
+    public record Total(Operadora operadora, DescobertaTrimestres.Trimestre trimestre, long centavos, int linhas) {}
+
+    public record Agregado(String razaoSocial, String uf, long totalCentavos, long mediaCentavos, long desvioCentavos) {}
+
+    private static final int[] VAZIO = new int[0];
+
+    private static final class Visao {
+        private final Total[] ordenados;
+        private final Map<String, int[]> porUf;
+        private final Map<String, int[]> porModalidade;
+        private final Map<String, Integer> posicaoPorRegAns;
+
+        private Visao(List<Total> totais) {
+            totais.sort(Comparator.comparingLong(Total::centavos).reversed()
+                    .thenComparing(total -> total.operadora.regAns));
+            this.ordenados = totais.toArray(new Total[0]);
+            Map<String, List<Integer>> ufs = new HashMap<>();
+            Map<String, List<Integer>> modalidades = new HashMap<>();
+            this.posicaoPorRegAns = new HashMap<>(ordenados.length * 2);
+            for (int i = 0; i < ordenados.length; i++) {
+                Operadora operadora = ordenados[i].operadora;
+                ufs.computeIfAbsent(chave(operadora.uf), k -> new ArrayList<>()).add(i);
+                modalidades.computeIfAbsent(chave(operadora.modalidade), k -> new ArrayList<>()).add(i);
+                posicaoPorRegAns.put(operadora.regAns, i);
+            }
+            this.porUf = compactar(ufs);
+            this.porModalidade = compactar(modalidades);
+        }
+    }
+
+    private final File origem;
+    private final Instant versao;
+    private final long linhas;
+    private final Map<String, Operadora> operadoras;
+    private final Visao geral;
+    private final NavigableMap<DescobertaTrimestres.Trimestre, Visao> trimestres;
+    private final Agregado[] agregados;
+    private final Map<String, int[]> agregadosPorUf;
+
+    private BaseConsultas(File origem, Instant versao, long linhas, Map<String, Operadora> operadoras, Visao geral,
+                          NavigableMap<DescobertaTrimestres.Trimestre, Visao> trimestres, List<Agregado> agregados) {
+        this.origem = origem;
+        this.versao = versao;
+        this.linhas = linhas;
+        this.operadoras = operadoras;
+        this.geral = geral;
+        this.trimestres = trimestres;
+        this.agregados = agregados.toArray(new Agregado[0]);
+        Map<String, List<Integer>> ufs = new HashMap<>();
+        for (int i = 0; i < this.agregados.length; i++) {
+            ufs.computeIfAbsent(chave(this.agregados[i].uf), k -> new ArrayList<>()).add(i);
+        }
+        this.agregadosPorUf = compactar(ufs);
+    }
+
+    // Le o consolidado enriquecido e o relatorio agregado de dentro do ZIP final
+    public static BaseConsultas carregar(File zip, String nomeEnriquecido, String nomeAgregado) throws IOException {
+        try (Metricas.Medicao medicao = Metricas.iniciar("carga-consultas", zip.getName()).bytesLidos(zip.length());
+             ZipFile arquivo = new ZipFile(zip)) {
+            Instant versao = Instant.ofEpochMilli(zip.lastModified());
+
+            // UF, modalidade etc. vem de cada linha enriquecida (a versao do cadastro vigente na DATA dela), entao
+            // sao guardadas por (REG_ANS, trimestre); as linhas de um trimestre da ANS tem todas a mesma DATA
+            Map<DescobertaTrimestres.Trimestre, Map<String, Operadora>> operadorasTrimestrais = new TreeMap<>();
+            Map<String, Operadora> semTrimestre = new HashMap<>();
+            Map<String, Operadora> ultimas = new HashMap<>();
+            Map<String, long[]> somasGerais = new HashMap<>();
+            Map<DescobertaTrimestres.Trimestre, Map<String, long[]>> somasTrimestrais = new TreeMap<>();
+            long linhas = 0;
+
+            try (InputStream entrada = abrirEntrada(arquivo, nomeEnriquecido)) {
+                TokenizadorCSV tokenizador = TokenizadorCSV.deStream(entrada, StandardCharsets.UTF_8, ';', false);
+                if (tokenizador.proximaLinha()) {
+                    int[] c = ServicoEnriquecimento.exigirColunas(tokenizador, "DATA", "REG_ANS", "VL_SALDO_FINAL",
+                            "CNPJ", "RAZAO_SOCIAL", "MODALIDADE", "UF", "CNPJ_VALIDO");
+                    while (tokenizador.proximaLinha()) {
+                        linhas++;
+                        long valor = ValorMonetario.parseCentavos(tokenizador.bytes(), tokenizador.inicioCampo(c[2]), tokenizador.fimCampo(c[2]));
+                        if (valor == ValorMonetario.INVALIDO) continue;
+
+                        String regAns = tokenizador.campo(c[1]);
+                        if (regAns.isEmpty()) continue;
+                        somar(somasGerais, regAns, valor);
+                        DescobertaTrimestres.Trimestre trimestre = DescobertaTrimestres.Trimestre.daData(tokenizador.campo(c[0]));
+                        Map<String, Operadora> atributos = trimestre == null ? semTrimestre
+                                : operadorasTrimestrais.computeIfAbsent(trimestre, k -> new HashMap<>());
+                        if (!atributos.containsKey(regAns)) {
+                            Operadora operadora = new Operadora(regAns, tokenizador.campo(c[3]), tokenizador.campo(c[4]),
+                                    tokenizador.campo(c[5]), tokenizador.campo(c[6]), tokenizador.campo(c[7]));
+                            // Trimestres com o mesmo cadastro compartilham a instancia
+                            Operadora anterior = ultimas.get(regAns);
+                            if (operadora.equals(anterior)) operadora = anterior;
+                            else ultimas.put(regAns, operadora);
+                            atributos.put(regAns, operadora);
+                        }
+                        if (trimestre != null) {
+                            somar(somasTrimestrais.computeIfAbsent(trimestre, k -> new HashMap<>()), regAns, valor);
+                        }
+                    }
+                }
+            }
+
+            // Periodo todo e consulta por REG_ANS: atributos do trimestre mais recente da operadora
+            Map<String, Operadora> operadoras = new HashMap<>(semTrimestre);
+            operadorasTrimestrais.values().forEach(operadoras::putAll);
+
+            Visao geral = new Visao(totais(somasGerais, operadoras, null));
+            NavigableMap<DescobertaTrimestres.Trimestre, Visao> trimestres = new TreeMap<>();
+            somasTrimestrais.forEach((trimestre, somas) ->
+                    trimestres.put(trimestre, new Visao(totais(somas, operadorasTrimestrais.get(trimestre), trimestre))));
+
+            List<Agregado> agregados = new ArrayList<>();
+            try (InputStream entrada = abrirEntrada(arquivo, nomeAgregado)) {
+                TokenizadorCSV tokenizador = TokenizadorCSV.deStream(entrada, StandardCharsets.UTF_8, ';', false);
+                if (tokenizador.proximaLinha()) {
+                    int[] c = ServicoEnriquecimento.exigirColunas(tokenizador, "RAZAO_SOCIAL", "UF",
+                            "TOTAL_DESPESAS", "MEDIA_TRIMESTRAL", "DESVIO_PADRAO");
+                    // O relatorio ja sai ordenado por total
+                    while (tokenizador.proximaLinha()) {
+                        agregados.add(new Agregado(tokenizador.campo(c[0]), tokenizador.campo(c[1]),
+                                centavosComPonto(tokenizador.campo(c[2])), centavosComPonto(tokenizador.campo(c[3])),
+                                centavosComPonto(tokenizador.campo(c[4]))));
+                    }
+                }
+            }
+
+            medicao.linhasEntrada(linhas + agregados.size()).linhasSaida(operadoras.size());
+            return new BaseConsultas(zip, versao, linhas, operadoras, geral, trimestres, agregados);
+        }
+    }
+
+    public File origem() {
+        return origem;
+    }
+
+    public Instant versao() {
+        return versao;
+    }
+
+    public long linhas() {
+        return linhas;
+    }
+
+    public int quantidadeOperadoras() {
+        return operadoras.size();
+    }
+
+    public int quantidadeAgregados() {
+        return agregados.length;
+    }
+
+    public Set<DescobertaTrimestres.Trimestre> trimestres() {
+        return Collections.unmodifiableSet(trimestres.navigableKeySet());
+    }
+
+    public Operadora operadora(String regAns) {
+        return operadoras.get(regAns);
+    }
+
+    // Total no periodo todo seguido dos totais por trimestre, do mais antigo ao mais recente
+    public List<Total> totaisDaOperadora(String regAns) {
+        List<Total> totais = new ArrayList<>();
+        Integer posicao = geral.posicaoPorRegAns.get(regAns);
+        if (posicao == null) return totais;
+        totais.add(geral.ordenados[posicao]);
+        for (Visao visao : trimestres.values()) {
+            Integer noTrimestre = visao.posicaoPorRegAns.get(regAns);
+            if (noTrimestre != null) totais.add(visao.ordenados[noTrimestre]);
+        }
+        return totais;
+    }
+
+    // Maiores totais que atendem aos filtros (null = sem filtro), em ordem decrescente de total
+    public List<Total> filtrar(DescobertaTrimestres.Trimestre trimestre, String uf, String modalidade, int limite) {
+        Visao visao = trimestre == null ? geral : trimestres.get(trimestre);
+        if (visao == null) return List.of();
+
+        List<int[]> listas = new ArrayList<>(2);
+        if (uf != null) listas.add(visao.porUf.getOrDefault(chave(uf), VAZIO));
+        if (modalidade != null) listas.add(visao.porModalidade.getOrDefault(chave(modalidade), VAZIO));
+
+        List<Total> resultado = new ArrayList<>(Math.min(limite, visao.ordenados.length));
+        if (listas.isEmpty()) {
+            for (int i = 0; i < visao.ordenados.length && resultado.size() < limite; i++) resultado.add(visao.ordenados[i]);
+            return resultado;
+        }
+        for (int posicao : intersecao(listas, limite)) resultado.add(visao.ordenados[posicao]);
+        return resultado;
+    }
+
+    // Linhas do relatorio agregado, opcionalmente de uma UF, na ordem do relatorio (maior total primeiro)
+    public List<Agregado> agregados(String uf, int limite) {
+        List<Agregado> resultado = new ArrayList<>(Math.min(limite, agregados.length));
+        if (uf == null) {
+            for (int i = 0; i < agregados.length && resultado.size() < limite; i++) resultado.add(agregados[i]);
+            return resultado;
+        }
+        int[] posicoes = agregadosPorUf.getOrDefault(chave(uf), VAZIO);
+        for (int i = 0; i < posicoes.length && resultado.size() < limite; i++) resultado.add(agregados[posicoes[i]]);
+        return resultado;
+    }
+
+    // Percorre a menor lista e confere as demais por busca binaria; para ao juntar "limite" posicoes
+    private static int[] intersecao(List<int[]> listas, int limite) {
+        listas.sort(Comparator.comparingInt(lista -> lista.length));
+        int[] menor = listas.get(0);
+        int[] resultado = new int[Math.min(limite, menor.length)];
+        int encontrados = 0;
+        for (int i = 0; i < menor.length && encontrados < resultado.length; i++) {
+            boolean emTodas = true;
+            for (int j = 1; j < listas.size() && emTodas; j++) {
+                emTodas = Arrays.binarySearch(listas.get(j), menor[i]) >= 0;
+            }
+            if (emTodas) resultado[encontrados++] = menor[i];
+        }
+        return Arrays.copyOf(resultado, encontrados);
+    }
+
+    private static InputStream abrirEntrada(ZipFile arquivo, String nome) throws IOException {
+        ZipEntry entrada = arquivo.getEntry(nome);
+        if (entrada == null) throw new IOException("Entrada " + nome + " nao encontrada em " + arquivo.getName());
+        return new BufferedInputStream(arquivo.getInputStream(entrada), 1 << 16);
+    }
+
+    // [centavos, linhas]
+    private static void somar(Map<String, long[]> somas, String regAns, long valor) {
+        long[] soma = somas.computeIfAbsent(regAns, k -> new long[2]);
+        soma[0] += valor;
+        soma[1]++;
+    }
+
+    private static List<Total> totais(Map<String, long[]> somas, Map<String, Operadora> operadoras,
+                                      DescobertaTrimestres.Trimestre trimestre) {
+        List<Total> totais = new ArrayList<>(somas.size());
+        somas.forEach((regAns, soma) -> totais.add(new Total(operadoras.get(regAns), trimestre, soma[0], (int) soma[1])));
+        return totais;
+    }
+
+    // O relatorio agregado usa ponto decimal ("1234.50"); o parse espera o formato brasileiro, com virgula
+    private static long centavosComPonto(String valor) {
+        long centavos = ValorMonetario.parseCentavos(valor.replace('.', ','));
+        return centavos == ValorMonetario.INVALIDO ? 0 : centavos;
+    }
+
+    // Filtros sem diferenciar maiusculas; UF ou modalidade vazias tambem sao uma chave
+    private static String chave(String valor) {
+        return valor == null ? "" : valor.trim().toUpperCase(Locale.ROOT);
+    }
+
+    private static Map<String, int[]> compactar(Map<String, List<Integer>> listas) {
+        Map<String, int[]> resultado = new HashMap<>(listas.size() * 2);
+        listas.forEach((chave, posicoes) -> resultado.put(chave, posicoes.stream().mapToInt(Integer::intValue).toArray()));
+        return resultado;
+    }
+}
@@ -0,0 +1,124 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.*;
+
+// Cache enderecado por conteudo das etapas do GrafoEtapas. Cada etapa concluida fica em <raiz>/<chave>/, onde a
+// chave e o SHA-256 das suas entradas, configuracao e das chaves das etapas de que depende; mesma chave, mesmas
+// saidas. A etapa grava numa pasta "<chave>.parcial-*" que so e renomeada para <chave> quando termina, entao uma
+// execucao interrompida nunca deixa uma etapa pela metade no cache (as parciais sao apagadas na proxima).
+// O SHA-256 dos arquivos de entrada e memorizado por caminho, tamanho e data de modificacao (hashes.properties).
+public class CacheEtapas {
+
+    public static final String PASTA_PADRAO = "cache_etapas";
+
+    private static final String HASHES = "hashes.properties";
+    private static final String SUFIXO_PARCIAL = ".parcial-";
+
+    private final File raiz;
+    private final Properties hashes = new Properties();
+    private boolean hashesAlterados = false;
+
+    public CacheEtapas(File raiz) throws IOException {
+        this.raiz = raiz;
+        Files.createDirectories(raiz.toPath());
+        File arquivoHashes = new File(raiz, HASHES);
+        if (arquivoHashes.exists()) {
+            try (InputStream in = new FileInputStream(arquivoHashes)) {
+                hashes.load(in);
+            } catch (IOException e) {
+                System.err.println("Hashes do cache ilegiveis, serao recalculados: " + e.getMessage());
+            }
+        }
+        File[] parciais = raiz.listFiles((dir, nome) -> nome.contains(SUFIXO_PARCIAL));
+        if (parciais != null) {
+            for (File parcial : parciais) {
+                System.out.println("Removendo etapa interrompida: " + parcial.getName());
+                apagar(parcial);
+            }
+        }
+    }
+
+    public File raiz() {
+        return raiz;
+    }
+
+    public boolean contem(String chave) {
+        return pasta(chave).isDirectory();
+    }
+
+    public File pasta(String chave) {
+        return new File(raiz, chave);
+    }
+
+    File novaPastaParcial(String chave) throws IOException {
+        return Files.createTempDirectory(raiz.toPath(), chave + SUFIXO_PARCIAL).toFile();
+    }
+
+    // Publica a pasta parcial como a etapa concluida
+    void concluir(File parcial, String chave) throws IOException {
+        try {
+            Files.move(parcial.toPath(), pasta(chave).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Outra execucao concluiu a mesma chave antes: o conteudo e o mesmo
+            if (!contem(chave)) throw e;
+            apagar(parcial);
+        }
+    }
+
+    // Marca o uso da etapa, para a limpeza por idade
+    void tocar(String chave) {
+        pasta(chave).setLastModified(System.currentTimeMillis());
+    }
+
+    // SHA-256 do conteudo; reaproveita o dos metadados do download ou o memorizado para o mesmo arquivo
+    public String hashArquivo(File arquivo) throws IOException {
+        String identidade = arquivo.length() + ":" + arquivo.lastModified();
+        Properties meta = MotorDownload.metadados(arquivo);
+        if (meta != null && meta.getProperty("sha256") != null
+                && String.valueOf(arquivo.length()).equals(meta.getProperty("tamanho"))) {
+            return meta.getProperty("sha256");
+        }
+        String chave = arquivo.getCanonicalPath();
+        String memorizado = hashes.getProperty(chave);
+        if (memorizado != null && memorizado.startsWith(identidade + "=")) {
+            return memorizado.substring(identidade.length() + 1);
+        }
+        String hash = MotorDownload.sha256(arquivo);
+        hashes.setProperty(chave, identidade + "=" + hash);
+        hashesAlterados = true;
+        return hash;
+    }
+
+    // Apaga etapas nao usadas ha mais que "idade" (exceto as desta execucao) e grava os hashes memorizados
+    public void finalizar(Duration idade, Set<String> usadas) throws IOException {
+        long limite = System.currentTimeMillis() - idade.toMillis();
+        File[] etapas = raiz.listFiles(File::isDirectory);
+        if (etapas != null) {
+            for (File etapa : etapas) {
+                if (usadas.contains(etapa.getName()) || etapa.lastModified() >= limite) continue;
+                System.out.println("Removendo etapa antiga do cache: " + etapa.getName());
+                apagar(etapa);
+            }
+        }
+        if (!hashesAlterados) return;
+        File arquivo = new File(raiz, HASHES);
+        File temporario = new File(arquivo.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporario)) {
+            hashes.store(out, null);
+        }
+        Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        hashesAlterados = false;
+    }
+
+    static void apagar(File arquivo) {
+        File[] filhos = arquivo.listFiles();
+        if (filhos != null) {
+            for (File filho : filhos) apagar(filho);
+        }
+        arquivo.delete();
+    }
+}
@@ -0,0 +1,274 @@
+package com.intuitivecare.ans;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+
+// Decide se uma linha das demonstracoes contabeis e despesa. As regras vem de um arquivo texto
+// (regras_despesas.txt) e sao compiladas uma vez: prefixos de CD_CONTA_CONTABIL numa trie e
+// palavras-chave da DESCRICAO em bytes maiusculos. Formato, uma regra por linha ('#' comenta):
+//   conta=4            contas que comecam com 4 sao despesa
+//   excluir-conta=49   ...exceto as que comecam com 49 (o prefixo mais longo decide)
+//   palavra=EVENTO     descricao contendo EVENTO, sem diferenciar maiusculas
+// Uma conta excluida nao e despesa mesmo que a descricao tenha uma palavra-chave.
+public class ClassificadorDespesas {
+
+    public static final String ARQUIVO_PADRAO = "regras_despesas.txt";
+
+    // Regras historicas do ETL (grupo 4 ou eventos/sinistros)
+    public static final ClassificadorDespesas PADRAO = new ClassificadorDespesas(
+            List.of("4"), List.of(), List.of("EVENTO", "SINISTRO"));
+
+    private static final byte NENHUMA = 0, INCLUIR = 1, EXCLUIR = 2;
+
+    private static class No {
+        private No[] filhos;
+        private byte decisao = NENHUMA;
+
+        No filho(int b) {
+            return filhos == null ? null : filhos[b];
+        }
+
+        No filhoOuNovo(int b) {
+            if (filhos == null) filhos = new No[256];
+            if (filhos[b] == null) filhos[b] = new No();
+            return filhos[b];
+        }
+    }
+
+    private final No raiz = new No();
+    private final byte[][] palavras;
+    private final String regras;
+    private final String versao;
+
+    private ClassificadorDespesas(List<String> contas, List<String> contasExcluidas, List<String> palavras) {
+        StringBuilder canonico = new StringBuilder();
+        for (String conta : contas) {
+            inserir(conta, INCLUIR);
+            canonico.append("conta=").append(conta).append('\n');
+        }
+        for (String conta : contasExcluidas) {
+            inserir(conta, EXCLUIR);
+            canonico.append("excluir-conta=").append(conta).append('\n');
+        }
+
+        this.palavras = new byte[palavras.size()][];
+        for (int i = 0; i < palavras.size(); i++) {
+            String maiuscula = palavras.get(i).toUpperCase(Locale.ROOT);
+            this.palavras[i] = maiuscula.getBytes(StandardCharsets.ISO_8859_1);
+            canonico.append("palavra=").append(maiuscula).append('\n');
+        }
+        this.regras = canonico.toString();
+        this.versao = sha256(regras);
+    }
+
+    public static ClassificadorDespesas carregar(File arquivo) throws IOException {
+        List<String> contas = new ArrayList<>();
+        List<String> excluidas = new ArrayList<>();
+        List<String> palavras = new ArrayList<>();
+
+        List<String> linhas = Files.readAllLines(arquivo.toPath(), StandardCharsets.UTF_8);
+        for (int i = 0; i < linhas.size(); i++) {
+            String linha = linhas.get(i).trim();
+            if (linha.isEmpty() || linha.startsWith("#")) continue;
+
+            int igual = linha.indexOf('=');
+            String chave = igual < 0 ? linha : linha.substring(0, igual).trim();
+            String valor = igual < 0 ? "" : linha.substring(igual + 1).trim();
+            if (valor.isEmpty()) {
+                throw new IOException(arquivo.getName() + ", linha " + (i + 1) + ": regra sem valor");
+            }
+            switch (chave) {
+                case "conta" -> contas.add(valor);
+                case "excluir-conta" -> excluidas.add(valor);
+                case "palavra" -> palavras.add(valor);
+                default -> throw new IOException(arquivo.getName() + ", linha " + (i + 1) + ": regra desconhecida '" + chave + "'");
+            }
+        }
+        return new ClassificadorDespesas(contas, excluidas, palavras);
+    }
+
+    // Regras normalizadas, no formato do arquivo; carregar() sobre elas recria o mesmo classificador
+    public String regras() {
+        return regras;
+    }
+
+    // Hash das regras normalizadas; muda quando o conjunto de despesas pode mudar
+    public String versao() {
+        return versao;
+    }
+
+    public boolean ehDespesa(String codigoConta, String descricao) {
+        No no = raiz;
+        byte decisao = NENHUMA;
+        for (int i = 0; i < codigoConta.length() && no != null; i++) {
+            char c = codigoConta.charAt(i);
+            no = c < 256 ? no.filho(c) : null;
+            if (no != null && no.decisao != NENHUMA) decisao = no.decisao;
+        }
+        if (decisao != NENHUMA) return decisao == INCLUIR;
+
+        for (byte[] palavra : palavras) {
+            if (contemIgnorandoCaixa(descricao, palavra)) return true;
+        }
+        return false;
+    }
+
+    // Mesma decisao sobre os bytes crus dos campos (arquivo mapeado)
+    public boolean ehDespesa(ByteBuffer dados, int inicioConta, int fimConta, int inicioDescricao, int fimDescricao) {
+        byte decisao = decidirPorConta(dados, inicioConta, fimConta);
+        if (decisao != NENHUMA) return decisao == INCLUIR;
+        return temPalavraChave(dados, inicioDescricao, fimDescricao);
+    }
+
+    // Prefixo mais longo da conta que tem regra; a trie e percorrida no maximo ate o tamanho da maior regra
+    private byte decidirPorConta(ByteBuffer dados, int inicio, int fim) {
+        No no = raiz;
+        byte decisao = NENHUMA;
+        for (int i = inicio; i < fim && no != null; i++) {
+            no = no.filho(dados.get(i) & 0xFF);
+            if (no != null && no.decisao != NENHUMA) decisao = no.decisao;
+        }
+        return decisao;
+    }
+
+    private boolean temPalavraChave(ByteBuffer dados, int inicio, int fim) {
+        for (byte[] palavra : palavras) {
+            if (contemIgnorandoCaixa(dados, inicio, fim, palavra)) return true;
+        }
+        return false;
+    }
+
+    // A conta e decidida direto na trie; so quando nenhuma regra de conta se aplica a descricao precisa ser
+    // varrida pelas palavras-chave. O plano de contas da ANS tem poucas descricoes distintas frente ao numero
+    // de linhas, entao cada leitura guarda o resultado por descricao e as repetidas custam uma consulta.
+    // Nao e thread-safe: cada arquivo ou bloco lido usa a sua.
+    public Memo novaMemo() {
+        return new Memo();
+    }
+
+    public final class Memo {
+        // Descricoes livres demais nao podem crescer a tabela sem limite; acima disso decide sem guardar
+        private static final int MAXIMO_ENTRADAS = 1 << 16;
+
+        private byte[][] chaves = new byte[256][];
+        private int[] hashes = new int[256];
+        private boolean[] veredictos = new boolean[256];
+        private int entradas = 0;
+
+        private Memo() {
+        }
+
+        public boolean ehDespesa(ByteBuffer dados, int inicioConta, int fimConta, int inicioDescricao, int fimDescricao) {
+            byte decisao = decidirPorConta(dados, inicioConta, fimConta);
+            if (decisao != NENHUMA) return decisao == INCLUIR;
+            if (palavras.length == 0) return false;
+
+            int hash = fimDescricao - inicioDescricao;
+            for (int i = inicioDescricao; i < fimDescricao; i++) hash = 31 * hash + dados.get(i);
+            hash ^= hash >>> 16;
+
+            int mascara = chaves.length - 1;
+            int posicao = hash & mascara;
+            while (chaves[posicao] != null) {
+                if (hashes[posicao] == hash && iguais(chaves[posicao], dados, inicioDescricao, fimDescricao)) {
+                    return veredictos[posicao];
+                }
+                posicao = (posicao + 1) & mascara;
+            }
+
+            boolean veredicto = temPalavraChave(dados, inicioDescricao, fimDescricao);
+            if (entradas < MAXIMO_ENTRADAS) {
+                byte[] chave = new byte[fimDescricao - inicioDescricao];
+                dados.get(inicioDescricao, chave);
+                chaves[posicao] = chave;
+                hashes[posicao] = hash;
+                veredictos[posicao] = veredicto;
+                if (++entradas * 2 > chaves.length) crescer();
+            }
+            return veredicto;
+        }
+
+        private static boolean iguais(byte[] chave, ByteBuffer dados, int inicio, int fim) {
+            if (chave.length != fim - inicio) return false;
+            for (int i = inicio, j = 0; i < fim; i++, j++) {
+                if (chave[j] != dados.get(i)) return false;
+            }
+            return true;
+        }
+
+        private void crescer() {
+            byte[][] chavesAntigas = chaves;
+            int[] hashesAntigos = hashes;
+            boolean[] veredictosAntigos = veredictos;
+
+            int capacidade = chavesAntigas.length * 2;
+            chaves = new byte[capacidade][];
+            hashes = new int[capacidade];
+            veredictos = new boolean[capacidade];
+
+            for (int i = 0; i < chavesAntigas.length; i++) {
+                if (chavesAntigas[i] == null) continue;
+                int posicao = hashesAntigos[i] & (capacidade - 1);
+                while (chaves[posicao] != null) posicao = (posicao + 1) & (capacidade - 1);
+                chaves[posicao] = chavesAntigas[i];
+                hashes[posicao] = hashesAntigos[i];
+                veredictos[posicao] = veredictosAntigos[i];
+            }
+        }
+    }
+
+    private void inserir(String prefixo, byte decisao) {
+        No no = raiz;
+        for (byte b : prefixo.getBytes(StandardCharsets.ISO_8859_1)) {
+            no = no.filhoOuNovo(b & 0xFF);
+        }
+        no.decisao = decisao;
+    }
+
+    private static boolean contemIgnorandoCaixa(String texto, byte[] padraoMaiusculo) {
+        int ultimo = texto.length() - padraoMaiusculo.length;
+        for (int i = 0; i <= ultimo; i++) {
+            int j = 0;
+            while (j < padraoMaiusculo.length
+                    && Character.toUpperCase(texto.charAt(i + j)) == (char) (padraoMaiusculo[j] & 0xFF)) j++;
+            if (j == padraoMaiusculo.length) return true;
+        }
+        return false;
+    }
+
+    // Busca sem diferenciar maiusculas sobre os bytes ISO-8859-1 da descricao
+    private static boolean contemIgnorandoCaixa(ByteBuffer dados, int inicio, int fim, byte[] padraoMaiusculo) {
+        int ultimo = fim - padraoMaiusculo.length;
+        for (int i = inicio; i <= ultimo; i++) {
+            int j = 0;
+            while (j < padraoMaiusculo.length && maiuscula(dados.get(i + j)) == padraoMaiusculo[j]) j++;
+            if (j == padraoMaiusculo.length) return true;
+        }
+        return false;
+    }
+
+    // Mesmo resultado de Character.toUpperCase para as letras do ISO-8859-1: ASCII e as acentuadas 0xE0-0xFE
+    // (exceto o sinal de divisao, 0xF7), que ficam 32 posicoes acima das maiusculas, como no ASCII
+    private static byte maiuscula(byte b) {
+        int c = b & 0xFF;
+        return (c >= 'a' && c <= 'z') || (c >= 0xE0 && c <= 0xFE && c != 0xF7) ? (byte) (c - 32) : b;
+    }
+
+    private static String sha256(String texto) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(texto.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
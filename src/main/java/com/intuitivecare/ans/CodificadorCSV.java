@@ -0,0 +1,230 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+// Escrita de CSV direto em bytes, usada por todas as etapas que geram CSV no lugar do CSVPrinter. Cada campo e
+// codificado num buffer reaproveitado e, so depois, os bytes dele sao varridos para decidir as aspas, com as mesmas
+// regras do CSVPrinter (QuoteMode.MINIMAL), entao a saida e identica byte a byte. Valores em centavos e inteiros
+// viram digitos direto no buffer, sem String intermediaria. O charset e sempre explicito (nada de charset padrao
+// da JVM) e precisa manter ASCII como ASCII (UTF-8, ISO-8859-1...), o que permite varrer bytes em vez de chars.
+public class CodificadorCSV implements Closeable, Flushable {
+
+    private static final int TAMANHO_BUFFER = 1 << 16;
+    private static final byte ASPAS = '"';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    // Como o CSVPrinter: primeiro caractere ate '#' (comentario) forca aspas
+    private static final byte COMENTARIO = '#';
+    private static final byte ESPACO = ' ';
+
+    private final OutputStream saida;
+    private final Charset charset;
+    private final boolean utf8;
+    private final byte delimitador;
+    private byte[] buffer = new byte[TAMANHO_BUFFER];
+    private int posicao = 0;
+    private boolean inicioRegistro = true;
+    private long bytesGravados = 0;
+
+    public CodificadorCSV(OutputStream saida, Charset charset, char delimitador) {
+        byte[] especiais = "\"\r\n".concat(String.valueOf(delimitador)).getBytes(charset);
+        if (delimitador >= 0x80 || !Arrays.equals(especiais, new byte[]{ASPAS, CR, LF, (byte) delimitador})) {
+            throw new IllegalArgumentException("Charset sem ASCII compativel ou delimitador nao ASCII: " + charset + " / " + delimitador);
+        }
+        this.saida = saida;
+        this.charset = charset;
+        this.utf8 = charset.equals(StandardCharsets.UTF_8);
+        this.delimitador = (byte) delimitador;
+    }
+
+    // Arquivo com ';' em UTF-8; com gzip, o conteudo sai comprimido (o nome fica a cargo de quem chama)
+    public static CodificadorCSV abrir(File arquivo, boolean gzip) throws IOException {
+        OutputStream saida = Files.newOutputStream(arquivo.toPath());
+        return new CodificadorCSV(gzip ? new GZIPOutputStream(saida, TAMANHO_BUFFER) : saida, StandardCharsets.UTF_8, ';');
+    }
+
+    public CodificadorCSV registro(String... campos) throws IOException {
+        for (String campo : campos) texto(campo);
+        return fimRegistro();
+    }
+
+    // Campo de texto; null sai vazio e sem aspas, como no CSVPrinter
+    public CodificadorCSV texto(String valor) throws IOException {
+        int comprimento = valor != null ? valor.length() : 0;
+        // Pior caso: 3 bytes por char e todas as aspas dobradas, mais as aspas externas e o delimitador
+        garantirEspaco(comprimento * 6 + 3);
+        boolean primeiro = inicioRegistro;
+        separar();
+        if (valor == null) return this;
+
+        int inicio = posicao;
+        if (utf8) codificarUtf8(valor);
+        else codificarCharset(valor);
+        int fim = posicao;
+
+        int aspas = precisaAspas(inicio, fim, primeiro);
+        if (aspas >= 0) envolverEmAspas(inicio, fim, aspas);
+        return this;
+    }
+
+    // Centavos no formato de ValorMonetario.formatar (ex.: -1234,56), escritos como digitos
+    public CodificadorCSV centavos(long centavos, char separadorDecimal) throws IOException {
+        if (centavos == Long.MIN_VALUE) return texto(ValorMonetario.formatar(centavos, separadorDecimal));
+        garantirEspaco(24);
+        separar();
+        long absoluto = Math.abs(centavos);
+        if (centavos < 0) buffer[posicao++] = '-';
+        digitos(absoluto / 100);
+        buffer[posicao++] = (byte) separadorDecimal;
+        int resto = (int) (absoluto % 100);
+        buffer[posicao++] = (byte) ('0' + resto / 10);
+        buffer[posicao++] = (byte) ('0' + resto % 10);
+        return this;
+    }
+
+    public CodificadorCSV inteiro(long valor) throws IOException {
+        if (valor == Long.MIN_VALUE) return texto(Long.toString(valor));
+        garantirEspaco(22);
+        separar();
+        if (valor < 0) {
+            buffer[posicao++] = '-';
+            valor = -valor;
+        }
+        digitos(valor);
+        return this;
+    }
+
+    // Fim de registro com CRLF, o separador padrao do CSVFormat
+    public CodificadorCSV fimRegistro() throws IOException {
+        garantirEspaco(2);
+        buffer[posicao++] = CR;
+        buffer[posicao++] = LF;
+        inicioRegistro = true;
+        return this;
+    }
+
+    public long bytesGravados() {
+        return bytesGravados + posicao;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        esvaziar();
+        saida.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            esvaziar();
+        } finally {
+            saida.close();
+        }
+    }
+
+    private void separar() {
+        if (!inicioRegistro) buffer[posicao++] = delimitador;
+        inicioRegistro = false;
+    }
+
+    private void digitos(long valor) {
+        int tamanho = 1;
+        for (long resto = valor / 10; resto > 0; resto /= 10) tamanho++;
+        int fim = posicao + tamanho;
+        for (int i = fim - 1; i >= posicao; i--) {
+            buffer[i] = (byte) ('0' + valor % 10);
+            valor /= 10;
+        }
+        posicao = fim;
+    }
+
+    private void codificarUtf8(String valor) {
+        byte[] b = buffer;
+        int p = posicao;
+        int comprimento = valor.length();
+        for (int i = 0; i < comprimento; i++) {
+            char c = valor.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xC0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < comprimento && Character.isLowSurrogate(valor.charAt(i + 1))) {
+                int ponto = Character.toCodePoint(c, valor.charAt(++i));
+                b[p++] = (byte) (0xF0 | (ponto >> 18));
+                b[p++] = (byte) (0x80 | ((ponto >> 12) & 0x3F));
+                b[p++] = (byte) (0x80 | ((ponto >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (ponto & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Surrogate sem par: substituido por '?', como faz o encoder do OutputStreamWriter
+                b[p++] = '?';
+            } else {
+                b[p++] = (byte) (0xE0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        posicao = p;
+    }
+
+    private void codificarCharset(String valor) {
+        byte[] bytes = valor.getBytes(charset);
+        garantirCapacidade(posicao + bytes.length * 2 + 3);
+        System.arraycopy(bytes, 0, buffer, posicao, bytes.length);
+        posicao += bytes.length;
+    }
+
+    // -1 se o campo sai como esta; senao, quantas aspas internas precisam ser dobradas
+    private int precisaAspas(int inicio, int fim, boolean primeiro) {
+        if (inicio == fim) return primeiro ? 0 : -1;
+        byte[] b = buffer;
+        boolean aspas = (b[inicio] & 0xFF) <= COMENTARIO || (b[fim - 1] & 0xFF) <= ESPACO;
+        int internas = 0;
+        for (int i = inicio; i < fim; i++) {
+            byte c = b[i];
+            if (c == ASPAS) {
+                internas++;
+                aspas = true;
+            } else if (c == delimitador || c == CR || c == LF) {
+                aspas = true;
+            }
+        }
+        return aspas ? internas : -1;
+    }
+
+    // Desloca o campo, de tras para frente, abrindo espaco para as aspas externas e as internas dobradas
+    private void envolverEmAspas(int inicio, int fim, int internas) {
+        byte[] b = buffer;
+        int novoFim = fim + internas + 2;
+        int destino = novoFim - 1;
+        b[destino--] = ASPAS;
+        for (int i = fim - 1; i >= inicio; i--) {
+            b[destino--] = b[i];
+            if (b[i] == ASPAS) b[destino--] = ASPAS;
+        }
+        b[destino] = ASPAS;
+        posicao = novoFim;
+    }
+
+    private void garantirEspaco(int necessario) throws IOException {
+        if (posicao + necessario <= buffer.length) return;
+        esvaziar();
+        garantirCapacidade(necessario);
+    }
+
+    private void garantirCapacidade(int necessario) {
+        if (necessario > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(necessario, buffer.length * 2));
+    }
+
+    private void esvaziar() throws IOException {
+        if (posicao == 0) return;
+        saida.write(buffer, 0, posicao);
+        bytesGravados += posicao;
+        posicao = 0;
+    }
+}
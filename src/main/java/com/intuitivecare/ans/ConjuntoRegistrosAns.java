@@ -0,0 +1,124 @@
+package com.intuitivecare.ans;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+// Conjunto de registros ANS distintos. Registros sao inteiros pequenos, entao ficam num bitmap de longs;
+// textos fora do formato numerico canonico (zeros a esquerda, letras) caem num HashSet, para que
+// "012345" e "12345" continuem sendo operadoras diferentes, como no conjunto de Strings.
+public class ConjuntoRegistrosAns {
+
+    // Acima disso o registro vai para o HashSet (o bitmap nunca passa de 8 MB)
+    private static final int LIMITE_BITMAP = 1 << 26;
+
+    private long[] bits = new long[0];
+    private int cardinalidadeBitmap = 0;
+    private Set<String> outros;
+
+    public void adicionar(String regAns) {
+        int numero = regAns == null ? -1 : numeroCanonico(regAns, null, 0, regAns.length());
+        if (numero >= 0) {
+            adicionar(numero);
+        } else {
+            adicionarOutro(regAns);
+        }
+    }
+
+    // Registro lido direto dos bytes do campo, sem criar String no caso comum
+    public void adicionar(ByteBuffer bytes, int inicio, int fim) {
+        int numero = numeroCanonico(null, bytes, inicio, fim);
+        if (numero >= 0) {
+            adicionar(numero);
+        } else {
+            byte[] texto = new byte[fim - inicio];
+            bytes.get(inicio, texto);
+            adicionarOutro(new String(texto, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    public void adicionar(int registro) {
+        int palavra = registro >>> 6;
+        if (palavra >= bits.length) {
+            long[] maior = new long[Math.max(palavra + 1, bits.length * 2)];
+            System.arraycopy(bits, 0, maior, 0, bits.length);
+            bits = maior;
+        }
+        long mascara = 1L << registro;
+        if ((bits[palavra] & mascara) == 0) {
+            bits[palavra] |= mascara;
+            cardinalidadeBitmap++;
+        }
+    }
+
+    public void mesclar(ConjuntoRegistrosAns outro) {
+        if (outro.bits.length > bits.length) {
+            long[] maior = new long[outro.bits.length];
+            System.arraycopy(bits, 0, maior, 0, bits.length);
+            bits = maior;
+        }
+        int cardinalidade = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (i < outro.bits.length) bits[i] |= outro.bits[i];
+            cardinalidade += Long.bitCount(bits[i]);
+        }
+        cardinalidadeBitmap = cardinalidade;
+
+        if (outro.outros != null) {
+            for (String texto : outro.outros) adicionarOutro(texto);
+        }
+    }
+
+    public int tamanho() {
+        return cardinalidadeBitmap + (outros == null ? 0 : outros.size());
+    }
+
+    public void gravar(DataOutputStream out) throws IOException {
+        int palavras = bits.length;
+        while (palavras > 0 && bits[palavras - 1] == 0) palavras--;
+        out.writeInt(palavras);
+        for (int i = 0; i < palavras; i++) out.writeLong(bits[i]);
+
+        out.writeInt(outros == null ? 0 : outros.size());
+        if (outros != null) {
+            for (String texto : outros) out.writeUTF(texto);
+        }
+    }
+
+    public static ConjuntoRegistrosAns ler(DataInputStream in) throws IOException {
+        ConjuntoRegistrosAns conjunto = new ConjuntoRegistrosAns();
+        conjunto.bits = new long[in.readInt()];
+        for (int i = 0; i < conjunto.bits.length; i++) {
+            conjunto.bits[i] = in.readLong();
+            conjunto.cardinalidadeBitmap += Long.bitCount(conjunto.bits[i]);
+        }
+
+        int outros = in.readInt();
+        for (int i = 0; i < outros; i++) conjunto.adicionarOutro(in.readUTF());
+        return conjunto;
+    }
+
+    private void adicionarOutro(String regAns) {
+        if (outros == null) outros = new HashSet<>();
+        outros.add(regAns);
+    }
+
+    // Valor do registro se for um inteiro canonico (so digitos, sem zero a esquerda, abaixo do limite); senao -1
+    private static int numeroCanonico(String texto, ByteBuffer bytes, int inicio, int fim) {
+        int tamanho = fim - inicio;
+        if (tamanho == 0 || tamanho > 9) return -1;
+
+        int numero = 0;
+        for (int i = inicio; i < fim; i++) {
+            int c = texto != null ? texto.charAt(i) : bytes.get(i);
+            if (c < '0' || c > '9') return -1;
+            if (c == '0' && i == inicio && tamanho > 1) return -1;
+            numero = numero * 10 + (c - '0');
+        }
+        return numero < LIMITE_BITMAP ? numero : -1;
+    }
+}
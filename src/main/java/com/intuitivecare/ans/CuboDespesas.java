@@ -0,0 +1,415 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Cubo de despesas: varios conjuntos de agrupamento (grouping sets) calculados na mesma passada do pipeline,
+// cada um num GruposTransbordaveis (mesmo OrcamentoMemoria do agrupamento principal). --cubo usa os conjuntos
+// padrao; --cubo="MODALIDADE;UF,TRIMESTRE;CONTA:2" escolhe outros: conjuntos separados por ';' e dimensoes
+// por ','. Dimensoes: RAZAO_SOCIAL, UF, MODALIDADE, REG_ANS, CNPJ_VALIDO, TRIMESTRE (da DATA) e CONTA ou
+// CONTA:n (os n primeiros digitos de CD_CONTA_CONTABIL).
+// Cada conjunto vira "cubo_<dimensoes>.csv" no destino final, em ordem de chave, com lancamentos, total, media,
+// desvio padrao, quantis aproximados (SketchQuantis) e a variacao sobre o trimestre anterior. Sem TRIMESTRE no
+// conjunto, a variacao e a do ultimo trimestre dos dados; com TRIMESTRE (sempre a ultima coluna da chave), cada
+// linha e comparada ao mesmo grupo no trimestre anterior. O total anterior fica vazio se aquele trimestre nao
+// esta nos dados. Cubos parciais (por trimestre, por thread) se mesclam como o Agrupamento.
+public class CuboDespesas {
+
+    public static final String CONJUNTOS_PADRAO = "MODALIDADE;UF;TRIMESTRE;CONTA:1;MODALIDADE,UF";
+
+    // Chave, entrada do HashMap, acumulador e um sketch pequeno, aproximados; o sketch cresce com a amplitude dos valores
+    private static final int BYTES_POR_GRUPO = 400;
+
+    private static final String[] COLUNAS_VALORES = {"LANCAMENTOS", "TOTAL_DESPESAS", "MEDIA", "DESVIO_PADRAO", "P50", "P95", "P99",
+            "TRIMESTRE_REFERENCIA", "TOTAL_TRIMESTRE", "TOTAL_TRIMESTRE_ANTERIOR", "VARIACAO_TRIMESTRAL", "VARIACAO_PERCENTUAL"};
+
+    public enum Dimensao { RAZAO_SOCIAL, UF, MODALIDADE, REG_ANS, CNPJ_VALIDO, TRIMESTRE, CONTA }
+
+    // Dimensao de um conjunto; digitos so vale para CONTA (0 = codigo completo)
+    public record Campo(Dimensao dimensao, int digitos) {
+
+        static Campo de(String texto) {
+            String[] partes = texto.trim().toUpperCase(Locale.ROOT).split(":", 2);
+            Dimensao dimensao;
+            try {
+                dimensao = Dimensao.valueOf(partes[0].trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Dimensao desconhecida no --cubo: " + texto + " (validas: "
+                        + Arrays.toString(Dimensao.values()) + ")");
+            }
+            if (partes.length == 1) return new Campo(dimensao, 0);
+            if (dimensao != Dimensao.CONTA) throw new IllegalArgumentException("So CONTA aceita prefixo (CONTA:n): " + texto);
+            try {
+                int digitos = Integer.parseInt(partes[1].trim());
+                if (digitos < 1) throw new NumberFormatException();
+                return new Campo(dimensao, digitos);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Prefixo de conta invalido no --cubo: " + texto);
+            }
+        }
+
+        String coluna() {
+            if (dimensao == Dimensao.CONTA) return digitos == 0 ? "CD_CONTA_CONTABIL" : "CONTA_" + digitos;
+            return dimensao.name();
+        }
+
+        @Override
+        public String toString() {
+            return digitos == 0 ? dimensao.name() : dimensao.name() + ":" + digitos;
+        }
+    }
+
+    // Conjuntos de agrupamento, ja com TRIMESTRE no fim da chave de cada um
+    public record Configuracao(List<List<Campo>> conjuntos) {
+
+        public static Configuracao de(String especificacao) {
+            List<List<Campo>> conjuntos = new ArrayList<>();
+            Set<List<Campo>> vistos = new HashSet<>();
+            for (String conjunto : especificacao.split(";")) {
+                if (conjunto.isBlank()) continue;
+                List<Campo> campos = new ArrayList<>();
+                Campo trimestre = null;
+                for (String texto : conjunto.split(",")) {
+                    Campo campo = Campo.de(texto);
+                    if (campos.contains(campo) || campo.equals(trimestre)) {
+                        throw new IllegalArgumentException("Dimensao repetida no --cubo: " + conjunto);
+                    }
+                    if (campo.dimensao == Dimensao.TRIMESTRE) trimestre = campo;
+                    else campos.add(campo);
+                }
+                if (trimestre != null) campos.add(trimestre);
+                if (vistos.add(campos)) conjuntos.add(List.copyOf(campos));
+            }
+            if (conjuntos.isEmpty()) throw new IllegalArgumentException("Nenhum conjunto de agrupamento no --cubo: " + especificacao);
+            return new Configuracao(List.copyOf(conjuntos));
+        }
+
+        // Forma canonica, guardada com os parciais para saber se foram calculados com os mesmos conjuntos
+        public String especificacao() {
+            StringJoiner texto = new StringJoiner(";");
+            for (List<Campo> campos : conjuntos) {
+                StringJoiner conjunto = new StringJoiner(",");
+                for (Campo campo : campos) conjunto.add(campo.toString());
+                texto.add(conjunto.toString());
+            }
+            return texto.toString();
+        }
+
+        static String nomeArquivo(List<Campo> campos) {
+            StringJoiner nome = new StringJoiner("_", "cubo_", ".csv");
+            for (Campo campo : campos) nome.add(campo.coluna().toLowerCase(Locale.ROOT));
+            return nome.toString();
+        }
+    }
+
+    // Estatisticas de um grupo: Welford (como no relatorio agregado), sketch de quantis e total por trimestre
+    static final class AcumuladorCubo {
+        private final ServicoAgregacao.Acumulador estatisticas = new ServicoAgregacao.Acumulador();
+        private final SketchQuantis quantis = new SketchQuantis();
+        // Indices de trimestre (ano * 4 + numero - 1) em ordem, com o total de cada um
+        private int[] trimestres = new int[0];
+        private long[] totais = new long[0];
+
+        void adicionar(int trimestre, long valorCentavos) {
+            estatisticas.adicionar(valorCentavos);
+            quantis.adicionar(valorCentavos);
+            if (trimestre >= 0) somarTrimestre(trimestre, valorCentavos);
+        }
+
+        void mesclar(AcumuladorCubo outro) {
+            estatisticas.mesclar(outro.estatisticas);
+            quantis.mesclar(outro.quantis);
+            for (int i = 0; i < outro.trimestres.length; i++) somarTrimestre(outro.trimestres[i], outro.totais[i]);
+        }
+
+        long totalNoTrimestre(int trimestre) {
+            int posicao = Arrays.binarySearch(trimestres, trimestre);
+            return posicao >= 0 ? totais[posicao] : 0;
+        }
+
+        private void somarTrimestre(int trimestre, long valorCentavos) {
+            int posicao = Arrays.binarySearch(trimestres, trimestre);
+            if (posicao < 0) {
+                posicao = -posicao - 1;
+                int[] novosTrimestres = new int[trimestres.length + 1];
+                long[] novosTotais = new long[totais.length + 1];
+                System.arraycopy(trimestres, 0, novosTrimestres, 0, posicao);
+                System.arraycopy(totais, 0, novosTotais, 0, posicao);
+                System.arraycopy(trimestres, posicao, novosTrimestres, posicao + 1, trimestres.length - posicao);
+                System.arraycopy(totais, posicao, novosTotais, posicao + 1, totais.length - posicao);
+                novosTrimestres[posicao] = trimestre;
+                trimestres = novosTrimestres;
+                totais = novosTotais;
+            }
+            totais[posicao] += valorCentavos;
+        }
+
+        void gravar(DataOutputStream out) throws IOException {
+            estatisticas.gravar(out);
+            quantis.gravar(out);
+            out.writeInt(trimestres.length);
+            for (int i = 0; i < trimestres.length; i++) {
+                out.writeInt(trimestres[i]);
+                out.writeLong(totais[i]);
+            }
+        }
+
+        static AcumuladorCubo ler(DataInputStream in) throws IOException {
+            AcumuladorCubo acumulador = new AcumuladorCubo();
+            acumulador.estatisticas.mesclar(ServicoAgregacao.Acumulador.ler(in));
+            acumulador.quantis.mesclar(SketchQuantis.ler(in));
+            int trimestres = in.readInt();
+            for (int i = 0; i < trimestres; i++) acumulador.somarTrimestre(in.readInt(), in.readLong());
+            return acumulador;
+        }
+    }
+
+    private static final GruposTransbordaveis.Tipo<List<String>, AcumuladorCubo> TIPO = new GruposTransbordaveis.Tipo<>() {
+        private final Comparator<List<String>> ordem = (a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int comparacao = a.get(i).compareTo(b.get(i));
+                if (comparacao != 0) return comparacao;
+            }
+            return 0;
+        };
+
+        @Override
+        public Comparator<List<String>> ordem() {
+            return ordem;
+        }
+
+        @Override
+        public AcumuladorCubo novo() {
+            return new AcumuladorCubo();
+        }
+
+        @Override
+        public void mesclar(AcumuladorCubo destino, AcumuladorCubo origem) {
+            destino.mesclar(origem);
+        }
+
+        @Override
+        public void gravarChave(DataOutputStream out, List<String> chave) throws IOException {
+            out.writeByte(chave.size());
+            for (String valor : chave) out.writeUTF(valor);
+        }
+
+        @Override
+        public List<String> lerChave(DataInputStream in) throws IOException {
+            String[] valores = new String[in.readByte()];
+            for (int i = 0; i < valores.length; i++) valores[i] = in.readUTF();
+            return List.of(valores);
+        }
+
+        @Override
+        public void gravarAcumulador(DataOutputStream out, AcumuladorCubo acumulador) throws IOException {
+            acumulador.gravar(out);
+        }
+
+        @Override
+        public AcumuladorCubo lerAcumulador(DataInputStream in) throws IOException {
+            return AcumuladorCubo.ler(in);
+        }
+
+        @Override
+        public long tamanho(List<String> chave) {
+            long tamanho = BYTES_POR_GRUPO;
+            for (String valor : chave) tamanho += 40 + valor.length();
+            return tamanho;
+        }
+    };
+
+    private final Configuracao configuracao;
+    private final List<GruposTransbordaveis<List<String>, AcumuladorCubo>> grupos = new ArrayList<>();
+    // Trimestres presentes nos dados, para distinguir "sem despesa no trimestre anterior" de "trimestre fora dos dados"
+    private final TreeSet<Integer> trimestres = new TreeSet<>();
+
+    public CuboDespesas(Configuracao configuracao) {
+        this(configuracao, OrcamentoMemoria.padrao());
+    }
+
+    public CuboDespesas(Configuracao configuracao, OrcamentoMemoria orcamento) {
+        this.configuracao = configuracao;
+        for (int i = 0; i < configuracao.conjuntos().size(); i++) {
+            grupos.add(new GruposTransbordaveis<>(TIPO, orcamento, "cubo"));
+        }
+    }
+
+    public Configuracao configuracao() {
+        return configuracao;
+    }
+
+    // Uma despesa enriquecida; infoExtra null quando o REG_ANS nao esta no cadastro
+    public void adicionar(String data, String regAns, String codigoConta, ServicoEnriquecimento.DadosCadastrais infoExtra,
+                          long valorCentavos) {
+        DescobertaTrimestres.Trimestre trimestre = DescobertaTrimestres.Trimestre.daData(data);
+        int indiceTrimestre = trimestre == null ? -1 : indice(trimestre);
+        if (indiceTrimestre >= 0) trimestres.add(indiceTrimestre);
+
+        List<List<Campo>> conjuntos = configuracao.conjuntos();
+        for (int c = 0; c < conjuntos.size(); c++) {
+            List<Campo> campos = conjuntos.get(c);
+            String[] chave = new String[campos.size()];
+            for (int i = 0; i < chave.length; i++) {
+                chave[i] = Objects.requireNonNullElse(valor(campos.get(i), trimestre, regAns, codigoConta, infoExtra), "");
+            }
+            grupos.get(c).acumulador(List.of(chave)).adicionar(indiceTrimestre, valorCentavos);
+        }
+    }
+
+    // Consome "outro", calculado com a mesma configuracao
+    public void mesclar(CuboDespesas outro) {
+        if (!configuracao.equals(outro.configuracao)) {
+            throw new IllegalArgumentException("Cubos com conjuntos diferentes: " + configuracao.especificacao()
+                    + " / " + outro.configuracao.especificacao());
+        }
+        for (int c = 0; c < grupos.size(); c++) grupos.get(c).mesclar(outro.grupos.get(c));
+        trimestres.addAll(outro.trimestres);
+    }
+
+    public void gravar(DataOutputStream out) throws IOException {
+        out.writeUTF(configuracao.especificacao());
+        out.writeInt(trimestres.size());
+        for (int trimestre : trimestres) out.writeInt(trimestre);
+        for (GruposTransbordaveis<List<String>, AcumuladorCubo> conjunto : grupos) conjunto.gravar(out);
+    }
+
+    public static CuboDespesas ler(DataInputStream in) throws IOException {
+        CuboDespesas cubo = new CuboDespesas(Configuracao.de(in.readUTF()));
+        int trimestres = in.readInt();
+        for (int i = 0; i < trimestres; i++) cubo.trimestres.add(in.readInt());
+        for (GruposTransbordaveis<List<String>, AcumuladorCubo> conjunto : cubo.grupos) conjunto.lerEMesclar(in);
+        return cubo;
+    }
+
+    public void descartar() {
+        for (GruposTransbordaveis<List<String>, AcumuladorCubo> conjunto : grupos) conjunto.descartar();
+    }
+
+    // Grava um arquivo por conjunto no destino e libera os grupos
+    public void gravarSaidas(DestinoSaida destino) throws IOException {
+        try {
+            List<List<Campo>> conjuntos = configuracao.conjuntos();
+            for (int c = 0; c < conjuntos.size(); c++) {
+                String nome = Configuracao.nomeArquivo(conjuntos.get(c));
+                try (Metricas.Medicao medicao = Metricas.iniciar("cubo", nome)) {
+                    System.out.println("Gerando conjunto do cubo: " + nome);
+                    medicao.linhasSaida(gravarConjunto(conjuntos.get(c), grupos.get(c), destino, nome));
+                }
+                grupos.get(c).descartar();
+            }
+        } finally {
+            descartar();
+        }
+    }
+
+    private long gravarConjunto(List<Campo> campos, GruposTransbordaveis<List<String>, AcumuladorCubo> conjunto,
+                                DestinoSaida destino, String nome) throws IOException {
+        List<String> cabecalho = new ArrayList<>();
+        for (Campo campo : campos) cabecalho.add(campo.coluna());
+        cabecalho.addAll(Arrays.asList(COLUNAS_VALORES));
+
+        boolean porTrimestre = campos.get(campos.size() - 1).dimensao == Dimensao.TRIMESTRE;
+        int referenciaGeral = trimestres.isEmpty() ? -1 : trimestres.last();
+        long[] linhas = {0};
+
+        try (CodificadorCSV saida = new CodificadorCSV(destino.abrir(nome), StandardCharsets.UTF_8, ';')) {
+            saida.registro(cabecalho.toArray(new String[0]));
+            // Linha anterior do conjunto, para comparar trimestres vizinhos de um mesmo grupo
+            LinhaAnterior vizinha = new LinhaAnterior();
+
+            conjunto.percorrerPorChave((chave, acumulador) -> {
+                for (int i = 0; i < chave.size(); i++) {
+                    saida.texto(porTrimestre && i == chave.size() - 1 ? exibirTrimestre(chave.get(i)) : chave.get(i));
+                }
+
+                ServicoAgregacao.Acumulador estatisticas = acumulador.estatisticas;
+                saida.inteiro(estatisticas.contagem())
+                        .centavos(estatisticas.somaCentavos(), '.')
+                        .centavos(estatisticas.mediaCentavos(), '.')
+                        .centavos(ValorMonetario.deReais(estatisticas.desvioPadrao()), '.')
+                        .centavos(acumulador.quantis.quantil(0.50), '.')
+                        .centavos(acumulador.quantis.quantil(0.95), '.')
+                        .centavos(acumulador.quantis.quantil(0.99), '.');
+
+                int referencia = porTrimestre ? indiceDaChave(chave.get(chave.size() - 1)) : referenciaGeral;
+                long atual = referencia < 0 ? 0 : acumulador.totalNoTrimestre(referencia);
+                Long anterior = null;
+                if (referencia >= 0 && trimestres.contains(referencia - 1)) {
+                    if (!porTrimestre) {
+                        anterior = acumulador.totalNoTrimestre(referencia - 1);
+                    } else {
+                        boolean mesmoGrupo = vizinha.chave != null
+                                && vizinha.chave.subList(0, chave.size() - 1).equals(chave.subList(0, chave.size() - 1))
+                                && indiceDaChave(vizinha.chave.get(chave.size() - 1)) == referencia - 1;
+                        anterior = mesmoGrupo ? vizinha.total : 0L;
+                    }
+                }
+                saida.texto(referencia < 0 ? "" : trimestre(referencia).toString());
+                if (referencia < 0) saida.texto("");
+                else saida.centavos(atual, '.');
+                if (anterior == null) {
+                    saida.texto("").texto("");
+                } else {
+                    saida.centavos(anterior, '.').centavos(atual - anterior, '.');
+                }
+                saida.texto(anterior == null || anterior == 0 ? ""
+                        : String.format(Locale.ROOT, "%.2f", (atual - anterior) * 100.0 / Math.abs(anterior)));
+                saida.fimRegistro();
+
+                vizinha.chave = chave;
+                vizinha.total = atual;
+                linhas[0]++;
+            });
+        }
+        return linhas[0];
+    }
+
+    private static final class LinhaAnterior {
+        private List<String> chave;
+        private long total;
+    }
+
+    private static String valor(Campo campo, DescobertaTrimestres.Trimestre trimestre, String regAns, String codigoConta,
+                                ServicoEnriquecimento.DadosCadastrais infoExtra) {
+        switch (campo.dimensao) {
+            case RAZAO_SOCIAL:
+                return infoExtra != null ? infoExtra.razaoSocial() : ServicoEnriquecimento.RAZAO_NAO_ENCONTRADA;
+            case UF:
+                return infoExtra != null ? infoExtra.uf() : "";
+            case MODALIDADE:
+                return infoExtra != null ? infoExtra.modalidade() : "";
+            case REG_ANS:
+                return regAns == null ? "" : regAns;
+            case CNPJ_VALIDO:
+                return infoExtra == null ? "" : infoExtra.cnpjValido() ? "SIM" : "NAO";
+            case TRIMESTRE:
+                // Na chave, ano-numero (ordena como os trimestres); exibido como 3T2024
+                return trimestre == null ? "" : trimestre.ano() + "-" + trimestre.numero();
+            case CONTA:
+                if (codigoConta == null) return "";
+                return campo.digitos == 0 || codigoConta.length() <= campo.digitos ? codigoConta : codigoConta.substring(0, campo.digitos);
+            default:
+                throw new IllegalStateException("Dimensao sem valor: " + campo);
+        }
+    }
+
+    private static int indice(DescobertaTrimestres.Trimestre trimestre) {
+        return trimestre.ano() * 4 + trimestre.numero() - 1;
+    }
+
+    private static DescobertaTrimestres.Trimestre trimestre(int indice) {
+        return new DescobertaTrimestres.Trimestre(indice / 4, indice % 4 + 1);
+    }
+
+    private static int indiceDaChave(String valor) {
+        if (valor.isEmpty()) return -1;
+        int traco = valor.indexOf('-');
+        return Integer.parseInt(valor.substring(0, traco)) * 4 + Integer.parseInt(valor.substring(traco + 1)) - 1;
+    }
+
+    private static String exibirTrimestre(String valor) {
+        return valor.isEmpty() ? "" : trimestre(indiceDaChave(valor)).toString();
+    }
+}
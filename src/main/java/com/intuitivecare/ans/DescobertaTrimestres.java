@@ -0,0 +1,353 @@
+package com.intuitivecare.ans;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Descobre os ZIPs trimestrais no FTP da ANS. As listagens dos anos sao buscadas em paralelo, com timeout
+// e novas tentativas, e os links de cada listagem ficam em cache no disco (--pasta-cache-listagens) com o
+// ETag / Last-Modified da resposta: nas execucoes seguintes a listagem e revalidada com uma requisicao
+// condicional e um 304 reaproveita o cache. Se o servidor nao responde, o cache e usado com um aviso.
+// A janela e os N trimestres mais recentes (--trimestres) ou um intervalo fechado
+// (--trimestre-inicio / --trimestre-fim, ex.: 1T2019 a 4T2023).
+public class DescobertaTrimestres implements AutoCloseable {
+
+    public static final String PASTA_CACHE_PADRAO = "cache_listagens";
+
+    private static final Pattern ANO = Pattern.compile("\\d{4}");
+    private static final Pattern TRIMESTRE = Pattern.compile("([1-4])T(\\d{4})");
+    private static final Pattern NOME_TRIMESTRE = Pattern.compile("([1-4])T(\\d{4})?");
+
+    public record Trimestre(int ano, int numero) implements Comparable<Trimestre> {
+
+        // Formato do nome dos ZIPs da ANS: 3T2024
+        public static Trimestre de(String texto) {
+            Matcher m = TRIMESTRE.matcher(texto.trim().toUpperCase(Locale.ROOT));
+            if (!m.matches()) throw new IllegalArgumentException("Trimestre invalido: " + texto + " (esperado ex.: 3T2024)");
+            return new Trimestre(Integer.parseInt(m.group(2)), Integer.parseInt(m.group(1)));
+        }
+
+        // Trimestre de uma DATA no formato ISO (2024-04-01) ou brasileiro (01/04/2024); null se nao reconhecida
+        public static Trimestre daData(String data) {
+            try {
+                int ano;
+                int mes;
+                if (data.length() >= 7 && data.charAt(4) == '-') {
+                    ano = Integer.parseInt(data.substring(0, 4));
+                    mes = Integer.parseInt(data.substring(5, 7));
+                } else if (data.length() == 10 && data.charAt(2) == '/' && data.charAt(5) == '/') {
+                    ano = Integer.parseInt(data.substring(6, 10));
+                    mes = Integer.parseInt(data.substring(3, 5));
+                } else {
+                    return null;
+                }
+                return mes >= 1 && mes <= 12 ? new Trimestre(ano, (mes - 1) / 3 + 1) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        public Trimestre anterior() {
+            return numero == 1 ? new Trimestre(ano - 1, 4) : new Trimestre(ano, numero - 1);
+        }
+
+        @Override
+        public int compareTo(Trimestre outro) {
+            return ano != outro.ano ? Integer.compare(ano, outro.ano) : Integer.compare(numero, outro.numero);
+        }
+
+        @Override
+        public String toString() {
+            return numero + "T" + ano;
+        }
+    }
+
+    // ultimos > 0: os N trimestres mais recentes publicados; senao, o intervalo [inicio, fim]
+    public record Janela(int ultimos, Trimestre inicio, Trimestre fim) {
+
+        public static Janela ultimos(int quantidade) {
+            if (quantidade < 1) throw new IllegalArgumentException("Quantidade de trimestres invalida: " + quantidade);
+            return new Janela(quantidade, null, null);
+        }
+
+        public static Janela intervalo(Trimestre inicio, Trimestre fim) {
+            if (inicio.compareTo(fim) > 0) throw new IllegalArgumentException("Intervalo invalido: " + inicio + " a " + fim);
+            return new Janela(0, inicio, fim);
+        }
+
+        boolean porIntervalo() {
+            return ultimos == 0;
+        }
+
+        boolean contem(Trimestre trimestre) {
+            return !porIntervalo() || (trimestre.compareTo(inicio) >= 0 && trimestre.compareTo(fim) <= 0);
+        }
+
+        @Override
+        public String toString() {
+            return porIntervalo() ? "trimestres de " + inicio + " a " + fim : "ultimos " + ultimos + " trimestres";
+        }
+    }
+
+    public record ArquivoTrimestral(Trimestre trimestre, String url) {
+        public String nomeArquivo() {
+            return url.substring(url.lastIndexOf('/') + 1);
+        }
+    }
+
+    // href ja resolvido contra a URL da listagem
+    private record Link(String href, String texto) {}
+
+    private final HttpClient cliente;
+    private final ExecutorService executor;
+    private final Duration timeout;
+    private final int tentativas;
+    private final File pastaCache;
+
+    public DescobertaTrimestres(File pastaCache, int paralelismo, Duration timeout, int tentativas) {
+        this.pastaCache = pastaCache;
+        this.timeout = timeout;
+        this.tentativas = Math.max(1, tentativas);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, paralelismo), tarefa -> {
+            Thread thread = new Thread(tarefa, "descoberta");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.cliente = HttpClient.newBuilder()
+                .connectTimeout(timeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // Primeiro link da listagem cujo href contem o trecho, ou null
+    public String localizarPasta(String url, String trecho) throws IOException {
+        for (Link link : listar(url)) {
+            if (link.href.toLowerCase(Locale.ROOT).contains(trecho.toLowerCase(Locale.ROOT))) return link.href;
+        }
+        return null;
+    }
+
+    // ZIPs da janela, do trimestre mais recente para o mais antigo
+    public List<ArquivoTrimestral> listarTrimestres(String urlPasta, Janela janela) throws IOException {
+        System.out.println("Buscando " + janela + "...");
+        TreeMap<Integer, String> anos = new TreeMap<>(Collections.reverseOrder());
+        for (Link link : listar(urlPasta)) {
+            String texto = link.texto.trim().replaceAll("[/\\\\]", "");
+            if (ANO.matcher(texto).matches()) {
+                anos.put(Integer.parseInt(texto), link.href.endsWith("/") ? link.href : link.href + "/");
+            }
+        }
+
+        List<Integer> candidatos = new ArrayList<>();
+        for (int ano : anos.keySet()) {
+            if (!janela.porIntervalo() || (ano >= janela.inicio.ano && ano <= janela.fim.ano)) candidatos.add(ano);
+        }
+
+        // Intervalo: todos os anos de uma vez. Ultimos N: lotes de anos do mais recente para tras, ate
+        // completar a janela (o ano corrente pode estar incompleto, dai o ano a mais em cada lote)
+        TreeMap<Trimestre, String> encontrados = new TreeMap<>(Collections.reverseOrder());
+        int lote = janela.porIntervalo() ? Math.max(1, candidatos.size()) : janela.ultimos / 4 + 1;
+        int proximo = 0;
+        while (proximo < candidatos.size() && (janela.porIntervalo() || encontrados.size() < janela.ultimos)) {
+            List<Integer> anosLote = candidatos.subList(proximo, Math.min(candidatos.size(), proximo + lote));
+            List<Future<List<Link>>> listagens = new ArrayList<>();
+            for (int ano : anosLote) {
+                System.out.println("Verificando ano: " + ano);
+                String urlAno = anos.get(ano);
+                listagens.add(executor.submit(() -> listar(urlAno)));
+            }
+            for (int i = 0; i < anosLote.size(); i++) {
+                for (Link link : aguardar(listagens.get(i))) {
+                    String nome = link.href.substring(link.href.lastIndexOf('/') + 1);
+                    if (!nome.toLowerCase(Locale.ROOT).endsWith(".zip")) continue;
+                    Matcher m = NOME_TRIMESTRE.matcher(nome.toUpperCase(Locale.ROOT));
+                    if (!m.find()) continue;
+                    int ano = m.group(2) != null ? Integer.parseInt(m.group(2)) : anosLote.get(i);
+                    Trimestre trimestre = new Trimestre(ano, Integer.parseInt(m.group(1)));
+                    if (janela.contem(trimestre)) encontrados.putIfAbsent(trimestre, link.href);
+                }
+            }
+            proximo += anosLote.size();
+        }
+
+        List<ArquivoTrimestral> arquivos = new ArrayList<>();
+        for (Map.Entry<Trimestre, String> entrada : encontrados.entrySet()) {
+            if (!janela.porIntervalo() && arquivos.size() >= janela.ultimos) break;
+            ArquivoTrimestral arquivo = new ArquivoTrimestral(entrada.getKey(), entrada.getValue());
+            arquivos.add(arquivo);
+            System.out.println("   -> Alvo identificado: " + arquivo.nomeArquivo());
+        }
+        if (janela.porIntervalo() && arquivos.isEmpty()) {
+            System.err.println("Nenhum trimestre publicado entre " + janela.inicio + " e " + janela.fim);
+        } else if (!janela.porIntervalo() && arquivos.size() < janela.ultimos) {
+            System.err.println("Apenas " + arquivos.size() + " de " + janela.ultimos + " trimestres encontrados");
+        }
+        return arquivos;
+    }
+
+    // Links da listagem, revalidando o cache quando existe
+    private List<Link> listar(String url) throws IOException {
+        try (Metricas.Medicao medicao = Metricas.iniciar("listagem", url)) {
+            File arquivoCache = arquivoCache(url);
+            Properties cache = lerCache(arquivoCache);
+
+            IOException ultimaFalha = null;
+            for (int tentativa = 1; tentativa <= tentativas; tentativa++) {
+                try {
+                    List<Link> links = buscar(url, cache, arquivoCache, medicao);
+                    medicao.linhasSaida(links.size());
+                    return links;
+                } catch (FalhaDefinitiva e) {
+                    throw e;
+                } catch (IOException e) {
+                    ultimaFalha = e;
+                    System.err.println("Falha ao listar " + url + " (tentativa " + tentativa + "/" + tentativas + "): "
+                            + Objects.toString(e.getMessage(), e.getClass().getSimpleName()));
+                    if (tentativa < tentativas) esperar(1000L << (tentativa - 1));
+                }
+            }
+            if (cache != null) {
+                System.err.println("Servidor indisponivel, usando listagem em cache: " + url);
+                List<Link> links = linksDoCache(cache);
+                medicao.linhasSaida(links.size());
+                return links;
+            }
+            throw ultimaFalha;
+        }
+    }
+
+    // Respostas 4xx nao melhoram com novas tentativas nem caem no cache (a listagem deixou de existir)
+    private static class FalhaDefinitiva extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FalhaDefinitiva(String mensagem) {
+            super(mensagem);
+        }
+    }
+
+    private List<Link> buscar(String url, Properties cache, File arquivoCache, Metricas.Medicao medicao) throws IOException {
+        HttpRequest.Builder requisicao = HttpRequest.newBuilder(URI.create(url)).timeout(timeout).GET();
+        if (cache != null) {
+            if (cache.getProperty("etag") != null) requisicao.header("If-None-Match", cache.getProperty("etag"));
+            if (cache.getProperty("lastModified") != null) requisicao.header("If-Modified-Since", cache.getProperty("lastModified"));
+        }
+
+        HttpResponse<byte[]> resposta;
+        try {
+            resposta = cliente.send(requisicao.build(), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Descoberta interrompida");
+        }
+
+        int status = resposta.statusCode();
+        if (status == 304 && cache != null) return linksDoCache(cache);
+        if (status >= 400 && status < 500) throw new FalhaDefinitiva("HTTP " + status + " em " + url);
+        if (status != 200) throw new IOException("HTTP " + status + " em " + url);
+
+        medicao.bytesLidos(resposta.body().length);
+        // Links resolvidos contra a URL final (o servidor pode redirecionar "/2024" para "/2024/")
+        Document doc = Jsoup.parse(new ByteArrayInputStream(resposta.body()), null, resposta.uri().toString());
+
+        List<Link> links = new ArrayList<>();
+        for (Element link : doc.select("a[href]")) {
+            links.add(new Link(link.absUrl("href"), link.text()));
+        }
+        gravarCache(arquivoCache, url, resposta, links);
+        return links;
+    }
+
+    private File arquivoCache(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String hash = HexFormat.of().formatHex(digest.digest(url.getBytes(StandardCharsets.UTF_8)));
+            return new File(pastaCache, hash.substring(0, 32) + ".properties");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Properties lerCache(File arquivo) {
+        if (!arquivo.exists()) return null;
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(arquivo)) {
+            props.load(in);
+            return props.getProperty("links") != null ? props : null;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Cache de listagem ilegivel, sera refeito: " + arquivo.getName());
+            return null;
+        }
+    }
+
+    private static List<Link> linksDoCache(Properties cache) {
+        int quantidade = Integer.parseInt(cache.getProperty("links"));
+        List<Link> links = new ArrayList<>(quantidade);
+        for (int i = 0; i < quantidade; i++) {
+            links.add(new Link(cache.getProperty("link." + i + ".href"), cache.getProperty("link." + i + ".texto", "")));
+        }
+        return links;
+    }
+
+    // Gravado pela thread que buscou a listagem; cada URL tem o seu arquivo, entao nao ha disputa
+    private void gravarCache(File arquivo, String url, HttpResponse<?> resposta, List<Link> links) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("url", url);
+        resposta.headers().firstValue("ETag").ifPresent(v -> props.setProperty("etag", v));
+        resposta.headers().firstValue("Last-Modified").ifPresent(v -> props.setProperty("lastModified", v));
+        props.setProperty("links", String.valueOf(links.size()));
+        for (int i = 0; i < links.size(); i++) {
+            props.setProperty("link." + i + ".href", links.get(i).href);
+            props.setProperty("link." + i + ".texto", links.get(i).texto);
+        }
+
+        pastaCache.mkdirs();
+        Path temporario = Path.of(arquivo.getPath() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporario)) {
+            props.store(out, null);
+        }
+        Files.move(temporario, arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static <T> T aguardar(Future<T> futuro) throws IOException {
+        try {
+            return futuro.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Descoberta interrompida");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException("Erro ao listar trimestres", e.getCause());
+        }
+    }
+
+    private static void esperar(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Descoberta interrompida");
+        }
+    }
+}
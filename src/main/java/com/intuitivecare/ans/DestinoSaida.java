@@ -0,0 +1,28 @@
+package com.intuitivecare.ans;
+
+import org.apache.commons.io.output.TeeOutputStream;
+
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+
+// Para onde vao os arquivos finais do ETL: arquivos comuns ou as entradas de um ZIP. Cada arquivo e aberto,
+// escrito e fechado antes do proximo (entradas de ZIP sao gravadas em sequencia); fechar o stream conclui o arquivo.
+public interface DestinoSaida {
+
+    OutputStream abrir(String nome) throws IOException;
+
+    // Cada nome e o caminho de um arquivo comum
+    static DestinoSaida arquivos() {
+        return nome -> new BufferedOutputStream(new FileOutputStream(nome), 1 << 16);
+    }
+
+    // Cada nome vira um arquivo comum comprimido com gzip ("nome.gz")
+    static DestinoSaida arquivosGzip() {
+        return nome -> new GZIPOutputStream(new FileOutputStream(nome + ".gz"), 1 << 16);
+    }
+
+    // Grava cada arquivo nos dois destinos (ex.: ZIP final e uma copia legivel na pasta de execucao)
+    default DestinoSaida comCopiaEm(DestinoSaida outro) {
+        return nome -> new TeeOutputStream(abrir(nome), outro.abrir(nome));
+    }
+}
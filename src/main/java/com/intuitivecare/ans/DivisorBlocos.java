@@ -0,0 +1,127 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+// Divide um arquivo CSV em blocos de bytes alinhados a quebras de linha, para processamento paralelo.
+// As quebras dentro de campos entre aspas sao ignoradas, entao nenhum registro fica dividido entre dois blocos.
+public class DivisorBlocos {
+
+    public record Bloco(long inicio, long fim) {
+        public int tamanho() {
+            return (int) (fim - inicio);
+        }
+    }
+
+    // Retorna o offset logo apos a primeira quebra de linha (fim do cabecalho), ou o tamanho do arquivo
+    public static long fimDoCabecalho(File arquivo) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(arquivo))) {
+            long posicao = 0;
+            boolean entreAspas = false;
+            int b;
+            while ((b = in.read()) != -1) {
+                posicao++;
+                if (b == '"') entreAspas = !entreAspas;
+                else if (b == '\n' && !entreAspas) return posicao;
+            }
+            return posicao;
+        }
+    }
+
+    // Resumo de um trecho do arquivo, calculado sem saber se o trecho comeca entre aspas: a paridade das aspas
+    // do trecho e a primeira quebra de linha fora de aspas para cada estado de entrada (-1 quando nao ha)
+    private record Trecho(boolean aspasImpar, long quebraComecandoFora, long quebraComecandoDentro) {
+        long primeiraQuebra(boolean entreAspas) {
+            return entreAspas ? quebraComecandoDentro : quebraComecandoFora;
+        }
+    }
+
+    // Corta o arquivo em trechos de tamanhoAlvo e resume cada um em paralelo; o estado das aspas na entrada de
+    // cada trecho sai das paridades dos anteriores, e cada bloco termina na primeira quebra de linha fora de
+    // aspas depois do inicio de um trecho. So a combinacao dos resumos (um por trecho) e sequencial.
+    public static List<Bloco> dividir(File arquivo, long inicio, long tamanhoAlvo) throws IOException {
+        List<Bloco> blocos = new ArrayList<>();
+        long tamanhoArquivo = arquivo.length();
+        if (inicio >= tamanhoArquivo) return blocos;
+
+        int quantidade = (int) ((tamanhoArquivo - inicio + tamanhoAlvo - 1) / tamanhoAlvo);
+        Trecho[] trechos;
+        try (FileChannel canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ)) {
+            trechos = IntStream.range(0, quantidade).parallel()
+                    .mapToObj(i -> {
+                        long inicioTrecho = inicio + i * tamanhoAlvo;
+                        return resumir(canal, inicioTrecho, Math.min(tamanhoArquivo, inicioTrecho + tamanhoAlvo));
+                    })
+                    .toArray(Trecho[]::new);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        long inicioBloco = inicio;
+        boolean entreAspas = false;
+        boolean procurandoQuebra = false;
+        for (int i = 0; i < quantidade; i++) {
+            if (i > 0) procurandoQuebra = true;
+            long quebra = trechos[i].primeiraQuebra(entreAspas);
+            if (procurandoQuebra && quebra >= 0) {
+                blocos.add(new Bloco(inicioBloco, quebra + 1));
+                inicioBloco = quebra + 1;
+                procurandoQuebra = false;
+            }
+            if (trechos[i].aspasImpar()) entreAspas = !entreAspas;
+        }
+        if (inicioBloco < tamanhoArquivo) {
+            blocos.add(new Bloco(inicioBloco, tamanhoArquivo));
+        }
+        return blocos;
+    }
+
+    private static Trecho resumir(FileChannel canal, long inicio, long fim) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long posicao = inicio;
+        boolean aspasImpar = false;
+        long quebraFora = -1;
+        long quebraDentro = -1;
+        try {
+            while (posicao < fim) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), fim - posicao));
+                int lidos = canal.read(buffer, posicao);
+                if (lidos < 0) throw new EOFException("Arquivo encurtado durante a leitura: " + posicao);
+                for (int i = 0; i < lidos; i++) {
+                    byte b = buffer.get(i);
+                    if (b == '"') {
+                        aspasImpar = !aspasImpar;
+                    } else if (b == '\n') {
+                        // Com paridade par desde o inicio, o trecho esta no mesmo estado em que entrou
+                        if (!aspasImpar && quebraFora < 0) quebraFora = posicao + i;
+                        else if (aspasImpar && quebraDentro < 0) quebraDentro = posicao + i;
+                    }
+                }
+                posicao += lidos;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Trecho(aspasImpar, quebraFora, quebraDentro);
+    }
+
+    public static ByteBuffer mapearBloco(File arquivo, Bloco bloco) throws IOException {
+        try (FileChannel canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ)) {
+            return canal.map(FileChannel.MapMode.READ_ONLY, bloco.inicio(), bloco.tamanho());
+        }
+    }
+
+    public static byte[] lerBloco(File arquivo, Bloco bloco) throws IOException {
+        byte[] dados = new byte[bloco.tamanho()];
+        try (RandomAccessFile raf = new RandomAccessFile(arquivo, "r")) {
+            raf.seek(bloco.inicio());
+            raf.readFully(dados);
+        }
+        return dados;
+    }
+}
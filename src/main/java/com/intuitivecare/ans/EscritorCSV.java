@@ -1,41 +1,43 @@
 package com.intuitivecare.ans;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
-
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
 public class EscritorCSV {
 
-    public void salvarArquivoConsolidado(List<ProcessadorCSV.DadosDespesa> dados, String caminhoArquivo) {
+    public static String formatarValor(long centavos) {
+        return ValorMonetario.formatar(centavos, ',');
+    }
+
+    // Consolidado no formato colunar interno, lido pela auditoria e pelo enriquecimento
+    public void salvarArquivoConsolidadoColunar(List<ProcessadorCSV.DadosDespesa> dados, String caminhoArquivo) throws IOException {
         System.out.println("Iniciando gravacao do arquivo consolidado: " + caminhoArquivo);
 
-        CSVFormat format = CSVFormat.Builder.create()
-                .setDelimiter(';')
-                .setQuote('"')
-                .setHeader("DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO", "VL_SALDO_FINAL")
-                .build();
+        FormatoColunar.Escritor escritor = new FormatoColunar.Escritor(FormatoColunar.TEXTOS_CONSOLIDADO, FormatoColunar.COLUNA_VALOR);
+        for (ProcessadorCSV.DadosDespesa linha : dados) {
+            escritor.adicionarLinha(new String[]{linha.data, linha.regAns, linha.codigoConta, linha.descricao}, linha.valorCentavos);
+        }
+
+        escritor.gravar(new File(caminhoArquivo));
+        System.out.println("Arquivo gerado com sucesso! Total de linhas: " + dados.size());
+    }
 
-        try (FileWriter writer = new FileWriter(caminhoArquivo);
-             CSVPrinter printer = new CSVPrinter(writer, format)) {
+    public void salvarArquivoConsolidado(List<ProcessadorCSV.DadosDespesa> dados, String caminhoArquivo) throws IOException {
+        System.out.println("Iniciando gravacao do arquivo consolidado: " + caminhoArquivo);
 
+        try (CodificadorCSV saida = CodificadorCSV.abrir(new File(caminhoArquivo), false)) {
+            saida.registro("DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO", "VL_SALDO_FINAL");
             for (ProcessadorCSV.DadosDespesa linha : dados) {
-                printer.printRecord(
-                        linha.data,
-                        linha.regAns,
-                        linha.codigoConta,
-                        linha.descricao,
-                        String.format("%.2f", linha.valor).replace('.', ',')
-                );
+                saida.texto(linha.data)
+                        .texto(linha.regAns)
+                        .texto(linha.codigoConta)
+                        .texto(linha.descricao)
+                        .centavos(linha.valorCentavos, ',')
+                        .fimRegistro();
             }
 
             System.out.println("Arquivo gerado com sucesso! Total de linhas: " + dados.size());
-
-        } catch (IOException e) {
-            System.err.println("Erro ao gravar arquivo: " + e.getMessage());
-            e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,288 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Grava um ZIP padrao cujas entradas sao comprimidas em paralelo, no estilo do pigz: o conteudo de cada entrada
+// e cortado em blocos de 128 KB, cada bloco e comprimido numa thread com os ultimos 32 KB do bloco anterior como
+// dicionario e termina num SYNC_FLUSH (o ultimo num FINISH), de modo que a concatenacao dos blocos e um unico
+// stream deflate valido. O CRC32 e calculado na thread que escreve e os tamanhos vao no descritor de dados,
+// entao a entrada pode ser escrita enquanto e produzida, sem arquivo intermediario.
+// O ZIP e montado num .tmp e so aparece com o nome final em concluir(); fechar sem concluir descarta o arquivo.
+public class EscritorZipParalelo implements DestinoSaida, Closeable {
+
+    private static final int TAMANHO_BLOCO = 128 * 1024;
+    private static final int TAMANHO_DICIONARIO = 32 * 1024;
+    // Sem ZIP64: tamanhos e offsets precisam caber em 32 bits
+    private static final long LIMITE_ZIP32 = 0xFFFFFFFFL;
+
+    private static final int ASSINATURA_LOCAL = 0x04034b50;
+    private static final int ASSINATURA_DESCRITOR = 0x08074b50;
+    private static final int ASSINATURA_CENTRAL = 0x02014b50;
+    private static final int ASSINATURA_FIM = 0x06054b50;
+    // Bit 3: tamanhos e CRC no descritor de dados; bit 11: nome em UTF-8
+    private static final int FLAGS = 0x0808;
+    private static final int VERSAO = 20;
+    private static final int METODO_DEFLATE = 8;
+
+    private record Entrada(byte[] nome, int horaDos, int dataDos, long crc, long comprimido, long original, long offset) {}
+
+    private final File destino;
+    private final File temporario;
+    private final OutputStream saida;
+    private final int nivel;
+    private final int threads;
+    private final ExecutorService pool;
+    private final List<Entrada> entradas = new ArrayList<>();
+    private long offset = 0;
+    private boolean entradaAberta = false;
+    private boolean concluido = false;
+
+    public EscritorZipParalelo(File destino, int nivel, int threads) throws IOException {
+        if (nivel < Deflater.NO_COMPRESSION || nivel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Nivel de compressao invalido: " + nivel + " (esperado 0 a 9)");
+        }
+        this.destino = destino;
+        this.temporario = new File(destino.getPath() + ".tmp");
+        this.saida = new BufferedOutputStream(new FileOutputStream(temporario), 1 << 16);
+        this.nivel = nivel;
+        this.threads = Math.max(1, threads);
+        this.pool = Executors.newFixedThreadPool(this.threads, tarefa -> {
+            Thread thread = new Thread(tarefa, "compactacao-zip");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Abre a proxima entrada; o conteudo e comprimido a medida que chega e a entrada termina no close()
+    @Override
+    public OutputStream abrir(String nome) throws IOException {
+        if (concluido) throw new IOException("ZIP ja concluido: " + destino);
+        if (entradaAberta) throw new IOException("Entrada anterior ainda aberta; entradas de ZIP sao gravadas em sequencia");
+        entradaAberta = true;
+        return new StreamEntrada(nome);
+    }
+
+    // Grava um arquivo existente como entrada do ZIP
+    public void adicionarArquivo(File arquivo) throws IOException {
+        try (OutputStream entrada = abrir(arquivo.getName())) {
+            Files.copy(arquivo.toPath(), entrada);
+        }
+    }
+
+    // Diretorio central e fim do ZIP; o arquivo passa a existir com o nome final
+    public void concluir() throws IOException {
+        if (entradaAberta) throw new IOException("Entrada ainda aberta ao concluir o ZIP");
+        long inicioCentral = offset;
+        for (Entrada entrada : entradas) {
+            ByteBuffer central = cabecalho(46 + entrada.nome.length);
+            central.putInt(ASSINATURA_CENTRAL)
+                    .putShort((short) VERSAO)
+                    .putShort((short) VERSAO)
+                    .putShort((short) FLAGS)
+                    .putShort((short) METODO_DEFLATE)
+                    .putShort((short) entrada.horaDos)
+                    .putShort((short) entrada.dataDos)
+                    .putInt((int) entrada.crc)
+                    .putInt((int) entrada.comprimido)
+                    .putInt((int) entrada.original)
+                    .putShort((short) entrada.nome.length)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putInt(0)
+                    .putInt((int) entrada.offset)
+                    .put(entrada.nome);
+            escrever(central.array());
+        }
+        long tamanhoCentral = offset - inicioCentral;
+        if (entradas.size() > 0xFFFF) throw new IOException("Entradas demais para ZIP sem ZIP64: " + entradas.size());
+
+        ByteBuffer fim = cabecalho(22);
+        fim.putInt(ASSINATURA_FIM)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) entradas.size())
+                .putShort((short) entradas.size())
+                .putInt((int) tamanhoCentral)
+                .putInt((int) inicioCentral)
+                .putShort((short) 0);
+        escrever(fim.array());
+
+        saida.close();
+        Files.move(temporario.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        concluido = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+        if (!concluido) {
+            saida.close();
+            Files.deleteIfExists(temporario.toPath());
+        }
+    }
+
+    private class StreamEntrada extends OutputStream {
+        private final byte[] nome;
+        private final int horaDos;
+        private final int dataDos;
+        private final long offsetLocal;
+        private final Metricas.Medicao medicao;
+        private final CRC32 crc = new CRC32();
+        // Blocos em compressao, na ordem da entrada; limitado para a memoria nao crescer com a entrada
+        private final Deque<Future<byte[]>> emVoo = new ArrayDeque<>();
+        private final int maxEmVoo = threads * 2;
+        private byte[] bloco = new byte[TAMANHO_BLOCO];
+        private int preenchido = 0;
+        private byte[] dicionario = null;
+        private long original = 0;
+        private long comprimido = 0;
+        private boolean fechada = false;
+
+        StreamEntrada(String nomeEntrada) throws IOException {
+            this.nome = nomeEntrada.getBytes(StandardCharsets.UTF_8);
+            LocalDateTime agora = LocalDateTime.now();
+            this.horaDos = (agora.getHour() << 11) | (agora.getMinute() << 5) | (agora.getSecond() / 2);
+            this.dataDos = ((Math.max(agora.getYear(), 1980) - 1980) << 9) | (agora.getMonthValue() << 5) | agora.getDayOfMonth();
+            this.offsetLocal = offset;
+            this.medicao = Metricas.iniciar("compactacao", nomeEntrada);
+
+            ByteBuffer local = cabecalho(30 + nome.length);
+            local.putInt(ASSINATURA_LOCAL)
+                    .putShort((short) VERSAO)
+                    .putShort((short) FLAGS)
+                    .putShort((short) METODO_DEFLATE)
+                    .putShort((short) horaDos)
+                    .putShort((short) dataDos)
+                    .putInt(0)
+                    .putInt(0)
+                    .putInt(0)
+                    .putShort((short) nome.length)
+                    .putShort((short) 0)
+                    .put(nome);
+            escrever(local.array());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (preenchido == bloco.length) enviarBloco(false);
+            bloco[preenchido++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] dados, int inicio, int tamanho) throws IOException {
+            while (tamanho > 0) {
+                if (preenchido == bloco.length) enviarBloco(false);
+                int copiar = Math.min(tamanho, bloco.length - preenchido);
+                System.arraycopy(dados, inicio, bloco, preenchido, copiar);
+                preenchido += copiar;
+                inicio += copiar;
+                tamanho -= copiar;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fechada) return;
+            fechada = true;
+            try {
+                enviarBloco(true);
+                while (!emVoo.isEmpty()) gravarProximo();
+
+                if (original > LIMITE_ZIP32 || comprimido > LIMITE_ZIP32 || offsetLocal > LIMITE_ZIP32) {
+                    throw new IOException("Entrada grande demais para ZIP sem ZIP64: " + new String(nome, StandardCharsets.UTF_8));
+                }
+                ByteBuffer descritor = cabecalho(16);
+                descritor.putInt(ASSINATURA_DESCRITOR)
+                        .putInt((int) crc.getValue())
+                        .putInt((int) comprimido)
+                        .putInt((int) original);
+                escrever(descritor.array());
+
+                entradas.add(new Entrada(nome, horaDos, dataDos, crc.getValue(), comprimido, original, offsetLocal));
+                medicao.bytesLidos(original).bytesGravados(comprimido);
+            } finally {
+                for (Future<byte[]> pendente : emVoo) pendente.cancel(true);
+                medicao.close();
+                entradaAberta = false;
+            }
+        }
+
+        // O bloco atual vai para o pool; o dicionario do proximo e a cauda deste
+        private void enviarBloco(boolean ultimo) throws IOException {
+            byte[] dados = bloco;
+            int tamanho = preenchido;
+            byte[] dicionarioBloco = dicionario;
+            crc.update(dados, 0, tamanho);
+            original += tamanho;
+
+            if (!ultimo) {
+                dicionario = Arrays.copyOfRange(dados, tamanho - TAMANHO_DICIONARIO, tamanho);
+                bloco = new byte[TAMANHO_BLOCO];
+                preenchido = 0;
+            }
+
+            while (emVoo.size() >= maxEmVoo) gravarProximo();
+            emVoo.addLast(pool.submit(() -> comprimirBloco(dados, tamanho, dicionarioBloco, ultimo)));
+        }
+
+        private void gravarProximo() throws IOException {
+            byte[] comprimidoBloco;
+            try {
+                comprimidoBloco = emVoo.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Compactacao interrompida");
+            } catch (ExecutionException e) {
+                throw new IOException("Erro ao comprimir bloco do ZIP", e.getCause());
+            }
+            escrever(comprimidoBloco);
+            comprimido += comprimidoBloco.length;
+        }
+    }
+
+    private byte[] comprimirBloco(byte[] dados, int tamanho, byte[] dicionario, boolean ultimo) {
+        Deflater deflater = new Deflater(nivel, true);
+        try {
+            if (dicionario != null) deflater.setDictionary(dicionario);
+            deflater.setInput(dados, 0, tamanho);
+            if (ultimo) deflater.finish();
+
+            byte[] resultado = new byte[tamanho + (tamanho >> 3) + 64];
+            int gravados = 0;
+            while (true) {
+                if (gravados == resultado.length) resultado = Arrays.copyOf(resultado, resultado.length * 2);
+                int espaco = resultado.length - gravados;
+                int n = ultimo
+                        ? deflater.deflate(resultado, gravados, espaco)
+                        : deflater.deflate(resultado, gravados, espaco, Deflater.SYNC_FLUSH);
+                gravados += n;
+                // SYNC_FLUSH terminou quando sobrou espaco no buffer; FINISH quando o deflater declara fim
+                if (ultimo ? deflater.finished() : n < espaco) break;
+            }
+            return Arrays.copyOf(resultado, gravados);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void escrever(byte[] dados) throws IOException {
+        saida.write(dados);
+        offset += dados.length;
+    }
+
+    private static ByteBuffer cabecalho(int tamanho) {
+        return ByteBuffer.allocate(tamanho).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,268 @@
+package com.intuitivecare.ans;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// Executor de estagios encadeados (ex.: download -> descompactacao/filtro -> enriquecimento/escrita). Cada estagio
+// roda nas suas threads e entrega itens (em geral lotes de registros) ao seguinte por uma Fila limitada: quando um
+// estagio mais lento nao consome, put() bloqueia e o estagio anterior espera (backpressure), em vez de crescer o
+// heap. Estagios com varias threads mantem a ordem de saida igual a de entrada. Cada fila registra profundidade e
+// tempo de espera dos dois lados (Metricas.registrarFila): fila cheia aponta gargalo depois dela, fila vazia antes.
+// A primeira falha de qualquer estagio cancela os demais e e relancada para quem consome o ultimo estagio.
+public class ExecutorEstagios implements AutoCloseable {
+
+    // Primeiro estagio: gera os itens (ex.: ZIPs conforme os downloads terminam)
+    public interface Origem<S> {
+        void produzir(Emissor<S> saida) throws Exception;
+    }
+
+    // Estagio intermediario: transforma cada item de entrada em zero ou mais itens de saida
+    public interface Estagio<E, S> {
+        void processar(E item, Emissor<S> saida) throws Exception;
+    }
+
+    public interface Emissor<S> {
+        void emitir(S item) throws InterruptedException;
+    }
+
+    private static final Object FIM = new Object();
+    // Marca, entre as filas proprias de um estagio paralelo, que a entrada acabou
+    private static final BlockingQueue<Object> SEM_MAIS_ITENS = new ArrayBlockingQueue<>(1);
+    private static final long ESPERA_MAXIMA_MS = 50;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<ExecutorService> pools = new ArrayList<>();
+    private final List<Fila<?>> filas = new ArrayList<>();
+    private final AtomicReference<Throwable> falha = new AtomicReference<>();
+    private volatile boolean cancelado = false;
+
+    // Fila limitada entre dois estagios; termina com um marcador de fim
+    public final class Fila<T> {
+        private final String nome;
+        private final int capacidade;
+        private final BlockingQueue<Object> itens;
+        private final AtomicLong colocados = new AtomicLong();
+        private final AtomicLong somaProfundidade = new AtomicLong();
+        private final AtomicLong profundidadeMaxima = new AtomicLong();
+        private final AtomicLong esperaProdutor = new AtomicLong();
+        private final AtomicLong esperaConsumidor = new AtomicLong();
+
+        private Fila(String nome, int capacidade) {
+            this.nome = nome;
+            this.capacidade = capacidade;
+            this.itens = new ArrayBlockingQueue<>(capacidade);
+        }
+
+        void colocar(Object item) throws InterruptedException {
+            long inicio = System.nanoTime();
+            // Profundidade vista por quem produz, antes de colocar; o marcador de fim nao conta
+            long profundidade = itens.size();
+            while (!itens.offer(item, ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS)) {
+                verificarCancelamento();
+            }
+            if (item == FIM) return;
+            esperaProdutor.addAndGet(System.nanoTime() - inicio);
+            somaProfundidade.addAndGet(profundidade);
+            profundidadeMaxima.accumulateAndGet(profundidade, Math::max);
+            colocados.incrementAndGet();
+        }
+
+        @SuppressWarnings("unchecked")
+        T retirar() throws InterruptedException {
+            long inicio = System.nanoTime();
+            Object item;
+            while ((item = itens.poll(ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS)) == null) {
+                verificarCancelamento();
+            }
+            esperaConsumidor.addAndGet(System.nanoTime() - inicio);
+            return item == FIM ? null : (T) item;
+        }
+
+        private void registrarMetricas() {
+            long total = colocados.get();
+            Metricas.registrarFila(new Metricas.ResultadoFila(nome, capacidade, total,
+                    total == 0 ? 0.0 : (double) somaProfundidade.get() / total, profundidadeMaxima.get(),
+                    esperaProdutor.get(), esperaConsumidor.get()));
+        }
+    }
+
+    // Inicia o primeiro estagio numa thread propria
+    public <S> Fila<S> iniciar(String nome, int capacidade, Origem<S> origem) {
+        Fila<S> saida = novaFila(nome, capacidade);
+        iniciarThread(nome, () -> {
+            try (Metricas.Medicao medicao = Metricas.iniciar("estagio", nome)) {
+                origem.produzir(item -> {
+                    saida.colocar(Objects.requireNonNull(item));
+                    medicao.linhasSaida(1);
+                });
+            }
+            saida.colocar(FIM);
+        });
+        return saida;
+    }
+
+    // Encadeia um estagio com "paralelismo" threads; a saida sai na ordem dos itens de entrada
+    public <E, S> Fila<S> encadear(String nome, Fila<E> entrada, int paralelismo, int capacidade, Estagio<E, S> estagio) {
+        Fila<S> saida = novaFila(nome, capacidade);
+        Metricas.Medicao medicao = Metricas.iniciar("estagio", nome);
+
+        if (paralelismo <= 1) {
+            iniciarThread(nome, () -> {
+                try (medicao) {
+                    E item;
+                    while ((item = entrada.retirar()) != null) {
+                        medicao.linhasEntrada(1);
+                        estagio.processar(item, s -> {
+                            saida.colocar(Objects.requireNonNull(s));
+                            medicao.linhasSaida(1);
+                        });
+                    }
+                }
+                saida.colocar(FIM);
+            });
+            return saida;
+        }
+
+        // Cada item de entrada ganha uma fila propria, processada no pool; o ordenador esvazia essas filas na
+        // ordem de chegada. "emAndamento" limita os itens em voo, e cada fila propria e limitada como a saida.
+        ExecutorService pool = Executors.newFixedThreadPool(paralelismo, tarefa -> {
+            Thread thread = new Thread(tarefa, nome);
+            thread.setDaemon(true);
+            return thread;
+        });
+        pools.add(pool);
+        BlockingQueue<BlockingQueue<Object>> emAndamento = new ArrayBlockingQueue<>(paralelismo);
+
+        iniciarThread(nome + "-distribuidor", () -> {
+            E item;
+            while ((item = entrada.retirar()) != null) {
+                medicao.linhasEntrada(1);
+                BlockingQueue<Object> propria = new ArrayBlockingQueue<>(saida.capacidade);
+                while (!emAndamento.offer(propria, ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS)) verificarCancelamento();
+                E atual = item;
+                pool.submit(() -> {
+                    try {
+                        estagio.processar(atual, s -> {
+                            while (!propria.offer(Objects.requireNonNull(s), ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS)) {
+                                verificarCancelamento();
+                            }
+                        });
+                        while (!propria.offer(FIM, ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS)) verificarCancelamento();
+                    } catch (Throwable e) {
+                        falhar(e);
+                    }
+                    return null;
+                });
+            }
+            while (!emAndamento.offer(SEM_MAIS_ITENS, ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS)) verificarCancelamento();
+        });
+
+        iniciarThread(nome + "-ordenador", () -> {
+            try (medicao) {
+                while (true) {
+                    BlockingQueue<Object> propria;
+                    while ((propria = emAndamento.poll(ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS)) == null) verificarCancelamento();
+                    if (propria == SEM_MAIS_ITENS) break;
+                    Object s;
+                    while (true) {
+                        while ((s = propria.poll(ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS)) == null) verificarCancelamento();
+                        if (s == FIM) break;
+                        saida.colocar(s);
+                        medicao.linhasSaida(1);
+                    }
+                }
+            }
+            saida.colocar(FIM);
+        });
+        return saida;
+    }
+
+    // Consome o ultimo estagio na thread atual; relanca a falha de qualquer estagio
+    public <T> void consumir(Fila<T> entrada, Consumer<T> consumidor) {
+        try {
+            T item;
+            while ((item = entrada.retirar()) != null) consumidor.accept(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            falhar(e);
+        } catch (CancelamentoEstagio e) {
+            // Outro estagio falhou: a causa e relancada abaixo
+        } catch (RuntimeException | Error e) {
+            falhar(e);
+            throw e;
+        }
+        Throwable erro = falha.get();
+        if (erro != null) throw new FalhaEstagio(erro);
+    }
+
+    // Falha de um estagio, relancada por consumir()
+    public static class FalhaEstagio extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        FalhaEstagio(Throwable causa) {
+            super("Falha no pipeline de estagios: " + causa, causa);
+        }
+    }
+
+    @Override
+    public void close() {
+        cancelado = true;
+        for (ExecutorService pool : pools) pool.shutdownNow();
+        for (Thread thread : threads) thread.interrupt();
+        for (Thread thread : threads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Fila<?> fila : filas) fila.registrarMetricas();
+    }
+
+    private <T> Fila<T> novaFila(String nome, int capacidade) {
+        Fila<T> fila = new Fila<>(nome, Math.max(1, capacidade));
+        filas.add(fila);
+        return fila;
+    }
+
+    private interface Corpo {
+        void executar() throws Exception;
+    }
+
+    private void iniciarThread(String nome, Corpo corpo) {
+        Thread thread = new Thread(() -> {
+            try {
+                corpo.executar();
+            } catch (Throwable e) {
+                falhar(e);
+            }
+        }, nome);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void falhar(Throwable e) {
+        if (e instanceof CancelamentoEstagio) return;
+        if (falha.compareAndSet(null, e)) cancelado = true;
+    }
+
+    private void verificarCancelamento() {
+        if (cancelado) throw new CancelamentoEstagio();
+    }
+
+    // Interrompe um estagio depois que outro falhou; nao e a causa, entao nao e registrada
+    private static class CancelamentoEstagio extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CancelamentoEstagio() {
+            super(null, null, false, false);
+        }
+    }
+}
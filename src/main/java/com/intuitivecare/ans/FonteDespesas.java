@@ -0,0 +1,13 @@
+package com.intuitivecare.ans;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+// Origem das despesas filtradas consumidas pelo pipeline (leitura sequencial, paralela etc.)
+@FunctionalInterface
+public interface FonteDespesas {
+
+    // Entrega as despesas ao consumidor, em ordem, e retorna quantas foram entregues; um arquivo ilegivel e
+    // falha (IOException), nunca uma leitura parcial tratada como completa
+    int produzir(Consumer<ProcessadorCSV.DadosDespesa> consumidor) throws IOException;
+}
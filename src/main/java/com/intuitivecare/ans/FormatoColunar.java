@@ -0,0 +1,274 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Formato binario colunar usado apenas entre os estagios internos (consolidado -> auditoria/enriquecimento -> agregacao).
+// Colunas de texto sao codificadas por dicionario (ids int) e valores ficam em centavos (long de largura fixa).
+// O arquivo e mapeado em memoria e cada estagio decodifica so as colunas que usa.
+//
+// Layout: "ANSC" | versao:int | linhas:int | colunas:int | diretorio | dados
+//   diretorio, por coluna: nome (UTF) | tipo:byte | offset:long | tamanho:long
+//   TEXTO:   entradas:int | (bytes:int | UTF-8)* | alinhamento a 4 | ids:int[linhas]
+//   VALOR:   alinhamento a 8 | centavos:long[linhas]
+public final class FormatoColunar {
+
+    public static final String EXTENSAO = ".ansc";
+    public static final String[] TEXTOS_CONSOLIDADO = {"DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO"};
+    public static final String[] TEXTOS_ENRIQUECIDO = {"DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO", "CNPJ", "RAZAO_SOCIAL", "MODALIDADE", "UF", "CNPJ_VALIDO"};
+    public static final String COLUNA_VALOR = "VL_SALDO_FINAL";
+
+    private static final int MAGICO = 0x414E5343;
+    private static final int VERSAO = 1;
+    private static final byte TIPO_TEXTO = 1;
+    private static final byte TIPO_VALOR = 2;
+
+    private FormatoColunar() {
+    }
+
+    public static boolean ehColunar(String caminho) {
+        return caminho.endsWith(EXTENSAO);
+    }
+
+    // Arquivo colunar irmao de um CSV final (ex.: consolidado_enriquecido.csv -> consolidado_enriquecido.ansc)
+    public static String irmaoColunar(String caminhoCsv) {
+        int ponto = caminhoCsv.lastIndexOf('.');
+        return (ponto > 0 ? caminhoCsv.substring(0, ponto) : caminhoCsv) + EXTENSAO;
+    }
+
+    public static class Escritor {
+        private final String[] nomesTexto;
+        private final String nomeValor;
+        private final List<Map<String, Integer>> dicionarios = new ArrayList<>();
+        private final int[][] ids;
+        private long[] valores = new long[1024];
+        private int linhas = 0;
+
+        public Escritor(String[] nomesTexto, String nomeValor) {
+            this.nomesTexto = nomesTexto;
+            this.nomeValor = nomeValor;
+            this.ids = new int[nomesTexto.length][1024];
+            for (int i = 0; i < nomesTexto.length; i++) dicionarios.add(new HashMap<>());
+        }
+
+        public void adicionarLinha(String[] textos, long centavos) {
+            if (linhas == valores.length) {
+                valores = Arrays.copyOf(valores, linhas * 2);
+                for (int c = 0; c < ids.length; c++) ids[c] = Arrays.copyOf(ids[c], linhas * 2);
+            }
+            for (int c = 0; c < nomesTexto.length; c++) {
+                Map<String, Integer> dicionario = dicionarios.get(c);
+                Integer id = dicionario.get(textos[c]);
+                if (id == null) {
+                    id = dicionario.size();
+                    dicionario.put(textos[c], id);
+                }
+                ids[c][linhas] = id;
+            }
+            valores[linhas] = centavos;
+            linhas++;
+        }
+
+        public int linhas() {
+            return linhas;
+        }
+
+        public void gravar(File destino) throws IOException {
+            List<byte[]> segmentos = new ArrayList<>();
+            for (int c = 0; c < nomesTexto.length; c++) {
+                segmentos.add(segmentoTexto(dicionarios.get(c), ids[c]));
+            }
+            ByteBuffer segmentoValor = ByteBuffer.allocate(linhas * 8);
+            segmentoValor.asLongBuffer().put(valores, 0, linhas);
+            segmentos.add(segmentoValor.array());
+
+            String[] nomes = Arrays.copyOf(nomesTexto, nomesTexto.length + 1);
+            nomes[nomesTexto.length] = nomeValor;
+
+            ByteArrayOutputStream bytesDiretorio = new ByteArrayOutputStream();
+            DataOutputStream diretorio = new DataOutputStream(bytesDiretorio);
+            for (String nome : nomes) {
+                diretorio.writeUTF(nome);
+                diretorio.writeByte(0);
+                diretorio.writeLong(0);
+                diretorio.writeLong(0);
+            }
+            // Os dados comecam alinhados a 8 bytes para que os ids e valores possam ser lidos direto do mapeamento
+            long offset = alinhar(16 + bytesDiretorio.size(), 8);
+
+            File temporario = new File(destino.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporario), 1 << 16))) {
+                out.writeInt(MAGICO);
+                out.writeInt(VERSAO);
+                out.writeInt(linhas);
+                out.writeInt(nomes.length);
+
+                long[] offsets = new long[nomes.length];
+                long posicao = offset;
+                for (int c = 0; c < nomes.length; c++) {
+                    offsets[c] = posicao;
+                    posicao = alinhar(posicao + segmentos.get(c).length, 8);
+                }
+                for (int c = 0; c < nomes.length; c++) {
+                    out.writeUTF(nomes[c]);
+                    out.writeByte(c < nomesTexto.length ? TIPO_TEXTO : TIPO_VALOR);
+                    out.writeLong(offsets[c]);
+                    out.writeLong(segmentos.get(c).length);
+                }
+                preencher(out, offset - out.size());
+                for (int c = 0; c < nomes.length; c++) {
+                    out.write(segmentos.get(c));
+                    long fim = offsets[c] + segmentos.get(c).length;
+                    preencher(out, alinhar(fim, 8) - fim);
+                }
+            }
+            Files.move(temporario.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private byte[] segmentoTexto(Map<String, Integer> dicionario, int[] idsColuna) throws IOException {
+            String[] entradas = new String[dicionario.size()];
+            dicionario.forEach((texto, id) -> entradas[id] = texto);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(entradas.length);
+            for (String entrada : entradas) {
+                byte[] utf8 = entrada.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+            preencher(out, alinhar(out.size(), 4) - out.size());
+
+            ByteBuffer idsBytes = ByteBuffer.allocate(linhas * 4);
+            idsBytes.asIntBuffer().put(idsColuna, 0, linhas);
+            out.write(idsBytes.array());
+            return bytes.toByteArray();
+        }
+    }
+
+    public static class Leitor {
+        private final ByteBuffer dados;
+        private final int linhas;
+        private final Map<String, long[]> diretorio = new LinkedHashMap<>();
+        private final Map<String, Byte> tipos = new HashMap<>();
+
+        private Leitor(ByteBuffer dados) throws IOException {
+            this.dados = dados;
+            if (dados.getInt(0) != MAGICO || dados.getInt(4) != VERSAO) {
+                throw new IOException("Arquivo colunar invalido ou de versao incompativel");
+            }
+            this.linhas = dados.getInt(8);
+            int colunas = dados.getInt(12);
+
+            ByteBuffer cabecalho = dados.duplicate().position(16);
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(cabecalho));
+            for (int c = 0; c < colunas; c++) {
+                String nome = in.readUTF();
+                tipos.put(nome, in.readByte());
+                diretorio.put(nome, new long[]{in.readLong(), in.readLong()});
+            }
+        }
+
+        public static Leitor abrir(File arquivo) throws IOException {
+            try (FileChannel canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ)) {
+                return new Leitor(canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size()));
+            }
+        }
+
+        public int linhas() {
+            return linhas;
+        }
+
+        public ColunaTexto texto(String nome) throws IOException {
+            ByteBuffer segmento = segmento(nome, TIPO_TEXTO);
+            int entradas = segmento.getInt(0);
+            String[] dicionario = new String[entradas];
+            int posicao = 4;
+            for (int i = 0; i < entradas; i++) {
+                int tamanho = segmento.getInt(posicao);
+                byte[] utf8 = new byte[tamanho];
+                segmento.get(posicao + 4, utf8);
+                dicionario[i] = new String(utf8, StandardCharsets.UTF_8);
+                posicao += 4 + tamanho;
+            }
+            posicao = (int) alinhar(posicao, 4);
+            IntBuffer ids = segmento.duplicate().position(posicao).slice().asIntBuffer();
+            return new ColunaTexto(dicionario, ids);
+        }
+
+        public ColunaValor valor(String nome) throws IOException {
+            return new ColunaValor(segmento(nome, TIPO_VALOR).asLongBuffer());
+        }
+
+        private ByteBuffer segmento(String nome, byte tipoEsperado) throws IOException {
+            long[] entrada = diretorio.get(nome);
+            if (entrada == null || tipos.get(nome) != tipoEsperado) {
+                throw new IOException("Coluna ausente no arquivo colunar: " + nome);
+            }
+            return dados.duplicate().position((int) entrada[0]).limit((int) (entrada[0] + entrada[1])).slice();
+        }
+    }
+
+    public static class ColunaTexto {
+        private final String[] dicionario;
+        private final IntBuffer ids;
+
+        ColunaTexto(String[] dicionario, IntBuffer ids) {
+            this.dicionario = dicionario;
+            this.ids = ids;
+        }
+
+        public int id(int linha) {
+            return ids.get(linha);
+        }
+
+        public String texto(int linha) {
+            return dicionario[ids.get(linha)];
+        }
+
+        public String[] dicionario() {
+            return dicionario;
+        }
+    }
+
+    public static class ColunaValor {
+        private final LongBuffer centavos;
+
+        ColunaValor(LongBuffer centavos) {
+            this.centavos = centavos;
+        }
+
+        public long centavos(int linha) {
+            return centavos.get(linha);
+        }
+    }
+
+    private static long alinhar(long posicao, int alinhamento) {
+        return (posicao + alinhamento - 1) / alinhamento * alinhamento;
+    }
+
+    private static void preencher(DataOutputStream out, long bytes) throws IOException {
+        for (long i = 0; i < bytes; i++) out.writeByte(0);
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+    }
+}
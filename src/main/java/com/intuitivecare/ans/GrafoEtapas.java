@@ -0,0 +1,157 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Pipeline como um grafo de etapas (DAG). Cada etapa declara as entradas (arquivos, pelo conteudo), a
+// configuracao que afeta o resultado, as etapas de que depende e os nomes das saidas, e grava as saidas numa
+// pasta propria do CacheEtapas. A chave da etapa e o hash disso tudo: se ja existe no cache, a etapa e pulada e
+// as saidas sao reaproveitadas. Cada etapa concluida fica no cache na hora, entao uma execucao que falhou
+// retoma, na proxima, da primeira etapa que nao terminou.
+// Uma etapa so pode depender de etapas declaradas antes dela: a ordem de declaracao ja e uma ordem topologica
+// e o grafo nao tem ciclos. As etapas rodam nessa ordem; o paralelismo fica dentro de cada uma.
+public class GrafoEtapas {
+
+    // Muda quando o formato das saidas de alguma etapa muda, invalidando o cache inteiro
+    private static final int VERSAO = 1;
+
+    public interface Acao {
+        // Grava as saidas declaradas em "pasta"; as saidas das dependencias sao lidas por Etapa.arquivo()
+        void executar(File pasta) throws Exception;
+    }
+
+    public final class Etapa {
+        private final String nome;
+        private final List<File> entradas = new ArrayList<>();
+        private final List<Etapa> dependencias = new ArrayList<>();
+        private final TreeMap<String, String> configuracao = new TreeMap<>();
+        private final List<String> saidas = new ArrayList<>();
+        private Acao acao;
+        private String chave;
+
+        private Etapa(String nome) {
+            this.nome = nome;
+        }
+
+        public Etapa entrada(File arquivo) {
+            entradas.add(arquivo);
+            return this;
+        }
+
+        public Etapa depende(Etapa outra) {
+            if (!etapas.contains(outra) || outra == this) {
+                throw new IllegalArgumentException(nome + " so pode depender de etapas declaradas antes: " + outra.nome);
+            }
+            dependencias.add(outra);
+            return this;
+        }
+
+        public Etapa configuracao(String nome, String valor) {
+            configuracao.put(nome, valor == null ? "" : valor);
+            return this;
+        }
+
+        public Etapa produz(String nome) {
+            saidas.add(nome);
+            return this;
+        }
+
+        public Etapa acao(Acao acao) {
+            this.acao = acao;
+            return this;
+        }
+
+        public String nome() {
+            return nome;
+        }
+
+        // Arquivo de uma saida declarada; so existe depois que a etapa rodou ou foi reaproveitada
+        public File arquivo(String nome) {
+            if (!saidas.contains(nome)) throw new IllegalArgumentException("Saida nao declarada em " + this.nome + ": " + nome);
+            if (chave == null) throw new IllegalStateException("Etapa ainda nao executada: " + this.nome);
+            return new File(cache.pasta(chave), nome);
+        }
+    }
+
+    // Falha de uma etapa; as anteriores ja estao no cache e uma nova execucao retoma a partir dela
+    public static class FalhaEtapa extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FalhaEtapa(String mensagem, Throwable causa) {
+            super(mensagem, causa);
+        }
+    }
+
+    private final CacheEtapas cache;
+    private final List<Etapa> etapas = new ArrayList<>();
+
+    public GrafoEtapas(CacheEtapas cache) {
+        this.cache = cache;
+    }
+
+    public Etapa etapa(String nome) {
+        Etapa etapa = new Etapa(nome);
+        etapas.add(etapa);
+        return etapa;
+    }
+
+    // Executa (ou reaproveita) todas as etapas; retorna as chaves usadas
+    public Set<String> executar() throws IOException {
+        Set<String> usadas = new HashSet<>();
+        int reaproveitadas = 0;
+        for (int i = 0; i < etapas.size(); i++) {
+            Etapa etapa = etapas.get(i);
+            etapa.chave = chave(etapa);
+            usadas.add(etapa.chave);
+
+            if (cache.contem(etapa.chave)) {
+                cache.tocar(etapa.chave);
+                reaproveitadas++;
+                System.out.println("Etapa em dia, reaproveitada do cache: " + etapa.nome);
+                continue;
+            }
+
+            System.out.println("Executando etapa: " + etapa.nome);
+            File parcial = cache.novaPastaParcial(etapa.chave);
+            try (Metricas.Medicao medicao = Metricas.iniciar("etapa", etapa.nome)) {
+                etapa.acao.executar(parcial);
+                long bytes = 0;
+                for (String saida : etapa.saidas) {
+                    File arquivo = new File(parcial, saida);
+                    if (!arquivo.isFile()) throw new IOException("Saida declarada nao gerada: " + saida);
+                    bytes += arquivo.length();
+                }
+                medicao.bytesGravados(bytes);
+            } catch (Exception e) {
+                CacheEtapas.apagar(parcial);
+                throw new FalhaEtapa("Falha na etapa " + etapa.nome + " (" + i + " de " + etapas.size()
+                        + " etapas concluidas no cache; execute de novo para retomar): " + e, e);
+            }
+            cache.concluir(parcial, etapa.chave);
+        }
+        System.out.println("Etapas: " + etapas.size() + " no grafo, " + reaproveitadas + " reaproveitadas do cache");
+        return usadas;
+    }
+
+    private String chave(Etapa etapa) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder descricao = new StringBuilder();
+        descricao.append("versao=").append(VERSAO).append('\n');
+        descricao.append("etapa=").append(etapa.nome).append('\n');
+        for (Map.Entry<String, String> item : etapa.configuracao.entrySet()) {
+            descricao.append("config.").append(item.getKey()).append('=').append(item.getValue()).append('\n');
+        }
+        for (File entrada : etapa.entradas) descricao.append("entrada=").append(cache.hashArquivo(entrada)).append('\n');
+        for (Etapa dependencia : etapa.dependencias) descricao.append("depende=").append(dependencia.chave).append('\n');
+        for (String saida : etapa.saidas) descricao.append("saida=").append(saida).append('\n');
+        return HexFormat.of().formatHex(digest.digest(descricao.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+}
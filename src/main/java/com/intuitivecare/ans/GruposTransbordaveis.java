@@ -0,0 +1,183 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.util.*;
+
+// Mapa chave -> acumulador limitado pelo OrcamentoMemoria. Os grupos ficam num HashMap enquanto cabem no
+// orcamento; quando ele acaba, os grupos sao ordenados pela chave e gravados numa particao em disco, e o mapa
+// recomeca vazio. Na leitura, as particoes sao intercaladas pela chave e os parciais de um mesmo grupo mesclados,
+// entao o resultado e o mesmo de um agrupamento todo em memoria. Base do Agrupamento e do CuboDespesas.
+public class GruposTransbordaveis<K, A> {
+
+    // Como criar, mesclar, ordenar e serializar chaves e acumuladores de um tipo de agrupamento
+    public interface Tipo<K, A> {
+        Comparator<K> ordem();
+
+        A novo();
+
+        void mesclar(A destino, A origem);
+
+        void gravarChave(DataOutputStream out, K chave) throws IOException;
+
+        K lerChave(DataInputStream in) throws IOException;
+
+        void gravarAcumulador(DataOutputStream out, A acumulador) throws IOException;
+
+        A lerAcumulador(DataInputStream in) throws IOException;
+
+        // Bytes aproximados do grupo em memoria (chave, entrada do mapa e acumulador)
+        long tamanho(K chave);
+    }
+
+    public interface Visitante<K, A> {
+        void visitar(K chave, A acumulador) throws IOException;
+    }
+
+    private final Tipo<K, A> tipo;
+    private final OrcamentoMemoria orcamento;
+    private final String etapa;
+    private final OrdenacaoExterna.Serializador<Map.Entry<K, A>> serializador;
+    private Map<K, A> mapa = new HashMap<>();
+    private final List<File> particoes = new ArrayList<>();
+    private long reservado = 0;
+    private long usado = 0;
+
+    public GruposTransbordaveis(Tipo<K, A> tipo, OrcamentoMemoria orcamento, String etapa) {
+        this.tipo = tipo;
+        this.orcamento = orcamento;
+        this.etapa = etapa;
+        this.serializador = new OrdenacaoExterna.Serializador<>() {
+            @Override
+            public void gravar(DataOutputStream out, Map.Entry<K, A> grupo) throws IOException {
+                tipo.gravarChave(out, grupo.getKey());
+                tipo.gravarAcumulador(out, grupo.getValue());
+            }
+
+            @Override
+            public Map.Entry<K, A> ler(DataInputStream in) throws IOException {
+                return Map.entry(tipo.lerChave(in), tipo.lerAcumulador(in));
+            }
+
+            @Override
+            public long tamanhoEstimado(Map.Entry<K, A> grupo) {
+                return tipo.tamanho(grupo.getKey());
+            }
+        };
+    }
+
+    public OrcamentoMemoria orcamento() {
+        return orcamento;
+    }
+
+    // Acumulador do grupo, criado (e reservado no orcamento) na primeira vez
+    public A acumulador(K chave) {
+        A acumulador = mapa.get(chave);
+        return acumulador != null ? acumulador : novoGrupo(chave);
+    }
+
+    // Consome "outro": os grupos dele sao mesclados aqui e a memoria e as particoes dele liberadas
+    public void mesclar(GruposTransbordaveis<K, A> outro) {
+        try {
+            outro.percorrerPorChave((chave, acumulador) -> tipo.mesclar(acumulador(chave), acumulador));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Erro ao mesclar agrupamento transbordado", e);
+        } finally {
+            outro.descartar();
+        }
+    }
+
+    public int particoes() {
+        return particoes.size();
+    }
+
+    // Grupos em ordem de chave, como as particoes: cada um precedido de true e o fim marcado com false, para
+    // gravar numa unica intercalacao sem contar os grupos antes
+    public void gravar(DataOutputStream out) throws IOException {
+        percorrerPorChave((chave, acumulador) -> {
+            out.writeBoolean(true);
+            tipo.gravarChave(out, chave);
+            tipo.gravarAcumulador(out, acumulador);
+        });
+        out.writeBoolean(false);
+    }
+
+    // Le grupos gravados por gravar(), mesclando-os aos existentes
+    public void lerEMesclar(DataInputStream in) throws IOException {
+        while (in.readBoolean()) {
+            K chave = tipo.lerChave(in);
+            tipo.mesclar(acumulador(chave), tipo.lerAcumulador(in));
+        }
+    }
+
+    // Devolve a reserva de memoria e apaga as particoes; o agrupamento fica vazio
+    public void descartar() {
+        mapa = new HashMap<>();
+        orcamento.liberar(reservado);
+        reservado = 0;
+        usado = 0;
+        for (File particao : particoes) particao.delete();
+        particoes.clear();
+    }
+
+    // Cada grupo uma vez, em ordem de chave, com os parciais das particoes ja mesclados
+    public void percorrerPorChave(Visitante<K, A> visitante) throws IOException {
+        List<Map.Entry<K, A>> emMemoria = ordenadosPorChave();
+        if (particoes.isEmpty()) {
+            for (Map.Entry<K, A> grupo : emMemoria) visitante.visitar(grupo.getKey(), grupo.getValue());
+            return;
+        }
+
+        GrupoCorrente<K, A> atual = new GrupoCorrente<>();
+        OrdenacaoExterna.intercalar(particoes, emMemoria, Map.Entry.comparingByKey(tipo.ordem()), serializador, orcamento, grupo -> {
+            if (atual.chave != null && atual.chave.equals(grupo.getKey())) {
+                tipo.mesclar(atual.acumulador, grupo.getValue());
+                return;
+            }
+            if (atual.chave != null) visitante.visitar(atual.chave, atual.acumulador);
+            // Copia: os acumuladores em memoria nao podem ser alterados pela leitura
+            atual.chave = grupo.getKey();
+            atual.acumulador = tipo.novo();
+            tipo.mesclar(atual.acumulador, grupo.getValue());
+        });
+        if (atual.chave != null) visitante.visitar(atual.chave, atual.acumulador);
+    }
+
+    private static final class GrupoCorrente<K, A> {
+        private K chave;
+        private A acumulador;
+    }
+
+    private List<Map.Entry<K, A>> ordenadosPorChave() {
+        List<Map.Entry<K, A>> grupos = new ArrayList<>(mapa.entrySet());
+        grupos.sort(Map.Entry.comparingByKey(tipo.ordem()));
+        return grupos;
+    }
+
+    private A novoGrupo(K chave) {
+        long tamanho = tipo.tamanho(chave);
+        if (usado + tamanho > reservado) {
+            long extra = orcamento.reservar(tamanho);
+            if (extra == 0 && usado >= orcamento.bloco()) {
+                transbordar();
+                extra = orcamento.reservar(tamanho);
+            }
+            reservado += extra;
+        }
+        usado += tamanho;
+        A acumulador = tipo.novo();
+        mapa.put(chave, acumulador);
+        return acumulador;
+    }
+
+    private void transbordar() {
+        try {
+            particoes.add(OrdenacaoExterna.gravarParticao(ordenadosPorChave(), serializador, orcamento, etapa));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Erro ao gravar particao do agrupamento", e);
+        }
+        mapa = new HashMap<>();
+        orcamento.liberar(reservado);
+        reservado = 0;
+        usado = 0;
+    }
+}
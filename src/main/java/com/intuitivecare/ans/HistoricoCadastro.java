@@ -0,0 +1,122 @@
+package com.intuitivecare.ans;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Versoes anteriores do cadastro de operadoras numa pasta (--cadastros-historicos), para que despesas antigas
+// usem a UF, a modalidade e a razao social da epoca, e operadoras ja canceladas ainda sejam encontradas.
+// Dois tipos de CSV, no mesmo layout do relatorio_cadop:
+//  - foto do cadastro com a data no nome (ex.: Relatorio_cadop_2023-06-30.csv): vale para as datas depois da
+//    foto anterior ate a sua propria data; o cadastro atual vale depois da ultima foto;
+//  - relatorio de canceladas (tem a coluna Data_Descredenciamento): cada linha vale de Data_Registro_ANS ate o
+//    descredenciamento.
+public class HistoricoCadastro {
+
+    private static final Pattern DATA_NO_NOME = Pattern.compile("(\\d{4})-?(\\d{2})-?(\\d{2})");
+
+    private record Foto(LocalDate data, List<ServicoEnriquecimento.DadosCadastrais> operadoras) {
+    }
+
+    private record Cancelada(ServicoEnriquecimento.DadosCadastrais dados, LocalDate inicio, LocalDate fim) {
+    }
+
+    private final List<Foto> fotos = new ArrayList<>();
+    private final List<Cancelada> canceladas = new ArrayList<>();
+    private final String versao;
+
+    private HistoricoCadastro(String versao) {
+        this.versao = versao;
+    }
+
+    public static HistoricoCadastro ler(File pasta) throws IOException {
+        File[] arquivos = pasta.listFiles((dir, nome) -> nome.toLowerCase(Locale.ROOT).endsWith(".csv"));
+        if (arquivos == null) throw new IOException("Pasta de cadastros historicos nao encontrada: " + pasta);
+        Arrays.sort(arquivos, Comparator.comparing(File::getName));
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (File arquivo : arquivos) {
+            digest.update((arquivo.getName() + ":" + MotorDownload.sha256(arquivo) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        HistoricoCadastro historico = new HistoricoCadastro(HexFormat.of().formatHex(digest.digest()));
+
+        for (File arquivo : arquivos) historico.lerArquivo(arquivo);
+        historico.fotos.sort(Comparator.comparing(Foto::data));
+        System.out.println("Cadastros historicos: " + historico.fotos.size() + " fotos, "
+                + historico.canceladas.size() + " operadoras canceladas");
+        return historico;
+    }
+
+    // Identifica o conteudo da pasta (nomes e SHA-256 dos arquivos), para compor a versao do join
+    public String versao() {
+        return versao;
+    }
+
+    // Indice com o cadastro atual (valido depois da ultima foto) e as versoes historicas
+    public IndiceCadastro indice(Map<String, ServicoEnriquecimento.DadosCadastrais> atual) {
+        IndiceCadastro.Construtor construtor = new IndiceCadastro.Construtor();
+        LocalDate inicio = null;
+        for (Foto foto : fotos) {
+            for (ServicoEnriquecimento.DadosCadastrais dados : foto.operadoras) construtor.adicionar(dados, inicio, foto.data);
+            inicio = foto.data.plusDays(1);
+        }
+        for (ServicoEnriquecimento.DadosCadastrais dados : atual.values()) construtor.adicionar(dados, inicio, null);
+        for (Cancelada cancelada : canceladas) construtor.adicionar(cancelada.dados, cancelada.inicio, cancelada.fim);
+        return construtor.construir();
+    }
+
+    private void lerArquivo(File arquivo) throws IOException {
+        List<ServicoEnriquecimento.DadosCadastrais> operadoras = new ArrayList<>();
+        List<LocalDate[]> datas = new ArrayList<>();
+        boolean[] comDescredenciamento = {false};
+
+        try (Metricas.Medicao medicao = Metricas.iniciar("cadastro-historico", arquivo.getName()).bytesLidos(arquivo.length())) {
+            TokenizadorCSV tokenizador = TokenizadorCSV.mapear(arquivo, StandardCharsets.ISO_8859_1, ';', false);
+            if (!tokenizador.proximaLinha()) return;
+            comDescredenciamento[0] = tokenizador.indicesDe("Data_Descredenciamento")[0] >= 0;
+            ServicoEnriquecimento.lerOperadoras(tokenizador, medicao, (dados, dataRegistro, dataDescredenciamento) -> {
+                operadoras.add(dados);
+                datas.add(new LocalDate[]{lerDataOpcional(dataRegistro), lerDataOpcional(dataDescredenciamento)});
+            });
+            medicao.linhasSaida(operadoras.size());
+        }
+        validarCnpjs(operadoras);
+
+        if (comDescredenciamento[0]) {
+            for (int i = 0; i < operadoras.size(); i++) {
+                canceladas.add(new Cancelada(operadoras.get(i), datas.get(i)[0], datas.get(i)[1]));
+            }
+            return;
+        }
+        Matcher m = DATA_NO_NOME.matcher(arquivo.getName());
+        LocalDate data = m.find() ? IndiceCadastro.lerData(m.group(1) + "-" + m.group(2) + "-" + m.group(3)) : null;
+        if (data == null) {
+            System.err.println("Aviso: cadastro historico sem data no nome, ignorado: " + arquivo.getName());
+            return;
+        }
+        fotos.add(new Foto(data, operadoras));
+    }
+
+    private static LocalDate lerDataOpcional(String texto) {
+        return texto.isEmpty() ? null : IndiceCadastro.lerData(texto);
+    }
+
+    // Mesmo calculo em lote do cadastro atual
+    private static void validarCnpjs(List<ServicoEnriquecimento.DadosCadastrais> operadoras) {
+        String[] cnpjs = new String[operadoras.size()];
+        for (int i = 0; i < cnpjs.length; i++) cnpjs[i] = operadoras.get(i).cnpj();
+        boolean[] validos = ValidadorDados.validarCNPJs(cnpjs);
+        for (int i = 0; i < cnpjs.length; i++) operadoras.set(i, operadoras.get(i).comValidacao(validos[i]));
+    }
+}
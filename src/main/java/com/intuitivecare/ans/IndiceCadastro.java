@@ -0,0 +1,204 @@
+package com.intuitivecare.ans;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Indice do join com o cadastro. REG_ANS e um numero de ate 6 digitos, entao cada versao do cadastro e uma
+// tabela densa DadosCadastrais[] indexada pelo proprio registro: o join faz uma leitura de array por linha, sem
+// hash de String. O indice guarda registros com vigencia (o cadastro atual e, opcionalmente, versoes historicas
+// ou de operadoras canceladas) e cada linha usa o cadastro vigente na sua DATA. As datas-limite das vigencias
+// dividem o tempo em periodos; a tabela de um periodo e montada na primeira DATA que cai nele e reaproveitada.
+// Depois de construido o indice e somente leitura e pode ser compartilhado entre threads; cada thread usa a sua
+// Consulta, que guarda a ultima DATA vista.
+public class IndiceCadastro {
+
+    // REG_ANS com mais digitos que isto nao e tratado como numero (fica no mapa de excecoes)
+    private static final int DIGITOS_REGISTRO = 6;
+
+    // Registro valido entre inicio e fim (inclusive); null = sem limite
+    public record Vigencia(ServicoEnriquecimento.DadosCadastrais dados, LocalDate inicio, LocalDate fim) {
+        boolean contem(LocalDate data) {
+            return (inicio == null || !data.isBefore(inicio)) && (fim == null || !data.isAfter(fim));
+        }
+    }
+
+    private final int tamanhoTabela;
+    // Vigencias por registro numerico, ordenadas pelo inicio
+    private final Vigencia[][] porRegistro;
+    // REG_ANS fora do formato numerico, com a mesma resolucao por data
+    private final Map<String, Vigencia[]> excecoes;
+    // Inicio de cada periodo a partir do segundo; o primeiro comeca sem limite
+    private final LocalDate[] limites;
+    private final AtomicReferenceArray<ServicoEnriquecimento.DadosCadastrais[]> tabelas;
+    private final int operadoras;
+
+    private IndiceCadastro(Map<String, List<Vigencia>> vigencias) {
+        int maior = -1;
+        for (String regAns : vigencias.keySet()) maior = Math.max(maior, registro(regAns));
+        this.tamanhoTabela = maior + 1;
+        this.porRegistro = new Vigencia[tamanhoTabela][];
+        this.excecoes = new HashMap<>();
+
+        TreeSet<LocalDate> datas = new TreeSet<>();
+        for (Map.Entry<String, List<Vigencia>> entrada : vigencias.entrySet()) {
+            Vigencia[] ordenadas = entrada.getValue().stream()
+                    .sorted(Comparator.comparing(Vigencia::inicio, Comparator.nullsFirst(Comparator.naturalOrder())))
+                    .toArray(Vigencia[]::new);
+            for (Vigencia vigencia : ordenadas) {
+                if (vigencia.inicio != null) datas.add(vigencia.inicio);
+                if (vigencia.fim != null) datas.add(vigencia.fim.plusDays(1));
+            }
+            // "012345" e "12345" caem na mesma posicao: o segundo vai para as excecoes
+            int numero = registro(entrada.getKey());
+            if (numero >= 0 && porRegistro[numero] == null) porRegistro[numero] = ordenadas;
+            else excecoes.put(entrada.getKey(), ordenadas);
+        }
+        this.limites = datas.toArray(new LocalDate[0]);
+        this.tabelas = new AtomicReferenceArray<>(limites.length + 1);
+        this.operadoras = vigencias.size();
+    }
+
+    // Cadastro unico, valido para qualquer data
+    public static IndiceCadastro deMapa(Map<String, ServicoEnriquecimento.DadosCadastrais> mapa) {
+        Construtor construtor = new Construtor();
+        for (ServicoEnriquecimento.DadosCadastrais dados : mapa.values()) construtor.adicionar(dados, null, null);
+        return construtor.construir();
+    }
+
+    public static final class Construtor {
+        private final Map<String, List<Vigencia>> vigencias = new HashMap<>();
+
+        public Construtor adicionar(ServicoEnriquecimento.DadosCadastrais dados, LocalDate inicio, LocalDate fim) {
+            vigencias.computeIfAbsent(dados.registroAns(), r -> new ArrayList<>()).add(new Vigencia(dados, inicio, fim));
+            return this;
+        }
+
+        public IndiceCadastro construir() {
+            return new IndiceCadastro(vigencias);
+        }
+    }
+
+    public int operadoras() {
+        return operadoras;
+    }
+
+    public int periodos() {
+        return limites.length + 1;
+    }
+
+    public Consulta consulta() {
+        return new Consulta();
+    }
+
+    // Cursor de uma thread: a tabela da ultima DATA fica guardada, entao linhas seguidas da mesma DATA
+    // (o caso comum: um trimestre por arquivo) nao repetem a busca do periodo
+    public final class Consulta {
+        private String ultimaData;
+        private ServicoEnriquecimento.DadosCadastrais[] tabela;
+        private int periodo;
+
+        public ServicoEnriquecimento.DadosCadastrais buscar(String data, String regAns) {
+            if (data != ultimaData && (data == null || !data.equals(ultimaData))) {
+                periodo = periodoDe(data);
+                tabela = tabela(periodo);
+                ultimaData = data;
+            }
+            return buscarNaTabela(tabela, periodo, regAns);
+        }
+    }
+
+    // Tabela densa do periodo que contem a DATA; DATA nao reconhecida usa o periodo mais recente
+    public ServicoEnriquecimento.DadosCadastrais[] tabelaDaData(String data) {
+        return tabela(periodoDe(data));
+    }
+
+    public int periodoDe(String data) {
+        LocalDate dia = data != null ? lerData(data) : null;
+        if (dia == null) return limites.length;
+        int posicao = Arrays.binarySearch(limites, dia);
+        return posicao >= 0 ? posicao + 1 : -posicao - 1;
+    }
+
+    // Uma leitura de array; o tamanho confere que "012345" nao case com o cadastro de "12345"
+    public ServicoEnriquecimento.DadosCadastrais buscarNaTabela(ServicoEnriquecimento.DadosCadastrais[] tabela, int periodo, String regAns) {
+        int numero = registro(regAns);
+        if (numero >= 0) {
+            if (numero >= tabela.length) return null;
+            ServicoEnriquecimento.DadosCadastrais dados = tabela[numero];
+            if (dados != null && dados.registroAns().length() == regAns.length()) return dados;
+            if (excecoes.isEmpty()) return null;
+        }
+        Vigencia[] vigencias = regAns != null ? excecoes.get(regAns) : null;
+        return vigencias != null ? vigente(vigencias, inicioDoPeriodo(periodo)) : null;
+    }
+
+    private ServicoEnriquecimento.DadosCadastrais[] tabela(int periodo) {
+        ServicoEnriquecimento.DadosCadastrais[] tabela = tabelas.get(periodo);
+        if (tabela != null) return tabela;
+
+        LocalDate inicio = inicioDoPeriodo(periodo);
+        tabela = new ServicoEnriquecimento.DadosCadastrais[tamanhoTabela];
+        for (int numero = 0; numero < tamanhoTabela; numero++) {
+            if (porRegistro[numero] != null) tabela[numero] = vigente(porRegistro[numero], inicio);
+        }
+        // Outra thread pode ter montado a mesma tabela ao mesmo tempo; as duas sao iguais, fica a primeira
+        return tabelas.compareAndSet(periodo, null, tabela) ? tabela : tabelas.get(periodo);
+    }
+
+    private LocalDate inicioDoPeriodo(int periodo) {
+        return periodo == 0 ? LocalDate.MIN : limites[periodo - 1];
+    }
+
+    // Registro vigente na data (o de inicio mais recente); sem nenhum, o ultimo que ja terminou e, por fim, o
+    // primeiro que ainda vai comecar, como fazia o join com um cadastro unico
+    private static ServicoEnriquecimento.DadosCadastrais vigente(Vigencia[] vigencias, LocalDate data) {
+        Vigencia anterior = null;
+        Vigencia atual = null;
+        for (Vigencia vigencia : vigencias) {
+            if (vigencia.contem(data)) {
+                atual = vigencia;
+            } else if (vigencia.fim != null && vigencia.fim.isBefore(data)
+                    && (anterior == null || vigencia.fim.isAfter(anterior.fim))) {
+                anterior = vigencia;
+            }
+        }
+        if (atual != null) return atual.dados;
+        if (anterior != null) return anterior.dados;
+        for (Vigencia vigencia : vigencias) {
+            if (vigencia.inicio != null && vigencia.inicio.isAfter(data)) return vigencia.dados;
+        }
+        return vigencias[vigencias.length - 1].dados;
+    }
+
+    // REG_ANS so com digitos (ate 6) como numero; -1 caso contrario
+    static int registro(String regAns) {
+        if (regAns == null) return -1;
+        int comprimento = regAns.length();
+        if (comprimento == 0 || comprimento > DIGITOS_REGISTRO) return -1;
+        int numero = 0;
+        for (int i = 0; i < comprimento; i++) {
+            char c = regAns.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            numero = numero * 10 + (c - '0');
+        }
+        return numero;
+    }
+
+    // DATA no formato ISO (2024-04-01) ou brasileiro (01/04/2024); null se nao reconhecida
+    static LocalDate lerData(String data) {
+        try {
+            if (data.length() >= 10 && data.charAt(4) == '-' && data.charAt(7) == '-') {
+                return LocalDate.of(Integer.parseInt(data.substring(0, 4)), Integer.parseInt(data.substring(5, 7)),
+                        Integer.parseInt(data.substring(8, 10)));
+            }
+            if (data.length() >= 10 && data.charAt(2) == '/' && data.charAt(5) == '/') {
+                return LocalDate.of(Integer.parseInt(data.substring(6, 10)), Integer.parseInt(data.substring(3, 5)),
+                        Integer.parseInt(data.substring(0, 2)));
+            }
+        } catch (RuntimeException e) {
+            // Data invalida: tratada como nao reconhecida
+        }
+        return null;
+    }
+}
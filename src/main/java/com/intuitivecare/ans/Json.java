@@ -0,0 +1,31 @@
+package com.intuitivecare.ans;
+
+// Escrita minima de JSON para o relatorio de metricas e o servico de consultas, sem dependencia externa
+public final class Json {
+
+    private Json() {
+    }
+
+    public static String texto(String valor) {
+        return texto(new StringBuilder(valor.length() + 2), valor).toString();
+    }
+
+    public static StringBuilder texto(StringBuilder sb, String valor) {
+        sb.append('"');
+        for (int i = 0; i < valor.length(); i++) {
+            char c = valor.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        return sb.append('"');
+    }
+}
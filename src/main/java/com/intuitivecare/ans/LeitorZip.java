@@ -0,0 +1,210 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Le os CSVs trimestrais direto dos arquivos ZIP, sem extrair para o disco
+public class LeitorZip {
+
+    private static final int TAMANHO_LOTE = 4096;
+    private static final int LOTES_POR_ENTRADA = 8;
+    private static final List<ProcessadorCSV.DadosDespesa> FIM = new ArrayList<>();
+    // Fim de uma entrada cuja leitura foi abortada ou falhou: o consumidor falha em vez de seguir com a entrada incompleta
+    private static final List<ProcessadorCSV.DadosDespesa> ABORTADA = new ArrayList<>();
+
+    private final ProcessadorCSV processador;
+
+    public LeitorZip(ProcessadorCSV processador) {
+        this.processador = processador;
+    }
+
+    // Protecao contra zip-slip: o destino resolvido precisa continuar dentro da pasta de destino
+    public static File resolverDestinoSeguro(File pastaDestino, String nomeEntrada) throws IOException {
+        File destino = new File(pastaDestino, nomeEntrada);
+        String pastaCanonica = pastaDestino.getCanonicalPath() + File.separator;
+        if (!destino.getCanonicalPath().startsWith(pastaCanonica)) {
+            throw new IOException("Entrada ZIP fora do destino: " + nomeEntrada);
+        }
+        return destino;
+    }
+
+    // Mesma regra do zip-slip para entradas lidas em memoria: nomes absolutos ou com ".." sao rejeitados
+    public static void validarNomeEntrada(String nomeEntrada) throws IOException {
+        String normalizado = nomeEntrada.replace('\\', '/');
+        if (normalizado.startsWith("/") || normalizado.matches("^[A-Za-z]:.*")
+                || Arrays.asList(normalizado.split("/")).contains("..")) {
+            throw new IOException("Entrada ZIP fora do destino: " + nomeEntrada);
+        }
+    }
+
+    public static List<ZipEntry> listarEntradasCSV(ZipFile zip) throws IOException {
+        List<ZipEntry> entradas = new ArrayList<>();
+        Enumeration<? extends ZipEntry> todas = zip.entries();
+        while (todas.hasMoreElements()) {
+            ZipEntry entrada = todas.nextElement();
+            if (entrada.isDirectory() || !entrada.getName().toLowerCase().endsWith(".csv")) continue;
+            validarNomeEntrada(entrada.getName());
+            entradas.add(entrada);
+        }
+        entradas.sort(Comparator.comparing(ZipEntry::getName));
+        return entradas;
+    }
+
+    // Um ZIP ou entrada ilegivel e relancado (IOException) em vez de encerrar a leitura com so parte das despesas
+    public int processar(List<File> arquivosZip, Consumer<ProcessadorCSV.DadosDespesa> consumidor) throws IOException {
+        int total = 0;
+        for (File arquivoZip : arquivosZip) {
+            try (ZipFile zip = abrir(arquivoZip)) {
+                for (ZipEntry entrada : listarEntradasCSV(zip)) {
+                    total += processador.processarStream(zip.getInputStream(entrada), nomeExibicao(arquivoZip, entrada), consumidor);
+                }
+            }
+        }
+        return total;
+    }
+
+    // Cada entrada e descompactada e filtrada em uma thread propria; os lotes passam por filas limitadas
+    // e sao entregues ao consumidor na ordem das entradas, como na leitura sequencial.
+    public int processarParalelo(List<File> arquivosZip, int threads, Consumer<ProcessadorCSV.DadosDespesa> consumidor) throws IOException {
+        List<ZipFile> abertos = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int total = 0;
+
+        try {
+            List<FilaEntrada> filas = new ArrayList<>();
+            for (File arquivoZip : arquivosZip) {
+                ZipFile zip = abrir(arquivoZip);
+                abertos.add(zip);
+                for (ZipEntry entrada : listarEntradasCSV(zip)) {
+                    FilaEntrada fila = new FilaEntrada(nomeExibicao(arquivoZip, entrada));
+                    filas.add(fila);
+                    pool.submit(() -> produzirLotes(zip, entrada, fila));
+                }
+            }
+
+            for (FilaEntrada fila : filas) {
+                List<ProcessadorCSV.DadosDespesa> lote;
+                while ((lote = fila.lotes.take()) != FIM) {
+                    if (lote == ABORTADA) {
+                        if (fila.erro instanceof IOException erro) throw erro;
+                        if (fila.erro != null) throw new IOException("Erro ao ler CSV: " + fila.nome + " -> " + fila.erro.getMessage(), fila.erro);
+                        throw new ProcessadorCSV.FalhaConsumidor(new IOException("Leitura de entrada ZIP abortada"));
+                    }
+                    for (ProcessadorCSV.DadosDespesa despesa : lote) {
+                        consumidor.accept(despesa);
+                    }
+                    total += lote.size();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessadorCSV.FalhaConsumidor(e);
+        } finally {
+            pool.shutdownNow();
+            for (ZipFile zip : abertos) {
+                try {
+                    zip.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return total;
+    }
+
+    // Estagio de descompactacao/filtro do ExecutorEstagios: as entradas CSV de um ZIP, em lotes, na ordem das entradas
+    public int processarEmLotes(File arquivoZip, ExecutorEstagios.Emissor<List<ProcessadorCSV.DadosDespesa>> saida) throws IOException {
+        PublicadorLotes publicador = new PublicadorLotes(saida);
+        int total = processar(List.of(arquivoZip), publicador);
+        publicador.esvaziar();
+        return total;
+    }
+
+    private void produzirLotes(ZipFile zip, ZipEntry entrada, FilaEntrada fila) {
+        PublicadorLotes publicador = new PublicadorLotes(fila.lotes::put);
+        try {
+            processador.processarStream(zip.getInputStream(entrada), fila.nome, publicador);
+            publicador.finalizar();
+        } catch (ProcessadorCSV.FalhaConsumidor e) {
+            abortar(fila, null);
+        } catch (IOException | RuntimeException e) {
+            // Inclui coluna ausente ou registro curto (IllegalArgumentException): sem o marcador o consumidor
+            // esperaria para sempre
+            abortar(fila, e);
+        }
+    }
+
+    // A fila pode estar cheia, entao os lotes pendentes sao descartados para que o marcador caiba sem bloquear
+    // (so esta thread produz nesta fila); o erro e lido depois do marcador
+    private static void abortar(FilaEntrada fila, Exception erro) {
+        fila.erro = erro;
+        fila.lotes.clear();
+        fila.lotes.offer(ABORTADA);
+    }
+
+    // Lotes de uma entrada a caminho do consumidor e o erro de leitura que encerrou a entrada, se houver
+    private static class FilaEntrada {
+        final String nome;
+        final BlockingQueue<List<ProcessadorCSV.DadosDespesa>> lotes = new ArrayBlockingQueue<>(LOTES_POR_ENTRADA);
+        volatile Exception erro;
+
+        FilaEntrada(String nome) {
+            this.nome = nome;
+        }
+    }
+
+    private static ZipFile abrir(File arquivoZip) throws IOException {
+        try {
+            return new ZipFile(arquivoZip);
+        } catch (IOException e) {
+            throw new IOException("Erro ao ler ZIP: " + arquivoZip.getName() + " -> " + e.getMessage(), e);
+        }
+    }
+
+    private static class PublicadorLotes implements Consumer<ProcessadorCSV.DadosDespesa> {
+        private final ExecutorEstagios.Emissor<List<ProcessadorCSV.DadosDespesa>> saida;
+        private List<ProcessadorCSV.DadosDespesa> atual = new ArrayList<>(TAMANHO_LOTE);
+
+        PublicadorLotes(ExecutorEstagios.Emissor<List<ProcessadorCSV.DadosDespesa>> saida) {
+            this.saida = saida;
+        }
+
+        @Override
+        public void accept(ProcessadorCSV.DadosDespesa despesa) {
+            atual.add(despesa);
+            if (atual.size() == TAMANHO_LOTE) {
+                publicar(atual);
+                atual = new ArrayList<>(TAMANHO_LOTE);
+            }
+        }
+
+        void esvaziar() {
+            if (!atual.isEmpty()) publicar(atual);
+            atual = new ArrayList<>(TAMANHO_LOTE);
+        }
+
+        void finalizar() {
+            esvaziar();
+            publicar(FIM);
+        }
+
+        // Falhas ao publicar (interrupcao, cancelamento do pipeline) abortam a leitura em vez de virar erro de CSV
+        private void publicar(List<ProcessadorCSV.DadosDespesa> lote) {
+            try {
+                saida.emitir(lote);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessadorCSV.FalhaConsumidor(e);
+            } catch (RuntimeException e) {
+                throw new ProcessadorCSV.FalhaConsumidor(e);
+            }
+        }
+    }
+
+    private static String nomeExibicao(File arquivoZip, ZipEntry entrada) {
+        return arquivoZip.getName() + "!" + entrada.getName();
+    }
+}
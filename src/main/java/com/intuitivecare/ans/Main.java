@@ -1,203 +1,429 @@
 package com.intuitivecare.ans;
 
-import org.apache.commons.io.FileUtils;
 import java.io.*;
-import java.net.URL;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
 public class Main {
 
     private static final String BASE_URL = "https://dadosabertos.ans.gov.br/FTP/PDA/";
     private static final String DOWNLOAD_DIR = "downloads_ans";
+    private static final String ARQUIVO_ENRIQUECIDO = "consolidado_enriquecido.csv";
+    private static final String ARQUIVO_AGREGADO = "despesas_agregadas.csv";
+    private static final String ARQUIVO_ZIP = "consolidado_despesas.zip";
+    // Modos de execucao exclusivos entre si; --ler-zip so escolhe a leitura e combina com o --modo-arquivos e o streaming
+    private static final List<String> MODOS = List.of("worker", "servidor-consultas", "distribuido", "estagios",
+            "incremental", "cache-etapas", "modo-arquivos");
 
     public static void main(String[] args) {
         System.out.println("Iniciando o Sistema ETL...");
+        OpcoesExecucao opcoes = OpcoesExecucao.deArgumentos(args);
 
-        try {
-            String accountingUrl = findLinkByText(BASE_URL, "demonstracoes_contabeis");
-            if (accountingUrl == null) {
-                System.err.println("Erro: Pasta nao encontrada.");
-                return;
-            }
-            System.out.println("Pasta encontrada: " + accountingUrl);
+        List<String> modos = opcoes.ativas(MODOS);
+        if (modos.size() > 1) {
+            System.err.println("Erro: modos de execucao conflitantes: --" + String.join(", --", modos) + " (use apenas um)");
+            System.exit(1);
+        }
 
-            List<String> targetZipUrls = getLatest3Quarters(accountingUrl);
+        // --servidor-consultas nao roda o ETL: atende consultas sobre o ZIP final e recarrega a cada nova execucao
+        if (opcoes.temFlag("servidor-consultas")) {
+            iniciarServidorConsultas(opcoes);
+            return;
+        }
 
-            for (String zipUrl : targetZipUrls) {
-                downloadAndUnzip(zipUrl);
-            }
+        configurarOrcamentoMemoria(opcoes);
 
-            System.out.println("\nIniciando Processamento e Consolidacao dos Dados...");
+        // --worker=pasta: processo trabalhador do modo --distribuido (ver ProcessamentoDistribuido)
+        String pastaWorker = opcoes.valor("worker", null);
+        if (pastaWorker != null) {
+            executarWorker(opcoes, new File(pastaWorker));
+            return;
+        }
 
-            ProcessadorCSV processador = new ProcessadorCSV();
-            List<ProcessadorCSV.DadosDespesa> todosDados = new ArrayList<>();
+        MotorDownload motorDownload = new MotorDownload(
+                opcoes.valorInt("downloads-paralelos", 4),
+                Duration.ofSeconds(opcoes.valorInt("timeout-segundos", 30)),
+                opcoes.valorInt("tentativas", 3));
+        // --cadastros-historicos: pasta com versoes anteriores do cadastro (ver HistoricoCadastro)
+        String historico = opcoes.valor("cadastros-historicos", null);
+        ServicoEnriquecimento enriquecedor = new ServicoEnriquecimento(
+                motorDownload, opcoes.valor("url-cadastro", ServicoEnriquecimento.CADASTRO_URL),
+                Duration.ofHours(opcoes.valorInt("cadastro-idade-max-horas", (int) ServicoEnriquecimento.IDADE_MAXIMA_CADASTRO.toHours())),
+                historico == null ? null : new File(historico));
+
+        // Cada etapa vira uma medicao (Metricas): resumo no console, eventos JFR e o relatorio JSON
+        // gravado ao final (--relatorio-metricas). Qualquer falha encerra com codigo de saida 1.
+        boolean falhou = false;
+        Metricas.Medicao execucao = Metricas.iniciar("execucao");
+        try (motorDownload; execucao) {
+            List<DescobertaTrimestres.ArquivoTrimestral> alvos;
+            try (Metricas.Medicao descoberta = Metricas.iniciar("descoberta");
+                 DescobertaTrimestres descobridor = new DescobertaTrimestres(
+                         new File(opcoes.valor("pasta-cache-listagens", DescobertaTrimestres.PASTA_CACHE_PADRAO)),
+                         opcoes.valorInt("listagens-paralelas", 4),
+                         Duration.ofSeconds(opcoes.valorInt("timeout-segundos", 30)),
+                         opcoes.valorInt("tentativas", 3))) {
+                String accountingUrl = descobridor.localizarPasta(opcoes.valor("url-ans", BASE_URL), "demonstracoes_contabeis");
+                if (accountingUrl == null) {
+                    System.err.println("Erro: Pasta nao encontrada.");
+                    falhou = true;
+                    return;
+                }
+                System.out.println("Pasta encontrada: " + accountingUrl);
 
-            File pastaExtracted = new File(DOWNLOAD_DIR + "/extracted");
-            File[] arquivosCSV = pastaExtracted.listFiles((dir, name) -> name.toLowerCase().endsWith(".csv"));
+                alvos = descobridor.listarTrimestres(accountingUrl, janelaTrimestres(opcoes));
+                descoberta.linhasSaida(alvos.size());
+            }
 
-            if (arquivosCSV != null && arquivosCSV.length > 0) {
-                for (File arquivo : arquivosCSV) {
-                    todosDados.addAll(processador.processarArquivo(arquivo));
+            // ZIPs trimestrais e cadastro de operadoras sao baixados em paralelo
+            List<CompletableFuture<File>> downloads = new ArrayList<>();
+            for (DescobertaTrimestres.ArquivoTrimestral alvo : alvos) {
+                downloads.add(motorDownload.agendar(alvo.url(), new File(DOWNLOAD_DIR, alvo.nomeArquivo())));
+            }
+            enriquecedor.agendarDownloadCadastro();
+
+            ClassificadorDespesas classificador = carregarClassificador(opcoes);
+            CuboDespesas.Configuracao cubo = configuracaoCubo(opcoes);
+
+            // --estagios nao espera todos os downloads: cada ZIP segue para a descompactacao assim que chega
+            if (opcoes.temFlag("estagios")) {
+                try (ExecutorEstagios executor = new ExecutorEstagios();
+                     EscritorZipParalelo zip = abrirZipFinal(opcoes)) {
+                    FonteDespesas fonte = criarFonteEstagios(executor, opcoes, classificador, downloads);
+                    new PipelineStreaming(enriquecedor, cubo).executar(fonte, destinoFinal(zip, opcoes), ARQUIVO_ENRIQUECIDO, ARQUIVO_AGREGADO);
+                    zip.concluir();
                 }
-            } else {
-                System.err.println("Nenhum arquivo CSV encontrado para processar.");
+                System.out.println("Arquivo ZIP gerado com sucesso!");
+                return;
             }
 
-            System.out.println("Total Consolidado na Memoria: " + todosDados.size());
+            List<File> arquivosZip = new ArrayList<>();
+            try (Metricas.Medicao espera = Metricas.iniciar("downloads")) {
+                for (CompletableFuture<File> download : downloads) {
+                    File zip = MotorDownload.aguardar(download);
+                    arquivosZip.add(zip);
+                    espera.linhasSaida(1).bytesGravados(zip.length());
+                }
+            }
 
-            System.out.println("\nGerando arquivo consolidado preliminar...");
-            EscritorCSV escritor = new EscritorCSV();
-            escritor.salvarArquivoConsolidado(todosDados, "consolidado_despesas.csv");
+            // --incremental reaproveita os parciais dos trimestres ja processados (--pasta-incremental)
+            if (opcoes.temFlag("incremental")) {
+                try (EscritorZipParalelo zip = abrirZipFinal(opcoes)) {
+                    new ProcessamentoIncremental(new File(opcoes.valor("pasta-incremental", ProcessamentoIncremental.PASTA_PADRAO)),
+                            enriquecedor, arquivo -> criarFonteZip(opcoes, classificador, List.of(arquivo)), classificador.versao(), cubo)
+                            .executar(arquivosZip, destinoFinal(zip, opcoes), ARQUIVO_ENRIQUECIDO, ARQUIVO_AGREGADO);
+                    zip.concluir();
+                }
+                System.out.println("Arquivo ZIP gerado com sucesso!");
+                return;
+            }
 
-            System.out.println("\nRealizando auditoria...");
-            Auditoria auditoria = new Auditoria();
-            auditoria.realizarAuditoria("consolidado_despesas.csv");
+            // --distribuido[=pasta] divide os ZIPs entre processos workers que compartilham a pasta; --workers e
+            // o numero de workers locais (0: so workers iniciados a parte com --worker=pasta); --lease-segundos e o
+            // tempo sem sinal de um worker ate a tarefa dele ser devolvida
+            String distribuido = opcoes.valor("distribuido", "false");
+            if (!"false".equals(distribuido)) {
+                try (EscritorZipParalelo zip = abrirZipFinal(opcoes)) {
+                    new ProcessamentoDistribuido(new File("true".equals(distribuido) ? ProcessamentoDistribuido.PASTA_PADRAO : distribuido),
+                            enriquecedor, classificador, cubo, historico == null ? null : new File(historico),
+                            opcoes.valorInt("workers", Math.min(arquivosZip.size(), Runtime.getRuntime().availableProcessors())),
+                            argumentosWorker(args),
+                            Duration.ofSeconds(opcoes.valorInt("lease-segundos", (int) ProcessamentoDistribuido.LEASE_PADRAO.toSeconds())))
+                            .executar(arquivosZip, destinoFinal(zip, opcoes), ARQUIVO_ENRIQUECIDO, ARQUIVO_AGREGADO);
+                    zip.concluir();
+                }
+                System.out.println("Arquivo ZIP gerado com sucesso!");
+                return;
+            }
 
-            System.out.println("\n--- TESTE DE COMPONENTES DE VALIDAÇÃO ---");
-            System.out.println("Teste CNPJ Válido (Google): " + ValidadorDados.isCNPJValido("06.990.590/0001-23"));
-            System.out.println("Teste CNPJ Inválido: " + ValidadorDados.isCNPJValido("11.111.111/1111-11"));
-            System.out.println("Teste Valor Positivo (100.0): " + ValidadorDados.isValorPositivo(100.0));
-            System.out.println("Teste Valor Negativo (-50.0): " + ValidadorDados.isValorPositivo(-50.0));
+            // --cache-etapas[=pasta] executa o grafo de etapas (ProcessamentoEmEtapas): refaz so o que mudou e
+            // retoma uma execucao interrompida; --cache-etapas-dias e a idade para limpar etapas sem uso
+            String cacheEtapas = opcoes.valor("cache-etapas", "false");
+            if (!"false".equals(cacheEtapas)) {
+                if (opcoes.temFlag("manter-csv")) System.err.println("Aviso: --manter-csv e ignorado com --cache-etapas");
+                CacheEtapas cache = new CacheEtapas(new File("true".equals(cacheEtapas) ? CacheEtapas.PASTA_PADRAO : cacheEtapas));
+                new ProcessamentoEmEtapas(cache, enriquecedor, arquivo -> criarFonteZip(opcoes, classificador, List.of(arquivo)),
+                        classificador.versao(), cubo, opcoes.valorInt("zip-nivel", 6),
+                        opcoes.valorInt("zip-threads", Runtime.getRuntime().availableProcessors()),
+                        Duration.ofDays(opcoes.valorInt("cache-etapas-dias", 7)))
+                        .executar(arquivosZip, new File(ARQUIVO_ZIP), ARQUIVO_ENRIQUECIDO, ARQUIVO_AGREGADO);
+                System.out.println("Arquivo ZIP gerado com sucesso!");
+                return;
+            }
 
-            ServicoEnriquecimento enriquecedor = new ServicoEnriquecimento();
-            enriquecedor.executarEnriquecimento("consolidado_despesas.csv", "consolidado_enriquecido.csv");
+            FonteDespesas fonte;
+            if (opcoes.temFlag("ler-zip")) {
+                fonte = criarFonteZip(opcoes, classificador, arquivosZip);
+            } else {
+                for (File zipFile : arquivosZip) {
+                    System.out.println("Extraindo: " + zipFile.getName());
+                    try (Metricas.Medicao extracao = Metricas.iniciar("extracao", zipFile.getName())) {
+                        extracao.bytesLidos(zipFile.length())
+                                .bytesGravados(unzip(zipFile.getAbsolutePath(), DOWNLOAD_DIR + "/extracted"));
+                    }
+                }
 
-            ServicoAgregacao agregador = new ServicoAgregacao();
-            agregador.gerarRelatorioEstatistico("consolidado_enriquecido.csv", "despesas_agregadas.csv");
+                File pastaExtracted = new File(DOWNLOAD_DIR + "/extracted");
+                File[] arquivosCSV = pastaExtracted.listFiles((dir, name) -> name.toLowerCase().endsWith(".csv"));
+                if (arquivosCSV == null || arquivosCSV.length == 0) {
+                    System.err.println("Nenhum arquivo CSV encontrado para processar.");
+                    arquivosCSV = new File[0];
+                }
+                fonte = criarFonteDespesas(opcoes, classificador, Arrays.asList(arquivosCSV));
+            }
 
-            List<String> arquivosParaZipar = Arrays.asList("consolidado_enriquecido.csv", "despesas_agregadas.csv");
-            zipArquivos(arquivosParaZipar, "consolidado_despesas.zip");
+            // O modo arquivos grava as saidas em disco e as compacta no final; o streaming grava direto no ZIP
+            if (opcoes.temFlag("modo-arquivos")) {
+                if (cubo != null) System.err.println("Aviso: --cubo e calculado no pipeline em streaming; ignorado no --modo-arquivos");
+                executarModoArquivos(fonte, enriquecedor, opcoes.temFlag("intermediario-csv"));
+                try (EscritorZipParalelo zip = abrirZipFinal(opcoes)) {
+                    zipArquivos(Arrays.asList(ARQUIVO_ENRIQUECIDO, ARQUIVO_AGREGADO), zip);
+                    zip.concluir();
+                }
+            } else {
+                try (EscritorZipParalelo zip = abrirZipFinal(opcoes)) {
+                    new PipelineStreaming(enriquecedor, cubo).executar(fonte, destinoFinal(zip, opcoes), ARQUIVO_ENRIQUECIDO, ARQUIVO_AGREGADO);
+                    zip.concluir();
+                }
+            }
+            System.out.println("Arquivo ZIP gerado com sucesso!");
 
         } catch (Exception e) {
+            falhou = true;
+            System.err.println("Erro na execucao: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            finalizarMetricas(opcoes);
+            if (falhou) System.exit(1);
         }
     }
 
-    private static void zipArquivos(List<String> arquivosOrigem, String arquivoDestino) {
-        System.out.println("Compactando arquivos finais: " + arquivoDestino);
-        try (FileOutputStream fos = new FileOutputStream(arquivoDestino);
-             java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(fos)) {
+    private static void executarWorker(OpcoesExecucao opcoes, File pasta) {
+        boolean falhou = false;
+        Metricas.Medicao execucao = Metricas.iniciar("worker");
+        try (execucao) {
+            ProcessamentoDistribuido.trabalhar(pasta, opcoes.valor("id-worker", ProcessamentoDistribuido.idPadrao()),
+                    (classificador, zip) -> criarFonteZip(opcoes, classificador, List.of(zip)));
+        } catch (Exception e) {
+            falhou = true;
+            System.err.println("Erro no worker: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            finalizarMetricas(opcoes);
+            if (falhou) System.exit(1);
+        }
+    }
 
-            for (String srcFile : arquivosOrigem) {
-                File fileToZip = new File(srcFile);
-                if (!fileToZip.exists()) {
-                    System.err.println("Arquivo nao encontrado para zipar: " + srcFile);
-                    continue;
-                }
+    // Opcoes de leitura e memoria repassadas aos workers locais do --distribuido
+    private static List<String> argumentosWorker(String[] args) {
+        List<String> repassados = new ArrayList<>();
+        for (String arg : args) {
+            String chave = arg.startsWith("--") ? arg.substring(2).split("=", 2)[0] : "";
+            if (List.of("paralelo", "threads", "parser-commons", "memoria-agregacao-mb", "pasta-temporaria").contains(chave)) {
+                repassados.add(arg);
+            }
+        }
+        return repassados;
+    }
 
-                try (FileInputStream fis = new FileInputStream(fileToZip)) {
-                    java.util.zip.ZipEntry zipEntry = new java.util.zip.ZipEntry(fileToZip.getName());
-                    zos.putNextEntry(zipEntry);
+    // --cubo calcula os conjuntos de agrupamento padrao junto com o agregado; --cubo="MODALIDADE;UF,TRIMESTRE"
+    // escolhe os conjuntos (ver CuboDespesas)
+    private static CuboDespesas.Configuracao configuracaoCubo(OpcoesExecucao opcoes) {
+        String valor = opcoes.valor("cubo", null);
+        if (valor == null || "false".equals(valor)) return null;
+        CuboDespesas.Configuracao configuracao = CuboDespesas.Configuracao.de("true".equals(valor) ? CuboDespesas.CONJUNTOS_PADRAO : valor);
+        System.out.println("Cubo de despesas: " + configuracao.especificacao());
+        return configuracao;
+    }
 
-                    byte[] buffer = new byte[1024];
-                    int length;
-                    while ((length = fis.read(buffer)) >= 0) {
-                        zos.write(buffer, 0, length);
-                    }
-                }
-            }
-            System.out.println("Arquivo ZIP gerado com sucesso!");
+    // --memoria-agregacao-mb limita agrupamentos e ordenacoes (padrao: 1/4 do heap); acima disso as particoes
+    // vao para --pasta-temporaria (padrao: java.io.tmpdir)
+    private static void configurarOrcamentoMemoria(OpcoesExecucao opcoes) {
+        long padraoMb = Runtime.getRuntime().maxMemory() / 4 / (1 << 20);
+        long limite = (long) opcoes.valorInt("memoria-agregacao-mb", (int) padraoMb) << 20;
+        String pasta = opcoes.valor("pasta-temporaria", null);
+        File pastaTemporaria = pasta == null ? null : new File(pasta);
+        if (pastaTemporaria != null) pastaTemporaria.mkdirs();
+        OrcamentoMemoria.configurarPadrao(new OrcamentoMemoria(limite, pastaTemporaria));
+    }
 
+    private static void iniciarServidorConsultas(OpcoesExecucao opcoes) {
+        ServicoConsultas servico = null;
+        try {
+            servico = new ServicoConsultas(new File(opcoes.valor("zip-consultas", ARQUIVO_ZIP)), ARQUIVO_ENRIQUECIDO, ARQUIVO_AGREGADO,
+                    opcoes.valorInt("porta", 8080), opcoes.valorInt("threads-consultas", Runtime.getRuntime().availableProcessors()));
+            servico.iniciar(Duration.ofSeconds(opcoes.valorInt("recarga-segundos", 5)));
         } catch (IOException e) {
-            System.err.println("Erro ao zipar arquivos: " + e.getMessage());
+            System.err.println("Erro ao iniciar o servico de consultas: " + e.getMessage());
+            if (servico != null) servico.close();
         }
     }
 
-    private static String resolveUrl(String base, String rel) {
-        if (rel.startsWith("http")) return rel;
-        return base + (base.endsWith("/") ? "" : "/") + rel;
+    private static void finalizarMetricas(OpcoesExecucao opcoes) {
+        Metricas.imprimirResumo();
+        File relatorio = new File(opcoes.valor("relatorio-metricas", Metricas.RELATORIO_PADRAO));
+        try {
+            Metricas.gravarRelatorio(relatorio);
+            System.out.println("Relatorio de metricas: " + relatorio.getPath());
+        } catch (IOException e) {
+            System.err.println("Erro ao gravar relatorio de metricas: " + e.getMessage());
+        }
     }
 
-    private static String findLinkByText(String url, String partialText) throws IOException {
-        Document doc = Jsoup.connect(url).get();
-        Elements links = doc.select("a[href]");
-        for (Element link : links) {
-            if (link.attr("href").toLowerCase().contains(partialText.toLowerCase())) {
-                return resolveUrl(url, link.attr("href"));
-            }
+    // --paralelo processa os trimestres em paralelo, dividindo cada CSV em blocos (--threads, --bloco-mb);
+    // --parser-commons volta ao parser Commons CSV no lugar do TokenizadorCSV
+    private static FonteDespesas criarFonteDespesas(OpcoesExecucao opcoes, ClassificadorDespesas classificador, List<File> arquivosCSV) {
+        ProcessadorCSV processador = new ProcessadorCSV(!opcoes.temFlag("parser-commons"), classificador);
+
+        if (opcoes.temFlag("paralelo")) {
+            int threads = opcoes.valorInt("threads", Runtime.getRuntime().availableProcessors());
+            long tamanhoBloco = opcoes.valorInt("bloco-mb", 8) * 1024L * 1024L;
+            System.out.println("Leitura paralela: " + threads + " threads, blocos de " + (tamanhoBloco >> 20) + " MB");
+            return consumidor -> processador.processarArquivosParalelo(arquivosCSV, threads, tamanhoBloco, consumidor);
         }
-        return null;
+
+        return consumidor -> {
+            int total = 0;
+            for (File arquivo : arquivosCSV) {
+                total += processador.processarArquivo(arquivo, consumidor);
+            }
+            return total;
+        };
     }
 
-    private static List<String> getLatest3Quarters(String baseUrl) throws IOException {
-        System.out.println("Buscando os ultimos 3 arquivos ZIP...");
-        Document doc = Jsoup.connect(baseUrl).get();
-        Elements links = doc.select("a[href]");
-        TreeMap<Integer, String> yearsMap = new TreeMap<>(Collections.reverseOrder());
+    // --regras-despesas aponta o arquivo de regras do filtro; sem a opcao, usa regras_despesas.txt se existir
+    // na pasta de execucao e, caso contrario, as regras padrao (grupo 4, EVENTO, SINISTRO)
+    private static ClassificadorDespesas carregarClassificador(OpcoesExecucao opcoes) throws IOException {
+        String caminho = opcoes.valor("regras-despesas", null);
+        File arquivo = new File(caminho != null ? caminho : ClassificadorDespesas.ARQUIVO_PADRAO);
+        if (caminho == null && !arquivo.exists()) return ClassificadorDespesas.PADRAO;
 
-        for (Element link : links) {
-            String text = link.text().trim().replaceAll("[/\\\\]", "");
-            if (text.matches("\\d{4}")) {
-                int year = Integer.parseInt(text);
-                yearsMap.put(year, resolveUrl(baseUrl, link.attr("href")));
-            }
+        ClassificadorDespesas classificador = ClassificadorDespesas.carregar(arquivo);
+        System.out.println("Regras de despesa carregadas: " + arquivo.getPath());
+        return classificador;
+    }
+
+    // --ler-zip le as entradas CSV direto dos ZIPs baixados, sem extrair para downloads_ans/extracted
+    private static FonteDespesas criarFonteZip(OpcoesExecucao opcoes, ClassificadorDespesas classificador, List<File> arquivosZip) {
+        LeitorZip leitor = new LeitorZip(new ProcessadorCSV(!opcoes.temFlag("parser-commons"), classificador));
+
+        if (opcoes.temFlag("paralelo")) {
+            int threads = opcoes.valorInt("threads", Runtime.getRuntime().availableProcessors());
+            System.out.println("Leitura paralela dos ZIPs: " + threads + " threads");
+            return consumidor -> leitor.processarParalelo(arquivosZip, threads, consumidor);
         }
+        return consumidor -> leitor.processar(arquivosZip, consumidor);
+    }
 
-        List<String> zipUrlsToProcess = new ArrayList<>();
-        int count = 0;
+    // Estagios ligados por filas limitadas (ExecutorEstagios): download -> descompactacao e filtro (--threads ZIPs
+    // ao mesmo tempo, lendo as entradas sem extrair) -> enriquecimento, agregacao e escrita na thread que consome a
+    // fonte. --capacidade-filas e o numero de lotes (4096 despesas) que cabem entre a leitura e o enriquecimento.
+    // As threads comecam ja aqui, entao a leitura adianta enquanto o cadastro ainda e preparado.
+    private static FonteDespesas criarFonteEstagios(ExecutorEstagios executor, OpcoesExecucao opcoes, ClassificadorDespesas classificador,
+                                                    List<CompletableFuture<File>> downloads) {
+        LeitorZip leitor = new LeitorZip(new ProcessadorCSV(!opcoes.temFlag("parser-commons"), classificador));
+        int threads = Math.min(Math.max(1, downloads.size()), opcoes.valorInt("threads", Runtime.getRuntime().availableProcessors()));
+        int capacidade = opcoes.valorInt("capacidade-filas", 16);
+        System.out.println("Pipeline de estagios: " + threads + " threads de descompactacao, filas de " + capacidade + " lotes");
+
+        ExecutorEstagios.Fila<File> zips = executor.iniciar("download", Math.max(1, downloads.size()), saida -> {
+            for (CompletableFuture<File> download : downloads) saida.emitir(MotorDownload.aguardar(download));
+        });
+        ExecutorEstagios.Fila<List<ProcessadorCSV.DadosDespesa>> lotes = executor.encadear("descompactacao", zips, threads, capacidade,
+                (zip, saida) -> leitor.processarEmLotes(zip, saida));
+
+        return consumidor -> {
+            int[] total = {0};
+            executor.consumir(lotes, lote -> {
+                for (ProcessadorCSV.DadosDespesa despesa : lote) consumidor.accept(despesa);
+                total[0] += lote.size();
+            });
+            return total[0];
+        };
+    }
 
-        for (Map.Entry<Integer, String> entry : yearsMap.entrySet()) {
-            if (count >= 3) break;
-            int year = entry.getKey();
-            String yearUrl = entry.getValue();
+    // Modo original, estagio a estagio com arquivos intermediarios; util para depuracao
+    // Os arquivos intermediarios usam o formato colunar; --intermediario-csv volta aos CSVs legiveis
+    private static void executarModoArquivos(FonteDespesas fonte, ServicoEnriquecimento enriquecedor, boolean intermediarioCsv) throws IOException {
+        System.out.println("\nIniciando Processamento e Consolidacao dos Dados...");
 
-            if (!yearUrl.endsWith("/")) yearUrl += "/";
+        List<ProcessadorCSV.DadosDespesa> todosDados = new ArrayList<>();
+        fonte.produzir(todosDados::add);
 
-            System.out.println("Verificando ano: " + year);
-            Document yearDoc = Jsoup.connect(yearUrl).get();
-            Elements zipLinks = yearDoc.select("a[href$='.zip']");
-            List<String> yearZips = new ArrayList<>();
+        System.out.println("Total Consolidado na Memoria: " + todosDados.size());
 
-            for (Element zipLink : zipLinks) {
-                String href = zipLink.attr("href");
-                if (href.toUpperCase().matches(".*\\d{1}T.*")) {
-                    yearZips.add(href);
-                }
-            }
-            yearZips.sort(Collections.reverseOrder());
+        String consolidado = intermediarioCsv ? "consolidado_despesas.csv" : "consolidado_despesas" + FormatoColunar.EXTENSAO;
+        String enriquecido = intermediarioCsv ? "consolidado_enriquecido.csv" : FormatoColunar.irmaoColunar("consolidado_enriquecido.csv");
 
-            for (String zipName : yearZips) {
-                if (count >= 3) break;
-                zipUrlsToProcess.add(resolveUrl(yearUrl, zipName));
-                System.out.println("   -> Alvo identificado: " + zipName);
-                count++;
-            }
+        System.out.println("\nGerando arquivo consolidado preliminar...");
+        EscritorCSV escritor = new EscritorCSV();
+        if (intermediarioCsv) {
+            escritor.salvarArquivoConsolidado(todosDados, consolidado);
+        } else {
+            escritor.salvarArquivoConsolidadoColunar(todosDados, consolidado);
         }
-        return zipUrlsToProcess;
+
+        System.out.println("\nRealizando auditoria...");
+        Auditoria auditoria = new Auditoria();
+        auditoria.realizarAuditoria(consolidado);
+
+        enriquecedor.executarEnriquecimento(consolidado, "consolidado_enriquecido.csv");
+
+        ServicoAgregacao agregador = new ServicoAgregacao();
+        agregador.gerarRelatorioEstatistico(enriquecido, "despesas_agregadas.csv");
     }
 
-    private static void downloadAndUnzip(String zipUrl) throws IOException {
-        String fileName = zipUrl.substring(zipUrl.lastIndexOf("/") + 1);
-        File zipFile = new File(DOWNLOAD_DIR, fileName);
+    // ZIP final gravado com deflate paralelo em blocos (--zip-nivel 0 a 9, --zip-threads)
+    private static EscritorZipParalelo abrirZipFinal(OpcoesExecucao opcoes) throws IOException {
+        int nivel = opcoes.valorInt("zip-nivel", 6);
+        int threads = opcoes.valorInt("zip-threads", Runtime.getRuntime().availableProcessors());
+        System.out.println("Gravando saida final em " + ARQUIVO_ZIP + " (nivel " + nivel + ", " + threads + " threads)");
+        return new EscritorZipParalelo(new File(ARQUIVO_ZIP), nivel, threads);
+    }
 
-        if (!zipFile.exists()) {
-            System.out.println("Baixando: " + fileName);
-            FileUtils.copyURLToFile(new URL(zipUrl), zipFile);
-        } else {
-            System.out.println("Arquivo ja baixado: " + fileName);
+    // As saidas vao direto para as entradas do ZIP; --manter-csv tambem grava as copias legiveis na pasta
+    // (--manter-csv=gzip grava as copias comprimidas, "nome.csv.gz")
+    private static DestinoSaida destinoFinal(EscritorZipParalelo zip, OpcoesExecucao opcoes) {
+        if ("gzip".equals(opcoes.valor("manter-csv", null))) return zip.comCopiaEm(DestinoSaida.arquivosGzip());
+        return opcoes.temFlag("manter-csv") ? zip.comCopiaEm(DestinoSaida.arquivos()) : zip;
+    }
+
+    private static void zipArquivos(List<String> arquivosOrigem, EscritorZipParalelo zip) throws IOException {
+        for (String srcFile : arquivosOrigem) {
+            File fileToZip = new File(srcFile);
+            if (!fileToZip.exists()) {
+                System.err.println("Arquivo nao encontrado para zipar: " + srcFile);
+                continue;
+            }
+            zip.adicionarArquivo(fileToZip);
         }
+    }
 
-        System.out.println("Extraindo: " + fileName);
-        unzip(zipFile.getAbsolutePath(), DOWNLOAD_DIR + "/extracted");
+    // --trimestres=N (padrao 3) ou o intervalo --trimestre-inicio=1T2019 --trimestre-fim=4T2023
+    private static DescobertaTrimestres.Janela janelaTrimestres(OpcoesExecucao opcoes) {
+        String inicio = opcoes.valor("trimestre-inicio", null);
+        String fim = opcoes.valor("trimestre-fim", null);
+        if (inicio == null && fim == null) {
+            return DescobertaTrimestres.Janela.ultimos(opcoes.valorInt("trimestres", 3));
+        }
+        if (inicio == null || fim == null) {
+            throw new IllegalArgumentException("Informe --trimestre-inicio e --trimestre-fim juntos (ex.: 1T2019 e 4T2023)");
+        }
+        return DescobertaTrimestres.Janela.intervalo(DescobertaTrimestres.Trimestre.de(inicio), DescobertaTrimestres.Trimestre.de(fim));
     }
 
-    private static void unzip(String zipFilePath, String destDir) throws IOException {
+    private static long unzip(String zipFilePath, String destDir) throws IOException {
         File dir = new File(destDir);
         if (!dir.exists()) dir.mkdirs();
-        byte[] buffer = new byte[1024];
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFilePath))) {
+        byte[] buffer = new byte[1 << 16];
+        long extraidos = 0;
+        try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(zipFilePath)))) {
             ZipEntry zipEntry = zis.getNextEntry();
             while (zipEntry != null) {
-                File newFile = new File(destDir, zipEntry.getName());
-                if (!newFile.getCanonicalPath().startsWith(dir.getCanonicalPath())) {
-                    throw new IOException("Entrada ZIP fora do destino");
-                }
+                File newFile = LeitorZip.resolverDestinoSeguro(dir, zipEntry.getName());
                 if (zipEntry.isDirectory()) {
                     newFile.mkdirs();
                 } else {
@@ -206,11 +432,13 @@ public class Main {
                         int len;
                         while ((len = zis.read(buffer)) > 0) {
                             fos.write(buffer, 0, len);
+                            extraidos += len;
                         }
                     }
                 }
                 zipEntry = zis.getNextEntry();
             }
         }
+        return extraidos;
     }
 }
\ No newline at end of file
@@ -0,0 +1,284 @@
+package com.intuitivecare.ans;
+
+import jdk.jfr.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Metricas por etapa e por arquivo: tempo de parede, linhas de entrada/saida, bytes lidos/gravados, vazao e
+// bytes alocados pela thread que abriu a medicao. Cada medicao encerrada vira um evento JFR
+// (com.intuitivecare.ans.Etapa, visivel com -XX:StartFlightRecording) e entra no relatorio JSON da execucao.
+public final class Metricas {
+
+    public static final String RELATORIO_PADRAO = "relatorio_execucao.json";
+
+    @Name("com.intuitivecare.ans.Etapa")
+    @Label("Etapa do ETL")
+    @Category("ANS ETL")
+    @Description("Uma etapa do ETL, ou um arquivo dentro de uma etapa")
+    @StackTrace(false)
+    static class EventoEtapa extends Event {
+        @Label("Etapa")
+        String etapa;
+
+        @Label("Arquivo")
+        String arquivo;
+
+        @Label("Linhas de entrada")
+        long linhasEntrada;
+
+        @Label("Linhas de saida")
+        long linhasSaida;
+
+        @Label("Bytes lidos")
+        @DataAmount
+        long bytesLidos;
+
+        @Label("Bytes gravados")
+        @DataAmount
+        long bytesGravados;
+    }
+
+    public record Resultado(String etapa, String arquivo, Instant inicio, long duracaoNanos, long linhasEntrada,
+                            long linhasSaida, long bytesLidos, long bytesGravados, long bytesAlocados) {
+        public double linhasPorSegundo() {
+            long linhas = Math.max(linhasEntrada, linhasSaida);
+            return duracaoNanos > 0 ? linhas * 1e9 / duracaoNanos : 0.0;
+        }
+    }
+
+    // Fila entre estagios (ExecutorEstagios): profundidade vista a cada item colocado e tempo total que produtores
+    // esperaram por espaco e consumidores por itens
+    public record ResultadoFila(String nome, int capacidade, long itens, double profundidadeMedia, long profundidadeMaxima,
+                                long esperaProdutorNanos, long esperaConsumidorNanos) {}
+
+    private static final Instant INICIO_EXECUCAO = Instant.now();
+    private static final List<Resultado> resultados = new ArrayList<>();
+    private static final List<ResultadoFila> filas = new ArrayList<>();
+
+    private Metricas() {
+    }
+
+    // arquivo == null indica a etapa como um todo
+    public static Medicao iniciar(String etapa, String arquivo) {
+        return new Medicao(etapa, arquivo);
+    }
+
+    public static Medicao iniciar(String etapa) {
+        return new Medicao(etapa, null);
+    }
+
+    public static synchronized List<Resultado> resultados() {
+        return new ArrayList<>(resultados);
+    }
+
+    private static synchronized void registrar(Resultado resultado) {
+        resultados.add(resultado);
+    }
+
+    public static synchronized void registrarFila(ResultadoFila fila) {
+        filas.add(fila);
+    }
+
+    public static synchronized List<ResultadoFila> filas() {
+        return new ArrayList<>(filas);
+    }
+
+    public static class Medicao implements AutoCloseable {
+        private final String etapa;
+        private final String arquivo;
+        private final Instant inicio = Instant.now();
+        private final long inicioNanos = System.nanoTime();
+        private final Thread thread = Thread.currentThread();
+        private final long alocadoInicio = alocadoNaThread();
+        private final EventoEtapa evento = new EventoEtapa();
+        private final AtomicLong linhasEntrada = new AtomicLong();
+        private final AtomicLong linhasSaida = new AtomicLong();
+        private final AtomicLong bytesLidos = new AtomicLong();
+        private final AtomicLong bytesGravados = new AtomicLong();
+        private final AtomicBoolean encerrada = new AtomicBoolean();
+
+        private Medicao(String etapa, String arquivo) {
+            this.etapa = etapa;
+            this.arquivo = arquivo;
+            evento.begin();
+        }
+
+        public Medicao linhasEntrada(long linhas) {
+            linhasEntrada.addAndGet(linhas);
+            return this;
+        }
+
+        public Medicao linhasSaida(long linhas) {
+            linhasSaida.addAndGet(linhas);
+            return this;
+        }
+
+        public Medicao bytesLidos(long bytes) {
+            bytesLidos.addAndGet(bytes);
+            return this;
+        }
+
+        public Medicao bytesGravados(long bytes) {
+            bytesGravados.addAndGet(bytes);
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (!encerrada.compareAndSet(false, true)) return;
+            long duracao = System.nanoTime() - inicioNanos;
+
+            // A alocacao so e medida quando a etapa termina na mesma thread em que comecou
+            long alocado = Thread.currentThread() == thread && alocadoInicio >= 0 ? alocadoNaThread() - alocadoInicio : -1;
+
+            evento.end();
+            if (evento.shouldCommit()) {
+                evento.etapa = etapa;
+                evento.arquivo = arquivo;
+                evento.linhasEntrada = linhasEntrada.get();
+                evento.linhasSaida = linhasSaida.get();
+                evento.bytesLidos = bytesLidos.get();
+                evento.bytesGravados = bytesGravados.get();
+                evento.commit();
+            }
+
+            registrar(new Resultado(etapa, arquivo, inicio, duracao, linhasEntrada.get(), linhasSaida.get(),
+                    bytesLidos.get(), bytesGravados.get(), alocado));
+        }
+    }
+
+    // Conta os bytes que passam por um stream (ex.: entrada de um ZIP, cujo tamanho nao e conhecido de antemao)
+    public static class ContadorBytes extends FilterInputStream {
+        private long total = 0;
+
+        public ContadorBytes(InputStream entrada) {
+            super(entrada);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) total++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int inicio, int tamanho) throws IOException {
+            int lidos = super.read(buffer, inicio, tamanho);
+            if (lidos > 0) total += lidos;
+            return lidos;
+        }
+
+        public long total() {
+            return total;
+        }
+    }
+
+    // Resumo legivel no console, uma linha por etapa: as medicoes por arquivo sao somadas e o tempo e o
+    // intervalo de parede entre a primeira que comecou e a ultima que terminou (downloads correm em paralelo)
+    public static void imprimirResumo() {
+        Map<String, Resultado> porEtapa = new LinkedHashMap<>();
+        for (Resultado r : resultados()) {
+            porEtapa.merge(r.etapa, r, Metricas::somar);
+        }
+
+        System.out.println("\nMETRICAS POR ETAPA");
+        for (Resultado r : porEtapa.values()) {
+            System.out.printf(Locale.ROOT, "   %-20s %9.1f ms  %10d -> %-10d linhas  %10.1f MB lidos  %10.1f MB gravados%n",
+                    r.etapa, r.duracaoNanos / 1e6, r.linhasEntrada, r.linhasSaida,
+                    r.bytesLidos / 1048576.0, r.bytesGravados / 1048576.0);
+        }
+
+        List<ResultadoFila> listaFilas = filas();
+        if (listaFilas.isEmpty()) return;
+        // Fila quase sempre cheia (produtor esperando): o gargalo e o estagio seguinte; quase vazia: o anterior
+        System.out.println("\nFILAS ENTRE ESTAGIOS (saida do estagio)");
+        for (ResultadoFila f : listaFilas) {
+            System.out.printf(Locale.ROOT, "   %-20s %8d itens  profundidade media %5.1f / max %d de %d  espera produtor %9.1f ms  consumidor %9.1f ms%n",
+                    f.nome, f.itens, f.profundidadeMedia, f.profundidadeMaxima, f.capacidade,
+                    f.esperaProdutorNanos / 1e6, f.esperaConsumidorNanos / 1e6);
+        }
+    }
+
+    private static Resultado somar(Resultado a, Resultado b) {
+        Instant inicio = a.inicio.isBefore(b.inicio) ? a.inicio : b.inicio;
+        Instant fimA = a.inicio.plusNanos(a.duracaoNanos);
+        Instant fimB = b.inicio.plusNanos(b.duracaoNanos);
+        long duracao = Duration.between(inicio, fimA.isAfter(fimB) ? fimA : fimB).toNanos();
+        long alocado = a.bytesAlocados < 0 || b.bytesAlocados < 0 ? -1 : a.bytesAlocados + b.bytesAlocados;
+        return new Resultado(a.etapa, null, inicio, duracao, a.linhasEntrada + b.linhasEntrada,
+                a.linhasSaida + b.linhasSaida, a.bytesLidos + b.bytesLidos, a.bytesGravados + b.bytesGravados, alocado);
+    }
+
+    public static void gravarRelatorio(File destino) throws IOException {
+        StringBuilder json = new StringBuilder(4096);
+        Instant fim = Instant.now();
+        json.append("{\n");
+        json.append("  \"inicio\": ").append(Json.texto(INICIO_EXECUCAO.toString())).append(",\n");
+        json.append("  \"fim\": ").append(Json.texto(fim.toString())).append(",\n");
+        json.append("  \"duracaoMs\": ").append(fim.toEpochMilli() - INICIO_EXECUCAO.toEpochMilli()).append(",\n");
+        json.append("  \"processadores\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"heapMaximoBytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+        json.append("  \"etapas\": [");
+
+        List<Resultado> lista = resultados();
+        for (int i = 0; i < lista.size(); i++) {
+            Resultado r = lista.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"etapa\": ").append(Json.texto(r.etapa))
+                    .append(", \"arquivo\": ").append(r.arquivo == null ? "null" : Json.texto(r.arquivo))
+                    .append(", \"inicio\": ").append(Json.texto(r.inicio.toString()))
+                    .append(", \"duracaoMs\": ").append(String.format(Locale.ROOT, "%.3f", r.duracaoNanos / 1e6))
+                    .append(", \"linhasEntrada\": ").append(r.linhasEntrada)
+                    .append(", \"linhasSaida\": ").append(r.linhasSaida)
+                    .append(", \"bytesLidos\": ").append(r.bytesLidos)
+                    .append(", \"bytesGravados\": ").append(r.bytesGravados)
+                    .append(", \"linhasPorSegundo\": ").append(String.format(Locale.ROOT, "%.1f", r.linhasPorSegundo()))
+                    .append(", \"bytesAlocados\": ").append(r.bytesAlocados < 0 ? "null" : String.valueOf(r.bytesAlocados))
+                    .append('}');
+        }
+        json.append(lista.isEmpty() ? "],\n" : "\n  ],\n");
+
+        json.append("  \"filas\": [");
+        List<ResultadoFila> listaFilas = filas();
+        for (int i = 0; i < listaFilas.size(); i++) {
+            ResultadoFila f = listaFilas.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"fila\": ").append(Json.texto(f.nome))
+                    .append(", \"capacidade\": ").append(f.capacidade)
+                    .append(", \"itens\": ").append(f.itens)
+                    .append(", \"profundidadeMedia\": ").append(String.format(Locale.ROOT, "%.2f", f.profundidadeMedia))
+                    .append(", \"profundidadeMaxima\": ").append(f.profundidadeMaxima)
+                    .append(", \"esperaProdutorMs\": ").append(String.format(Locale.ROOT, "%.3f", f.esperaProdutorNanos / 1e6))
+                    .append(", \"esperaConsumidorMs\": ").append(String.format(Locale.ROOT, "%.3f", f.esperaConsumidorNanos / 1e6))
+                    .append('}');
+        }
+        json.append(listaFilas.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+
+        File temporario = new File(destino.getPath() + ".tmp");
+        Files.writeString(temporario.toPath(), json, StandardCharsets.UTF_8);
+        Files.move(temporario.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long alocadoNaThread() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+            return bean.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,408 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipFile;
+
+// Downloads concorrentes, retomaveis (HTTP Range) e condicionais (ETag / Last-Modified).
+// O arquivo e baixado para "<destino>.part" e so vira "<destino>" depois de conferido o tamanho e,
+// para ZIPs, o diretorio central. Os metadados da versao baixada ficam em "<destino>.meta".
+// O timeout vale para os cabecalhos e, pelo vigia, para cada pausa na leitura do corpo.
+public class MotorDownload implements AutoCloseable {
+
+    private static final String SUFIXO_PARCIAL = ".part";
+    private static final String SUFIXO_META = ".meta";
+
+    private final HttpClient cliente;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService vigia;
+    private final Duration timeoutLeitura;
+    private final int tentativas;
+    private final Map<String, CompletableFuture<File>> agendados = new ConcurrentHashMap<>();
+
+    public MotorDownload(int paralelismo, Duration timeout, int tentativas) {
+        this.executor = Executors.newFixedThreadPool(paralelismo, tarefa -> {
+            Thread thread = new Thread(tarefa, "download");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.vigia = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "vigia-download");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timeoutLeitura = timeout;
+        this.tentativas = tentativas;
+        this.cliente = HttpClient.newBuilder()
+                .connectTimeout(timeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    public MotorDownload() {
+        this(4, Duration.ofSeconds(30), 3);
+    }
+
+    // Agenda o download; chamadas repetidas para o mesmo destino reaproveitam o mesmo resultado na execucao
+    // (um download que falhou pode ser agendado de novo, ex.: com outra URL)
+    public CompletableFuture<File> agendar(String url, File destino) {
+        return agendar(url, destino, null);
+    }
+
+    // Variante condicional para quando o destino nao existe mais: os validadores ("etag", "lastModified") vem de
+    // quem guardou o conteudo ja interpretado (ex.: SnapshotCadastro). Completa com null se a origem nao mudou.
+    public CompletableFuture<File> agendar(String url, File destino, Properties validadores) {
+        String chave = destino.getAbsolutePath();
+        return agendados.compute(chave, (k, atual) -> atual != null && !atual.isCompletedExceptionally() ? atual
+                : CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return baixarComTentativas(url, destino, validadores);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+    }
+
+    public File baixar(String url, File destino) throws IOException {
+        return aguardar(agendar(url, destino));
+    }
+
+    public static File aguardar(CompletableFuture<File> futuro) throws IOException {
+        try {
+            return futuro.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        vigia.shutdownNow();
+    }
+
+    // Status 4xx (exceto 408 e 429) nao melhoram com novas tentativas
+    public static class FalhaDefinitiva extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        FalhaDefinitiva(int status, String mensagem) {
+            super(mensagem);
+            this.status = status;
+        }
+
+        public int status() {
+            return status;
+        }
+    }
+
+    // Bytes lidos da rede em todas as tentativas (zero quando o servidor responde 304)
+    private File baixarComTentativas(String url, File destino, Properties validadores) throws IOException {
+        try (Metricas.Medicao medicao = Metricas.iniciar("download", destino.getName())) {
+            IOException ultimaFalha = null;
+            for (int tentativa = 1; tentativa <= tentativas; tentativa++) {
+                try {
+                    return baixarUmaVez(url, destino, validadores, medicao);
+                } catch (FalhaDefinitiva e) {
+                    throw e;
+                } catch (IOException e) {
+                    ultimaFalha = e;
+                    System.err.println("Falha ao baixar " + destino.getName() + " (tentativa " + tentativa + "/" + tentativas + "): " + e.getMessage());
+                    if (tentativa < tentativas) esperar(1000L << (tentativa - 1));
+                }
+            }
+            throw ultimaFalha;
+        }
+    }
+
+    private File baixarUmaVez(String url, File destino, Properties validadores, Metricas.Medicao medicao) throws IOException {
+        File parcial = new File(destino.getPath() + SUFIXO_PARCIAL);
+        File arquivoMeta = new File(destino.getPath() + SUFIXO_META);
+        File metaParcial = new File(parcial.getPath() + SUFIXO_META);
+        if (destino.getParentFile() != null) destino.getParentFile().mkdirs();
+
+        Properties meta = lerMeta(arquivoMeta);
+        boolean completo = destino.exists() && meta != null
+                && String.valueOf(destino.length()).equals(meta.getProperty("tamanho"));
+
+        if (destino.exists() && !completo) {
+            // Arquivo sem metadados validos (ex.: sobra de uma execucao interrompida): vira parcial e e retomado
+            if (!parcial.exists() || parcial.length() < destino.length()) {
+                Files.move(destino.toPath(), parcial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(destino.toPath());
+            }
+            Files.deleteIfExists(arquivoMeta.toPath());
+        }
+
+        HttpRequest.Builder requisicao = HttpRequest.newBuilder(URI.create(url)).timeout(timeoutLeitura).GET();
+        Properties metaRetomada = lerMeta(metaParcial);
+        long jaBaixado = parcial.exists() ? parcial.length() : 0;
+
+        // Sem copia local completa, os validadores externos fazem o papel do .meta
+        Properties condicional = completo ? meta : jaBaixado == 0 ? validadores : null;
+        if (condicional != null) {
+            if (condicional.getProperty("etag") != null) requisicao.header("If-None-Match", condicional.getProperty("etag"));
+            if (condicional.getProperty("lastModified") != null) requisicao.header("If-Modified-Since", condicional.getProperty("lastModified"));
+        } else if (jaBaixado > 0) {
+            requisicao.header("Range", "bytes=" + jaBaixado + "-");
+            String validador = metaRetomada == null ? null : Optional.ofNullable(metaRetomada.getProperty("etag"))
+                    .orElse(metaRetomada.getProperty("lastModified"));
+            if (validador != null) requisicao.header("If-Range", validador);
+        }
+
+        HttpResponse<InputStream> resposta = enviar(requisicao.build());
+        int status = resposta.statusCode();
+
+        if (status == 206 && inicioContentRange(resposta) != jaBaixado) {
+            // Intervalo diferente do pedido: anexar corromperia o arquivo, entao o download recomeca do zero
+            resposta.body().close();
+            if (jaBaixado == 0) throw new IOException("Intervalo inesperado do servidor: " + resposta.headers().firstValue("Content-Range").orElse(""));
+            System.err.println("Servidor nao retomou a partir de " + jaBaixado + " bytes, reiniciando download: " + destino.getName());
+            Files.deleteIfExists(parcial.toPath());
+            Files.deleteIfExists(metaParcial.toPath());
+            return baixarUmaVez(url, destino, validadores, medicao);
+        }
+
+        try (InputStream corpo = resposta.body()) {
+            if (status == 304 && completo) {
+                System.out.println("Arquivo inalterado no servidor: " + destino.getName());
+                return destino;
+            }
+            if (completo && status == 200 && !mudou(meta, resposta)) {
+                // Servidor sem suporte a requisicao condicional, mas com os mesmos validadores
+                System.out.println("Arquivo ja baixado: " + destino.getName());
+                return destino;
+            }
+            if (condicional != null && !completo && (status == 304 || status == 200 && !mudou(condicional, resposta))) {
+                System.out.println("Origem inalterada, nada a baixar: " + destino.getName());
+                return null;
+            }
+
+            long tamanhoEsperado;
+            if (status == 206) {
+                System.out.println("Retomando download: " + destino.getName() + " a partir de " + jaBaixado + " bytes");
+                tamanhoEsperado = tamanhoTotalContentRange(resposta);
+                medicao.bytesLidos(copiar(corpo, parcial, true));
+            } else if (status == 200) {
+                System.out.println("Baixando: " + destino.getName());
+                salvarMeta(metaParcial, url, resposta, -1, null);
+                tamanhoEsperado = resposta.headers().firstValueAsLong("Content-Length").orElse(-1);
+                medicao.bytesLidos(copiar(corpo, parcial, false));
+            } else if (status == 416 && jaBaixado > 0) {
+                // O parcial ja tem todos os bytes (ex.: falha logo depois do download)
+                tamanhoEsperado = tamanhoTotalContentRange(resposta);
+                if (tamanhoEsperado != jaBaixado) {
+                    Files.deleteIfExists(parcial.toPath());
+                    throw new IOException("Parcial inconsistente com o servidor, reiniciando download");
+                }
+            } else if (status >= 400 && status < 500 && status != 408 && status != 429) {
+                throw new FalhaDefinitiva(status, "HTTP " + status + " em " + url);
+            } else {
+                throw new IOException("HTTP " + status + " em " + url);
+            }
+
+            if (tamanhoEsperado >= 0 && parcial.length() != tamanhoEsperado) {
+                throw new IOException("Download incompleto: " + parcial.length() + " de " + tamanhoEsperado + " bytes");
+            }
+            verificarIntegridade(parcial, destino.getName());
+
+            String hash = sha256(parcial);
+            Files.move(parcial.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Properties origem = lerMeta(metaParcial);
+            salvarMeta(arquivoMeta, url, resposta, destino.length(), hash, origem);
+            Files.deleteIfExists(metaParcial.toPath());
+            System.out.println("Download concluido: " + destino.getName() + " (" + destino.length() + " bytes)");
+            return destino;
+        }
+    }
+
+    private HttpResponse<InputStream> enviar(HttpRequest requisicao) throws IOException {
+        try {
+            return cliente.send(requisicao, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrompido");
+        }
+    }
+
+    private static boolean mudou(Properties meta, HttpResponse<?> resposta) {
+        Optional<String> etag = resposta.headers().firstValue("ETag");
+        Optional<String> lastModified = resposta.headers().firstValue("Last-Modified");
+        if (etag.isEmpty() && lastModified.isEmpty()) return true;
+        return !Objects.equals(etag.orElse(null), meta.getProperty("etag"))
+                || !Objects.equals(lastModified.orElse(null), meta.getProperty("lastModified"));
+    }
+
+    // Primeiro byte do intervalo ("bytes 100-199/200" -> 100); -1 se ausente ou invalido
+    private static long inicioContentRange(HttpResponse<?> resposta) {
+        String contentRange = resposta.headers().firstValue("Content-Range").orElse("").trim();
+        int espaco = contentRange.indexOf(' ');
+        int hifen = contentRange.indexOf('-', espaco + 1);
+        if (!contentRange.startsWith("bytes ") || hifen < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(espaco + 1, hifen).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long tamanhoTotalContentRange(HttpResponse<?> resposta) {
+        // Formato: "bytes 100-199/200" ou "bytes */200"
+        String contentRange = resposta.headers().firstValue("Content-Range").orElse("");
+        int barra = contentRange.lastIndexOf('/');
+        if (barra < 0 || contentRange.endsWith("*")) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(barra + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private long copiar(InputStream corpo, File parcial, boolean anexar) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        long total = 0;
+        Vigia vigiaLeitura = new Vigia(corpo);
+        boolean expirou;
+        try (OutputStream out = new FileOutputStream(parcial, anexar)) {
+            int lidos;
+            while ((lidos = corpo.read(buffer)) != -1) {
+                out.write(buffer, 0, lidos);
+                total += lidos;
+                vigiaLeitura.progresso();
+            }
+        } catch (IOException e) {
+            if (vigiaLeitura.encerrar()) throw new IOException("Sem dados do servidor por " + timeoutLeitura.toSeconds() + "s", e);
+            throw e;
+        } finally {
+            expirou = vigiaLeitura.encerrar();
+        }
+        if (expirou) throw new IOException("Sem dados do servidor por " + timeoutLeitura.toSeconds() + "s");
+        return total;
+    }
+
+    // Interrompe a leitura do corpo (fecha o stream e interrompe a thread) quando ela passa timeoutLeitura sem
+    // receber bytes; sem isso, um servidor que para no meio do corpo prende a thread para sempre
+    private final class Vigia {
+        private final Thread leitor = Thread.currentThread();
+        private final InputStream corpo;
+        private final ScheduledFuture<?> verificacao;
+        private volatile long ultimoProgresso = System.nanoTime();
+        private boolean encerrado = false;
+        private boolean expirou = false;
+
+        Vigia(InputStream corpo) {
+            this.corpo = corpo;
+            long intervalo = Math.max(50, timeoutLeitura.toMillis() / 4);
+            this.verificacao = vigia.scheduleWithFixedDelay(this::verificar, intervalo, intervalo, TimeUnit.MILLISECONDS);
+        }
+
+        void progresso() {
+            ultimoProgresso = System.nanoTime();
+        }
+
+        private synchronized void verificar() {
+            if (encerrado || System.nanoTime() - ultimoProgresso < timeoutLeitura.toNanos()) return;
+            expirou = true;
+            encerrado = true;
+            leitor.interrupt();
+            try {
+                corpo.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // Para a verificacao; se o vigia disparou, limpa a interrupcao que ele deixou na thread
+        synchronized boolean encerrar() {
+            encerrado = true;
+            verificacao.cancel(false);
+            if (expirou) Thread.interrupted();
+            return expirou;
+        }
+    }
+
+    private static void verificarIntegridade(File arquivo, String nomeFinal) throws IOException {
+        if (!nomeFinal.toLowerCase().endsWith(".zip")) return;
+        try (ZipFile zip = new ZipFile(arquivo)) {
+            if (zip.size() == 0) throw new IOException("ZIP vazio: " + nomeFinal);
+        } catch (IOException e) {
+            Files.deleteIfExists(arquivo.toPath());
+            throw new IOException("ZIP corrompido: " + nomeFinal + " -> " + e.getMessage(), e);
+        }
+    }
+
+    static String sha256(File arquivo) throws IOException {
+        try (InputStream in = new FileInputStream(arquivo)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            int lidos;
+            while ((lidos = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, lidos);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Metadados (url, etag, lastModified, tamanho, sha256) da ultima versao completa de "destino", ou null
+    public static Properties metadados(File destino) {
+        return lerMeta(new File(destino.getPath() + SUFIXO_META));
+    }
+
+    private static Properties lerMeta(File arquivo) {
+        if (!arquivo.exists()) return null;
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(arquivo)) {
+            props.load(in);
+            return props;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void salvarMeta(File arquivo, String url, HttpResponse<?> resposta, long tamanho, String hash) throws IOException {
+        salvarMeta(arquivo, url, resposta, tamanho, hash, null);
+    }
+
+    private static void salvarMeta(File arquivo, String url, HttpResponse<?> resposta, long tamanho, String hash,
+                                   Properties anterior) throws IOException {
+        Properties props = new Properties();
+        if (anterior != null) props.putAll(anterior);
+        props.setProperty("url", url);
+        if (resposta != null) {
+            resposta.headers().firstValue("ETag").ifPresent(v -> props.setProperty("etag", v));
+            resposta.headers().firstValue("Last-Modified").ifPresent(v -> props.setProperty("lastModified", v));
+        }
+        if (tamanho >= 0) props.setProperty("tamanho", String.valueOf(tamanho));
+        if (hash != null) props.setProperty("sha256", hash);
+
+        Path temporario = Path.of(arquivo.getPath() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporario)) {
+            props.store(out, null);
+        }
+        Files.move(temporario, arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void esperar(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download interrompido");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.intuitivecare.ans;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class OpcoesExecucao {
+
+    private final Map<String, String> opcoes;
+
+    private OpcoesExecucao(Map<String, String> opcoes) {
+        this.opcoes = opcoes;
+    }
+
+    // Aceita argumentos no formato --chave=valor ou --flag
+    public static OpcoesExecucao deArgumentos(String[] args) {
+        Map<String, String> mapa = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) continue;
+            String semPrefixo = arg.substring(2);
+            int igual = semPrefixo.indexOf('=');
+            if (igual < 0) {
+                mapa.put(semPrefixo, "true");
+            } else {
+                mapa.put(semPrefixo.substring(0, igual), semPrefixo.substring(igual + 1));
+            }
+        }
+        return new OpcoesExecucao(mapa);
+    }
+
+    public boolean temFlag(String nome) {
+        return Boolean.parseBoolean(opcoes.getOrDefault(nome, "false"));
+    }
+
+    // Opcoes presentes e diferentes de "false", na ordem dada (inclui --chave=valor, ex.: --distribuido=pasta)
+    public List<String> ativas(List<String> nomes) {
+        List<String> ativas = new ArrayList<>();
+        for (String nome : nomes) {
+            String valor = opcoes.get(nome);
+            if (valor != null && !"false".equals(valor)) ativas.add(nome);
+        }
+        return ativas;
+    }
+
+    public String valor(String nome, String padrao) {
+        return opcoes.getOrDefault(nome, padrao);
+    }
+
+    public int valorInt(String nome, int padrao) {
+        String valor = opcoes.get(nome);
+        if (valor == null) return padrao;
+        try {
+            return Integer.parseInt(valor);
+        } catch (NumberFormatException e) {
+            System.err.println("Valor invalido para --" + nome + ": " + valor + " (usando " + padrao + ")");
+            return padrao;
+        }
+    }
+}
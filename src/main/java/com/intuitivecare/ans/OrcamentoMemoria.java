@@ -0,0 +1,74 @@
+package com.intuitivecare.ans;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Memoria que as estruturas capazes de transbordar para o disco (GruposTransbordaveis, OrdenacaoExterna) podem ocupar,
+// somadas. Cada estrutura reserva em blocos e, quando o orcamento acaba, grava o que tem em disco e devolve a
+// sua reserva; assim agrupamentos parciais em paralelo dividem o mesmo limite e o heap fica fixo.
+// Uma estrutura com menos de um bloco nao transborda (excede o limite em no maximo um bloco por estrutura),
+// para que muitos parciais pequenos nao virem milhares de particoes minusculas.
+// Os tamanhos sao estimativas (chaves + objetos), nao medidas exatas.
+public final class OrcamentoMemoria {
+
+    private static final long BLOCO_MAXIMO = 1 << 20;
+
+    private static volatile OrcamentoMemoria padrao = new OrcamentoMemoria(Runtime.getRuntime().maxMemory() / 4, null);
+
+    private final long limite;
+    private final long bloco;
+    private final AtomicLong usado = new AtomicLong();
+    private final File pastaTemporaria;
+
+    public OrcamentoMemoria(long limiteBytes, File pastaTemporaria) {
+        this.limite = limiteBytes;
+        this.bloco = Math.max(4096, Math.min(BLOCO_MAXIMO, limiteBytes / 64));
+        this.pastaTemporaria = pastaTemporaria;
+    }
+
+    // Orcamento usado por padrao (--memoria-agregacao-mb, --pasta-temporaria)
+    public static OrcamentoMemoria padrao() {
+        return padrao;
+    }
+
+    public static void configurarPadrao(OrcamentoMemoria orcamento) {
+        padrao = orcamento;
+    }
+
+    public long limite() {
+        return limite;
+    }
+
+    // Reserva ao menos "bytes" (em blocos, para nao disputar o contador a cada grupo); retorna o reservado ou 0
+    public long reservar(long bytes) {
+        long pedido = Math.max(bytes, bloco);
+        while (true) {
+            long atual = usado.get();
+            if (atual + pedido > limite) {
+                // Sem folga para um bloco inteiro: tenta so o necessario
+                if (pedido == bytes || atual + bytes > limite) return 0;
+                pedido = bytes;
+                continue;
+            }
+            if (usado.compareAndSet(atual, atual + pedido)) return pedido;
+        }
+    }
+
+    // Abaixo disso (bytes em uso pela estrutura) nao vale gravar uma particao
+    public long bloco() {
+        return bloco;
+    }
+
+    public void liberar(long bytes) {
+        if (bytes > 0) usado.addAndGet(-bytes);
+    }
+
+    // Arquivo para uma particao ordenada em disco; quem o cria apaga (descartar() da estrutura dona, num finally)
+    File novoArquivoTemporario(String prefixo) throws IOException {
+        return pastaTemporaria == null
+                ? Files.createTempFile(prefixo, ".run").toFile()
+                : Files.createTempFile(pastaTemporaria.toPath(), prefixo, ".run").toFile();
+    }
+}
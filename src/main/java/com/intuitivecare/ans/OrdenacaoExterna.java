@@ -0,0 +1,198 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+// Ordenacao limitada pelo OrcamentoMemoria: os itens ficam numa lista ate o orcamento acabar; entao a lista e
+// ordenada e gravada como uma particao ("run") em disco. No percorrer(), a lista restante e as particoes sao
+// intercaladas (k-way merge com um heap), lendo cada particao em sequencia. Sem transbordo, e um sort comum.
+// Com mais de MAXIMO_INTERCALADAS particoes, grupos delas sao intercalados antes em particoes maiores, para nao
+// abrir arquivos demais de uma vez.
+public class OrdenacaoExterna<T> {
+
+    public interface Serializador<T> {
+        void gravar(DataOutputStream out, T item) throws IOException;
+
+        T ler(DataInputStream in) throws IOException;
+
+        // Bytes aproximados do item em memoria
+        long tamanhoEstimado(T item);
+    }
+
+    public interface Consumidor<T> {
+        void aceitar(T item) throws IOException;
+    }
+
+    private static final int MAXIMO_INTERCALADAS = 64;
+
+    private final Comparator<T> ordem;
+    private final Serializador<T> serializador;
+    private final OrcamentoMemoria orcamento;
+    private final String etapa;
+    private List<T> memoria = new ArrayList<>();
+    private final List<File> particoes = new ArrayList<>();
+    private long reservado = 0;
+    private long usado = 0;
+    private long itens = 0;
+
+    public OrdenacaoExterna(Comparator<T> ordem, Serializador<T> serializador, OrcamentoMemoria orcamento, String etapa) {
+        this.ordem = ordem;
+        this.serializador = serializador;
+        this.orcamento = orcamento;
+        this.etapa = etapa;
+    }
+
+    public void adicionar(T item) throws IOException {
+        long tamanho = serializador.tamanhoEstimado(item);
+        if (usado + tamanho > reservado) {
+            long extra = orcamento.reservar(tamanho);
+            if (extra == 0 && usado >= orcamento.bloco()) {
+                transbordar();
+                extra = orcamento.reservar(tamanho);
+            }
+            reservado += extra;
+        }
+        memoria.add(item);
+        usado += tamanho;
+        itens++;
+    }
+
+    public long itens() {
+        return itens;
+    }
+
+    public int particoes() {
+        return particoes.size();
+    }
+
+    // Entrega os itens em ordem e libera memoria e particoes; a ordenacao nao pode ser reaproveitada
+    public void percorrer(Consumidor<T> consumidor) throws IOException {
+        memoria.sort(ordem);
+        try {
+            intercalar(particoes, memoria, ordem, serializador, orcamento, consumidor);
+        } finally {
+            descartar();
+        }
+    }
+
+    public void descartar() {
+        memoria = new ArrayList<>();
+        orcamento.liberar(reservado);
+        reservado = 0;
+        usado = 0;
+        for (File particao : particoes) particao.delete();
+        particoes.clear();
+    }
+
+    private void transbordar() throws IOException {
+        memoria.sort(ordem);
+        particoes.add(gravarParticao(memoria, serializador, orcamento, etapa));
+        memoria = new ArrayList<>();
+        orcamento.liberar(reservado);
+        reservado = 0;
+        usado = 0;
+    }
+
+    // Grava itens ja ordenados; cada item vem precedido de true e a particao termina com false
+    static <T> File gravarParticao(Collection<T> ordenados, Serializador<T> serializador, OrcamentoMemoria orcamento,
+                                   String etapa) throws IOException {
+        File arquivo = orcamento.novoArquivoTemporario("ans-" + etapa + "-");
+        boolean gravada = false;
+        try (Metricas.Medicao medicao = Metricas.iniciar("transbordo", etapa).linhasSaida(ordenados.size());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(arquivo.toPath()), 1 << 16))) {
+            for (T item : ordenados) {
+                out.writeBoolean(true);
+                serializador.gravar(out, item);
+            }
+            out.writeBoolean(false);
+            out.flush();
+            medicao.bytesGravados(out.size());
+            gravada = true;
+        } finally {
+            if (!gravada) arquivo.delete();
+        }
+        return arquivo;
+    }
+
+    private static final class Cursor<T> {
+        private final int indice;
+        private final DataInputStream entrada;
+        private final Iterator<T> memoria;
+        private T atual;
+
+        Cursor(int indice, DataInputStream entrada, Iterator<T> memoria) {
+            this.indice = indice;
+            this.entrada = entrada;
+            this.memoria = memoria;
+        }
+
+        boolean avancar(Serializador<T> serializador) throws IOException {
+            if (memoria != null) {
+                atual = memoria.hasNext() ? memoria.next() : null;
+            } else {
+                atual = entrada.readBoolean() ? serializador.ler(entrada) : null;
+            }
+            return atual != null;
+        }
+    }
+
+    // k-way merge das particoes e da lista em memoria (ja ordenada); empates saem na ordem das particoes.
+    // Particoes em excesso sao intercaladas antes e substituidas, na propria lista, pelo resultado.
+    static <T> void intercalar(List<File> particoes, List<T> memoria, Comparator<T> ordem, Serializador<T> serializador,
+                               OrcamentoMemoria orcamento, Consumidor<T> consumidor) throws IOException {
+        if (particoes.isEmpty()) {
+            for (T item : memoria) consumidor.aceitar(item);
+            return;
+        }
+        while (particoes.size() > MAXIMO_INTERCALADAS) {
+            List<File> grupo = particoes.subList(0, MAXIMO_INTERCALADAS);
+            File unida = orcamento.novoArquivoTemporario("ans-intercalacao-");
+            boolean gravada = false;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(unida.toPath()), 1 << 16))) {
+                intercalarCursores(grupo, List.of(), ordem, serializador, item -> {
+                    out.writeBoolean(true);
+                    serializador.gravar(out, item);
+                });
+                out.writeBoolean(false);
+                gravada = true;
+            } finally {
+                // As particoes do grupo continuam na lista e sao apagadas por quem a possui
+                if (!gravada) unida.delete();
+            }
+            for (File particao : grupo) particao.delete();
+            grupo.clear();
+            particoes.add(unida);
+        }
+        intercalarCursores(particoes, memoria, ordem, serializador, consumidor);
+    }
+
+    private static <T> void intercalarCursores(List<File> particoes, List<T> memoria, Comparator<T> ordem,
+                                               Serializador<T> serializador, Consumidor<T> consumidor) throws IOException {
+        List<Cursor<T>> cursores = new ArrayList<>(particoes.size() + 1);
+        try {
+            for (File particao : particoes) {
+                cursores.add(new Cursor<>(cursores.size(),
+                        new DataInputStream(new BufferedInputStream(Files.newInputStream(particao.toPath()), 1 << 16)), null));
+            }
+            cursores.add(new Cursor<>(cursores.size(), null, memoria.iterator()));
+
+            PriorityQueue<Cursor<T>> heap = new PriorityQueue<>(cursores.size(), (a, b) -> {
+                int comparacao = ordem.compare(a.atual, b.atual);
+                return comparacao != 0 ? comparacao : Integer.compare(a.indice, b.indice);
+            });
+            for (Cursor<T> cursor : cursores) {
+                if (cursor.avancar(serializador)) heap.add(cursor);
+            }
+            while (!heap.isEmpty()) {
+                Cursor<T> menor = heap.poll();
+                consumidor.aceitar(menor.atual);
+                if (menor.avancar(serializador)) heap.add(menor);
+            }
+        } finally {
+            for (Cursor<T> cursor : cursores) {
+                if (cursor.entrada != null) cursor.entrada.close();
+            }
+        }
+    }
+}
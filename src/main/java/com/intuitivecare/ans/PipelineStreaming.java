@@ -0,0 +1,162 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+
+// Pipeline de passada unica: cada despesa filtrada passa pela auditoria, pelo join com o cadastro,
+// pela agregacao e pelo escritor no momento em que e lida, sem lista intermediaria nem releitura de arquivos.
+public class PipelineStreaming {
+
+    // Estado acumulado ao processar uma fonte; parciais de fontes diferentes podem ser mesclados e guardados
+    public static class ResultadoParcial {
+        private Auditoria.Contadores auditoria = new Auditoria.Contadores();
+        private ServicoAgregacao.Agrupamento agrupamento = new ServicoAgregacao.Agrupamento();
+        private int linhas = 0;
+        private int semMatch = 0;
+        private int cnpjInvalido = 0;
+        // Conjuntos de agrupamento extras (--cubo); null se desligado
+        private CuboDespesas cubo;
+
+        public ResultadoParcial() {
+        }
+
+        public ResultadoParcial(CuboDespesas.Configuracao configuracaoCubo) {
+            if (configuracaoCubo != null) cubo = new CuboDespesas(configuracaoCubo);
+        }
+
+        public void mesclar(ResultadoParcial outro) {
+            auditoria.mesclar(outro.auditoria);
+            agrupamento.mesclar(outro.agrupamento);
+            if (cubo == null) cubo = outro.cubo;
+            else if (outro.cubo != null) cubo.mesclar(outro.cubo);
+            outro.cubo = null;
+            linhas += outro.linhas;
+            semMatch += outro.semMatch;
+            cnpjInvalido += outro.cnpjInvalido;
+        }
+
+        public void gravar(DataOutputStream out) throws IOException {
+            out.writeInt(linhas);
+            out.writeInt(semMatch);
+            out.writeInt(cnpjInvalido);
+            auditoria.gravar(out);
+            agrupamento.gravar(out);
+            out.writeBoolean(cubo != null);
+            if (cubo != null) cubo.gravar(out);
+        }
+
+        public static ResultadoParcial ler(DataInputStream in) throws IOException {
+            ResultadoParcial parcial = new ResultadoParcial();
+            parcial.linhas = in.readInt();
+            parcial.semMatch = in.readInt();
+            parcial.cnpjInvalido = in.readInt();
+            parcial.auditoria = Auditoria.Contadores.ler(in);
+            parcial.agrupamento = ServicoAgregacao.Agrupamento.ler(in);
+            if (in.readBoolean()) parcial.cubo = CuboDespesas.ler(in);
+            return parcial;
+        }
+
+        public int linhas() {
+            return linhas;
+        }
+
+        // Libera a memoria e apaga as particoes em disco do agrupamento e do cubo
+        public void descartar() {
+            agrupamento.descartar();
+            if (cubo != null) cubo.descartar();
+        }
+
+        // Relatorios finais: auditoria, totais do enriquecimento, despesas agregadas e os conjuntos do cubo
+        public void concluir(DestinoSaida destino, String nomeAgregado) throws IOException {
+            System.out.println("\n --- INICIANDO AUDITORIA DE DADOS ---");
+            auditoria.imprimirRelatorio();
+
+            System.out.println("Enriquecimento concluido!");
+            System.out.println("   - Linhas processadas: " + linhas);
+            System.out.println("   - Registros sem match no cadastro: " + semMatch);
+            System.out.println("   - Registros com CNPJ invalido no cadastro: " + cnpjInvalido);
+
+            try {
+                new ServicoAgregacao().gerarRelatorioEstatistico(agrupamento, destino, nomeAgregado);
+                if (cubo != null) cubo.gravarSaidas(destino);
+            } finally {
+                descartar();
+            }
+        }
+    }
+
+    private final ServicoEnriquecimento enriquecedor;
+    private final CuboDespesas.Configuracao configuracaoCubo;
+
+    public PipelineStreaming(ServicoEnriquecimento enriquecedor) {
+        this(enriquecedor, null);
+    }
+
+    // configuracaoCubo: conjuntos de agrupamento calculados na mesma passada (--cubo); null para nenhum
+    public PipelineStreaming(ServicoEnriquecimento enriquecedor, CuboDespesas.Configuracao configuracaoCubo) {
+        this.enriquecedor = enriquecedor;
+        this.configuracaoCubo = configuracaoCubo;
+    }
+
+    public void executar(FonteDespesas fonte, String arquivoEnriquecido, String arquivoAgregado) throws IOException {
+        executar(fonte, DestinoSaida.arquivos(), arquivoEnriquecido, arquivoAgregado);
+    }
+
+    // Os dois arquivos finais sao gravados no destino (ex.: direto nas entradas do ZIP final) enquanto sao produzidos
+    public void executar(FonteDespesas fonte, DestinoSaida destino, String nomeEnriquecido, String nomeAgregado) throws IOException {
+        System.out.println("INICIANDO PIPELINE EM STREAMING");
+
+        IndiceCadastro cadastro = enriquecedor.prepararCadastro();
+
+        ResultadoParcial resultado = null;
+        try {
+            try (Metricas.Medicao medicao = Metricas.iniciar("pipeline", nomeEnriquecido);
+                 CodificadorCSV saida = ServicoEnriquecimento.abrirSaida(destino.abrir(nomeEnriquecido))) {
+                resultado = processar(fonte, cadastro, saida, configuracaoCubo);
+                medicao.linhasEntrada(resultado.linhas()).linhasSaida(resultado.linhas());
+            }
+            resultado.concluir(destino, nomeAgregado);
+        } finally {
+            if (resultado != null) resultado.descartar();
+        }
+    }
+
+    // Audita, enriquece (gravando em "saida") e agrupa cada despesa produzida pela fonte, tambem nos
+    // conjuntos do cubo se configuracaoCubo nao for null
+    public static ResultadoParcial processar(FonteDespesas fonte, IndiceCadastro cadastro,
+                                             CodificadorCSV saida, CuboDespesas.Configuracao configuracaoCubo) throws IOException {
+        ResultadoParcial resultado = new ResultadoParcial(configuracaoCubo);
+        IndiceCadastro.Consulta consulta = cadastro.consulta();
+
+        try {
+            resultado.linhas = fonte.produzir(despesa -> {
+                long valor = despesa.valorCentavos;
+
+                resultado.auditoria.registrar(despesa.regAns, valor);
+
+                ServicoEnriquecimento.DadosCadastrais infoExtra = consulta.buscar(despesa.data, despesa.regAns);
+                try {
+                    boolean encontrado = ServicoEnriquecimento.imprimirLinhaEnriquecida(saida,
+                            despesa.data, despesa.regAns, despesa.codigoConta, despesa.descricao, valor, infoExtra);
+                    if (!encontrado) resultado.semMatch++;
+                    else if (!infoExtra.cnpjValido()) resultado.cnpjInvalido++;
+                } catch (IOException e) {
+                    throw new ProcessadorCSV.FalhaConsumidor(e);
+                }
+
+                String razao = infoExtra != null ? infoExtra.razaoSocial() : ServicoEnriquecimento.RAZAO_NAO_ENCONTRADA;
+                String uf = infoExtra != null ? infoExtra.uf() : "";
+                resultado.agrupamento.adicionar(razao, uf, valor);
+                if (resultado.cubo != null) {
+                    resultado.cubo.adicionar(despesa.data, despesa.regAns, despesa.codigoConta, infoExtra, valor);
+                }
+            });
+        } catch (ProcessadorCSV.FalhaConsumidor e) {
+            resultado.descartar();
+            throw new IOException("Erro ao gravar saida enriquecida", e.getCause());
+        } catch (IOException | RuntimeException e) {
+            resultado.descartar();
+            throw e;
+        }
+        return resultado;
+    }
+}
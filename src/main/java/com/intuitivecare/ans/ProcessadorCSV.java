@@ -5,59 +5,349 @@ import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 public class ProcessadorCSV {
 
+    private static final String[] COLUNAS = {"DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO", "VL_SALDO_FINAL"};
+    private static final int COL_DATA = 0, COL_REG_ANS = 1, COL_CONTA = 2, COL_DESCRICAO = 3, COL_VALOR = 4;
+
+    private final boolean usarTokenizador;
+    private final ClassificadorDespesas classificador;
+
+    // usarTokenizador=false mantem o caminho original via Commons CSV (comparacao e depuracao)
+    public ProcessadorCSV(boolean usarTokenizador, ClassificadorDespesas classificador) {
+        this.usarTokenizador = usarTokenizador;
+        this.classificador = classificador;
+    }
+
+    public ProcessadorCSV(boolean usarTokenizador) {
+        this(usarTokenizador, ClassificadorDespesas.PADRAO);
+    }
+
+    public ProcessadorCSV() {
+        this(true);
+    }
+
     public static class DadosDespesa {
         public String data;
         public String regAns;
         public String codigoConta;
         public String descricao;
-        public double valor;
+        public long valorCentavos;
 
-        public DadosDespesa(String data, String regAns, String codigoConta, String descricao, double valor) {
+        public DadosDespesa(String data, String regAns, String codigoConta, String descricao, long valorCentavos) {
             this.data = data;
             this.regAns = regAns;
             this.codigoConta = codigoConta;
             this.descricao = descricao;
-            this.valor = valor;
+            this.valorCentavos = valorCentavos;
+        }
+    }
+
+    // Falha do consumidor (ex.: escrita da saida); nao e tratada como erro de leitura do CSV
+    public static class FalhaConsumidor extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public FalhaConsumidor(Throwable causa) {
+            super(causa);
         }
     }
 
-    public List<DadosDespesa> processarArquivo(File arquivo) {
+    public List<DadosDespesa> processarArquivo(File arquivo) throws IOException {
         List<DadosDespesa> listaFiltrada = new ArrayList<>();
+        processarArquivo(arquivo, listaFiltrada::add);
+        return listaFiltrada;
+    }
+
+    // Retorna o numero de registros lidos (antes do filtro)
+    private interface Leitura {
+        int executar(Consumer<DadosDespesa> consumidor) throws IOException;
+    }
+
+    // Entrega cada despesa filtrada ao consumidor assim que e lida, sem acumular em memoria. Um erro de leitura
+    // e relancado: as despesas ja entregues sao so parte do arquivo e quem chama nao pode trata-las como completas
+    public int processarArquivo(File arquivo, Consumer<DadosDespesa> consumidor) throws IOException {
+        if (usarTokenizador) {
+            return processarComRelatorio(arquivo.getName(), arquivo::length, consumidor, c ->
+                    filtrarTokenizado(TokenizadorCSV.mapear(arquivo, StandardCharsets.ISO_8859_1, ';', true), null, c));
+        }
+        FileInputStream entrada;
+        try {
+            entrada = new FileInputStream(arquivo);
+        } catch (FileNotFoundException e) {
+            throw falhaLeitura(arquivo.getName(), e);
+        }
+        return processarStream(entrada, arquivo.getName(), consumidor);
+    }
+
+    // Le um CSV a partir de qualquer stream (ex.: entrada de um ZIP, sem extrair para o disco); o stream e fechado ao final
+    public int processarStream(InputStream entrada, String nome, Consumer<DadosDespesa> consumidor) throws IOException {
+        Metricas.ContadorBytes contador = new Metricas.ContadorBytes(entrada);
+        return processarComRelatorio(nome, contador::total, consumidor, c -> {
+            try (contador) {
+                if (usarTokenizador) {
+                    return filtrarTokenizado(TokenizadorCSV.deStream(contador, StandardCharsets.ISO_8859_1, ';', true), null, c);
+                } else {
+                    // Encoding ISO-8859-1 para suportar acentos
+                    Reader reader = new InputStreamReader(contador, StandardCharsets.ISO_8859_1);
+                    return filtrarRegistros(reader, formatoBase().setHeader().setSkipHeaderRecord(true).build(), c);
+                }
+            }
+        });
+    }
+
+    private int processarComRelatorio(String nome, LongSupplier bytesLidos, Consumer<DadosDespesa> consumidor,
+                                      Leitura leitura) throws IOException {
+        int[] encontrados = {0};
+
+        System.out.println("Processando: " + nome);
+
+        try (Metricas.Medicao medicao = Metricas.iniciar("leitura-csv", nome)) {
+            try {
+                medicao.linhasEntrada(leitura.executar(despesa -> {
+                    encontrados[0]++;
+                    consumidor.accept(despesa);
+                }));
+                System.out.println("   Itens de despesa encontrados: " + encontrados[0]);
+            } catch (IOException e) {
+                throw falhaLeitura(nome, e);
+            } finally {
+                medicao.linhasSaida(encontrados[0]).bytesLidos(bytesLidos.getAsLong());
+            }
+        }
+
+        return encontrados[0];
+    }
+
+    // Processa varios arquivos em paralelo: cada arquivo e dividido em blocos alinhados a linhas, os blocos
+    // sao filtrados num ForkJoinPool e os resultados sao entregues ao consumidor na ordem original do arquivo,
+    // de modo que a saida fica identica a da leitura sequencial. O consumidor e chamado sempre na thread chamadora.
+    public int processarArquivosParalelo(List<File> arquivos, int paralelismo, long tamanhoBloco,
+                                         Consumer<DadosDespesa> consumidor) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(paralelismo);
+        // Limita os blocos em voo para que a memoria nao cresca com o tamanho dos arquivos
+        int maxEmVoo = paralelismo * 2;
+        int total = 0;
+
+        try {
+            Deque<TarefaBloco> emVoo = new ArrayDeque<>();
+            Iterator<TarefaBloco> pendentes = planejarBlocos(arquivos, tamanhoBloco).iterator();
+
+            while (pendentes.hasNext() || !emVoo.isEmpty()) {
+                while (pendentes.hasNext() && emVoo.size() < maxEmVoo) {
+                    TarefaBloco tarefa = pendentes.next();
+                    if (tarefa.estado.medicao == null) {
+                        tarefa.estado.medicao = Metricas.iniciar("leitura-csv", tarefa.estado.arquivo.getName())
+                                .bytesLidos(tarefa.estado.arquivo.length());
+                    }
+                    tarefa.resultado = pool.submit(() -> filtrarBloco(tarefa));
+                    emVoo.addLast(tarefa);
+                }
+                total += entregar(emVoo.removeFirst(), consumidor);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return total;
+    }
+
+    private static class EstadoArquivo {
+        final File arquivo;
+        final int totalBlocos;
+        int blocosEntregues = 0;
+        int encontrados = 0;
+        Metricas.Medicao medicao;
+
+        EstadoArquivo(File arquivo, int totalBlocos) {
+            this.arquivo = arquivo;
+            this.totalBlocos = totalBlocos;
+        }
+    }
+
+    private static class TarefaBloco {
+        final EstadoArquivo estado;
+        final String[] cabecalho;
+        final DivisorBlocos.Bloco bloco;
+        ForkJoinTask<List<DadosDespesa>> resultado;
+        // Escrito pela tarefa no pool e lido depois do join
+        int linhasLidas;
+
+        TarefaBloco(EstadoArquivo estado, String[] cabecalho, DivisorBlocos.Bloco bloco) {
+            this.estado = estado;
+            this.cabecalho = cabecalho;
+            this.bloco = bloco;
+        }
+    }
+
+    private List<TarefaBloco> planejarBlocos(List<File> arquivos, long tamanhoBloco) throws IOException {
+        List<TarefaBloco> tarefas = new ArrayList<>();
+        for (File arquivo : arquivos) {
+            long fimCabecalho;
+            String[] cabecalho;
+            List<DivisorBlocos.Bloco> blocos;
+            try {
+                fimCabecalho = DivisorBlocos.fimDoCabecalho(arquivo);
+                cabecalho = lerCabecalho(arquivo, fimCabecalho);
+                blocos = DivisorBlocos.dividir(arquivo, fimCabecalho, tamanhoBloco);
+            } catch (IOException e) {
+                throw falhaLeitura(arquivo.getName(), e);
+            }
+
+            EstadoArquivo estado = new EstadoArquivo(arquivo, blocos.size());
+            for (DivisorBlocos.Bloco bloco : blocos) {
+                tarefas.add(new TarefaBloco(estado, cabecalho, bloco));
+            }
+            if (blocos.isEmpty()) {
+                System.out.println("Processando: " + arquivo.getName());
+                System.out.println("   Itens de despesa encontrados: 0");
+            }
+        }
+        return tarefas;
+    }
+
+    private int entregar(TarefaBloco tarefa, Consumer<DadosDespesa> consumidor) throws IOException {
+        EstadoArquivo estado = tarefa.estado;
+        if (estado.blocosEntregues++ == 0) {
+            System.out.println("Processando: " + estado.arquivo.getName());
+        }
+
+        List<DadosDespesa> despesas;
+        try {
+            despesas = tarefa.resultado.join();
+        } catch (RuntimeException e) {
+            // Como na leitura sequencial, um erro num bloco falha a leitura toda; o pool embrulha a IOException
+            estado.medicao.linhasSaida(estado.encontrados).close();
+            throw falhaLeitura(estado.arquivo.getName(), e.getCause() != null ? e.getCause() : e);
+        }
+        estado.medicao.linhasEntrada(tarefa.linhasLidas);
+        for (DadosDespesa despesa : despesas) {
+            consumidor.accept(despesa);
+        }
+        estado.encontrados += despesas.size();
+
+        if (estado.blocosEntregues == estado.totalBlocos) {
+            System.out.println("   Itens de despesa encontrados: " + estado.encontrados);
+            estado.medicao.linhasSaida(estado.encontrados).close();
+        }
+        return despesas.size();
+    }
+
+    private static IOException falhaLeitura(String nome, Throwable causa) {
+        return new IOException("Erro ao ler CSV: " + nome + " -> " + causa.getMessage(), causa);
+    }
+
+    private List<DadosDespesa> filtrarBloco(TarefaBloco tarefa) throws IOException {
+        List<DadosDespesa> despesas = new ArrayList<>();
+
+        if (usarTokenizador) {
+            ByteBuffer mapeado = DivisorBlocos.mapearBloco(tarefa.estado.arquivo, tarefa.bloco);
+            tarefa.linhasLidas = filtrarTokenizado(TokenizadorCSV.deBuffer(mapeado, StandardCharsets.ISO_8859_1, ';', true),
+                    tarefa.cabecalho, despesas::add);
+            return despesas;
+        }
+
+        byte[] dados = DivisorBlocos.lerBloco(tarefa.estado.arquivo, tarefa.bloco);
+        CSVFormat format = formatoBase().setHeader(tarefa.cabecalho).build();
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(dados), StandardCharsets.ISO_8859_1)) {
+            tarefa.linhasLidas = filtrarRegistros(reader, format, despesas::add);
+        }
+        return despesas;
+    }
 
-        System.out.println("Processando: " + arquivo.getName());
+    private String[] lerCabecalho(File arquivo, long fimCabecalho) throws IOException {
+        byte[] bytes = DivisorBlocos.lerBloco(arquivo, new DivisorBlocos.Bloco(0, fimCabecalho));
+        try (CSVParser parser = CSVParser.parse(new String(bytes, StandardCharsets.ISO_8859_1), formatoBase().build())) {
+            List<CSVRecord> registros = parser.getRecords();
+            if (registros.isEmpty()) throw new IOException("Cabecalho ausente");
+            return registros.get(0).values();
+        }
+    }
 
-        CSVFormat format = CSVFormat.Builder.create()
+    private static CSVFormat.Builder formatoBase() {
+        return CSVFormat.Builder.create()
                 .setDelimiter(';')
                 .setQuote('"')
-                .setHeader()
-                .setSkipHeaderRecord(true)
                 .setIgnoreEmptyLines(true)
-                .setIgnoreSurroundingSpaces(true)
-                .build();
+                .setIgnoreSurroundingSpaces(true);
+    }
+
+    // Mesmo filtro de filtrarRegistros, mas sobre os bytes: as colunas sao resolvidas uma vez por arquivo e
+    // so as linhas de despesa viram Strings. cabecalho == null indica que a primeira linha e o cabecalho.
+    private int filtrarTokenizado(TokenizadorCSV tokenizador, String[] cabecalho, Consumer<DadosDespesa> consumidor) throws IOException {
+        if (cabecalho == null) {
+            if (!tokenizador.proximaLinha()) return 0;
+            cabecalho = tokenizador.camposComoTexto();
+        }
+        int[] colunas = resolverColunas(cabecalho);
+        int maiorIndice = Arrays.stream(colunas).max().orElse(0);
+        ClassificadorDespesas.Memo memo = classificador.novaMemo();
+        int linhas = 0;
+
+        while (tokenizador.proximaLinha()) {
+            linhas++;
+            if (tokenizador.numeroCampos() <= maiorIndice) {
+                throw new IllegalArgumentException("Registro com " + tokenizador.numeroCampos() + " valores, esperado ao menos " + (maiorIndice + 1));
+            }
+
+            boolean ehDespesa = memo.ehDespesa(tokenizador.bytes(),
+                    tokenizador.inicioCampo(colunas[COL_CONTA]), tokenizador.fimCampo(colunas[COL_CONTA]),
+                    tokenizador.inicioCampo(colunas[COL_DESCRICAO]), tokenizador.fimCampo(colunas[COL_DESCRICAO]));
+
+            if (ehDespesa) {
+                long valor = centavosOuZero(ValorMonetario.parseCentavos(tokenizador.bytes(),
+                        tokenizador.inicioCampo(colunas[COL_VALOR]), tokenizador.fimCampo(colunas[COL_VALOR])));
+
+                if (valor != 0) {
+                    consumidor.accept(new DadosDespesa(
+                            tokenizador.campo(colunas[COL_DATA]),
+                            tokenizador.campo(colunas[COL_REG_ANS]),
+                            tokenizador.campo(colunas[COL_CONTA]),
+                            tokenizador.campo(colunas[COL_DESCRICAO]),
+                            valor
+                    ));
+                }
+            }
+        }
+        return linhas;
+    }
 
-        // Encoding ISO-8859-1 para suportar acentos
-        try (Reader reader = new InputStreamReader(new FileInputStream(arquivo), "ISO-8859-1");
-             CSVParser parser = new CSVParser(reader, format)) {
+    private static int[] resolverColunas(String[] cabecalho) {
+        int[] colunas = new int[COLUNAS.length];
+        for (int c = 0; c < COLUNAS.length; c++) {
+            colunas[c] = Arrays.asList(cabecalho).indexOf(COLUNAS[c]);
+            if (colunas[c] < 0) {
+                throw new IllegalArgumentException("Mapping for " + COLUNAS[c] + " not found, expected one of " + Arrays.toString(cabecalho));
+            }
+        }
+        return colunas;
+    }
 
+    private int filtrarRegistros(Reader reader, CSVFormat format, Consumer<DadosDespesa> consumidor) throws IOException {
+        int linhas = 0;
+        try (CSVParser parser = new CSVParser(reader, format)) {
             for (CSVRecord record : parser) {
+                linhas++;
                 String descricao = record.get("DESCRICAO");
                 String codigoConta = record.get("CD_CONTA_CONTABIL");
                 String valorStr = record.get("VL_SALDO_FINAL");
 
-                boolean ehDespesa = codigoConta.startsWith("4") ||
-                        descricao.toUpperCase().contains("EVENTO") ||
-                        descricao.toUpperCase().contains("SINISTRO");
-
-                if (ehDespesa) {
-                    double valor = parseValorMonetario(valorStr);
+                if (classificador.ehDespesa(codigoConta, descricao)) {
+                    long valor = centavosOuZero(ValorMonetario.parseCentavos(valorStr));
 
                     if (valor != 0) {
-                        listaFiltrada.add(new DadosDespesa(
+                        consumidor.accept(new DadosDespesa(
                                 record.get("DATA"),
                                 record.get("REG_ANS"),
                                 codigoConta,
@@ -67,22 +357,17 @@ public class ProcessadorCSV {
                     }
                 }
             }
-            System.out.println("   Itens de despesa encontrados: " + listaFiltrada.size());
-
-        } catch (Exception e) {
-            System.err.println("Erro ao ler CSV: " + arquivo.getName() + " -> " + e.getMessage());
         }
+        return linhas;
+    }
 
-        return listaFiltrada;
+    // Regras padrao: contas do grupo 4 (despesas) ou descricoes de eventos/sinistros
+    public static boolean ehDespesa(String codigoConta, String descricao) {
+        return ClassificadorDespesas.PADRAO.ehDespesa(codigoConta, descricao);
     }
 
-    private double parseValorMonetario(String valor) {
-        try {
-            if (valor == null || valor.isEmpty()) return 0.0;
-            String limpo = valor.replace(".", "").replace(",", ".");
-            return Double.parseDouble(limpo);
-        } catch (NumberFormatException e) {
-            return 0.0;
-        }
+    // Valor vazio ou invalido conta como zero e a linha e descartada pelo filtro
+    private static long centavosOuZero(long centavos) {
+        return centavos == ValorMonetario.INVALIDO ? 0 : centavos;
     }
 }
\ No newline at end of file
@@ -0,0 +1,443 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+// Execucao em varios processos (--distribuido): um coordenador e workers que compartilham uma pasta. Cada ZIP
+// trimestral vira uma tarefa; um worker pega a tarefa renomeando o arquivo dela (so um consegue), le o ZIP e grava
+// as despesas filtradas (formato colunar), as linhas enriquecidas e o parcial mesclavel com a auditoria, o
+// agrupamento do ServicoAgregacao e o cubo. O coordenador mescla os parciais na ordem das tarefas, entao as saidas
+// sao as mesmas de uma execucao num so processo (--ler-zip). Layout da pasta:
+//   trabalho.properties                  versoes do cadastro e das regras, cubo e pasta de cadastros historicos
+//   cadastro.snap, regras_despesas.txt   cadastro e regras usados por todos os workers
+//   tarefas/<id>.tarefa                  tarefa livre (caminho do ZIP)
+//   em_andamento/<id>@<worker>.tarefa    tarefa pega por um worker; a data de modificacao e o sinal de vida (lease)
+//   resultados/<id>/                     linhas, enriquecido e parcial da tarefa concluida
+//   falhas/<id>.erro                     erro de um worker; o coordenador aborta
+//   logs/                                saida e metricas dos workers locais
+// Os workers locais (--workers) sao iniciados pelo coordenador com a mesma JVM e classpath. Com --workers=0, os
+// workers sao iniciados a parte (--worker=pasta), em outros terminais ou maquinas com a pasta montada.
+// Lease: a cada quarto do lease, o worker renova a data de modificacao do arquivo da tarefa se ela andou desde a
+// ultima renovacao (despesas lidas ou uma fase concluida); uma tarefa cujo arquivo fica parado por mais que o
+// lease (worker morto, travado ou sem acesso a pasta, local ou externo) volta para tarefas/. O coordenador mede o
+// tempo parado no proprio relogio, entao relogios diferentes entre as maquinas nao importam.
+public class ProcessamentoDistribuido {
+
+    public static final String PASTA_PADRAO = "distribuido";
+
+    private static final String TRABALHO = "trabalho.properties";
+    private static final String CADASTRO = "cadastro.snap";
+    private static final String REGRAS = "regras_despesas.txt";
+    private static final String TAREFAS = "tarefas";
+    private static final String EM_ANDAMENTO = "em_andamento";
+    private static final String RESULTADOS = "resultados";
+    private static final String FALHAS = "falhas";
+    private static final String LOGS = "logs";
+    private static final String EXTENSAO_TAREFA = ".tarefa";
+    private static final String EXTENSAO_FALHA = ".erro";
+    private static final String SUFIXO_PARCIAL = ".parcial-";
+
+    private static final String LINHAS = "linhas" + FormatoColunar.EXTENSAO;
+    private static final String ENRIQUECIDO = "enriquecido.csv";
+    private static final String ESTADO = "parcial.estado";
+
+    private static final long INTERVALO_MS = 200;
+    public static final Duration LEASE_PADRAO = Duration.ofSeconds(60);
+
+    private record WorkerLocal(String id, Process processo) {}
+
+    // Ultima data de modificacao vista de uma tarefa em andamento e quando (System.nanoTime do coordenador) mudou
+    private record Sinal(long modificado, long vistoNanos) {}
+
+    private final File pasta;
+    private final ServicoEnriquecimento enriquecedor;
+    private final ClassificadorDespesas classificador;
+    private final CuboDespesas.Configuracao configuracaoCubo;
+    private final File pastaHistorico;
+    private final int workersLocais;
+    private final List<String> argumentosWorker;
+    private final Duration lease;
+    private final Map<String, Sinal> sinais = new HashMap<>();
+
+    // argumentosWorker sao repassados aos workers locais (ex.: --paralelo, --threads, --memoria-agregacao-mb)
+    public ProcessamentoDistribuido(File pasta, ServicoEnriquecimento enriquecedor, ClassificadorDespesas classificador,
+                                    CuboDespesas.Configuracao configuracaoCubo, File pastaHistorico,
+                                    int workersLocais, List<String> argumentosWorker, Duration lease) {
+        this.pasta = pasta;
+        this.enriquecedor = enriquecedor;
+        this.classificador = classificador;
+        this.configuracaoCubo = configuracaoCubo;
+        this.pastaHistorico = pastaHistorico;
+        this.workersLocais = workersLocais;
+        this.argumentosWorker = argumentosWorker;
+        this.lease = lease;
+    }
+
+    // Coordenador: publica as tarefas, acompanha os workers e grava as saidas finais no destino
+    public void executar(List<File> arquivosZip, DestinoSaida destino, String nomeEnriquecido, String nomeAgregado) throws IOException {
+        System.out.println("INICIANDO PROCESSAMENTO DISTRIBUIDO (pasta: " + pasta.getPath() + ", "
+                + arquivosZip.size() + " tarefas, " + workersLocais + " workers locais)");
+        prepararPasta(arquivosZip);
+
+        List<WorkerLocal> ativos = new ArrayList<>();
+        try (Metricas.Medicao medicao = Metricas.iniciar("distribuido", pasta.getName())) {
+            aguardarTarefas(arquivosZip.size(), ativos);
+            for (WorkerLocal worker : ativos) {
+                if (!worker.processo.waitFor(30, TimeUnit.SECONDS)) System.err.println("Worker nao terminou: " + worker.id);
+            }
+            medicao.linhasSaida(arquivosZip.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Coordenador interrompido");
+        } finally {
+            for (WorkerLocal worker : ativos) worker.processo.destroy();
+        }
+
+        PipelineStreaming.ResultadoParcial total = new PipelineStreaming.ResultadoParcial();
+        List<File> enriquecidos = new ArrayList<>();
+        try {
+            try (Metricas.Medicao medicao = Metricas.iniciar("distribuido-mescla", pasta.getName())) {
+                for (int i = 0; i < arquivosZip.size(); i++) {
+                    File resultado = new File(pasta, RESULTADOS + "/" + idTarefa(i));
+                    total.mesclar(ProcessamentoIncremental.lerEstado(new File(resultado, ESTADO)));
+                    enriquecidos.add(new File(resultado, ENRIQUECIDO));
+                }
+                medicao.linhasEntrada(total.linhas()).linhasSaida(total.linhas());
+            }
+            ProcessamentoIncremental.juntarEnriquecidos(enriquecidos, destino, nomeEnriquecido);
+            total.concluir(destino, nomeAgregado);
+        } finally {
+            total.descartar();
+        }
+    }
+
+    // Limpa apenas o layout conhecido (a pasta pode ter outros arquivos) e grava cadastro, regras e tarefas
+    private void prepararPasta(List<File> arquivosZip) throws IOException {
+        for (String subpasta : List.of(TAREFAS, EM_ANDAMENTO, RESULTADOS, FALHAS, LOGS)) {
+            CacheEtapas.apagar(new File(pasta, subpasta));
+            Files.createDirectories(new File(pasta, subpasta).toPath());
+        }
+
+        enriquecedor.prepararCadastro();
+        Files.copy(new File(SnapshotCadastro.ARQUIVO).toPath(), new File(pasta, CADASTRO).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.writeString(new File(pasta, REGRAS).toPath(), classificador.regras(), StandardCharsets.UTF_8);
+
+        Properties trabalho = new Properties();
+        trabalho.setProperty("cadastro", enriquecedor.versaoCadastro());
+        trabalho.setProperty("regras", classificador.versao());
+        trabalho.setProperty("cubo", configuracaoCubo == null ? "" : configuracaoCubo.especificacao());
+        if (pastaHistorico != null) trabalho.setProperty("historico", pastaHistorico.getAbsolutePath());
+        trabalho.setProperty("lease-ms", String.valueOf(lease.toMillis()));
+        gravarPropriedades(trabalho, new File(pasta, TRABALHO));
+
+        for (int i = 0; i < arquivosZip.size(); i++) {
+            Properties tarefa = new Properties();
+            tarefa.setProperty("zip", arquivosZip.get(i).getAbsolutePath());
+            gravarPropriedades(tarefa, new File(pasta, TAREFAS + "/" + idTarefa(i) + EXTENSAO_TAREFA));
+        }
+    }
+
+    // Espera todas as tarefas terminarem. Um worker local que morre sem concluir tem as tarefas devolvidas e e
+    // substituido; tarefas com o lease vencido sao devolvidas (um worker local travado e encerrado e substituido);
+    // um erro registrado em falhas/ aborta, pois se repetiria em outro worker
+    private void aguardarTarefas(int total, List<WorkerLocal> ativos) throws IOException, InterruptedException {
+        int iniciados = 0;
+        for (; iniciados < Math.min(workersLocais, total); iniciados++) ativos.add(iniciarWorker("local-" + iniciados));
+
+        int concluidas = 0;
+        while (true) {
+            for (Iterator<WorkerLocal> it = ativos.iterator(); it.hasNext(); ) {
+                WorkerLocal worker = it.next();
+                if (worker.processo.isAlive()) continue;
+                it.remove();
+                int devolvidas = devolverTarefas(worker.id);
+                if (worker.processo.exitValue() != 0 || devolvidas > 0) {
+                    System.err.println("Worker " + worker.id + " terminou com codigo " + worker.processo.exitValue() + ", "
+                            + devolvidas + " tarefas devolvidas (log: " + new File(pasta, LOGS + "/" + worker.id + ".log").getPath() + ")");
+                }
+            }
+            devolverTarefasSemSinal(ativos);
+            verificarFalhas();
+
+            String[] resultados = new File(pasta, RESULTADOS).list((dir, nome) -> !nome.contains(SUFIXO_PARCIAL));
+            int agora = resultados == null ? 0 : resultados.length;
+            if (agora != concluidas) {
+                concluidas = agora;
+                System.out.println("Tarefas concluidas: " + concluidas + " de " + total);
+            }
+            if (concluidas == total) return;
+
+            String[] livres = new File(pasta, TAREFAS).list();
+            if (workersLocais > 0 && ativos.isEmpty() && livres != null && livres.length > 0) {
+                if (iniciados >= workersLocais + total) throw new IOException("Workers locais falharam repetidamente; veja " + new File(pasta, LOGS));
+                ativos.add(iniciarWorker("local-" + iniciados++));
+            }
+            Thread.sleep(INTERVALO_MS);
+        }
+    }
+
+    private Process iniciarProcesso(String id) throws IOException {
+        List<String> comando = new ArrayList<>();
+        comando.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        // Heap e propriedades do sistema (ex.: -Dfile.encoding) iguais aos do coordenador
+        for (String argumento : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argumento.startsWith("-Xm") || argumento.startsWith("-D")) comando.add(argumento);
+        }
+        comando.add("-cp");
+        comando.add(System.getProperty("java.class.path"));
+        comando.add(Main.class.getName());
+        comando.add("--worker=" + pasta.getAbsolutePath());
+        comando.add("--id-worker=" + id);
+        comando.add("--relatorio-metricas=" + new File(pasta, LOGS + "/" + id + ".json").getAbsolutePath());
+        comando.addAll(argumentosWorker);
+
+        return new ProcessBuilder(comando)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(pasta, LOGS + "/" + id + ".log"))
+                .start();
+    }
+
+    private WorkerLocal iniciarWorker(String id) throws IOException {
+        System.out.println("Iniciando worker local: " + id);
+        return new WorkerLocal(id, iniciarProcesso(id));
+    }
+
+    // Tarefas pegas por um worker que terminou voltam para tarefas/; resultados pela metade sao apagados
+    private int devolverTarefas(String worker) throws IOException {
+        File[] pegas = new File(pasta, EM_ANDAMENTO).listFiles((dir, nome) -> nome.endsWith("@" + worker + EXTENSAO_TAREFA));
+        if (pegas == null) return 0;
+        for (File pega : pegas) {
+            String id = pega.getName().substring(0, pega.getName().indexOf('@'));
+            File[] parciais = new File(pasta, RESULTADOS).listFiles((dir, nome) -> nome.startsWith(id + SUFIXO_PARCIAL));
+            if (parciais != null) for (File parcial : parciais) CacheEtapas.apagar(parcial);
+            Files.move(pega.toPath(), new File(pasta, TAREFAS + "/" + id + EXTENSAO_TAREFA).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return pegas.length;
+    }
+
+    // Devolve as tarefas cujo arquivo nao muda ha mais que o lease. O resultado pela metade fica: o worker pode
+    // estar vivo e ainda grava-lo (ele mesmo o apaga se falhar), e prepararPasta limpa o que sobrar
+    private void devolverTarefasSemSinal(List<WorkerLocal> ativos) throws IOException {
+        File[] pegas = new File(pasta, EM_ANDAMENTO).listFiles((dir, nome) -> nome.endsWith(EXTENSAO_TAREFA));
+        if (pegas == null) return;
+        long agora = System.nanoTime();
+        Set<String> vistas = new HashSet<>();
+        for (File pega : pegas) {
+            String nome = pega.getName();
+            vistas.add(nome);
+            long modificado = pega.lastModified();
+            Sinal sinal = sinais.get(nome);
+            if (sinal == null || sinal.modificado != modificado) {
+                sinais.put(nome, new Sinal(modificado, agora));
+                continue;
+            }
+            if (agora - sinal.vistoNanos < lease.toNanos()) continue;
+
+            String id = nome.substring(0, nome.indexOf('@'));
+            String worker = nome.substring(nome.indexOf('@') + 1, nome.length() - EXTENSAO_TAREFA.length());
+            try {
+                Files.move(pega.toPath(), new File(pasta, TAREFAS + "/" + id + EXTENSAO_TAREFA).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // O worker concluiu a tarefa agora
+                continue;
+            }
+            System.err.println("Tarefa " + id + " sem sinal do worker " + worker + " ha " + lease.toSeconds() + "s: devolvida");
+            for (WorkerLocal local : ativos) {
+                if (local.id.equals(worker)) local.processo.destroyForcibly();
+            }
+        }
+        sinais.keySet().retainAll(vistas);
+    }
+
+    private void verificarFalhas() throws IOException {
+        File[] falhas = new File(pasta, FALHAS).listFiles();
+        if (falhas == null || falhas.length == 0) return;
+        String erro = Files.readString(falhas[0].toPath(), StandardCharsets.UTF_8);
+        int fimLinha = erro.indexOf('\n');
+        String tarefa = falhas[0].getName().substring(0, falhas[0].getName().length() - EXTENSAO_FALHA.length());
+        throw new IOException("Falha na tarefa " + tarefa + ": " + (fimLinha < 0 ? erro : erro.substring(0, fimLinha)));
+    }
+
+    // Identificador padrao de um worker iniciado a parte: maquina e processo
+    public static String idPadrao() {
+        String maquina;
+        try {
+            maquina = java.net.InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            maquina = "worker";
+        }
+        return maquina + "-" + ProcessHandle.current().pid();
+    }
+
+    // Worker: pega tarefas livres ate nao restar nenhuma. fontePorZip cria a leitura de um ZIP com as regras do trabalho
+    public static void trabalhar(File pasta, String id, BiFunction<ClassificadorDespesas, File, FonteDespesas> fontePorZip) throws IOException {
+        Properties trabalho = lerPropriedades(new File(pasta, TRABALHO));
+        ClassificadorDespesas classificador = ClassificadorDespesas.carregar(new File(pasta, REGRAS));
+        if (!classificador.versao().equals(trabalho.getProperty("regras"))) {
+            throw new IOException("Regras da pasta compartilhada nao conferem com o trabalho: " + pasta);
+        }
+        String historico = trabalho.getProperty("historico");
+        IndiceCadastro cadastro = ServicoEnriquecimento.indiceDoSnapshot(new File(pasta, CADASTRO),
+                historico == null ? null : new File(historico), trabalho.getProperty("cadastro"));
+        long renovacaoLease = Long.parseLong(trabalho.getProperty("lease-ms", String.valueOf(LEASE_PADRAO.toMillis()))) / 4;
+        String cubo = trabalho.getProperty("cubo", "");
+        CuboDespesas.Configuracao configuracaoCubo = cubo.isEmpty() ? null : CuboDespesas.Configuracao.de(cubo);
+
+        System.out.println("Worker " + id + " pegando tarefas em " + pasta.getPath());
+        int processadas = 0;
+        File pega;
+        while ((pega = pegarTarefa(pasta, id)) != null) {
+            String idTarefa = pega.getName().substring(0, pega.getName().indexOf('@'));
+            AtomicLong progresso = new AtomicLong();
+            Thread lease = renovarLease(pega, renovacaoLease, progresso);
+            try {
+                // Um ZIP ausente (pasta nao montada neste worker) ou ilegivel e falha da tarefa
+                File zip = new File(lerPropriedades(pega).getProperty("zip"));
+                if (!zip.isFile()) throw new FileNotFoundException("ZIP da tarefa nao encontrado neste worker: " + zip);
+                processarTarefa(pasta, idTarefa, pega, fontePorZip.apply(classificador, zip), cadastro, configuracaoCubo, progresso);
+            } catch (IOException | RuntimeException e) {
+                // Sem o arquivo da tarefa o lease venceu e ela ja foi devolvida: o erro nao e do trabalho
+                if (!pega.exists()) {
+                    System.err.println("Tarefa " + idTarefa + " devolvida pelo coordenador (lease vencido): " + e);
+                    continue;
+                }
+                registrarFalha(pasta, idTarefa, id, e);
+                throw e;
+            } finally {
+                lease.interrupt();
+            }
+            processadas++;
+        }
+        System.out.println("Worker " + id + ": nenhuma tarefa livre, " + processadas + " processadas");
+    }
+
+    // Renova o lease da tarefa enquanto o progresso muda, ate ser interrompida; uma leitura travada deixa o lease
+    // vencer. Para sozinha se o coordenador ja devolveu a tarefa
+    private static Thread renovarLease(File pega, long intervaloMs, AtomicLong progresso) {
+        Thread renovacao = new Thread(() -> {
+            try {
+                long renovado = -1;
+                while (true) {
+                    Thread.sleep(intervaloMs);
+                    long atual = progresso.get();
+                    if (atual == renovado) continue;
+                    renovado = atual;
+                    if (!pega.setLastModified(System.currentTimeMillis())) return;
+                }
+            } catch (InterruptedException e) {
+                // Tarefa terminou
+            }
+        }, "lease-" + pega.getName());
+        renovacao.setDaemon(true);
+        renovacao.start();
+        return renovacao;
+    }
+
+    // A tarefa e de quem conseguir renomea-la; os outros recebem NoSuchFileException e tentam a proxima
+    private static File pegarTarefa(File pasta, String worker) throws IOException {
+        File[] livres = new File(pasta, TAREFAS).listFiles((dir, nome) -> nome.endsWith(EXTENSAO_TAREFA));
+        if (livres == null) throw new FileNotFoundException("Pasta de tarefas nao encontrada: " + new File(pasta, TAREFAS));
+        Arrays.sort(livres, Comparator.comparing(File::getName));
+        for (File livre : livres) {
+            String id = livre.getName().substring(0, livre.getName().length() - EXTENSAO_TAREFA.length());
+            File pega = new File(pasta, EM_ANDAMENTO + "/" + id + "@" + worker + EXTENSAO_TAREFA);
+            try {
+                Files.move(livre.toPath(), pega.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return pega;
+            } catch (NoSuchFileException e) {
+                // Outro worker pegou antes
+            }
+        }
+        return null;
+    }
+
+    // Mesma passada do ProcessamentoIncremental: as despesas filtradas sao guardadas enquanto passam pelo
+    // enriquecimento; o resultado so aparece em resultados/<id> quando esta completo
+    private static void processarTarefa(File pasta, String idTarefa, File pega, FonteDespesas fonteZip,
+                                        IndiceCadastro cadastro, CuboDespesas.Configuracao configuracaoCubo,
+                                        AtomicLong progresso) throws IOException {
+        File resultados = new File(pasta, RESULTADOS);
+        File parcial = Files.createTempDirectory(resultados.toPath(), idTarefa + SUFIXO_PARCIAL).toFile();
+        try (Metricas.Medicao medicao = Metricas.iniciar("tarefa", idTarefa)) {
+            FormatoColunar.Escritor linhas = new FormatoColunar.Escritor(FormatoColunar.TEXTOS_CONSOLIDADO, FormatoColunar.COLUNA_VALOR);
+            FonteDespesas fonte = consumidor -> fonteZip.produzir(despesa -> {
+                linhas.adicionarLinha(new String[]{despesa.data, despesa.regAns, despesa.codigoConta, despesa.descricao},
+                        despesa.valorCentavos);
+                consumidor.accept(despesa);
+                progresso.incrementAndGet();
+            });
+
+            PipelineStreaming.ResultadoParcial resultado = null;
+            try {
+                try (CodificadorCSV saida = new CodificadorCSV(new FileOutputStream(new File(parcial, ENRIQUECIDO)), StandardCharsets.UTF_8, ';')) {
+                    resultado = PipelineStreaming.processar(fonte, cadastro, saida, configuracaoCubo);
+                }
+                progresso.incrementAndGet();
+                linhas.gravar(new File(parcial, LINHAS));
+                progresso.incrementAndGet();
+                ProcessamentoIncremental.gravarEstado(new File(parcial, ESTADO), resultado);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                if (resultado != null) resultado.descartar();
+            }
+            medicao.linhasSaida(resultado.linhas());
+            System.out.println("   Tarefa concluida: " + idTarefa + " (" + resultado.linhas() + " linhas)");
+        } catch (IOException | RuntimeException e) {
+            CacheEtapas.apagar(parcial);
+            throw e;
+        }
+        File concluido = new File(resultados, idTarefa);
+        try {
+            Files.move(parcial.toPath(), concluido.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileSystemException e) {
+            // Lease vencido: a tarefa foi devolvida e outro worker concluiu antes, com o mesmo resultado
+            if (!concluido.isDirectory()) throw e;
+            CacheEtapas.apagar(parcial);
+            System.out.println("   Tarefa " + idTarefa + " ja concluida por outro worker; resultado descartado");
+        }
+        Files.deleteIfExists(pega.toPath());
+    }
+
+    private static void registrarFalha(File pasta, String idTarefa, String worker, Exception erro) {
+        StringWriter texto = new StringWriter();
+        texto.append(worker).append(": ").append(String.valueOf(erro)).append('\n');
+        erro.printStackTrace(new PrintWriter(texto));
+        try {
+            Files.writeString(new File(pasta, FALHAS + "/" + idTarefa + EXTENSAO_FALHA).toPath(), texto.toString(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Erro ao registrar falha da tarefa " + idTarefa + ": " + e.getMessage());
+        }
+    }
+
+    private static String idTarefa(int indice) {
+        return String.format("%05d", indice);
+    }
+
+    private static Properties lerPropriedades(File arquivo) throws IOException {
+        Properties propriedades = new Properties();
+        try (InputStream in = new FileInputStream(arquivo)) {
+            propriedades.load(in);
+        }
+        return propriedades;
+    }
+
+    private static void gravarPropriedades(Properties propriedades, File arquivo) throws IOException {
+        File temporario = new File(arquivo.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporario)) {
+            propriedades.store(out, null);
+        }
+        Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,139 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Function;
+
+// Pipeline como grafo de etapas com cache enderecado por conteudo (--cache-etapas). Por ZIP trimestral:
+//   filtro/<zip>          le o ZIP e grava as despesas filtradas (formato colunar); chave: SHA-256 do ZIP e regras
+//   enriquecimento/<zip>  join com o cadastro e agregacao parcial; chave: filtro, versao do cadastro e cubo
+// e, no fim, a etapa "saida" junta os enriquecidos e os parciais no ZIP final. Uma nova execucao so refaz as
+// etapas cujas entradas ou configuracao mudaram; uma execucao interrompida retoma do ultimo ZIP concluido.
+public class ProcessamentoEmEtapas {
+
+    private static final String LINHAS = "linhas" + FormatoColunar.EXTENSAO;
+    private static final String ENRIQUECIDO = "enriquecido.csv";
+    private static final String ESTADO = "parcial.estado";
+
+    private final CacheEtapas cache;
+    private final ServicoEnriquecimento enriquecedor;
+    private final Function<File, FonteDespesas> fontePorZip;
+    private final String versaoRegras;
+    private final CuboDespesas.Configuracao configuracaoCubo;
+    private final int nivelZip;
+    private final int threadsZip;
+    private final Duration idadeMaxima;
+
+    // Etapas nao usadas ha mais que idadeMaxima sao apagadas do cache no fim da execucao
+    public ProcessamentoEmEtapas(CacheEtapas cache, ServicoEnriquecimento enriquecedor, Function<File, FonteDespesas> fontePorZip,
+                                 String versaoRegras, CuboDespesas.Configuracao configuracaoCubo,
+                                 int nivelZip, int threadsZip, Duration idadeMaxima) {
+        this.cache = cache;
+        this.enriquecedor = enriquecedor;
+        this.fontePorZip = fontePorZip;
+        this.versaoRegras = versaoRegras;
+        this.configuracaoCubo = configuracaoCubo;
+        this.nivelZip = nivelZip;
+        this.threadsZip = threadsZip;
+        this.idadeMaxima = idadeMaxima;
+    }
+
+    public void executar(List<File> arquivosZip, File arquivoFinal, String nomeEnriquecido, String nomeAgregado) throws IOException {
+        System.out.println("INICIANDO PROCESSAMENTO EM ETAPAS (cache: " + cache.raiz().getPath() + ")");
+
+        IndiceCadastro cadastro = enriquecedor.prepararCadastro();
+        String especificacaoCubo = configuracaoCubo == null ? "" : configuracaoCubo.especificacao();
+
+        GrafoEtapas grafo = new GrafoEtapas(cache);
+        List<GrafoEtapas.Etapa> enriquecimentos = new ArrayList<>();
+        for (File zip : arquivosZip) {
+            GrafoEtapas.Etapa filtro = grafo.etapa("filtro/" + zip.getName())
+                    .entrada(zip)
+                    .configuracao("regras", versaoRegras)
+                    .produz(LINHAS);
+            filtro.acao(pasta -> filtrar(zip, new File(pasta, LINHAS)));
+
+            GrafoEtapas.Etapa enriquecimento = grafo.etapa("enriquecimento/" + zip.getName())
+                    .depende(filtro)
+                    .configuracao("cadastro", enriquecedor.versaoCadastro())
+                    .configuracao("cubo", especificacaoCubo)
+                    .configuracao("estado", String.valueOf(ProcessamentoIncremental.VERSAO_ESTADO))
+                    .produz(ENRIQUECIDO)
+                    .produz(ESTADO);
+            enriquecimento.acao(pasta -> enriquecer(filtro.arquivo(LINHAS), cadastro, pasta));
+            enriquecimentos.add(enriquecimento);
+        }
+
+        GrafoEtapas.Etapa saida = grafo.etapa("saida")
+                .configuracao("zip-nivel", String.valueOf(nivelZip))
+                .configuracao("enriquecido", nomeEnriquecido)
+                .configuracao("agregado", nomeAgregado)
+                .produz(arquivoFinal.getName());
+        for (GrafoEtapas.Etapa enriquecimento : enriquecimentos) saida.depende(enriquecimento);
+        saida.acao(pasta -> gerarSaida(enriquecimentos, new File(pasta, arquivoFinal.getName()), nomeEnriquecido, nomeAgregado));
+
+        Set<String> usadas = grafo.executar();
+        publicar(saida.arquivo(arquivoFinal.getName()), arquivoFinal);
+        cache.finalizar(idadeMaxima, usadas);
+    }
+
+    private void filtrar(File zip, File destino) throws IOException {
+        FormatoColunar.Escritor linhas = new FormatoColunar.Escritor(FormatoColunar.TEXTOS_CONSOLIDADO, FormatoColunar.COLUNA_VALOR);
+        // Um ZIP ilegivel falha a etapa: nada e gravado em destino, entao o resultado parcial nao vai para o cache
+        int total = fontePorZip.apply(zip).produzir(despesa -> linhas.adicionarLinha(
+                new String[]{despesa.data, despesa.regAns, despesa.codigoConta, despesa.descricao}, despesa.valorCentavos));
+        linhas.gravar(destino);
+        System.out.println("   Despesas filtradas: " + zip.getName() + " (" + total + " linhas)");
+    }
+
+    // Enriquecido sem cabecalho: juntarEnriquecidos grava um so no inicio da saida final
+    private void enriquecer(File linhas, IndiceCadastro cadastro, File pasta) throws IOException {
+        PipelineStreaming.ResultadoParcial parcial = null;
+        try {
+            try (CodificadorCSV saida = new CodificadorCSV(new FileOutputStream(new File(pasta, ENRIQUECIDO)), StandardCharsets.UTF_8, ';')) {
+                parcial = PipelineStreaming.processar(ProcessamentoIncremental.fonteColunar(linhas), cadastro, saida, configuracaoCubo);
+            }
+            ProcessamentoIncremental.gravarEstado(new File(pasta, ESTADO), parcial);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (parcial != null) parcial.descartar();
+        }
+    }
+
+    private void gerarSaida(List<GrafoEtapas.Etapa> enriquecimentos, File arquivoZip,
+                            String nomeEnriquecido, String nomeAgregado) throws IOException {
+        PipelineStreaming.ResultadoParcial total = new PipelineStreaming.ResultadoParcial();
+        List<File> enriquecidos = new ArrayList<>();
+        try (EscritorZipParalelo zip = new EscritorZipParalelo(arquivoZip, nivelZip, threadsZip)) {
+            for (GrafoEtapas.Etapa enriquecimento : enriquecimentos) {
+                total.mesclar(ProcessamentoIncremental.lerEstado(enriquecimento.arquivo(ESTADO)));
+                enriquecidos.add(enriquecimento.arquivo(ENRIQUECIDO));
+            }
+            ProcessamentoIncremental.juntarEnriquecidos(enriquecidos, zip, nomeEnriquecido);
+            total.concluir(zip, nomeAgregado);
+            zip.concluir();
+        } finally {
+            total.descartar();
+        }
+    }
+
+    // Copia o ZIP da etapa para o destino final; o cache guarda o seu, entao a copia pode ser apagada a vontade
+    // O ZIP publicado e um hard link para o da etapa "saida", sem uma segunda copia no disco; a saida nunca e
+    // alterada no lugar (sempre temporario + move), entao o cache nao muda junto. Sem suporte a links (ou com o
+    // cache em outro sistema de arquivos) cai na copia.
+    private static void publicar(File origem, File destino) throws IOException {
+        File temporario = new File(destino.getPath() + ".tmp");
+        Files.deleteIfExists(temporario.toPath());
+        try {
+            Files.createLink(temporario.toPath(), origem.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(origem.toPath(), temporario.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(temporario.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,276 @@
+package com.intuitivecare.ans;
+
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Function;
+
+// Processamento incremental por trimestre. Cada ZIP trimestral processado deixa na pasta incremental:
+//   <trimestre>.ansc   despesas filtradas (formato colunar), para reenriquecer sem reler o ZIP
+//   <trimestre>.csv    linhas enriquecidas, sem cabecalho, copiadas para a saida final
+//   <trimestre>.estado auditoria e acumuladores da agregacao, mesclaveis
+// O manifesto guarda o SHA-256 de cada ZIP e a versao do cadastro usada no join. Um trimestre so e
+// reprocessado quando o ZIP muda; se so o cadastro mudou, ele e reenriquecido a partir do .ansc.
+public class ProcessamentoIncremental {
+
+    public static final String PASTA_PADRAO = "incremental";
+
+    private static final String MANIFESTO = "manifesto.properties";
+    private static final int MAGICO_ESTADO = 0x414E5350;
+    // Versao 2: coluna CNPJ_VALIDO nos enriquecidos e contagem de CNPJ invalido no parcial
+    // Versao 3: cubo (--cubo) opcional no fim do parcial
+    // Versao 4: grupos gravados com marcador de fim em vez da contagem no inicio
+    static final int VERSAO_ESTADO = 4;
+
+    private record Trimestre(String nome, File linhas, File enriquecido, File estado) {}
+
+    private final File pasta;
+    private final ServicoEnriquecimento enriquecedor;
+    private final Function<File, FonteDespesas> fontePorZip;
+    private final String versaoRegras;
+    private final CuboDespesas.Configuracao configuracaoCubo;
+
+    // versaoRegras identifica o filtro de despesas; se mudar, as linhas guardadas deixam de valer.
+    // Parciais calculados com outros conjuntos de cubo (ou sem cubo) sao reenriquecidos a partir das linhas.
+    public ProcessamentoIncremental(File pasta, ServicoEnriquecimento enriquecedor, Function<File, FonteDespesas> fontePorZip,
+                                    String versaoRegras, CuboDespesas.Configuracao configuracaoCubo) {
+        this.pasta = pasta;
+        this.enriquecedor = enriquecedor;
+        this.fontePorZip = fontePorZip;
+        this.versaoRegras = versaoRegras;
+        this.configuracaoCubo = configuracaoCubo;
+    }
+
+    // Os arquivos finais sao gravados no destino (ex.: entradas do ZIP final) como nomeEnriquecido e nomeAgregado
+    public void executar(List<File> arquivosZip, DestinoSaida destino, String nomeEnriquecido, String nomeAgregado) throws IOException {
+        System.out.println("INICIANDO PROCESSAMENTO INCREMENTAL");
+        pasta.mkdirs();
+
+        IndiceCadastro cadastro = enriquecedor.prepararCadastro();
+        String versaoCadastro = enriquecedor.versaoCadastro();
+
+        Properties manifesto = lerManifesto();
+        Properties atualizado = new Properties();
+        String especificacaoCubo = configuracaoCubo == null ? "" : configuracaoCubo.especificacao();
+        PipelineStreaming.ResultadoParcial total = new PipelineStreaming.ResultadoParcial();
+        try {
+            List<Trimestre> trimestres = new ArrayList<>();
+
+            for (File zip : arquivosZip) {
+                Trimestre trimestre = trimestre(zip.getName());
+                trimestres.add(trimestre);
+
+                String hashZip = hashDoZip(zip);
+                boolean mesmoZip = hashZip.equals(manifesto.getProperty(trimestre.nome + ".sha256"))
+                        && versaoRegras.equals(manifesto.getProperty(trimestre.nome + ".regras"))
+                        && trimestre.linhas.exists();
+                boolean mesmoCadastro = versaoCadastro != null
+                        && versaoCadastro.equals(manifesto.getProperty(trimestre.nome + ".cadastro"))
+                        && especificacaoCubo.equals(manifesto.getProperty(trimestre.nome + ".cubo", ""))
+                        && trimestre.enriquecido.exists() && estadoCompativel(trimestre.estado);
+
+                PipelineStreaming.ResultadoParcial parcial;
+                try (Metricas.Medicao medicao = Metricas.iniciar("trimestre", trimestre.nome)) {
+                    if (mesmoZip && mesmoCadastro) {
+                        System.out.println("Trimestre inalterado, usando parcial: " + trimestre.nome);
+                        parcial = lerEstado(trimestre.estado);
+                        medicao.bytesLidos(trimestre.estado.length());
+                    } else if (mesmoZip) {
+                        System.out.println("Cadastro, formato ou cubo alterado, reenriquecendo parcial: " + trimestre.nome);
+                        parcial = enriquecer(fonteColunar(trimestre.linhas), cadastro, trimestre);
+                        medicao.bytesLidos(trimestre.linhas.length()).bytesGravados(trimestre.enriquecido.length());
+                    } else {
+                        System.out.println("Processando trimestre novo ou alterado: " + trimestre.nome);
+                        parcial = processarZip(zip, cadastro, trimestre);
+                        medicao.bytesLidos(zip.length()).bytesGravados(trimestre.enriquecido.length() + trimestre.linhas.length());
+                    }
+                    medicao.linhasEntrada(parcial.linhas()).linhasSaida(parcial.linhas());
+                }
+                total.mesclar(parcial);
+
+                atualizado.setProperty(trimestre.nome + ".sha256", hashZip);
+                atualizado.setProperty(trimestre.nome + ".regras", versaoRegras);
+                if (versaoCadastro != null) atualizado.setProperty(trimestre.nome + ".cadastro", versaoCadastro);
+                atualizado.setProperty(trimestre.nome + ".cubo", especificacaoCubo);
+                gravarManifesto(atualizado, manifesto);
+            }
+
+            gravarManifesto(atualizado, null);
+            removerParciaisForaDaJanela(manifesto, atualizado);
+
+            juntarEnriquecidos(trimestres.stream().map(Trimestre::enriquecido).toList(), destino, nomeEnriquecido);
+            total.concluir(destino, nomeAgregado);
+        } finally {
+            total.descartar();
+        }
+    }
+
+    private PipelineStreaming.ResultadoParcial processarZip(File zip, IndiceCadastro cadastro,
+                                                            Trimestre trimestre) throws IOException {
+        FonteDespesas fonteZip = fontePorZip.apply(zip);
+        FormatoColunar.Escritor linhas = new FormatoColunar.Escritor(FormatoColunar.TEXTOS_CONSOLIDADO, FormatoColunar.COLUNA_VALOR);
+
+        // As despesas filtradas sao guardadas enquanto passam pelo enriquecimento
+        FonteDespesas fonte = consumidor -> fonteZip.produzir(despesa -> {
+            linhas.adicionarLinha(new String[]{despesa.data, despesa.regAns, despesa.codigoConta, despesa.descricao},
+                    despesa.valorCentavos);
+            consumidor.accept(despesa);
+        });
+
+        PipelineStreaming.ResultadoParcial parcial = enriquecer(fonte, cadastro, trimestre);
+        try {
+            linhas.gravar(trimestre.linhas);
+        } catch (IOException | RuntimeException e) {
+            parcial.descartar();
+            throw e;
+        }
+        return parcial;
+    }
+
+    private PipelineStreaming.ResultadoParcial enriquecer(FonteDespesas fonte, IndiceCadastro cadastro,
+                                                          Trimestre trimestre) throws IOException {
+        File temporario = new File(trimestre.enriquecido.getPath() + ".tmp");
+
+        PipelineStreaming.ResultadoParcial parcial;
+        // Sem cabecalho: juntarEnriquecidos grava um so no inicio da saida final
+        try (CodificadorCSV saida = new CodificadorCSV(new FileOutputStream(temporario), StandardCharsets.UTF_8, ';')) {
+            parcial = PipelineStreaming.processar(fonte, cadastro, saida, configuracaoCubo);
+        } catch (UncheckedIOException e) {
+            Files.deleteIfExists(temporario.toPath());
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporario.toPath());
+            throw e;
+        }
+        try {
+            Files.move(temporario.toPath(), trimestre.enriquecido.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            gravarEstado(trimestre.estado, parcial);
+        } catch (IOException | RuntimeException e) {
+            parcial.descartar();
+            throw e;
+        }
+        System.out.println("   Parcial gravado: " + trimestre.nome + " (" + parcial.linhas() + " linhas)");
+        return parcial;
+    }
+
+    // Rele as despesas filtradas guardadas no formato colunar
+    static FonteDespesas fonteColunar(File arquivo) {
+        return consumidor -> {
+            FormatoColunar.Leitor leitor = FormatoColunar.Leitor.abrir(arquivo);
+            FormatoColunar.ColunaTexto data = leitor.texto("DATA");
+            FormatoColunar.ColunaTexto regAns = leitor.texto("REG_ANS");
+            FormatoColunar.ColunaTexto conta = leitor.texto("CD_CONTA_CONTABIL");
+            FormatoColunar.ColunaTexto descricao = leitor.texto("DESCRICAO");
+            FormatoColunar.ColunaValor valores = leitor.valor(FormatoColunar.COLUNA_VALOR);
+
+            for (int linha = 0; linha < leitor.linhas(); linha++) {
+                consumidor.accept(new ProcessadorCSV.DadosDespesa(data.texto(linha), regAns.texto(linha),
+                        conta.texto(linha), descricao.texto(linha), valores.centavos(linha)));
+            }
+            return leitor.linhas();
+        };
+    }
+
+    // Saida final: cabecalho seguido das linhas enriquecidas de cada trimestre, na ordem da janela
+    static void juntarEnriquecidos(List<File> enriquecidos, DestinoSaida destino, String nomeEnriquecido) throws IOException {
+        try (Metricas.Medicao medicao = Metricas.iniciar("juntar-enriquecidos", nomeEnriquecido);
+             OutputStream out = destino.abrir(nomeEnriquecido)) {
+            ServicoEnriquecimento.abrirSaida(out).flush();
+            for (File enriquecido : enriquecidos) {
+                medicao.bytesLidos(Files.copy(enriquecido.toPath(), out));
+            }
+        }
+    }
+
+    private Trimestre trimestre(String nomeZip) {
+        int ponto = nomeZip.lastIndexOf('.');
+        String base = ponto > 0 ? nomeZip.substring(0, ponto) : nomeZip;
+        return new Trimestre(nomeZip,
+                new File(pasta, base + FormatoColunar.EXTENSAO),
+                new File(pasta, base + ".csv"),
+                new File(pasta, base + ".estado"));
+    }
+
+    private static String hashDoZip(File zip) throws IOException {
+        Properties meta = MotorDownload.metadados(zip);
+        if (meta != null && meta.getProperty("sha256") != null
+                && String.valueOf(zip.length()).equals(meta.getProperty("tamanho"))) {
+            return meta.getProperty("sha256");
+        }
+        return MotorDownload.sha256(zip);
+    }
+
+    static PipelineStreaming.ResultadoParcial lerEstado(File arquivo) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(arquivo), 1 << 16))) {
+            if (in.readInt() != MAGICO_ESTADO || in.readInt() != VERSAO_ESTADO) {
+                throw new IOException("Parcial invalido ou de versao incompativel: " + arquivo);
+            }
+            return PipelineStreaming.ResultadoParcial.ler(in);
+        }
+    }
+
+    // Parciais de outra versao tem o enriquecido em outro layout e sao refeitos a partir das linhas guardadas
+    private static boolean estadoCompativel(File arquivo) {
+        if (!arquivo.exists()) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(arquivo))) {
+            return in.readInt() == MAGICO_ESTADO && in.readInt() == VERSAO_ESTADO;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static void gravarEstado(File arquivo, PipelineStreaming.ResultadoParcial parcial) throws IOException {
+        File temporario = new File(arquivo.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporario), 1 << 16))) {
+            out.writeInt(MAGICO_ESTADO);
+            out.writeInt(VERSAO_ESTADO);
+            parcial.gravar(out);
+        }
+        Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Properties lerManifesto() {
+        Properties manifesto = new Properties();
+        File arquivo = new File(pasta, MANIFESTO);
+        if (!arquivo.exists()) return manifesto;
+        try (InputStream in = new FileInputStream(arquivo)) {
+            manifesto.load(in);
+        } catch (IOException e) {
+            System.err.println("Manifesto incremental ilegivel, todos os trimestres serao reprocessados: " + e.getMessage());
+        }
+        return manifesto;
+    }
+
+    // Durante a execucao o manifesto mantem as entradas antigas ainda nao revisitadas ("anterior"),
+    // para que uma interrupcao nao faca perder parciais validos
+    private void gravarManifesto(Properties atualizado, Properties anterior) throws IOException {
+        Properties conteudo = new Properties();
+        if (anterior != null) conteudo.putAll(anterior);
+        conteudo.putAll(atualizado);
+
+        File arquivo = new File(pasta, MANIFESTO);
+        File temporario = new File(arquivo.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporario)) {
+            conteudo.store(out, null);
+        }
+        Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Trimestres que sairam da janela nao entram mais no resultado; seus parciais sao apagados
+    private void removerParciaisForaDaJanela(Properties anterior, Properties atualizado) {
+        for (String chave : anterior.stringPropertyNames()) {
+            if (!chave.endsWith(".sha256")) continue;
+            String nome = chave.substring(0, chave.length() - ".sha256".length());
+            if (atualizado.containsKey(chave)) continue;
+
+            Trimestre trimestre = trimestre(nome);
+            trimestre.linhas.delete();
+            trimestre.enriquecido.delete();
+            trimestre.estado.delete();
+            System.out.println("Parcial fora da janela removido: " + nome);
+        }
+    }
+}
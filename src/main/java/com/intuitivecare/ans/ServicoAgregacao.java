@@ -1,110 +1,317 @@
 package com.intuitivecare.ans;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.csv.CSVRecord;
-
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class ServicoAgregacao {
 
     private record ChaveAgregacao(String razaoSocial, String uf) {}
 
-    private record ResultadoAgregacao(String razaoSocial, String uf, double total, double media, double desvioPadrao) {}
+    private record ResultadoAgregacao(String razaoSocial, String uf, long totalCentavos, long mediaCentavos, double desvioPadrao) {}
 
-    public void gerarRelatorioEstatistico(String arquivoEntrada, String arquivoSaida) {
-        System.out.println("INICIANDO AGREGACAO E ESTATISTICA");
+    // Estatisticas de um grupo em uma unica passada (Welford), sem guardar os valores.
+    // Soma exata em centavos; media e M2 em double, tambem em centavos, para o desvio padrao populacional.
+    public static class Acumulador {
+        private long contagem = 0;
+        private long somaCentavos = 0;
+        private double media = 0.0;
+        private double m2 = 0.0;
 
-        try {
-            Map<ChaveAgregacao, List<Double>> agrupamento = lerEAgrupar(arquivoEntrada);
-            List<ResultadoAgregacao> resultados = calcularEstatisticas(agrupamento);
-            ordenarPorTotalDecrescente(resultados);
-            escreverRelatorio(resultados, arquivoSaida);
+        public void adicionar(long valorCentavos) {
+            contagem++;
+            somaCentavos += valorCentavos;
+            double delta = valorCentavos - media;
+            media += delta / contagem;
+            m2 += delta * (valorCentavos - media);
+        }
+
+        // Combina dois acumuladores parciais (Chan et al.), para agregacao em paralelo
+        public void mesclar(Acumulador outro) {
+            if (outro.contagem == 0) return;
+            if (contagem == 0) {
+                contagem = outro.contagem;
+                somaCentavos = outro.somaCentavos;
+                media = outro.media;
+                m2 = outro.m2;
+                return;
+            }
+            long total = contagem + outro.contagem;
+            double delta = outro.media - media;
+            m2 += outro.m2 + delta * delta * ((double) contagem * outro.contagem / total);
+            media += delta * outro.contagem / total;
+            somaCentavos += outro.somaCentavos;
+            contagem = total;
+        }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        public long contagem() {
+            return contagem;
+        }
+
+        public long somaCentavos() {
+            return somaCentavos;
+        }
+
+        public long mediaCentavos() {
+            return ValorMonetario.dividir(somaCentavos, contagem);
+        }
+
+        // Desvio padrao populacional em reais (0 para grupos com um unico valor)
+        public double desvioPadrao() {
+            return contagem > 1 ? Math.sqrt(m2 / contagem) / 100.0 : 0.0;
+        }
+
+        void gravar(DataOutputStream out) throws IOException {
+            out.writeLong(contagem);
+            out.writeLong(somaCentavos);
+            out.writeDouble(media);
+            out.writeDouble(m2);
+        }
+
+        static Acumulador ler(DataInputStream in) throws IOException {
+            Acumulador acumulador = new Acumulador();
+            acumulador.contagem = in.readLong();
+            acumulador.somaCentavos = in.readLong();
+            acumulador.media = in.readDouble();
+            acumulador.m2 = in.readDouble();
+            return acumulador;
         }
     }
 
-    private Map<ChaveAgregacao, List<Double>> lerEAgrupar(String arquivoEntrada) throws IOException {
-        System.out.println("Lendo e agrupando dados...");
-        Map<ChaveAgregacao, List<Double>> mapa = new HashMap<>();
+    // Agrupamento por (RAZAO_SOCIAL, UF), alimentado pela leitura do arquivo ou pelo pipeline em streaming.
+    // Limitado pelo OrcamentoMemoria, transbordando para o disco (ver GruposTransbordaveis). Agrupamentos
+    // parciais podem ser mesclados.
+    public static class Agrupamento {
+        // Chave (duas Strings), entrada do HashMap e Acumulador, aproximados
+        private static final int BYTES_POR_GRUPO = 200;
+
+        private static final GruposTransbordaveis.Tipo<ChaveAgregacao, Acumulador> TIPO = new GruposTransbordaveis.Tipo<>() {
+            private final Comparator<ChaveAgregacao> ordem = Comparator
+                    .comparing(ChaveAgregacao::razaoSocial).thenComparing(chave -> chave.uf == null ? "" : chave.uf);
 
-        try (Reader reader = new FileReader(arquivoEntrada, StandardCharsets.UTF_8);
-             CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT.builder().setDelimiter(';').setHeader().setSkipHeaderRecord(true).build())) {
+            @Override
+            public Comparator<ChaveAgregacao> ordem() {
+                return ordem;
+            }
+
+            @Override
+            public Acumulador novo() {
+                return new Acumulador();
+            }
+
+            @Override
+            public void mesclar(Acumulador destino, Acumulador origem) {
+                destino.mesclar(origem);
+            }
 
-            for (CSVRecord record : parser) {
-                String razao = record.get("RAZAO_SOCIAL");
-                String uf = record.get("UF");
-                String valorStr = record.get("VL_SALDO_FINAL");
+            @Override
+            public void gravarChave(DataOutputStream out, ChaveAgregacao chave) throws IOException {
+                out.writeUTF(chave.razaoSocial);
+                out.writeUTF(chave.uf == null ? "" : chave.uf);
+            }
 
-                if (razao == null || razao.isEmpty() || valorStr == null) continue;
+            @Override
+            public ChaveAgregacao lerChave(DataInputStream in) throws IOException {
+                return new ChaveAgregacao(in.readUTF(), in.readUTF());
+            }
 
-                try {
-                    double valor = Double.parseDouble(valorStr.replace(",", "."));
-                    ChaveAgregacao chave = new ChaveAgregacao(razao, uf);
+            @Override
+            public void gravarAcumulador(DataOutputStream out, Acumulador acumulador) throws IOException {
+                acumulador.gravar(out);
+            }
 
-                    mapa.computeIfAbsent(chave, k -> new ArrayList<>()).add(valor);
+            @Override
+            public Acumulador lerAcumulador(DataInputStream in) throws IOException {
+                return Acumulador.ler(in);
+            }
 
-                } catch (NumberFormatException ignored) {
-                }
+            @Override
+            public long tamanho(ChaveAgregacao chave) {
+                return BYTES_POR_GRUPO + chave.razaoSocial.length() + (chave.uf == null ? 0 : chave.uf.length());
             }
+        };
+
+        private final GruposTransbordaveis<ChaveAgregacao, Acumulador> grupos;
+
+        public Agrupamento() {
+            this(OrcamentoMemoria.padrao());
         }
-        return mapa;
-    }
 
-    private List<ResultadoAgregacao> calcularEstatisticas(Map<ChaveAgregacao, List<Double>> agrupamento) {
-        System.out.println("Calculando estatisticas...");
-        List<ResultadoAgregacao> lista = new ArrayList<>();
+        public Agrupamento(OrcamentoMemoria orcamento) {
+            this.grupos = new GruposTransbordaveis<>(TIPO, orcamento, "agrupamento");
+        }
 
-        for (Map.Entry<ChaveAgregacao, List<Double>> entry : agrupamento.entrySet()) {
-            ChaveAgregacao chave = entry.getKey();
-            List<Double> valores = entry.getValue();
+        public void adicionar(String razao, String uf, long valorCentavos) {
+            if (razao == null || razao.isEmpty()) return;
+            grupos.acumulador(new ChaveAgregacao(razao, uf)).adicionar(valorCentavos);
+        }
 
-            double soma = 0.0;
-            for (double v : valores) soma += v;
+        public void mesclar(Agrupamento outro) {
+            grupos.mesclar(outro.grupos);
+        }
 
-            double media = soma / valores.size();
+        public int particoes() {
+            return grupos.particoes();
+        }
 
-            double somaQuadrados = 0.0;
-            for (double v : valores) {
-                somaQuadrados += Math.pow(v - media, 2);
-            }
-            double desvioPadrao = (valores.size() > 1) ? Math.sqrt(somaQuadrados / valores.size()) : 0.0;
+        // Estado completo dos acumuladores, para guardar parciais e mescla-los em outra execucao
+        public void gravar(DataOutputStream out) throws IOException {
+            grupos.gravar(out);
+        }
 
-            lista.add(new ResultadoAgregacao(chave.razaoSocial, chave.uf, soma, media, desvioPadrao));
+        public static Agrupamento ler(DataInputStream in) throws IOException {
+            Agrupamento agrupamento = new Agrupamento();
+            agrupamento.grupos.lerEMesclar(in);
+            return agrupamento;
+        }
+
+        // Devolve a reserva de memoria e apaga as particoes; o agrupamento fica vazio
+        public void descartar() {
+            grupos.descartar();
         }
-        return lista;
     }
 
-    private void ordenarPorTotalDecrescente(List<ResultadoAgregacao> lista) {
-        System.out.println("Ordenando resultados...");
-        lista.sort((a, b) -> Double.compare(b.total, a.total));
+    public void gerarRelatorioEstatistico(String arquivoEntrada, String arquivoSaida) throws IOException {
+        System.out.println("INICIANDO AGREGACAO E ESTATISTICA");
+
+        Agrupamento agrupamento = lerEAgrupar(arquivoEntrada);
+        gerarRelatorioEstatistico(agrupamento, arquivoSaida);
     }
 
-    private void escreverRelatorio(List<ResultadoAgregacao> lista, String arquivoSaida) throws IOException {
-        System.out.println("Gerando relatorio estatistico: " + arquivoSaida);
-
-        CSVFormat formato = CSVFormat.Builder.create()
-                .setDelimiter(';')
-                .setHeader("RAZAO_SOCIAL", "UF", "TOTAL_DESPESAS", "MEDIA_TRIMESTRAL", "DESVIO_PADRAO")
-                .build();
-
-        try (Writer writer = new OutputStreamWriter(new FileOutputStream(arquivoSaida), StandardCharsets.UTF_8);
-             CSVPrinter printer = new CSVPrinter(writer, formato)) {
-
-            for (ResultadoAgregacao r : lista) {
-                printer.printRecord(
-                        r.razaoSocial,
-                        r.uf,
-                        String.format(Locale.US, "%.2f", r.total),
-                        String.format(Locale.US, "%.2f", r.media),
-                        String.format(Locale.US, "%.2f", r.desvioPadrao)
-                );
+    public void gerarRelatorioEstatistico(Agrupamento agrupamento, String arquivoSaida) throws IOException {
+        gerarRelatorioEstatistico(agrupamento, DestinoSaida.arquivos(), arquivoSaida);
+    }
+
+    // O relatorio e gravado como "nome" no destino (pasta ou entrada do ZIP final). Estatisticas e ordenacao
+    // por total passam pela OrdenacaoExterna, dentro do mesmo orcamento de memoria do agrupamento, que e
+    // consumido (descartado) ao final.
+    public void gerarRelatorioEstatistico(Agrupamento agrupamento, DestinoSaida destino, String nome) throws IOException {
+        try (Metricas.Medicao medicao = Metricas.iniciar("agregacao", nome)) {
+            // itens(): os grupos distintos, contados na mesma intercalacao que alimenta o relatorio
+            OrdenacaoExterna<ResultadoAgregacao> resultados = calcularEstatisticas(agrupamento);
+            medicao.linhasEntrada(resultados.itens());
+            try {
+                escreverRelatorio(resultados, destino, nome);
+            } finally {
+                resultados.descartar();
             }
+            medicao.linhasSaida(resultados.itens());
+        } finally {
+            agrupamento.descartar();
+        }
+    }
+
+    private Agrupamento lerEAgrupar(String arquivoEntrada) throws IOException {
+        System.out.println("Lendo e agrupando dados...");
+        Agrupamento agrupamento = new Agrupamento();
+
+        // Os grupos distintos sao contados na etapa "agregacao", pela intercalacao que grava o relatorio
+        try (Metricas.Medicao medicao = Metricas.iniciar("leitura-agregacao", arquivoEntrada)
+                .bytesLidos(new File(arquivoEntrada).length())) {
+            int linhas = FormatoColunar.ehColunar(arquivoEntrada)
+                    ? lerEAgruparColunar(arquivoEntrada, agrupamento)
+                    : lerEAgruparCSV(arquivoEntrada, agrupamento);
+            medicao.linhasEntrada(linhas);
+        } catch (IOException | RuntimeException e) {
+            agrupamento.descartar();
+            throw e;
+        }
+        return agrupamento;
+    }
+
+    private int lerEAgruparCSV(String arquivoEntrada, Agrupamento agrupamento) throws IOException {
+        TokenizadorCSV tokenizador = TokenizadorCSV.mapear(new File(arquivoEntrada), StandardCharsets.UTF_8, ';', false);
+        if (!tokenizador.proximaLinha()) return 0;
+        int[] colunas = ServicoEnriquecimento.exigirColunas(tokenizador, "RAZAO_SOCIAL", "UF", "VL_SALDO_FINAL");
+
+        int linhas = 0;
+        while (tokenizador.proximaLinha()) {
+            linhas++;
+            long valor = ValorMonetario.parseCentavos(tokenizador.bytes(),
+                    tokenizador.inicioCampo(colunas[2]), tokenizador.fimCampo(colunas[2]));
+            if (valor == ValorMonetario.INVALIDO) continue;
+
+            String razao = tokenizador.campo(colunas[0]);
+            if (razao.isEmpty()) continue;
+
+            agrupamento.adicionar(razao, tokenizador.campo(colunas[1]), valor);
+        }
+        return linhas;
+    }
+
+    // Le apenas RAZAO_SOCIAL, UF e VL_SALDO_FINAL do arquivo colunar.
+    // As linhas sao agrupadas em paralelo (leituras absolutas no mapeamento) e os parciais mesclados.
+    private int lerEAgruparColunar(String arquivoEntrada, Agrupamento agrupamento) throws IOException {
+        FormatoColunar.Leitor leitor = FormatoColunar.Leitor.abrir(new File(arquivoEntrada));
+        FormatoColunar.ColunaTexto razao = leitor.texto("RAZAO_SOCIAL");
+        FormatoColunar.ColunaTexto uf = leitor.texto("UF");
+        FormatoColunar.ColunaValor valores = leitor.valor(FormatoColunar.COLUNA_VALOR);
+
+        Agrupamento parcial = IntStream.range(0, leitor.linhas()).parallel().collect(
+                Agrupamento::new,
+                (grupo, linha) -> grupo.adicionar(razao.texto(linha), uf.texto(linha), valores.centavos(linha)),
+                Agrupamento::mesclar);
+        agrupamento.mesclar(parcial);
+        return leitor.linhas();
+    }
+
+    // Maior total primeiro; empates pela chave, para a ordem nao depender da ordem de chegada dos grupos
+    private static final Comparator<ResultadoAgregacao> ORDEM_RELATORIO = Comparator
+            .comparingLong(ResultadoAgregacao::totalCentavos).reversed()
+            .thenComparing(ResultadoAgregacao::razaoSocial)
+            .thenComparing(r -> r.uf == null ? "" : r.uf);
+
+    private static final OrdenacaoExterna.Serializador<ResultadoAgregacao> SERIALIZADOR_RESULTADO = new OrdenacaoExterna.Serializador<>() {
+        @Override
+        public void gravar(DataOutputStream out, ResultadoAgregacao r) throws IOException {
+            out.writeUTF(r.razaoSocial);
+            out.writeUTF(r.uf == null ? "" : r.uf);
+            out.writeLong(r.totalCentavos);
+            out.writeLong(r.mediaCentavos);
+            out.writeDouble(r.desvioPadrao);
+        }
+
+        @Override
+        public ResultadoAgregacao ler(DataInputStream in) throws IOException {
+            return new ResultadoAgregacao(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readDouble());
+        }
+
+        @Override
+        public long tamanhoEstimado(ResultadoAgregacao r) {
+            return 120 + r.razaoSocial.length() + (r.uf == null ? 0 : r.uf.length());
+        }
+    };
+
+    private OrdenacaoExterna<ResultadoAgregacao> calcularEstatisticas(Agrupamento agrupamento) throws IOException {
+        System.out.println("Calculando estatisticas...");
+        OrdenacaoExterna<ResultadoAgregacao> resultados = new OrdenacaoExterna<>(
+                ORDEM_RELATORIO, SERIALIZADOR_RESULTADO, agrupamento.grupos.orcamento(), "relatorio");
+        try {
+            agrupamento.grupos.percorrerPorChave((chave, acumulador) -> resultados.adicionar(new ResultadoAgregacao(chave.razaoSocial, chave.uf,
+                    acumulador.somaCentavos(), acumulador.mediaCentavos(), acumulador.desvioPadrao())));
+        } catch (IOException | RuntimeException e) {
+            resultados.descartar();
+            throw e;
+        }
+        // O agrupamento ja foi lido: a memoria dele passa para a ordenacao
+        agrupamento.descartar();
+        return resultados;
+    }
+
+    private void escreverRelatorio(OrdenacaoExterna<ResultadoAgregacao> resultados, DestinoSaida destino, String nome) throws IOException {
+        System.out.println("Ordenando resultados...");
+        System.out.println("Gerando relatorio estatistico: " + nome);
+
+        try (CodificadorCSV saida = new CodificadorCSV(destino.abrir(nome), StandardCharsets.UTF_8, ';')) {
+            saida.registro("RAZAO_SOCIAL", "UF", "TOTAL_DESPESAS", "MEDIA_TRIMESTRAL", "DESVIO_PADRAO");
+            resultados.percorrer(r -> saida
+                    .texto(r.razaoSocial)
+                    .texto(r.uf)
+                    .centavos(r.totalCentavos, '.')
+                    .centavos(r.mediaCentavos, '.')
+                    .centavos(ValorMonetario.deReais(r.desvioPadrao), '.')
+                    .fimRegistro());
         }
     }
 }
\ No newline at end of file
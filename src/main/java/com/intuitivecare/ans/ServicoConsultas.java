@@ -0,0 +1,274 @@
+package com.intuitivecare.ans;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Servico HTTP somente leitura sobre o ZIP final do ETL (--servidor-consultas, --porta). Respostas em JSON:
+//   GET /operadoras/{REG_ANS}                              cadastro e totais da operadora, geral e por trimestre
+//   GET /despesas?trimestre=3T2024&uf=SP&modalidade=...&limite=10
+//                                                          maiores totais por operadora, com filtros opcionais
+//   GET /agregado?uf=SP&limite=10                          linhas do relatorio agregado por (RAZAO_SOCIAL, UF)
+//   GET /status                                            versao carregada e tamanho da base
+// O ZIP e conferido a cada --recarga-segundos; quando uma execucao do ETL o substitui, a base nova e montada
+// em segundo plano e trocada de uma vez. Cada consulta le a referencia uma unica vez, entao as que ja estavam
+// em andamento terminam com a base anterior.
+public class ServicoConsultas implements AutoCloseable {
+
+    private static final int LIMITE_PADRAO = 10;
+    private static final int LIMITE_MAXIMO = 1000;
+
+    private final File zip;
+    private final String nomeEnriquecido;
+    private final String nomeAgregado;
+    private final AtomicReference<BaseConsultas> base = new AtomicReference<>();
+    private final HttpServer servidor;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService recarga;
+    private long ultimaModificacao;
+    private long ultimoTamanho;
+
+    public ServicoConsultas(File zip, String nomeEnriquecido, String nomeAgregado, int porta, int threads) throws IOException {
+        this.zip = zip;
+        this.nomeEnriquecido = nomeEnriquecido;
+        this.nomeAgregado = nomeAgregado;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), tarefa -> new Thread(tarefa, "consultas"));
+        this.recarga = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "recarga-consultas");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.servidor = HttpServer.create(new InetSocketAddress(porta), 0);
+        servidor.createContext("/operadoras/", troca -> responder(troca, this::operadora));
+        servidor.createContext("/despesas", troca -> responder(troca, this::despesas));
+        servidor.createContext("/agregado", troca -> responder(troca, this::agregado));
+        servidor.createContext("/status", troca -> responder(troca, this::status));
+        servidor.setExecutor(executor);
+    }
+
+    // Carrega a base atual e passa a atender; a recarga confere o ZIP periodicamente
+    public void iniciar(Duration intervaloRecarga) throws IOException {
+        recarregarSeMudou();
+        if (base.get() == null) throw new IOException("ZIP de resultados nao encontrado: " + zip.getAbsolutePath());
+        servidor.start();
+        recarga.scheduleWithFixedDelay(() -> {
+            try {
+                recarregarSeMudou();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Falha ao recarregar " + zip.getName() + ", mantendo a base atual: " + e.getMessage());
+            }
+        }, intervaloRecarga.toMillis(), intervaloRecarga.toMillis(), TimeUnit.MILLISECONDS);
+        System.out.println("Servico de consultas em http://localhost:" + servidor.getAddress().getPort() + "/");
+    }
+
+    @Override
+    public void close() {
+        recarga.shutdownNow();
+        servidor.stop(1);
+        executor.shutdown();
+    }
+
+    // So a thread de recarga (e a carga inicial) chega aqui
+    private synchronized void recarregarSeMudou() throws IOException {
+        if (!zip.exists()) return;
+        long modificacao = zip.lastModified();
+        long tamanho = zip.length();
+        if (base.get() != null && modificacao == ultimaModificacao && tamanho == ultimoTamanho) return;
+
+        long inicio = System.nanoTime();
+        BaseConsultas nova = BaseConsultas.carregar(zip, nomeEnriquecido, nomeAgregado);
+        base.set(nova);
+        ultimaModificacao = modificacao;
+        ultimoTamanho = tamanho;
+        System.out.printf(Locale.ROOT, "Base de consultas carregada: %d operadoras, %d trimestres, %d linhas agregadas (%.0f ms)%n",
+                nova.quantidadeOperadoras(), nova.trimestres().size(), nova.quantidadeAgregados(), (System.nanoTime() - inicio) / 1e6);
+    }
+
+    private interface Consulta {
+        // Retorna o JSON da resposta; ConsultaInvalida vira 400 e NaoEncontrado vira 404
+        String executar(BaseConsultas base, String caminho, Map<String, String> parametros);
+    }
+
+    private static class ConsultaInvalida extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ConsultaInvalida(String mensagem) {
+            super(mensagem);
+        }
+    }
+
+    private static class NaoEncontrado extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NaoEncontrado(String mensagem) {
+            super(mensagem);
+        }
+    }
+
+    private void responder(HttpExchange troca, Consulta consulta) throws IOException {
+        int status;
+        String corpo;
+        try {
+            if (!"GET".equals(troca.getRequestMethod())) {
+                status = 405;
+                corpo = erro("Somente GET");
+            } else {
+                Map<String, String> parametros = parametros(troca.getRequestURI().getRawQuery());
+                corpo = consulta.executar(base.get(), troca.getRequestURI().getPath(), parametros);
+                status = 200;
+            }
+        } catch (ConsultaInvalida e) {
+            status = 400;
+            corpo = erro(e.getMessage());
+        } catch (NaoEncontrado e) {
+            status = 404;
+            corpo = erro(e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("Erro na consulta " + troca.getRequestURI() + ": " + e);
+            status = 500;
+            corpo = erro("Erro interno");
+        }
+
+        byte[] bytes = corpo.getBytes(StandardCharsets.UTF_8);
+        troca.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        troca.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = troca.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private String operadora(BaseConsultas base, String caminho, Map<String, String> parametros) {
+        String regAns = caminho.substring("/operadoras/".length());
+        BaseConsultas.Operadora operadora = base.operadora(regAns);
+        if (operadora == null) throw new NaoEncontrado("Operadora nao encontrada: " + regAns);
+
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"operadora\": ");
+        operadora(json, operadora);
+        json.append(", \"totais\": [");
+        List<BaseConsultas.Total> totais = base.totaisDaOperadora(regAns);
+        for (int i = 0; i < totais.size(); i++) {
+            if (i > 0) json.append(", ");
+            BaseConsultas.Total total = totais.get(i);
+            json.append("{\"trimestre\": ").append(total.trimestre() == null ? "null" : Json.texto(total.trimestre().toString()));
+            valores(json, total);
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private String despesas(BaseConsultas base, String caminho, Map<String, String> parametros) {
+        DescobertaTrimestres.Trimestre trimestre = null;
+        if (parametros.containsKey("trimestre")) {
+            try {
+                trimestre = DescobertaTrimestres.Trimestre.de(parametros.get("trimestre"));
+            } catch (IllegalArgumentException e) {
+                throw new ConsultaInvalida(e.getMessage());
+            }
+        }
+        List<BaseConsultas.Total> totais = base.filtrar(trimestre, parametros.get("uf"), parametros.get("modalidade"), limite(parametros));
+
+        StringBuilder json = new StringBuilder(128 + totais.size() * 256);
+        json.append("{\"trimestre\": ").append(trimestre == null ? "null" : Json.texto(trimestre.toString()));
+        json.append(", \"itens\": [");
+        for (int i = 0; i < totais.size(); i++) {
+            if (i > 0) json.append(", ");
+            json.append("{\"operadora\": ");
+            operadora(json, totais.get(i).operadora());
+            valores(json, totais.get(i));
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private String agregado(BaseConsultas base, String caminho, Map<String, String> parametros) {
+        List<BaseConsultas.Agregado> agregados = base.agregados(parametros.get("uf"), limite(parametros));
+
+        StringBuilder json = new StringBuilder(64 + agregados.size() * 160);
+        json.append("{\"itens\": [");
+        for (int i = 0; i < agregados.size(); i++) {
+            BaseConsultas.Agregado a = agregados.get(i);
+            if (i > 0) json.append(", ");
+            json.append("{\"razaoSocial\": ");
+            Json.texto(json, a.razaoSocial()).append(", \"uf\": ");
+            Json.texto(json, a.uf()).append(", \"totalDespesas\": ").append(ValorMonetario.formatar(a.totalCentavos(), '.'))
+                    .append(", \"mediaTrimestral\": ").append(ValorMonetario.formatar(a.mediaCentavos(), '.'))
+                    .append(", \"desvioPadrao\": ").append(ValorMonetario.formatar(a.desvioCentavos(), '.'))
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private String status(BaseConsultas base, String caminho, Map<String, String> parametros) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"arquivo\": ");
+        Json.texto(json, base.origem().getPath()).append(", \"versao\": ");
+        Json.texto(json, base.versao().toString()).append(", \"linhas\": ").append(base.linhas())
+                .append(", \"operadoras\": ").append(base.quantidadeOperadoras())
+                .append(", \"linhasAgregadas\": ").append(base.quantidadeAgregados())
+                .append(", \"trimestres\": [");
+        int i = 0;
+        for (DescobertaTrimestres.Trimestre trimestre : base.trimestres()) {
+            if (i++ > 0) json.append(", ");
+            Json.texto(json, trimestre.toString());
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void operadora(StringBuilder json, BaseConsultas.Operadora operadora) {
+        json.append("{\"regAns\": ");
+        Json.texto(json, operadora.regAns()).append(", \"cnpj\": ");
+        Json.texto(json, operadora.cnpj()).append(", \"razaoSocial\": ");
+        Json.texto(json, operadora.razaoSocial()).append(", \"modalidade\": ");
+        Json.texto(json, operadora.modalidade()).append(", \"uf\": ");
+        Json.texto(json, operadora.uf()).append(", \"cnpjValido\": ");
+        Json.texto(json, operadora.cnpjValido()).append('}');
+    }
+
+    private static void valores(StringBuilder json, BaseConsultas.Total total) {
+        json.append(", \"totalDespesas\": ").append(ValorMonetario.formatar(total.centavos(), '.'))
+                .append(", \"lancamentos\": ").append(total.linhas());
+    }
+
+    private static int limite(Map<String, String> parametros) {
+        String valor = parametros.get("limite");
+        if (valor == null) return LIMITE_PADRAO;
+        try {
+            int limite = Integer.parseInt(valor);
+            if (limite < 1 || limite > LIMITE_MAXIMO) throw new NumberFormatException();
+            return limite;
+        } catch (NumberFormatException e) {
+            throw new ConsultaInvalida("limite deve estar entre 1 e " + LIMITE_MAXIMO + ": " + valor);
+        }
+    }
+
+    private static Map<String, String> parametros(String consulta) {
+        Map<String, String> parametros = new HashMap<>();
+        if (consulta == null || consulta.isEmpty()) return parametros;
+        try {
+            for (String par : consulta.split("&")) {
+                int igual = par.indexOf('=');
+                if (igual <= 0) continue;
+                String valor = URLDecoder.decode(par.substring(igual + 1), StandardCharsets.UTF_8);
+                if (!valor.isEmpty()) parametros.put(URLDecoder.decode(par.substring(0, igual), StandardCharsets.UTF_8), valor);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ConsultaInvalida("Parametros mal codificados: " + consulta);
+        }
+        return parametros;
+    }
+
+    private static String erro(String mensagem) {
+        return "{\"erro\": " + Json.texto(mensagem) + "}";
+    }
+}
@@ -1,147 +1,437 @@
 package com.intuitivecare.ans;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.io.FileUtils;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import java.io.*;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
 public class ServicoEnriquecimento {
 
-    private static final String CADASTRO_URL = "https://dadosabertos.ans.gov.br/FTP/PDA/operadoras_de_plano_de_saude_ativas/";
-    private static final String ARQUIVO_CADASTRO = "cadastro_operadoras.csv";
+    public static final String CADASTRO_URL = "https://dadosabertos.ans.gov.br/FTP/PDA/operadoras_de_plano_de_saude_ativas/";
+    public static final String ARQUIVO_CADASTRO = "cadastro_operadoras.csv";
 
-    private record DadosCadastrais(String registroAns, String cnpj, String razaoSocial, String modalidade, String uf) {}
+    static final String[] CABECALHO_SAIDA = {"DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO", "VL_SALDO_FINAL", "CNPJ", "RAZAO_SOCIAL", "MODALIDADE", "UF", "CNPJ_VALIDO"};
+    static final String RAZAO_NAO_ENCONTRADA = "NAO_ENCONTRADO_NO_CADASTRO";
 
-    public void executarEnriquecimento(String arquivoEntrada, String arquivoSaida) {
+    // cnpjValido e calculado uma vez por operadora ao carregar o cadastro; as linhas do join so leem a flag
+    record DadosCadastrais(String registroAns, String cnpj, String razaoSocial, String modalidade, String uf, boolean cnpjValido) {
+        DadosCadastrais(String registroAns, String cnpj, String razaoSocial, String modalidade, String uf) {
+            this(registroAns, cnpj, razaoSocial, modalidade, uf, ValidadorDados.isCNPJValido(cnpj));
+        }
+
+        DadosCadastrais comValidacao(boolean valido) {
+            return new DadosCadastrais(registroAns, cnpj, razaoSocial, modalidade, uf, valido);
+        }
+
+        String flagCnpj() {
+            return cnpjValido ? "SIM" : "NAO";
+        }
+    }
+
+    // Dentro deste prazo o snapshot local e usado sem consultar a ANS
+    public static final Duration IDADE_MAXIMA_CADASTRO = Duration.ofHours(24);
+
+    private final MotorDownload motorDownload;
+    private final String urlListagemCadastro;
+    private final Duration idadeMaximaCadastro;
+    private final File pastaHistorico;
+    private CompletableFuture<File> downloadCadastro;
+    private SnapshotCadastro snapshot;
+    private boolean snapshotLido = false;
+    private String versaoCadastro;
+
+    // pastaHistorico (opcional): versoes anteriores do cadastro, ver HistoricoCadastro
+    public ServicoEnriquecimento(MotorDownload motorDownload, String urlListagemCadastro, Duration idadeMaximaCadastro,
+                                 File pastaHistorico) {
+        this.motorDownload = motorDownload;
+        this.urlListagemCadastro = urlListagemCadastro.endsWith("/") ? urlListagemCadastro : urlListagemCadastro + "/";
+        this.idadeMaximaCadastro = idadeMaximaCadastro;
+        this.pastaHistorico = pastaHistorico;
+    }
+
+    public ServicoEnriquecimento(MotorDownload motorDownload, String urlListagemCadastro, Duration idadeMaximaCadastro) {
+        this(motorDownload, urlListagemCadastro, idadeMaximaCadastro, null);
+    }
+
+    public ServicoEnriquecimento(MotorDownload motorDownload, String urlListagemCadastro) {
+        this(motorDownload, urlListagemCadastro, IDADE_MAXIMA_CADASTRO);
+    }
+
+    public ServicoEnriquecimento() {
+        this(new MotorDownload(), CADASTRO_URL);
+    }
+
+    public void executarEnriquecimento(String arquivoEntrada, String arquivoSaida) throws IOException {
         System.out.println("INICIANDO ENRIQUECIMENTO DE DADOS");
 
-        try {
-            baixarArquivoCadastro();
-            Map<String, DadosCadastrais> mapaOperadoras = carregarMapaOperadoras();
-            realizarJoin(arquivoEntrada, arquivoSaida, mapaOperadoras);
+        IndiceCadastro cadastro = prepararCadastro();
+        try (Metricas.Medicao medicao = Metricas.iniciar("enriquecimento", arquivoEntrada)) {
+            int linhas = FormatoColunar.ehColunar(arquivoEntrada)
+                    ? realizarJoinColunar(arquivoEntrada, arquivoSaida, cadastro)
+                    : realizarJoin(arquivoEntrada, arquivoSaida, cadastro);
+            medicao.linhasEntrada(linhas).linhasSaida(linhas)
+                    .bytesLidos(new File(arquivoEntrada).length())
+                    .bytesGravados(new File(arquivoSaida).length());
+        }
+    }
+
+    // Indice do join: o cadastro atual e, com pastaHistorico, as versoes anteriores com as suas vigencias.
+    // O historico entra na versao do cadastro, entao muda-lo refaz o join no modo incremental.
+    public IndiceCadastro prepararCadastro() throws IOException {
+        Map<String, DadosCadastrais> atual = prepararCadastroAtual();
+        if (pastaHistorico == null) return IndiceCadastro.deMapa(atual);
+
+        HistoricoCadastro historico = HistoricoCadastro.ler(pastaHistorico);
+        versaoCadastro = versao(versaoCadastro, historico);
+        return indexar(atual, historico);
+    }
+
+    private static String versao(String sha256Cadastro, HistoricoCadastro historico) {
+        return historico == null ? sha256Cadastro : sha256Cadastro + "+" + historico.versao();
+    }
+
+    // Indice de um snapshot ja gravado, sem consultar a origem: os workers do ProcessamentoDistribuido usam o
+    // snapshot preparado pelo coordenador, entao todos fazem o join com o mesmo cadastro. Snapshot ou historico
+    // diferentes dos do coordenador (versaoEsperada, ver versaoCadastro) sao rejeitados.
+    public static IndiceCadastro indiceDoSnapshot(File arquivoSnapshot, File pastaHistorico, String versaoEsperada) throws IOException {
+        SnapshotCadastro snapshot = SnapshotCadastro.ler(arquivoSnapshot);
+        if (snapshot == null) throw new IOException("Snapshot do cadastro ausente ou ilegivel: " + arquivoSnapshot);
+        HistoricoCadastro historico = pastaHistorico == null ? null : HistoricoCadastro.ler(pastaHistorico);
+        String versao = versao(snapshot.sha256(), historico);
+        if (!versao.equals(versaoEsperada)) {
+            throw new IOException("Cadastro nao confere com o trabalho (versao " + versao + ", esperada " + versaoEsperada + "): " + arquivoSnapshot);
+        }
+        System.out.println("Cadastro carregado do snapshot: " + snapshot.operadoras().size() + " operadoras");
+        validarCnpjs(snapshot.operadoras());
+        if (historico == null) return IndiceCadastro.deMapa(snapshot.operadoras());
+        return indexar(snapshot.operadoras(), historico);
+    }
+
+    private static IndiceCadastro indexar(Map<String, DadosCadastrais> atual, HistoricoCadastro historico) {
+        IndiceCadastro indice = historico.indice(atual);
+        System.out.println("Indice do cadastro: " + indice.operadoras() + " operadoras em " + indice.periodos() + " periodos de vigencia");
+        return indice;
+    }
+
+    // Usa o snapshot local enquanto estiver dentro da idade maxima. Depois disso o CSV e revalidado na origem
+    // (download condicional) e o snapshot so e reconstruido se o conteudo mudou.
+    private Map<String, DadosCadastrais> prepararCadastroAtual() throws IOException {
+        SnapshotCadastro atual = snapshotDentroDaValidade();
+        if (atual != null) {
+            Metricas.iniciar("cadastro-snapshot", SnapshotCadastro.ARQUIVO)
+                    .bytesLidos(new File(SnapshotCadastro.ARQUIVO).length())
+                    .linhasSaida(atual.operadoras().size())
+                    .close();
+            System.out.println("Cadastro carregado do snapshot local: " + atual.operadoras().size() + " operadoras");
+            validarCnpjs(atual.operadoras());
+            versaoCadastro = atual.sha256();
+            return atual.operadoras();
+        }
+
+        // null: a origem respondeu 304 aos validadores do snapshot, mesmo sem o CSV local
+        File csv = MotorDownload.aguardar(agendarDownloadCadastro());
+        Properties meta = csv == null ? null : MotorDownload.metadados(csv);
+        String hash = csv == null ? null
+                : meta != null && meta.getProperty("sha256") != null ? meta.getProperty("sha256") : MotorDownload.sha256(csv);
+
+        SnapshotCadastro anterior = lerSnapshot();
+        if (anterior != null && (csv == null || anterior.mesmaOrigem(hash))) {
+            // Mesmo conteudo baixado de novo (ex.: de outra URL apos um 404): guarda a origem nova no snapshot
+            if (csv == null) anterior.renovar();
+            else gravarSnapshot(meta, hash, anterior.operadoras());
+            versaoCadastro = anterior.sha256();
+            System.out.println("Cadastro inalterado na origem; snapshot revalidado: " + anterior.operadoras().size() + " operadoras");
+            validarCnpjs(anterior.operadoras());
+            return anterior.operadoras();
+        }
+
+        Map<String, DadosCadastrais> mapa = carregarMapaOperadoras();
+        gravarSnapshot(meta, hash, mapa);
+        System.out.println("Snapshot do cadastro atualizado: " + SnapshotCadastro.ARQUIVO);
+        versaoCadastro = hash;
+        return mapa;
+    }
+
+    private static void gravarSnapshot(Properties meta, String hash, Map<String, DadosCadastrais> mapa) throws IOException {
+        SnapshotCadastro.gravar(new File(SnapshotCadastro.ARQUIVO),
+                meta == null ? null : meta.getProperty("url"),
+                meta == null ? null : meta.getProperty("etag"),
+                meta == null ? null : meta.getProperty("lastModified"),
+                hash, mapa);
+    }
+
+    // SHA-256 do CSV de cadastro usado pelo ultimo prepararCadastro (identifica a versao do join)
+    public String versaoCadastro() {
+        return versaoCadastro;
+    }
+
+    // Saida enriquecida em UTF-8, ja com o cabecalho
+    public static CodificadorCSV abrirSaida(OutputStream out) throws IOException {
+        return new CodificadorCSV(out, StandardCharsets.UTF_8, ';').registro(CABECALHO_SAIDA);
+    }
+
+    // Grava uma linha enriquecida; retorna false quando a operadora nao esta no cadastro
+    public static boolean imprimirLinhaEnriquecida(CodificadorCSV saida, String data, String regAns, String codigoConta,
+                                                   String descricao, long centavos, DadosCadastrais infoExtra) throws IOException {
+        saida.texto(data).texto(regAns).texto(codigoConta).texto(descricao).centavos(centavos, ',');
+        return imprimirCadastro(saida, infoExtra);
+    }
+
+    // Variante que repete o valor ja formatado (consolidado lido de CSV)
+    public static boolean imprimirLinhaEnriquecida(CodificadorCSV saida, String data, String regAns, String codigoConta,
+                                                   String descricao, String valor, DadosCadastrais infoExtra) throws IOException {
+        saida.texto(data).texto(regAns).texto(codigoConta).texto(descricao).texto(valor);
+        return imprimirCadastro(saida, infoExtra);
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private static boolean imprimirCadastro(CodificadorCSV saida, DadosCadastrais infoExtra) throws IOException {
+        if (infoExtra != null) {
+            saida.texto(infoExtra.cnpj)
+                    .texto(infoExtra.razaoSocial)
+                    .texto(infoExtra.modalidade)
+                    .texto(infoExtra.uf)
+                    .texto(infoExtra.flagCnpj());
+        } else {
+            saida.texto("").texto(RAZAO_NAO_ENCONTRADA).texto("").texto("").texto("");
         }
+        saida.fimRegistro();
+        return infoExtra != null;
     }
 
-    private void baixarArquivoCadastro() throws IOException {
+    public String localizarUrlCadastro() throws IOException {
         System.out.println("Buscando arquivo de cadastro na ANS...");
-        Document doc = Jsoup.connect(CADASTRO_URL).timeout(30000).get();
+        Document doc = Jsoup.connect(urlListagemCadastro).timeout(30000).get();
         Elements links = doc.select("a[href$='.csv']");
 
-        String urlCsv = null;
         for (Element link : links) {
             if (link.attr("href").toLowerCase().contains("relatorio_cadop")) {
-                urlCsv = CADASTRO_URL + link.attr("href");
-                break;
+                return urlListagemCadastro + link.attr("href");
             }
         }
+        throw new IOException("Link do CSV de cadastro nao encontrado.");
+    }
 
-        if (urlCsv != null) {
-            System.out.println("Baixando cadastro: " + urlCsv);
-            FileUtils.copyURLToFile(new URL(urlCsv), new File(ARQUIVO_CADASTRO));
-        } else {
-            throw new IOException("Link do CSV de cadastro nao encontrado.");
+    // Agenda o download do cadastro no motor, para que possa correr junto com os ZIPs trimestrais.
+    // Com um snapshot dentro da validade nao ha nada a baixar (retorna null). Um snapshot vencido revalida
+    // direto a URL e os validadores que guardou, sem ler a listagem; ela so e consultada de novo se a ANS
+    // trocou o arquivo de lugar (404) ou se ainda nao ha snapshot.
+    public synchronized CompletableFuture<File> agendarDownloadCadastro() throws IOException {
+        if (snapshotDentroDaValidade() != null) return CompletableFuture.completedFuture(null);
+        if (downloadCadastro == null) {
+            File destino = new File(ARQUIVO_CADASTRO);
+            SnapshotCadastro anterior = lerSnapshot();
+            if (anterior != null && anterior.url() != null && anterior.url().startsWith(urlListagemCadastro)) {
+                downloadCadastro = motorDownload.agendar(anterior.url(), destino, anterior.validadores())
+                        .exceptionallyCompose(erro -> {
+                            if (!(erro.getCause() instanceof MotorDownload.FalhaDefinitiva falha) || falha.status() != 404) {
+                                return CompletableFuture.failedFuture(erro);
+                            }
+                            System.out.println("Cadastro nao esta mais em " + anterior.url() + "; procurando na listagem");
+                            try {
+                                return motorDownload.agendar(localizarUrlCadastro(), destino);
+                            } catch (IOException e) {
+                                return CompletableFuture.failedFuture(e);
+                            }
+                        });
+            } else {
+                downloadCadastro = motorDownload.agendar(localizarUrlCadastro(), destino);
+            }
+        }
+        return downloadCadastro;
+    }
+
+    private synchronized SnapshotCadastro lerSnapshot() {
+        if (!snapshotLido) {
+            snapshot = SnapshotCadastro.ler(new File(SnapshotCadastro.ARQUIVO));
+            snapshotLido = true;
         }
+        return snapshot;
+    }
+
+    private SnapshotCadastro snapshotDentroDaValidade() {
+        SnapshotCadastro atual = lerSnapshot();
+        return atual != null && atual.dentroDaValidade(idadeMaximaCadastro) ? atual : null;
     }
 
     private Map<String, DadosCadastrais> carregarMapaOperadoras() throws IOException {
         System.out.println("Carregando cadastro em memoria...");
         Map<String, DadosCadastrais> mapa = new HashMap<>();
 
-        try (Reader reader = new InputStreamReader(new FileInputStream(ARQUIVO_CADASTRO), "ISO-8859-1");
-             CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT.builder().setDelimiter(';').setHeader().setSkipHeaderRecord(true).build())) {
+        File arquivo = new File(ARQUIVO_CADASTRO);
+        try (Metricas.Medicao medicao = Metricas.iniciar("cadastro", ARQUIVO_CADASTRO).bytesLidos(arquivo.length())) {
+            TokenizadorCSV tokenizador = TokenizadorCSV.mapear(arquivo, StandardCharsets.ISO_8859_1, ';', false);
+            if (!tokenizador.proximaLinha()) return mapa;
+            lerOperadoras(tokenizador, medicao, (dados, dataRegistro, dataDescredenciamento) -> mapa.put(dados.registroAns(), dados));
+            medicao.linhasSaida(mapa.size());
+        }
+        System.out.println("Operadoras carregadas no mapa: " + mapa.size());
+        validarCnpjs(mapa);
+        return mapa;
+    }
+
+    // Valida a coluna de CNPJs do cadastro em lote e guarda o resultado em cada operadora (por REG_ANS).
+    // O snapshot nao persiste a flag, entao ela tambem e calculada aqui depois de le-lo. A coluna vai
+    // ordenada por CNPJ para a auditoria contar os repetidos entre vizinhos
+    static void validarCnpjs(Map<String, DadosCadastrais> mapa) {
+        DadosCadastrais[] operadoras = mapa.values().toArray(new DadosCadastrais[0]);
+        Arrays.sort(operadoras, Comparator.comparing(DadosCadastrais::cnpj, Comparator.nullsFirst(Comparator.naturalOrder())));
+        String[] cnpjs = new String[operadoras.length];
+        for (int i = 0; i < operadoras.length; i++) cnpjs[i] = operadoras[i].cnpj;
 
-            for (CSVRecord record : parser) {
-                String regAns = "";
-                if (record.isMapped("REGISTRO_OPERADORA")) {
-                    regAns = record.get("REGISTRO_OPERADORA");
-                } else if (record.isMapped("Registro_ANS")) {
-                    regAns = record.get("Registro_ANS");
-                }
+        boolean[] validos = Auditoria.auditarCnpjs(cnpjs);
+        for (int i = 0; i < operadoras.length; i++) {
+            if (validos[i] != operadoras[i].cnpjValido) mapa.put(operadoras[i].registroAns, operadoras[i].comValidacao(validos[i]));
+        }
+    }
 
-                if (regAns == null || regAns.isEmpty()) continue;
+    interface LeitorOperadora {
+        void aceitar(DadosCadastrais dados, String dataRegistro, String dataDescredenciamento);
+    }
 
-                DadosCadastrais dados = new DadosCadastrais(
-                        regAns,
-                        record.isMapped("CNPJ") ? record.get("CNPJ") : "",
-                        record.isMapped("Razao_Social") ? record.get("Razao_Social") : "",
-                        record.isMapped("Modalidade") ? record.get("Modalidade") : "",
-                        record.isMapped("UF") ? record.get("UF") : ""
-                );
+    // Le as linhas de um CSV de cadastro (atual, historico ou de canceladas, com as datas quando existirem);
+    // a flag de CNPJ valido fica false, para ser calculada em lote depois
+    static void lerOperadoras(TokenizadorCSV tokenizador, Metricas.Medicao medicao, LeitorOperadora leitor) throws IOException {
+        int[] colunas = tokenizador.indicesDe("REGISTRO_OPERADORA", "Registro_ANS", "CNPJ", "Razao_Social", "Modalidade", "UF",
+                "Data_Registro_ANS", "Data_Descredenciamento");
+        int colunaRegistro = colunas[0] >= 0 ? colunas[0] : colunas[1];
 
-                mapa.put(regAns, dados);
-            }
+        while (tokenizador.proximaLinha()) {
+            medicao.linhasEntrada(1);
+            String regAns = tokenizador.campoOuVazio(colunaRegistro);
+            if (regAns.isEmpty()) continue;
+
+            DadosCadastrais dados = new DadosCadastrais(
+                    regAns,
+                    tokenizador.campoOuVazio(colunas[2]),
+                    tokenizador.campoOuVazio(colunas[3]),
+                    tokenizador.campoOuVazio(colunas[4]),
+                    tokenizador.campoOuVazio(colunas[5]),
+                    false
+            );
+
+            leitor.aceitar(dados, tokenizador.campoOuVazio(colunas[6]), tokenizador.campoOuVazio(colunas[7]));
         }
-        System.out.println("Operadoras carregadas no mapa: " + mapa.size());
-        return mapa;
     }
 
-    private void realizarJoin(String entrada, String saida, Map<String, DadosCadastrais> mapa) throws IOException {
+    private int realizarJoin(String entrada, String saida, IndiceCadastro cadastro) throws IOException {
         System.out.println("Cruzando dados...");
 
-        CSVFormat formatoSaida = CSVFormat.Builder.create()
-                .setDelimiter(';')
-                .setHeader("DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO", "VL_SALDO_FINAL", "CNPJ", "RAZAO_SOCIAL", "MODALIDADE", "UF")
-                .build();
+        // O consolidado preliminar e gravado em UTF-8 (EscritorCSV)
+        TokenizadorCSV tokenizador = TokenizadorCSV.mapear(new File(entrada), StandardCharsets.UTF_8, ';', false);
+        if (!tokenizador.proximaLinha()) return 0;
+        int[] colunas = exigirColunas(tokenizador, "DATA", "REG_ANS", "CD_CONTA_CONTABIL", "DESCRICAO", "VL_SALDO_FINAL");
 
-        try (Reader reader = new FileReader(entrada);
-             CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT.builder().setDelimiter(';').setHeader().setSkipHeaderRecord(true).build());
-             Writer writer = new OutputStreamWriter(new FileOutputStream(saida), StandardCharsets.UTF_8);
-             CSVPrinter printer = new CSVPrinter(writer, formatoSaida)) {
+        try (CodificadorCSV csv = abrirSaida(new FileOutputStream(saida))) {
 
+            IndiceCadastro.Consulta consulta = cadastro.consulta();
             int totalProcessado = 0;
             int semMatch = 0;
+            int cnpjInvalido = 0;
 
-            for (CSVRecord linha : parser) {
+            while (tokenizador.proximaLinha()) {
                 totalProcessado++;
-                String regAns = linha.get("REG_ANS");
-
-                DadosCadastrais infoExtra = mapa.get(regAns);
-
-                String cnpj = "";
-                String razao = "";
-                String modalidade = "";
-                String uf = "";
-
-                if (infoExtra != null) {
-                    cnpj = infoExtra.cnpj;
-                    razao = infoExtra.razaoSocial;
-                    modalidade = infoExtra.modalidade;
-                    uf = infoExtra.uf;
-                } else {
-                    semMatch++;
-                    razao = "NAO_ENCONTRADO_NO_CADASTRO";
-                }
-
-                printer.printRecord(
-                        linha.get("DATA"),
+                String data = tokenizador.campo(colunas[0]);
+                String regAns = tokenizador.campo(colunas[1]);
+
+                DadosCadastrais infoExtra = consulta.buscar(data, regAns);
+
+                boolean encontrado = imprimirLinhaEnriquecida(csv,
+                        data,
                         regAns,
-                        linha.get("CD_CONTA_CONTABIL"),
-                        linha.get("DESCRICAO"),
-                        linha.get("VL_SALDO_FINAL"),
-                        cnpj,
-                        razao,
-                        modalidade,
-                        uf
-                );
+                        tokenizador.campo(colunas[2]),
+                        tokenizador.campo(colunas[3]),
+                        tokenizador.campo(colunas[4]),
+                        infoExtra);
+                if (!encontrado) semMatch++;
+                else if (!infoExtra.cnpjValido) cnpjInvalido++;
             }
 
             System.out.println("Enriquecimento concluido!");
             System.out.println("   - Linhas processadas: " + totalProcessado);
             System.out.println("   - Registros sem match no cadastro: " + semMatch);
+            System.out.println("   - Registros com CNPJ invalido no cadastro: " + cnpjInvalido);
+            return totalProcessado;
+        }
+    }
+
+    // Entrada colunar: o cadastro e consultado uma vez por par (DATA, REG_ANS) distinto dos dicionarios, nao por
+    // linha. Alem do CSV final, grava o irmao colunar que a agregacao le.
+    private int realizarJoinColunar(String entrada, String saida, IndiceCadastro cadastro) throws IOException {
+        System.out.println("Cruzando dados...");
+
+        FormatoColunar.Leitor leitor = FormatoColunar.Leitor.abrir(new File(entrada));
+        FormatoColunar.ColunaTexto data = leitor.texto("DATA");
+        FormatoColunar.ColunaTexto regAns = leitor.texto("REG_ANS");
+        FormatoColunar.ColunaTexto conta = leitor.texto("CD_CONTA_CONTABIL");
+        FormatoColunar.ColunaTexto descricao = leitor.texto("DESCRICAO");
+        FormatoColunar.ColunaValor valores = leitor.valor(FormatoColunar.COLUNA_VALOR);
+
+        String[] dicionarioData = data.dicionario();
+        String[] dicionarioRegAns = regAns.dicionario();
+        DadosCadastrais[][] cadastroPorId = new DadosCadastrais[dicionarioData.length][dicionarioRegAns.length];
+        for (int idData = 0; idData < dicionarioData.length; idData++) {
+            int periodo = cadastro.periodoDe(dicionarioData[idData]);
+            DadosCadastrais[] tabela = cadastro.tabelaDaData(dicionarioData[idData]);
+            for (int id = 0; id < dicionarioRegAns.length; id++) {
+                cadastroPorId[idData][id] = cadastro.buscarNaTabela(tabela, periodo, dicionarioRegAns[id]);
+            }
+        }
+
+        FormatoColunar.Escritor colunar = new FormatoColunar.Escritor(FormatoColunar.TEXTOS_ENRIQUECIDO, FormatoColunar.COLUNA_VALOR);
+
+        try (CodificadorCSV csv = abrirSaida(new FileOutputStream(saida))) {
+
+            int semMatch = 0;
+            int cnpjInvalido = 0;
+            for (int linha = 0; linha < leitor.linhas(); linha++) {
+                DadosCadastrais infoExtra = cadastroPorId[data.id(linha)][regAns.id(linha)];
+                long centavos = valores.centavos(linha);
+
+                boolean encontrado = imprimirLinhaEnriquecida(csv,
+                        data.texto(linha),
+                        regAns.texto(linha),
+                        conta.texto(linha),
+                        descricao.texto(linha),
+                        centavos,
+                        infoExtra);
+                if (!encontrado) semMatch++;
+                else if (!infoExtra.cnpjValido) cnpjInvalido++;
+
+                colunar.adicionarLinha(new String[]{
+                        data.texto(linha), regAns.texto(linha), conta.texto(linha), descricao.texto(linha),
+                        encontrado ? infoExtra.cnpj : "",
+                        encontrado ? infoExtra.razaoSocial : RAZAO_NAO_ENCONTRADA,
+                        encontrado ? infoExtra.modalidade : "",
+                        encontrado ? infoExtra.uf : "",
+                        encontrado ? infoExtra.flagCnpj() : ""
+                }, centavos);
+            }
+
+            System.out.println("Enriquecimento concluido!");
+            System.out.println("   - Linhas processadas: " + leitor.linhas());
+            System.out.println("   - Registros sem match no cadastro: " + semMatch);
+            System.out.println("   - Registros com CNPJ invalido no cadastro: " + cnpjInvalido);
+        }
+
+        colunar.gravar(new File(FormatoColunar.irmaoColunar(saida)));
+        return leitor.linhas();
+    }
+
+    static int[] exigirColunas(TokenizadorCSV tokenizador, String... nomes) throws IOException {
+        int[] colunas = tokenizador.indicesDe(nomes);
+        for (int i = 0; i < nomes.length; i++) {
+            if (colunas[i] < 0) throw new IOException("Coluna obrigatoria ausente: " + nomes[i]);
         }
+        return colunas;
     }
-}
\ No newline at end of file
+}
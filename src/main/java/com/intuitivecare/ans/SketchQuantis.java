@@ -0,0 +1,140 @@
+package com.intuitivecare.ans;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Quantis aproximados de valores em centavos com erro relativo limitado (no estilo do DDSketch), sem guardar
+// os valores: cada valor cai num balde logaritmico de razao GAMMA e so a contagem por balde e guardada, com
+// baldes separados para negativos e uma contagem de zeros. O quantil devolvido fica a no maximo ERRO_RELATIVO
+// do valor exato daquela posicao. Sketches de particoes diferentes se mesclam somando os baldes, com o mesmo
+// resultado de um sketch unico; o tamanho cresce com a amplitude dos valores (log), nao com a quantidade.
+public class SketchQuantis {
+
+    static final double ERRO_RELATIVO = 0.01;
+    private static final double GAMMA = (1 + ERRO_RELATIVO) / (1 - ERRO_RELATIVO);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    private final Baldes positivos = new Baldes();
+    private final Baldes negativos = new Baldes();
+    private long zeros = 0;
+    private long contagem = 0;
+
+    public void adicionar(long centavos) {
+        if (centavos > 0) positivos.somar(balde(centavos), 1);
+        else if (centavos < 0) negativos.somar(balde(-(double) centavos), 1);
+        else zeros++;
+        contagem++;
+    }
+
+    public void mesclar(SketchQuantis outro) {
+        positivos.mesclar(outro.positivos);
+        negativos.mesclar(outro.negativos);
+        zeros += outro.zeros;
+        contagem += outro.contagem;
+    }
+
+    public long contagem() {
+        return contagem;
+    }
+
+    // Valor (em centavos) na posicao q * (n - 1) dos valores ordenados, q entre 0 e 1
+    public long quantil(double q) {
+        if (contagem == 0) return 0;
+        long posicao = (long) Math.floor(q * (contagem - 1));
+        if (posicao < negativos.total) {
+            // Negativos em ordem crescente = baldes de modulo decrescente
+            return -Math.round(valorDoBalde(negativos.baldeNaPosicao(negativos.total - 1 - posicao)));
+        }
+        posicao -= negativos.total;
+        if (posicao < zeros) return 0;
+        return Math.round(valorDoBalde(positivos.baldeNaPosicao(posicao - zeros)));
+    }
+
+    // Bytes aproximados em memoria
+    public long tamanhoEstimado() {
+        return 64 + positivos.tamanhoEstimado() + negativos.tamanhoEstimado();
+    }
+
+    void gravar(DataOutputStream out) throws IOException {
+        out.writeLong(zeros);
+        positivos.gravar(out);
+        negativos.gravar(out);
+    }
+
+    static SketchQuantis ler(DataInputStream in) throws IOException {
+        SketchQuantis sketch = new SketchQuantis();
+        sketch.zeros = in.readLong();
+        sketch.positivos.ler(in);
+        sketch.negativos.ler(in);
+        sketch.contagem = sketch.zeros + sketch.positivos.total + sketch.negativos.total;
+        return sketch;
+    }
+
+    // Balde i cobre (GAMMA^(i-1), GAMMA^i]
+    private static int balde(double valor) {
+        return (int) Math.ceil(Math.log(valor) / LOG_GAMMA);
+    }
+
+    // Ponto do balde com o menor erro relativo para qualquer valor dentro dele
+    private static double valorDoBalde(int balde) {
+        return 2 * Math.pow(GAMMA, balde) / (GAMMA + 1);
+    }
+
+    // Contagens por balde em arrays ordenados pelo indice; a maioria dos grupos usa poucas dezenas de baldes
+    private static final class Baldes {
+        private int[] indices = new int[4];
+        private long[] contagens = new long[4];
+        private int tamanho = 0;
+        private long total = 0;
+
+        void somar(int balde, long quantidade) {
+            int posicao = Arrays.binarySearch(indices, 0, tamanho, balde);
+            if (posicao < 0) {
+                posicao = -posicao - 1;
+                if (tamanho == indices.length) {
+                    indices = Arrays.copyOf(indices, tamanho * 2);
+                    contagens = Arrays.copyOf(contagens, tamanho * 2);
+                }
+                System.arraycopy(indices, posicao, indices, posicao + 1, tamanho - posicao);
+                System.arraycopy(contagens, posicao, contagens, posicao + 1, tamanho - posicao);
+                indices[posicao] = balde;
+                contagens[posicao] = 0;
+                tamanho++;
+            }
+            contagens[posicao] += quantidade;
+            total += quantidade;
+        }
+
+        void mesclar(Baldes outro) {
+            for (int i = 0; i < outro.tamanho; i++) somar(outro.indices[i], outro.contagens[i]);
+        }
+
+        int baldeNaPosicao(long posicao) {
+            long acumulado = 0;
+            for (int i = 0; i < tamanho; i++) {
+                acumulado += contagens[i];
+                if (posicao < acumulado) return indices[i];
+            }
+            return indices[tamanho - 1];
+        }
+
+        long tamanhoEstimado() {
+            return 48 + 12L * indices.length;
+        }
+
+        void gravar(DataOutputStream out) throws IOException {
+            out.writeInt(tamanho);
+            for (int i = 0; i < tamanho; i++) {
+                out.writeInt(indices[i]);
+                out.writeLong(contagens[i]);
+            }
+        }
+
+        void ler(DataInputStream in) throws IOException {
+            int baldes = in.readInt();
+            for (int i = 0; i < baldes; i++) somar(in.readInt(), in.readLong());
+        }
+    }
+}
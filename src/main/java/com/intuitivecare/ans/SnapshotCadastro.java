@@ -0,0 +1,131 @@
+package com.intuitivecare.ans;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// Snapshot binario do cadastro de operadoras ja interpretado, para nao baixar nem reler o CSV a cada execucao.
+// Guarda os validadores da origem (ETag, Last-Modified) e o SHA-256 do CSV que o gerou. A data de modificacao
+// do proprio arquivo marca a ultima vez que o snapshot foi conferido com a origem.
+//
+// Layout: "ANSS" | versao:int | url | etag | lastModified | sha256 | registros:int | (5 campos UTF)*
+public class SnapshotCadastro {
+
+    public static final String ARQUIVO = "cadastro_operadoras.snap";
+
+    private static final int MAGICO = 0x414E5353;
+    private static final int VERSAO = 1;
+
+    private final File arquivo;
+    private final String url;
+    private final String etag;
+    private final String lastModified;
+    private final String sha256;
+    private final Map<String, ServicoEnriquecimento.DadosCadastrais> operadoras;
+
+    private SnapshotCadastro(File arquivo, String url, String etag, String lastModified, String sha256,
+                             Map<String, ServicoEnriquecimento.DadosCadastrais> operadoras) {
+        this.arquivo = arquivo;
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.sha256 = sha256;
+        this.operadoras = operadoras;
+    }
+
+    // Retorna null se o snapshot nao existe ou nao pode ser lido (sera reconstruido a partir do CSV)
+    public static SnapshotCadastro ler(File arquivo) {
+        if (!arquivo.exists()) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(arquivo), 1 << 16))) {
+            if (in.readInt() != MAGICO || in.readInt() != VERSAO) return null;
+            String url = vazioComoNulo(in.readUTF());
+            String etag = vazioComoNulo(in.readUTF());
+            String lastModified = vazioComoNulo(in.readUTF());
+            String sha256 = in.readUTF();
+
+            int registros = in.readInt();
+            Map<String, ServicoEnriquecimento.DadosCadastrais> operadoras = new HashMap<>(registros * 4 / 3 + 1);
+            for (int i = 0; i < registros; i++) {
+                ServicoEnriquecimento.DadosCadastrais dados = new ServicoEnriquecimento.DadosCadastrais(
+                        in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), false);
+                operadoras.put(dados.registroAns(), dados);
+            }
+            return new SnapshotCadastro(arquivo, url, etag, lastModified, sha256, operadoras);
+
+        } catch (IOException e) {
+            System.err.println("Snapshot do cadastro ilegivel, sera reconstruido: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static void gravar(File arquivo, String url, String etag, String lastModified, String sha256,
+                              Map<String, ServicoEnriquecimento.DadosCadastrais> operadoras) throws IOException {
+        File temporario = new File(arquivo.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporario), 1 << 16))) {
+            out.writeInt(MAGICO);
+            out.writeInt(VERSAO);
+            out.writeUTF(nuloComoVazio(url));
+            out.writeUTF(nuloComoVazio(etag));
+            out.writeUTF(nuloComoVazio(lastModified));
+            out.writeUTF(nuloComoVazio(sha256));
+
+            out.writeInt(operadoras.size());
+            for (ServicoEnriquecimento.DadosCadastrais dados : operadoras.values()) {
+                out.writeUTF(dados.registroAns());
+                out.writeUTF(dados.cnpj());
+                out.writeUTF(dados.razaoSocial());
+                out.writeUTF(dados.modalidade());
+                out.writeUTF(dados.uf());
+            }
+        }
+        Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public boolean dentroDaValidade(Duration idadeMaxima) {
+        return System.currentTimeMillis() - arquivo.lastModified() < idadeMaxima.toMillis();
+    }
+
+    public boolean mesmaOrigem(String sha256Origem) {
+        return sha256Origem != null && sha256Origem.equals(sha256);
+    }
+
+    // A origem foi conferida e nao mudou: reinicia a contagem da idade maxima
+    public void renovar() {
+        arquivo.setLastModified(System.currentTimeMillis());
+    }
+
+    public String sha256() {
+        return sha256;
+    }
+
+    // URL de onde veio o CSV, ou null em snapshots sem origem registrada
+    public String url() {
+        return url;
+    }
+
+    // ETag e Last-Modified da origem no formato do .meta do MotorDownload; null se o servidor nao mandou nenhum
+    public Properties validadores() {
+        if (etag == null && lastModified == null) return null;
+        Properties validadores = new Properties();
+        if (etag != null) validadores.setProperty("etag", etag);
+        if (lastModified != null) validadores.setProperty("lastModified", lastModified);
+        return validadores;
+    }
+
+    public Map<String, ServicoEnriquecimento.DadosCadastrais> operadoras() {
+        return operadoras;
+    }
+
+    private static String nuloComoVazio(String texto) {
+        return texto == null ? "" : texto;
+    }
+
+    private static String vazioComoNulo(String texto) {
+        return texto.isEmpty() ? null : texto;
+    }
+}
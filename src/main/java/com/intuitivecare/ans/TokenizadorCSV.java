@@ -0,0 +1,296 @@
+package com.intuitivecare.ans;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Tokenizador CSV que trabalha direto sobre os bytes (arquivo mapeado em memoria ou buffer direto).
+// Cada linha e quebrada apenas em offsets de inicio/fim dos campos; Strings so sao criadas quando
+// o chamador pede um campo, o que permite filtrar as linhas sem alocar nada para as descartadas.
+// Cobre o dialeto usado pela ANS: delimitador configuravel, aspas duplas com escape "", linhas vazias ignoradas.
+public class TokenizadorCSV {
+
+    private static final int TAMANHO_BUFFER = 4 << 20;
+
+    private final ReadableByteChannel canal;
+    private final Charset charset;
+    private final byte delimitador;
+    private final boolean ignorarEspacos;
+
+    private ByteBuffer buffer;
+    private boolean fimDosDados;
+
+    private int[] inicios = new int[32];
+    private int[] fins = new int[32];
+    private boolean[] escapados = new boolean[32];
+    private int campos;
+
+    private TokenizadorCSV(ByteBuffer buffer, ReadableByteChannel canal, Charset charset, byte delimitador, boolean ignorarEspacos) {
+        this.buffer = buffer;
+        this.canal = canal;
+        this.fimDosDados = canal == null;
+        this.charset = charset;
+        this.delimitador = delimitador;
+        this.ignorarEspacos = ignorarEspacos;
+    }
+
+    // Dados ja em memoria (bloco de arquivo, trecho mapeado)
+    public static TokenizadorCSV deBuffer(ByteBuffer dados, Charset charset, char delimitador, boolean ignorarEspacos) {
+        return new TokenizadorCSV(dados, null, charset, (byte) delimitador, ignorarEspacos);
+    }
+
+    // Mapeia o arquivo inteiro em memoria; arquivos acima de 2 GB sao lidos em buffer direto
+    public static TokenizadorCSV mapear(File arquivo, Charset charset, char delimitador, boolean ignorarEspacos) throws IOException {
+        try (FileChannel canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ)) {
+            if (canal.size() <= Integer.MAX_VALUE) {
+                ByteBuffer mapeado = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+                return deBuffer(mapeado, charset, delimitador, ignorarEspacos);
+            }
+        }
+        return deCanal(FileChannel.open(arquivo.toPath(), StandardOpenOption.READ), charset, delimitador, ignorarEspacos);
+    }
+
+    // Dados vindos de um stream (ex.: entrada de ZIP), lidos em um buffer direto reaproveitado
+    public static TokenizadorCSV deStream(InputStream entrada, Charset charset, char delimitador, boolean ignorarEspacos) {
+        return deCanal(Channels.newChannel(entrada), charset, delimitador, ignorarEspacos);
+    }
+
+    private static TokenizadorCSV deCanal(ReadableByteChannel canal, Charset charset, char delimitador, boolean ignorarEspacos) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TAMANHO_BUFFER);
+        buffer.limit(0);
+        return new TokenizadorCSV(buffer, canal, charset, (byte) delimitador, ignorarEspacos);
+    }
+
+    // Avanca para o proximo registro; retorna false no fim dos dados
+    public boolean proximaLinha() throws IOException {
+        while (true) {
+            int inicio = buffer.position();
+            int fim = tokenizar(inicio);
+            if (fim >= 0) {
+                buffer.position(fim);
+                if (campos == 1 && inicios[0] == fins[0] && !escapados[0] && linhaVazia(inicio, fim)) continue;
+                return true;
+            }
+            if (fimDosDados) {
+                // Ultimo registro sem quebra de linha no final
+                if (inicio >= buffer.limit()) return false;
+                tokenizarAteOFim(inicio);
+                buffer.position(buffer.limit());
+                return !(campos == 1 && inicios[0] == fins[0] && linhaVazia(0, buffer.limit()));
+            }
+            recarregar();
+        }
+    }
+
+    public int numeroCampos() {
+        return campos;
+    }
+
+    // Indice de cada nome no registro atual (normalmente o cabecalho); -1 quando ausente
+    public int[] indicesDe(String... nomes) {
+        int[] indices = new int[nomes.length];
+        for (int n = 0; n < nomes.length; n++) {
+            indices[n] = -1;
+            for (int i = 0; i < campos; i++) {
+                if (nomes[n].equals(campo(i))) {
+                    indices[n] = i;
+                    break;
+                }
+            }
+        }
+        return indices;
+    }
+
+    public String[] camposComoTexto() {
+        String[] valores = new String[campos];
+        for (int i = 0; i < campos; i++) valores[i] = campo(i);
+        return valores;
+    }
+
+    public String campo(int indice) {
+        verificarIndice(indice);
+        int inicio = inicios[indice];
+        int tamanho = fins[indice] - inicio;
+        byte[] bytes = new byte[tamanho];
+        buffer.get(inicio, bytes);
+        if (escapados[indice]) {
+            int escrito = 0;
+            for (int i = 0; i < tamanho; i++) {
+                bytes[escrito++] = bytes[i];
+                if (bytes[i] == '"' && i + 1 < tamanho && bytes[i + 1] == '"') i++;
+            }
+            return new String(bytes, 0, escrito, charset);
+        }
+        return new String(bytes, charset);
+    }
+
+    // Para colunas opcionais: indice -1 (coluna ausente no cabecalho) ou registro curto viram ""
+    public String campoOuVazio(int indice) {
+        return (indice < 0 || indice >= campos) ? "" : campo(indice);
+    }
+
+    public boolean campoComecaCom(int indice, char prefixo) {
+        verificarIndice(indice);
+        return fins[indice] > inicios[indice] && buffer.get(inicios[indice]) == (byte) prefixo;
+    }
+
+    // Busca ASCII sem diferenciar maiusculas; o padrao deve estar em maiusculas
+    public boolean campoContemIgnorandoCaixa(int indice, byte[] padraoMaiusculo) {
+        verificarIndice(indice);
+        int ultimo = fins[indice] - padraoMaiusculo.length;
+        for (int i = inicios[indice]; i <= ultimo; i++) {
+            int j = 0;
+            while (j < padraoMaiusculo.length && maiuscula(buffer.get(i + j)) == padraoMaiusculo[j]) j++;
+            if (j == padraoMaiusculo.length) return true;
+        }
+        return false;
+    }
+
+    // Acesso direto aos bytes do campo, para parsers especializados (ex.: valores monetarios)
+    public ByteBuffer bytes() {
+        return buffer;
+    }
+
+    public int inicioCampo(int indice) {
+        verificarIndice(indice);
+        return inicios[indice];
+    }
+
+    public int fimCampo(int indice) {
+        verificarIndice(indice);
+        return fins[indice];
+    }
+
+    private void verificarIndice(int indice) {
+        if (indice < 0 || indice >= campos) {
+            throw new IllegalArgumentException("Campo " + indice + " inexistente; o registro tem apenas " + campos + " valores");
+        }
+    }
+
+    private static byte maiuscula(byte b) {
+        return (b >= 'a' && b <= 'z') ? (byte) (b - 32) : b;
+    }
+
+    private boolean espaco(byte b) {
+        return b == ' ' || b == '\t' || b == '\f';
+    }
+
+    private boolean linhaVazia(int inicio, int fim) {
+        for (int i = inicio; i < fim; i++) {
+            byte b = buffer.get(i);
+            if (b != '\r' && b != '\n' && !(ignorarEspacos && espaco(b))) return false;
+        }
+        return true;
+    }
+
+    // Quebra o registro que comeca em "inicio"; retorna a posicao apos a quebra de linha, ou -1 se o registro
+    // nao termina dentro do buffer atual
+    private int tokenizar(int inicio) {
+        int limite = buffer.limit();
+        int i = inicio;
+        campos = 0;
+
+        while (true) {
+            if (ignorarEspacos) {
+                while (i < limite && espaco(buffer.get(i))) i++;
+            }
+            if (i >= limite) return -1;
+
+            int inicioCampo;
+            int fimCampo;
+            boolean escapado = false;
+
+            if (buffer.get(i) == '"') {
+                inicioCampo = ++i;
+                while (true) {
+                    if (i >= limite) return -1;
+                    if (buffer.get(i) == '"') {
+                        if (i + 1 >= limite) return -1;
+                        if (buffer.get(i + 1) == '"') {
+                            escapado = true;
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                fimCampo = i++;
+                // Descarta o que houver entre a aspa final e o delimitador
+                while (i < limite && buffer.get(i) != delimitador && buffer.get(i) != '\n' && buffer.get(i) != '\r') i++;
+            } else {
+                inicioCampo = i;
+                while (i < limite && buffer.get(i) != delimitador && buffer.get(i) != '\n' && buffer.get(i) != '\r') i++;
+                fimCampo = i;
+                if (ignorarEspacos) {
+                    while (fimCampo > inicioCampo && espaco(buffer.get(fimCampo - 1))) fimCampo--;
+                }
+            }
+
+            if (i >= limite) return -1;
+            adicionarCampo(inicioCampo, fimCampo, escapado);
+
+            byte b = buffer.get(i);
+            if (b == delimitador) {
+                i++;
+                continue;
+            }
+            if (b == '\r') {
+                if (i + 1 >= limite) return fimDosDados ? limite : -1;
+                return buffer.get(i + 1) == '\n' ? i + 2 : i + 1;
+            }
+            return i + 1;
+        }
+    }
+
+    private void tokenizarAteOFim(int inicio) {
+        // Completa artificialmente o ultimo registro tratando o fim dos dados como quebra de linha
+        int limite = buffer.limit();
+        ByteBuffer comQuebra = ByteBuffer.allocate(limite - inicio + 1);
+        comQuebra.put(buffer.duplicate().position(inicio).limit(limite));
+        comQuebra.put((byte) '\n');
+        comQuebra.flip();
+        buffer = comQuebra;
+        tokenizar(0);
+    }
+
+    private void adicionarCampo(int inicio, int fim, boolean escapado) {
+        if (campos == inicios.length) {
+            inicios = Arrays.copyOf(inicios, campos * 2);
+            fins = Arrays.copyOf(fins, campos * 2);
+            escapados = Arrays.copyOf(escapados, campos * 2);
+        }
+        inicios[campos] = inicio;
+        fins[campos] = fim;
+        escapados[campos] = escapado;
+        campos++;
+    }
+
+    private void recarregar() throws IOException {
+        // Move o registro incompleto para o inicio e completa o buffer com mais dados do canal
+        if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+            ByteBuffer maior = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            maior.put(buffer);
+            buffer = maior;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.hasRemaining()) {
+            int lidos = canal.read(buffer);
+            if (lidos < 0) {
+                fimDosDados = true;
+                canal.close();
+                break;
+            }
+            if (lidos == 0) break;
+        }
+        buffer.flip();
+    }
+}
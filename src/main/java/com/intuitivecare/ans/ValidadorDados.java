@@ -1,49 +1,59 @@
 package com.intuitivecare.ans;
 
-import java.util.InputMismatchException;
-
 public class ValidadorDados {
 
-    public static boolean isCNPJValido(String cnpj) {
-        cnpj = cnpj.replaceAll("[^0-9]", "");
-
-        if (cnpj.length() != 14 || cnpj.matches("(\\d)\\1{13}")) return false;
-
-        char dig13, dig14;
-        int sm, i, r, num, peso;
-
-        try {
-            sm = 0;
-            peso = 2;
-            for (i = 11; i >= 0; i--) {
-                num = (int) (cnpj.charAt(i) - 48);
-                sm = sm + (num * peso);
-                peso = peso + 1;
-                if (peso == 10) peso = 2;
-            }
-
-            r = sm % 11;
-            if ((r == 0) || (r == 1)) dig13 = '0';
-            else dig13 = (char) ((11 - r) + 48);
-
-            sm = 0;
-            peso = 2;
-            for (i = 12; i >= 0; i--) {
-                num = (int) (cnpj.charAt(i) - 48);
-                sm = sm + (num * peso);
-                peso = peso + 1;
-                if (peso == 10) peso = 2;
-            }
-
-            r = sm % 11;
-            if ((r == 0) || (r == 1)) dig14 = '0';
-            else dig14 = (char) ((11 - r) + 48);
-
-            return (dig13 == cnpj.charAt(12)) && (dig14 == cnpj.charAt(13));
-
-        } catch (InputMismatchException erro) {
-            return false;
+    // Pesos dos digitos verificadores, da esquerda para a direita
+    private static final int[] PESOS_DV1 = {5, 4, 3, 2, 9, 8, 7, 6, 5, 4, 3, 2};
+    private static final int[] PESOS_DV2 = {6, 5, 4, 3, 2, 9, 8, 7, 6, 5, 4, 3, 2};
+
+    // Passada unica sobre os caracteres, sem regex nem String intermediaria: caracteres que nao sao
+    // digitos (pontuacao da mascara) sao ignorados e as somas dos dois digitos verificadores sao
+    // acumuladas conforme os digitos aparecem
+    public static boolean isCNPJValido(CharSequence cnpj) {
+        if (cnpj == null) return false;
+
+        int digitos = 0;
+        int soma1 = 0;
+        int soma2 = 0;
+        int primeiro = -1;
+        boolean todosIguais = true;
+        int dv1 = 0;
+        int dv2 = 0;
+
+        for (int i = 0; i < cnpj.length(); i++) {
+            int num = cnpj.charAt(i) - '0';
+            if (num < 0 || num > 9) continue;
+            if (digitos == 14) return false;
+
+            if (digitos == 0) primeiro = num;
+            else if (num != primeiro) todosIguais = false;
+
+            if (digitos < 12) soma1 += num * PESOS_DV1[digitos];
+            if (digitos < 13) soma2 += num * PESOS_DV2[digitos];
+            if (digitos == 12) dv1 = num;
+            if (digitos == 13) dv2 = num;
+            digitos++;
+        }
+
+        if (digitos != 14 || todosIguais) return false;
+        return dv1 == digitoVerificador(soma1) && dv2 == digitoVerificador(soma2);
+    }
+
+    private static int digitoVerificador(int soma) {
+        int r = soma % 11;
+        return r < 2 ? 0 : 11 - r;
+    }
+
+    // Valida uma coluna inteira de CNPJs. Validar custa menos que consultar um mapa, entao valores
+    // repetidos so sao reaproveitados quando vizinhos (colunas agrupadas por operadora)
+    public static boolean[] validarCNPJs(String[] coluna) {
+        boolean[] validos = new boolean[coluna.length];
+        for (int i = 0; i < coluna.length; i++) {
+            validos[i] = i > 0 && coluna[i] != null && coluna[i].equals(coluna[i - 1])
+                    ? validos[i - 1]
+                    : isCNPJValido(coluna[i]);
         }
+        return validos;
     }
 
     public static boolean isValorPositivo(double valor) {
@@ -0,0 +1,107 @@
+package com.intuitivecare.ans;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+
+// Valores monetarios em centavos (long) do parse ate a escrita, sem ponto flutuante nem Strings intermediarias.
+// Entrada no formato brasileiro: pontos de milhar sao ignorados e a virgula separa os centavos ("-1.234,56").
+// Casas alem da segunda sao arredondadas com HALF_UP, como o antigo String.format("%.2f").
+public final class ValorMonetario {
+
+    // Retornado quando o texto nao e um numero valido
+    public static final long INVALIDO = Long.MIN_VALUE;
+
+    private ValorMonetario() {
+    }
+
+    public static long parseCentavos(ByteBuffer bytes, int inicio, int fim) {
+        return parse(bytes, null, inicio, fim);
+    }
+
+    public static long parseCentavos(CharSequence texto) {
+        if (texto == null) return INVALIDO;
+        return parse(null, texto, 0, texto.length());
+    }
+
+    // Le de "bytes" (ISO-8859-1) ou de "texto"; todo o estado fica em variaveis locais, sem alocacao
+    private static long parse(ByteBuffer bytes, CharSequence texto, int inicio, int fim) {
+        long inteiro = 0;
+        int centavos = 0;
+        int casasDecimais = 0;
+        boolean arredondarParaCima = false;
+        boolean negativo = false;
+        boolean temSinal = false;
+        boolean temDigito = false;
+        boolean temVirgula = false;
+        boolean temEspacoFinal = false;
+
+        for (int i = inicio; i < fim; i++) {
+            char c = bytes != null ? (char) (bytes.get(i) & 0xFF) : texto.charAt(i);
+
+            if (c == ' ' || c == '\t') {
+                if (temDigito || temSinal || temVirgula) temEspacoFinal = true;
+                continue;
+            }
+            if (temEspacoFinal) return INVALIDO;
+
+            if (c >= '0' && c <= '9') {
+                int digito = c - '0';
+                temDigito = true;
+                if (!temVirgula) {
+                    if (inteiro > (Long.MAX_VALUE / 100 - digito) / 10) return INVALIDO;
+                    inteiro = inteiro * 10 + digito;
+                } else if (casasDecimais < 2) {
+                    centavos = centavos * 10 + digito;
+                    casasDecimais++;
+                } else if (casasDecimais++ == 2) {
+                    arredondarParaCima = digito >= 5;
+                }
+            } else if (c == ',') {
+                if (temVirgula) return INVALIDO;
+                temVirgula = true;
+            } else if (c == '-' || c == '+') {
+                if (temSinal || temDigito || temVirgula) return INVALIDO;
+                temSinal = true;
+                negativo = c == '-';
+            } else if (c != '.') {
+                return INVALIDO;
+            }
+        }
+
+        if (!temDigito) return INVALIDO;
+        if (casasDecimais == 1) centavos *= 10;
+        long total = inteiro * 100 + centavos + (arredondarParaCima ? 1 : 0);
+        return negativo ? -total : total;
+    }
+
+    public static String formatar(long centavos, char separadorDecimal) {
+        StringBuilder sb = new StringBuilder(24);
+        formatar(centavos, separadorDecimal, sb);
+        return sb.toString();
+    }
+
+    public static void formatar(long centavos, char separadorDecimal, StringBuilder destino) {
+        long absoluto = Math.abs(centavos);
+        if (centavos < 0) destino.append('-');
+        destino.append(absoluto / 100);
+        destino.append(separadorDecimal);
+        int resto = (int) (absoluto % 100);
+        destino.append((char) ('0' + resto / 10));
+        destino.append((char) ('0' + resto % 10));
+    }
+
+    // Divisao exata em centavos com arredondamento HALF_UP (ex.: media a partir da soma)
+    public static long dividir(long centavos, long divisor) {
+        long quociente = centavos / divisor;
+        long resto = Math.abs(centavos % divisor);
+        if (resto * 2 >= divisor) quociente += centavos < 0 ? -1 : 1;
+        return quociente;
+    }
+
+    // Estatisticas em ponto flutuante (desvio padrao) sao arredondadas para centavos so na escrita,
+    // pela representacao decimal do double, como fazia o String.format("%.2f")
+    public static long deReais(double valor) {
+        return BigDecimal.valueOf(valor).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+}
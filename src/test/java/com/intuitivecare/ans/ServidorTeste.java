@@ -0,0 +1,149 @@
+package com.intuitivecare.ans;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Servidor HTTP local (com.sun.net.httpserver) que faz o papel do FTP da ANS nas verificacoes. Serve recursos em
+// memoria com ETag e Last-Modified, responde 304 a requisicoes condicionais, 206 a Range (com If-Range), 404 ao
+// que nao foi publicado e 503 quando marcado como indisponivel. A primeira resposta de um recurso pode ser
+// cortada no meio do corpo, como uma conexao que cai. Cada requisicao fica registrada para conferencia.
+final class ServidorTeste implements AutoCloseable {
+
+    record Requisicao(String caminho, int status, String range, String ifNoneMatch) {}
+
+    private record Recurso(byte[] conteudo, String tipo, String etag, String lastModified) {}
+
+    private final HttpServer servidor;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Recurso> recursos = new ConcurrentHashMap<>();
+    private final Map<String, Long> cortes = new ConcurrentHashMap<>();
+    private final List<Requisicao> requisicoes = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger versoes = new AtomicInteger();
+    private volatile boolean indisponivel;
+
+    ServidorTeste() throws IOException {
+        servidor = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        servidor.createContext("/", this::atender);
+        servidor.setExecutor(executor);
+        servidor.start();
+    }
+
+    String url(String caminho) {
+        return "http://127.0.0.1:" + servidor.getAddress().getPort() + caminho;
+    }
+
+    // Cada publicacao e uma versao nova: ETag e Last-Modified mudam mesmo que o conteudo seja o mesmo
+    void publicar(String caminho, byte[] conteudo, String tipo) {
+        int versao = versoes.incrementAndGet();
+        String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(Instant.ofEpochSecond(1_700_000_000L + versao * 60L).atOffset(ZoneOffset.UTC));
+        recursos.put(caminho, new Recurso(conteudo.clone(), tipo, "\"v" + versao + "-" + conteudo.length + "\"", lastModified));
+    }
+
+    // Listagem no formato do FTP da ANS: uma pagina com um link por entrada
+    void publicarListagem(String caminho, List<String> entradas) {
+        StringBuilder html = new StringBuilder("<html><body>");
+        for (String entrada : entradas) html.append("<a href=\"").append(entrada).append("\">").append(entrada).append("</a>");
+        publicar(caminho, html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8), "text/html");
+    }
+
+    void remover(String caminho) {
+        recursos.remove(caminho);
+    }
+
+    // A proxima resposta com corpo deste recurso para depois de "bytes" bytes e fecha a conexao
+    void cortarProximaResposta(String caminho, long bytes) {
+        cortes.put(caminho, bytes);
+    }
+
+    void indisponivel(boolean indisponivel) {
+        this.indisponivel = indisponivel;
+    }
+
+    List<Requisicao> requisicoes(String caminho) {
+        synchronized (requisicoes) {
+            return requisicoes.stream().filter(r -> r.caminho.equals(caminho)).toList();
+        }
+    }
+
+    void limparRegistro() {
+        requisicoes.clear();
+    }
+
+    @Override
+    public void close() {
+        servidor.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void atender(HttpExchange troca) throws IOException {
+        try (troca) {
+            String caminho = troca.getRequestURI().getPath();
+            Recurso recurso = recursos.get(caminho);
+            if (indisponivel) {
+                responder(troca, 503, -1);
+                return;
+            }
+            if (recurso == null) {
+                responder(troca, 404, -1);
+                return;
+            }
+
+            troca.getResponseHeaders().set("Content-Type", recurso.tipo);
+            troca.getResponseHeaders().set("ETag", recurso.etag);
+            troca.getResponseHeaders().set("Last-Modified", recurso.lastModified);
+            String ifNoneMatch = troca.getRequestHeaders().getFirst("If-None-Match");
+            String ifModifiedSince = troca.getRequestHeaders().getFirst("If-Modified-Since");
+            if (ifNoneMatch != null ? ifNoneMatch.equals(recurso.etag) : recurso.lastModified.equals(ifModifiedSince)) {
+                responder(troca, 304, -1);
+                return;
+            }
+
+            byte[] conteudo = recurso.conteudo;
+            int inicio = 0;
+            int status = 200;
+            String range = troca.getRequestHeaders().getFirst("Range");
+            String ifRange = troca.getRequestHeaders().getFirst("If-Range");
+            if (range != null && range.startsWith("bytes=") && range.endsWith("-")
+                    && (ifRange == null || ifRange.equals(recurso.etag) || ifRange.equals(recurso.lastModified))) {
+                inicio = Integer.parseInt(range.substring(6, range.length() - 1));
+                if (inicio >= conteudo.length) {
+                    troca.getResponseHeaders().set("Content-Range", "bytes */" + conteudo.length);
+                    responder(troca, 416, -1);
+                    return;
+                }
+                status = 206;
+                troca.getResponseHeaders().set("Content-Range", "bytes " + inicio + "-" + (conteudo.length - 1) + "/" + conteudo.length);
+            }
+
+            int tamanho = conteudo.length - inicio;
+            responder(troca, status, tamanho);
+            Long corte = cortes.remove(caminho);
+            OutputStream corpo = troca.getResponseBody();
+            // Com menos bytes que o Content-Length, o close derruba a conexao e o cliente ve o corpo incompleto
+            corpo.write(conteudo, inicio, corte != null && corte < tamanho ? corte.intValue() : tamanho);
+            corpo.flush();
+        }
+    }
+
+    // Registra antes de responder: quando o cliente recebe a resposta, a requisicao ja esta no registro
+    private void responder(HttpExchange troca, int status, long tamanho) throws IOException {
+        requisicoes.add(new Requisicao(troca.getRequestURI().getPath(), status,
+                troca.getRequestHeaders().getFirst("Range"), troca.getRequestHeaders().getFirst("If-None-Match")));
+        troca.sendResponseHeaders(status, tamanho);
+    }
+}
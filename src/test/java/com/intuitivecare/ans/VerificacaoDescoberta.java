@@ -0,0 +1,104 @@
+package com.intuitivecare.ans;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+
+// Verificacao da DescobertaTrimestres contra o ServidorTeste: navegacao pelas listagens, janelas de trimestres,
+// revalidacao do cache de listagens (304), listagem alterada, servidor fora do ar e listagem inexistente.
+// Uso: java -cp <classes>:<test-classes>:<dependencias> com.intuitivecare.ans.VerificacaoDescoberta
+public class VerificacaoDescoberta {
+
+    private static int falhas = 0;
+
+    public static void main(String[] args) throws Exception {
+        File cache = Files.createTempDirectory("verificacao-descoberta").toFile();
+        try (ServidorTeste servidor = new ServidorTeste()) {
+            String pasta = "/PDA/demonstracoes_contabeis/";
+            servidor.publicarListagem("/PDA/", List.of("operadoras_de_plano_de_saude_ativas/", "demonstracoes_contabeis/"));
+            servidor.publicarListagem(pasta, List.of("2022/", "2023/", "2024/"));
+            servidor.publicarListagem(pasta + "2022/", List.of("1T2022.zip", "2T2022.zip", "3T2022.zip", "4T2022.zip"));
+            servidor.publicarListagem(pasta + "2023/", List.of("1T2023.zip", "2T2023.zip", "3T2023.zip", "4T2023.zip"));
+            servidor.publicarListagem(pasta + "2024/", List.of("1T2024.zip", "2T2024.zip", "leiame.txt"));
+
+            // 1. Primeira execucao: sem cache, tudo vem do servidor
+            try (DescobertaTrimestres descoberta = new DescobertaTrimestres(cache, 2, Duration.ofSeconds(5), 3)) {
+                String urlPasta = descoberta.localizarPasta(servidor.url("/PDA/"), "demonstracoes_contabeis");
+                verificar(servidor.url(pasta).equals(urlPasta), "pasta localizada: " + urlPasta);
+                verificar(nomes(descoberta.listarTrimestres(urlPasta, DescobertaTrimestres.Janela.ultimos(4)))
+                        .equals(List.of("2T2024", "1T2024", "4T2023", "3T2023")), "ultimos 4 atravessam o ano incompleto");
+                verificar(nomes(descoberta.listarTrimestres(urlPasta, DescobertaTrimestres.Janela.intervalo(
+                        DescobertaTrimestres.Trimestre.de("3T2022"), DescobertaTrimestres.Trimestre.de("1T2023"))))
+                        .equals(List.of("1T2023", "4T2022", "3T2022")), "intervalo 3T2022 a 1T2023");
+            }
+
+            // 2. Nova execucao com o mesmo cache: as listagens sao revalidadas e o servidor responde 304
+            servidor.limparRegistro();
+            try (DescobertaTrimestres descoberta = new DescobertaTrimestres(cache, 2, Duration.ofSeconds(5), 3)) {
+                List<String> trimestres = nomes(descoberta.listarTrimestres(servidor.url(pasta), DescobertaTrimestres.Janela.ultimos(4)));
+                verificar(trimestres.equals(List.of("2T2024", "1T2024", "4T2023", "3T2023")), "cache revalidado: mesma janela " + trimestres);
+            }
+            List<ServidorTeste.Requisicao> requisicoes = servidor.requisicoes(pasta + "2024/");
+            verificar(requisicoes.size() == 1 && requisicoes.get(0).status() == 304 && requisicoes.get(0).ifNoneMatch() != null,
+                    "cache revalidado: If-None-Match respondido com 304 (" + requisicoes + ")");
+
+            // 3. Trimestre novo publicado: a listagem muda, o 200 substitui o cache
+            servidor.limparRegistro();
+            servidor.publicarListagem(pasta + "2024/", List.of("1T2024.zip", "2T2024.zip", "3T2024.zip", "leiame.txt"));
+            try (DescobertaTrimestres descoberta = new DescobertaTrimestres(cache, 2, Duration.ofSeconds(5), 3)) {
+                List<String> trimestres = nomes(descoberta.listarTrimestres(servidor.url(pasta), DescobertaTrimestres.Janela.ultimos(2)));
+                verificar(trimestres.equals(List.of("3T2024", "2T2024")), "listagem alterada: trimestre novo " + trimestres);
+            }
+            requisicoes = servidor.requisicoes(pasta + "2024/");
+            verificar(requisicoes.size() == 1 && requisicoes.get(0).status() == 200, "listagem alterada: 200 (" + requisicoes + ")");
+
+            // 4. Servidor fora do ar: a ultima listagem em cache continua valendo
+            servidor.indisponivel(true);
+            try (DescobertaTrimestres descoberta = new DescobertaTrimestres(cache, 2, Duration.ofSeconds(5), 1)) {
+                List<String> trimestres = nomes(descoberta.listarTrimestres(servidor.url(pasta), DescobertaTrimestres.Janela.ultimos(2)));
+                verificar(trimestres.equals(List.of("3T2024", "2T2024")), "servidor fora do ar: listagem do cache " + trimestres);
+            }
+            servidor.indisponivel(false);
+
+            // 5. Listagem que nao existe: 404 e erro, sem cair no cache nem tentar de novo
+            servidor.limparRegistro();
+            String ausente = "/PDA/inexistente/";
+            boolean falhou = false;
+            try (DescobertaTrimestres descoberta = new DescobertaTrimestres(cache, 2, Duration.ofSeconds(5), 3)) {
+                descoberta.listarTrimestres(servidor.url(ausente), DescobertaTrimestres.Janela.ultimos(4));
+            } catch (IOException e) {
+                falhou = true;
+            }
+            verificar(falhou && servidor.requisicoes(ausente).size() == 1, "404: erro sem novas tentativas (" + servidor.requisicoes(ausente) + ")");
+        } finally {
+            apagar(cache);
+        }
+
+        if (falhas > 0) {
+            System.err.println(falhas + " verificacao(oes) falharam");
+            System.exit(1);
+        }
+        System.out.println("VerificacaoDescoberta: ok");
+    }
+
+    private static List<String> nomes(List<DescobertaTrimestres.ArquivoTrimestral> arquivos) {
+        return arquivos.stream().map(arquivo -> arquivo.trimestre().toString()).toList();
+    }
+
+    static void verificar(boolean condicao, String descricao) {
+        if (condicao) {
+            System.out.println("ok    " + descricao);
+        } else {
+            falhas++;
+            System.err.println("FALHA " + descricao);
+        }
+    }
+
+    static void apagar(File arquivo) {
+        File[] filhos = arquivo.listFiles();
+        if (filhos != null) for (File filho : filhos) apagar(filho);
+        arquivo.delete();
+    }
+}
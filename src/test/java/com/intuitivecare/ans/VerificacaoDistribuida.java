@@ -0,0 +1,162 @@
+package com.intuitivecare.ans;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+// Verificacao do --distribuido: o Main roda duas vezes sobre os mesmos dados sinteticos servidos pelo ServidorTeste,
+// uma em processo unico com --ler-zip e outra com dois workers, e cada entrada do consolidado_despesas.zip tem de
+// ser igual byte a byte nas duas execucoes.
+// Uso: java -cp <classes>:<test-classes>:<dependencias> com.intuitivecare.ans.VerificacaoDistribuida
+public class VerificacaoDistribuida {
+
+    private static final String[] TRIMESTRES = {"3T2023", "4T2023", "1T2024", "2T2024"};
+    private static final String[] DESCRICOES = {
+            "EVENTOS INDENIZÁVEIS LÍQUIDOS", "SINISTROS CONHECIDOS OU AVISADOS", "Despesas administrativas; diversas",
+            "Despesas com \"\"Tributos\"\"", "RECEITA DE CONTRAPRESTAÇÕES", "Aplicações financeiras"};
+    private static final String[] CONTAS = {"41", "411", "4121", "46", "31", "12"};
+    private static final int OPERADORAS = 200;
+    private static final int LINHAS_POR_TRIMESTRE = 20_000;
+
+    private static int falhas = 0;
+
+    public static void main(String[] args) throws Exception {
+        File pasta = Files.createTempDirectory("verificacao-distribuida").toFile();
+        try (ServidorTeste servidor = new ServidorTeste()) {
+            publicarDados(servidor);
+            List<String> base = List.of("--url-ans=" + servidor.url("/PDA/"), "--url-cadastro=" + servidor.url("/cad/"),
+                    "--trimestres=3");
+
+            File unico = executar(new File(pasta, "ler-zip"), base, "--ler-zip");
+            File distribuido = executar(new File(pasta, "distribuido"), base, "--distribuido", "--workers=2");
+            if (unico != null && distribuido != null) comparar(unico, distribuido);
+        } finally {
+            apagar(pasta);
+        }
+
+        if (falhas > 0) {
+            System.err.println(falhas + " verificacao(oes) falharam");
+            System.exit(1);
+        }
+        System.out.println("VerificacaoDistribuida: ok");
+    }
+
+    // Trimestres no formato do FTP da ANS (ISO-8859-1, campos entre aspas, ';' e aspas dentro da descricao) e um
+    // cadastro que nao conhece uma das operadoras dos demonstrativos
+    private static void publicarDados(ServidorTeste servidor) throws IOException {
+        String pasta = "/PDA/demonstracoes_contabeis/";
+        servidor.publicarListagem("/PDA/", List.of("demonstracoes_contabeis/", "operadoras_de_plano_de_saude_ativas/"));
+        servidor.publicarListagem(pasta, List.of("2023/", "2024/"));
+        servidor.publicarListagem(pasta + "2023/", List.of("3T2023.zip", "4T2023.zip"));
+        servidor.publicarListagem(pasta + "2024/", List.of("1T2024.zip", "2T2024.zip"));
+
+        Random aleatorio = new Random(20240101L);
+        for (String trimestre : TRIMESTRES) {
+            DescobertaTrimestres.Trimestre t = DescobertaTrimestres.Trimestre.de(trimestre);
+            String data = t.ano() + "-" + String.format("%02d", (t.numero() - 1) * 3 + 1) + "-01";
+            StringBuilder csv = new StringBuilder("\"DATA\";\"REG_ANS\";\"CD_CONTA_CONTABIL\";\"DESCRICAO\";\"VL_SALDO_INICIAL\";\"VL_SALDO_FINAL\"\n");
+            for (int i = 0; i < LINHAS_POR_TRIMESTRE; i++) {
+                int operadora = aleatorio.nextInt(OPERADORAS + 1);
+                String regAns = operadora == OPERADORAS ? "999999" : String.valueOf(300_000 + operadora);
+                int tipo = aleatorio.nextInt(CONTAS.length);
+                csv.append('"').append(data).append("\";\"").append(regAns).append("\";\"").append(CONTAS[tipo])
+                        .append("\";\"").append(DESCRICOES[tipo]).append("\";\"")
+                        .append(valor(aleatorio)).append("\";\"").append(valor(aleatorio)).append("\"\n");
+            }
+            byte[] zip = zip(trimestre + ".csv", csv.toString().getBytes(StandardCharsets.ISO_8859_1));
+            servidor.publicar(pasta + t.ano() + "/" + trimestre + ".zip", zip, "application/zip");
+        }
+
+        StringBuilder cadastro = new StringBuilder("REGISTRO_OPERADORA;CNPJ;Razao_Social;Modalidade;UF\n");
+        String[] ufs = {"SP", "RJ", "MG", "RS", "BA"};
+        for (int i = 0; i < OPERADORAS; i++) {
+            cadastro.append(300_000 + i).append(';').append(String.format("%014d", 6_990_590_000_000L + i * 97L))
+                    .append(";OPERADORA ").append(300_000 + i).append(" SAÚDE;")
+                    .append(i % 2 == 0 ? "Cooperativa Médica" : "Medicina de Grupo").append(';').append(ufs[i % ufs.length]).append('\n');
+        }
+        servidor.publicarListagem("/cad/", List.of("Relatorio_cadop.csv"));
+        servidor.publicar("/cad/Relatorio_cadop.csv", cadastro.toString().getBytes(StandardCharsets.ISO_8859_1), "text/csv");
+    }
+
+    private static String valor(Random aleatorio) {
+        return aleatorio.nextInt(1_000_000) + "," + String.format("%02d", aleatorio.nextInt(100));
+    }
+
+    private static byte[] zip(String nome, byte[] conteudo) throws IOException {
+        ByteArrayOutputStream saida = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(saida)) {
+            zip.putNextEntry(new ZipEntry(nome));
+            zip.write(conteudo);
+            zip.closeEntry();
+        }
+        return saida.toByteArray();
+    }
+
+    // Main em outro processo, com a pasta como diretorio de trabalho; devolve o ZIP final ou null se falhou
+    private static File executar(File pasta, List<String> base, String... modo) throws IOException, InterruptedException {
+        pasta.mkdirs();
+        List<String> comando = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dfile.encoding=UTF-8", "-cp", classpathAbsoluto(), Main.class.getName()));
+        comando.addAll(base);
+        comando.addAll(List.of(modo));
+        File log = new File(pasta, "execucao.log");
+        Process processo = new ProcessBuilder(comando).directory(pasta).redirectErrorStream(true).redirectOutput(log).start();
+        if (!processo.waitFor(5, TimeUnit.MINUTES)) {
+            processo.destroyForcibly();
+            verificar(false, String.join(" ", modo) + ": sem terminar em 5 minutos (log: " + log + ")");
+            return null;
+        }
+        File zip = new File(pasta, "consolidado_despesas.zip");
+        boolean ok = processo.exitValue() == 0 && zip.exists();
+        verificar(ok, String.join(" ", modo) + ": codigo de saida " + processo.exitValue());
+        if (!ok) System.err.print(Files.readString(log.toPath(), StandardCharsets.UTF_8));
+        return ok ? zip : null;
+    }
+
+    // O processo roda em outra pasta, entao entradas relativas do classpath deixariam de valer
+    private static String classpathAbsoluto() {
+        StringJoiner classpath = new StringJoiner(File.pathSeparator);
+        for (String entrada : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classpath.add(new File(entrada).getAbsolutePath());
+        }
+        return classpath.toString();
+    }
+
+    private static void comparar(File esperado, File obtido) throws IOException {
+        try (ZipFile a = new ZipFile(esperado); ZipFile b = new ZipFile(obtido)) {
+            List<String> nomesA = a.stream().map(ZipEntry::getName).sorted().toList();
+            List<String> nomesB = b.stream().map(ZipEntry::getName).sorted().toList();
+            verificar(nomesA.equals(nomesB), "mesmas entradas no ZIP: " + nomesA + " / " + nomesB);
+            for (String nome : nomesA) {
+                if (b.getEntry(nome) == null) continue;
+                byte[] bytesA = a.getInputStream(a.getEntry(nome)).readAllBytes();
+                byte[] bytesB = b.getInputStream(b.getEntry(nome)).readAllBytes();
+                verificar(bytesA.length > 0 && Arrays.equals(bytesA, bytesB),
+                        nome + ": identico (" + bytesA.length + " / " + bytesB.length + " bytes)");
+            }
+        }
+    }
+
+    static void verificar(boolean condicao, String descricao) {
+        if (condicao) {
+            System.out.println("ok    " + descricao);
+        } else {
+            falhas++;
+            System.err.println("FALHA " + descricao);
+        }
+    }
+
+    static void apagar(File arquivo) {
+        File[] filhos = arquivo.listFiles();
+        if (filhos != null) for (File filho : filhos) apagar(filho);
+        arquivo.delete();
+    }
+}
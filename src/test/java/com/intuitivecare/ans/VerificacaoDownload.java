@@ -0,0 +1,121 @@
+package com.intuitivecare.ans;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Verificacao do MotorDownload contra o ServidorTeste: retomada com Range depois de uma conexao cortada,
+// 304 para a copia ja baixada, versao nova baixada de novo e 4xx sem novas tentativas.
+// Uso: java -cp <classes>:<test-classes>:<dependencias> com.intuitivecare.ans.VerificacaoDownload
+public class VerificacaoDownload {
+
+    private static int falhas = 0;
+
+    public static void main(String[] args) throws Exception {
+        File pasta = Files.createTempDirectory("verificacao-download").toFile();
+        try (ServidorTeste servidor = new ServidorTeste()) {
+            String caminho = "/PDA/1T2024.zip";
+            File destino = new File(pasta, "1T2024.zip");
+
+            // 1. Conexao cai no meio do corpo: a segunda tentativa pede so o que falta
+            byte[] original = zipAleatorio(42);
+            servidor.publicar(caminho, original, "application/zip");
+            int corte = original.length / 3;
+            servidor.cortarProximaResposta(caminho, corte);
+            try (MotorDownload motor = new MotorDownload(2, Duration.ofSeconds(5), 3)) {
+                motor.baixar(servidor.url(caminho), destino);
+            }
+            List<ServidorTeste.Requisicao> requisicoes = servidor.requisicoes(caminho);
+            verificar(Arrays.equals(original, Files.readAllBytes(destino.toPath())), "retomada: arquivo igual ao publicado");
+            verificar(requisicoes.size() == 2 && requisicoes.get(0).status() == 200 && requisicoes.get(1).status() == 206,
+                    "retomada: 200 cortado seguido de 206 (" + requisicoes + ")");
+            // O cliente pode ter recebido menos do que o servidor escreveu antes do corte, mas nunca mais
+            long retomada = requisicoes.size() == 2 ? inicioRange(requisicoes.get(1).range()) : -1;
+            verificar(retomada > 0 && retomada <= corte, "retomada: Range a partir dos bytes ja recebidos (" + retomada + ")");
+            verificar(!new File(pasta, "1T2024.zip.part").exists(), "retomada: parcial removido");
+
+            // 2. Nova execucao com a copia completa: requisicao condicional, 304 e arquivo intacto
+            servidor.limparRegistro();
+            long modificado = destino.lastModified();
+            try (MotorDownload motor = new MotorDownload(2, Duration.ofSeconds(5), 3)) {
+                motor.baixar(servidor.url(caminho), destino);
+            }
+            requisicoes = servidor.requisicoes(caminho);
+            verificar(requisicoes.size() == 1 && requisicoes.get(0).status() == 304 && requisicoes.get(0).ifNoneMatch() != null,
+                    "condicional: If-None-Match respondido com 304 (" + requisicoes + ")");
+            verificar(destino.lastModified() == modificado && Arrays.equals(original, Files.readAllBytes(destino.toPath())),
+                    "condicional: arquivo local intacto");
+
+            // 3. Versao nova no servidor: o ETag antigo nao confere e o arquivo e substituido
+            servidor.limparRegistro();
+            byte[] novo = zipAleatorio(7);
+            servidor.publicar(caminho, novo, "application/zip");
+            try (MotorDownload motor = new MotorDownload(2, Duration.ofSeconds(5), 3)) {
+                motor.baixar(servidor.url(caminho), destino);
+            }
+            requisicoes = servidor.requisicoes(caminho);
+            verificar(requisicoes.size() == 1 && requisicoes.get(0).status() == 200, "versao nova: 200 (" + requisicoes + ")");
+            verificar(Arrays.equals(novo, Files.readAllBytes(destino.toPath())), "versao nova: arquivo substituido");
+
+            // 4. 404 e definitivo: uma unica requisicao, sem esperar pelas novas tentativas
+            servidor.limparRegistro();
+            String ausente = "/PDA/4T2099.zip";
+            int status = 0;
+            try (MotorDownload motor = new MotorDownload(2, Duration.ofSeconds(5), 3)) {
+                motor.baixar(servidor.url(ausente), new File(pasta, "4T2099.zip"));
+            } catch (MotorDownload.FalhaDefinitiva e) {
+                status = e.status();
+            }
+            verificar(status == 404, "4xx: FalhaDefinitiva com status 404");
+            verificar(servidor.requisicoes(ausente).size() == 1, "4xx: sem novas tentativas (" + servidor.requisicoes(ausente) + ")");
+        } finally {
+            apagar(pasta);
+        }
+
+        if (falhas > 0) {
+            System.err.println(falhas + " verificacao(oes) falharam");
+            System.exit(1);
+        }
+        System.out.println("VerificacaoDownload: ok");
+    }
+
+    static void verificar(boolean condicao, String descricao) {
+        if (condicao) {
+            System.out.println("ok    " + descricao);
+        } else {
+            falhas++;
+            System.err.println("FALHA " + descricao);
+        }
+    }
+
+    private static long inicioRange(String range) {
+        if (range == null || !range.startsWith("bytes=") || !range.endsWith("-")) return -1;
+        return Long.parseLong(range.substring(6, range.length() - 1));
+    }
+
+    // ZIP valido (o motor confere a integridade antes de publicar) com conteudo incompressivel de ~300 KB
+    private static byte[] zipAleatorio(long semente) throws IOException {
+        byte[] dados = new byte[300_000];
+        new Random(semente).nextBytes(dados);
+        ByteArrayOutputStream saida = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(saida)) {
+            zip.putNextEntry(new ZipEntry("dados.bin"));
+            zip.write(dados);
+            zip.closeEntry();
+        }
+        return saida.toByteArray();
+    }
+
+    static void apagar(File arquivo) {
+        File[] filhos = arquivo.listFiles();
+        if (filhos != null) for (File filho : filhos) apagar(filho);
+        arquivo.delete();
+    }
+}
@@ -0,0 +1,20 @@
+#!/bin/sh
+# Roda as verificacoes de src/test (programas main que saem com codigo != 0 quando algo nao confere)
+# Uso: ./verificar.sh [VerificacaoDownload ...]
+set -e
+cd "$(dirname "$0")"
+mvn -B -q test-compile
+
+M2="${M2_REPO:-$HOME/.m2/repository}"
+CP="target/classes:target/test-classes"
+CP="$CP:$M2/org/apache/commons/commons-csv/1.10.0/commons-csv-1.10.0.jar"
+CP="$CP:$M2/commons-io/commons-io/2.15.1/commons-io-2.15.1.jar"
+CP="$CP:$M2/org/jsoup/jsoup/1.17.2/jsoup-1.17.2.jar"
+
+if [ $# -eq 0 ]; then
+    set -- $(cd target/test-classes/com/intuitivecare/ans && ls Verificacao*.class | grep -v '\$' | sed 's/\.class$//')
+fi
+for verificacao in "$@"; do
+    echo "== $verificacao"
+    java -cp "$CP" "com.intuitivecare.ans.$verificacao"
+done